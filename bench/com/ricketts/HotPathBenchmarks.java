@@ -0,0 +1,376 @@
+package com.ricketts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * JMH microbenchmarks of the code every simulated packet goes through: Link.addPacket and Link.update,
+ * Router.receivePacket, Host.receivePacket with an ACK, Host.update and Flow.activateFlow (which generates the data
+ * packets), and one whole tick of a network. Each measures throughput in a fork of its own for every value of its
+ * parameter.
+ *
+ * Compiling the bench sources with lib/* on the class path runs JMH's annotation processor, which generates the
+ * benchmark code. Then run e.g.
+ *   java -cp out:lib/* org.openjdk.jmh.Main HotPathBenchmarks -p queueDepth=64 -prof gc -rf json
+ * where -prof gc adds the bytes allocated per operation and the collections, and -rf json writes jmh-result.json.
+ */
+public class HotPathBenchmarks {
+    /**
+     * 10 Mbps in bits per ms, the rate of most links in t0 to t2
+     */
+    private static final int LinkRate = 10486;
+    /**
+     * A flow, in packets, that no benchmark runs out of data on
+     */
+    private static final int MaxFlowPackets = Integer.MAX_VALUE / DataPacket.DataPacketSize - 1;
+
+    /**
+     * A Node that ignores whatever it is sent, for the far end of a Link.
+     */
+    private static class Sink extends Node {
+        public Sink(String address) {
+            super(address);
+        }
+
+        public void receivePacket(Packet packet, Link receivingLink) {
+        }
+
+        public void update() {
+        }
+    }
+
+    /**
+     * A Host on one end of a Link with a Sink on the other, and a Flow from the Host.
+     */
+    private static class HostFixture {
+        public final Link link;
+        public final Host host;
+        public final Flow flow;
+
+        /**
+         * Build the fixture.
+         * @param bufferPackets the Link's buffer size, in data packets
+         * @param flowPackets the Flow's size, in data packets
+         * @param protocol tcp protocol of the Host
+         */
+        public HostFixture(int bufferPackets, int flowPackets, int protocol) {
+            this.link = new Link(0, LinkRate, 10, bufferPackets * DataPacket.DataPacketSize, false);
+            this.host = new Host("h0", link, protocol);
+            Host destination = new Host("h1", null, protocol);
+            link.setLeftNode(host);
+            link.setRightNode(new Sink("r0"));
+            this.flow = new Flow(0, host, destination, flowPackets * DataPacket.DataPacketSize, 0);
+        }
+    }
+
+    /**
+     * Run a Simulation for its runtime with the reports thrown away, so its routing tables are installed and its
+     * flows are under way.
+     * @param simulation the Simulation
+     */
+    private static void prepare(Simulation simulation) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            simulation.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Link.addPacket into a buffer that fills from empty to queueDepth packets, drops one and is cleared.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class LinkAddPacket {
+        @Param({"1", "64", "1024"})
+        public int queueDepth;
+
+        private Link link;
+        private Node sender;
+        private DataPacket packet;
+
+        @Setup
+        public void setup() {
+            HostFixture fixture = new HostFixture(queueDepth, 1, Main.Protocol.RENO);
+            fixture.flow.activateFlow();
+            this.link = fixture.link;
+            this.sender = fixture.host;
+            this.packet = fixture.flow.packets.get(0);
+        }
+
+        @Benchmark
+        public int linkAddPacket() {
+            if (link.addPacket(packet, sender))
+                return 1;
+            link.clearBuffer(sender);
+            return 0;
+        }
+    }
+
+    /**
+     * One tick of Link.update with a standing queue of queueDepth packets each way; the packets sent on the tick
+     * are replaced first.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class LinkUpdate {
+        @Param({"1", "64", "1024"})
+        public int queueDepth;
+
+        private Link link;
+        private Node left, right;
+        private DataPacket packet;
+
+        @Setup
+        public void setup() {
+            HostFixture fixture = new HostFixture(queueDepth, 1, Main.Protocol.RENO);
+            fixture.flow.activateFlow();
+            this.link = fixture.link;
+            this.left = new Sink("s0");
+            this.right = new Sink("s1");
+            link.setLeftNode(left);
+            link.setRightNode(right);
+            this.packet = fixture.flow.packets.get(0);
+            Main.currentTime = 0;
+        }
+
+        @Benchmark
+        public int linkUpdate() {
+            while (link.addPacket(packet, left)) {
+            }
+            while (link.addPacket(packet, right)) {
+            }
+            ++Main.currentTime;
+            link.update();
+            return link.getPacketsInFlight();
+        }
+    }
+
+    /**
+     * Router.receivePacket forwarding to every Host in turn, at a leaf switch of a leaf-spine network with
+     * tableSize Hosts and 4 spines, so most destinations have 4 next hops. The packets are sent on every 1024.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class RouterReceivePacket {
+        @Param({"64", "512", "4096"})
+        public int tableSize;
+
+        private Router router;
+        private Link receivingLink;
+        private ACKPacket[] packets;
+        private int next, count;
+
+        @Setup
+        public void setup() throws TopologyParseException {
+            int hostsPerLeaf = 16;
+            int leaves = Math.max(1, tableSize / hostsPerLeaf);
+            Network network = TopologyGenerator.fromSpec("leafspine:leaves=" + leaves + ",spines=4,hosts=" +
+                    hostsPerLeaf + ",flows=0,runtime=1", Main.Protocol.RENO);
+            prepare(new Simulation("routerReceivePacket", network));
+            ArrayList<Host> hosts = network.getHosts();
+            Host source = hosts.get(0);
+            this.receivingLink = source.getLink();
+            this.router = (Router) receivingLink.getOtherEnd(source);
+            this.packets = new ACKPacket[hosts.size()];
+            for (int i = 0; i < packets.length; ++i) {
+                packets[i] = new ACKPacket(0, source, hosts.get(i), i);
+            }
+            this.next = 0;
+        }
+
+        @Benchmark
+        public int routerReceivePacket() {
+            router.receivePacket(packets[next], receivingLink);
+            if (++next == packets.length)
+                next = 0;
+            if ((++count & 1023) == 0)
+                router.update();
+            return next;
+        }
+    }
+
+    /**
+     * Host.receivePacket with the next in-order ACK of a flow with windowSize packets outstanding. Once the window
+     * is acknowledged it is marked sent again without sending anything.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class HostReceiveACK {
+        @Param({"4", "64", "1024"})
+        public int windowSize;
+
+        private Host host;
+        private Flow flow;
+        private ACKPacket[] acks;
+        /**
+         * Next ACK to receive, and the last one of the window
+         */
+        private int next, windowEnd;
+
+        @Setup
+        public void setup() {
+            // FAST rather than Reno, so the window size doesn't change with every ACK
+            HostFixture fixture = new HostFixture(1, 1 << 16, Main.Protocol.FAST);
+            this.host = fixture.host;
+            this.flow = fixture.flow;
+            host.addFlow(flow);
+            Main.currentTime = 1;
+            host.update();
+            // An ACK carries the ID of the next packet expected, so ACK i acknowledges packet i - 1
+            this.acks = new ACKPacket[flow.packets.size()];
+            for (int i = 0; i < acks.length; ++i) {
+                acks[i] = new ACKPacket(i, flow.getDestination(), host, flow.getID());
+            }
+            this.next = 1;
+            this.windowEnd = 0;
+        }
+
+        @Benchmark
+        public int hostReceiveACK() {
+            if (next > windowEnd) {
+                int first = flow.firstNotRecievedPacketIndex;
+                if (first + windowSize >= acks.length) {
+                    first = 0;
+                    flow.firstNotRecievedPacketIndex = 0;
+                }
+                windowEnd = first + windowSize;
+                flow.sendTimes.clear();
+                for (int i = first; i < windowEnd; ++i) {
+                    flow.sendTimes.put(i, 0);
+                }
+                flow.numbPacketsInWindow = windowSize;
+                next = first + 1;
+            }
+            host.receivePacket(acks[next++], null);
+            return flow.numbPacketsInWindow;
+        }
+    }
+
+    /**
+     * Host.update filling an empty window of windowSize packets, as it does after a window is acknowledged.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class HostUpdate {
+        @Param({"4", "64", "1024"})
+        public int windowSize;
+
+        private Host host;
+        private Link link;
+        private Flow flow;
+
+        @Setup
+        public void setup() {
+            HostFixture fixture = new HostFixture(windowSize, MaxFlowPackets, Main.Protocol.FAST);
+            this.host = fixture.host;
+            this.link = fixture.link;
+            this.flow = fixture.flow;
+            host.addFlow(flow);
+            Main.currentTime = 1;
+            host.update();
+        }
+
+        @Benchmark
+        public int hostUpdate() {
+            flow.windowSize = windowSize;
+            flow.numbPacketsInWindow = 0;
+            flow.sendTimes.clear();
+            if (flow.mostRecentQueuedID + windowSize >= flow.packets.size())
+                flow.mostRecentQueuedID = -1;
+            link.clearBuffer(host);
+            host.update();
+            return flow.mostRecentQueuedID;
+        }
+    }
+
+    /**
+     * Flow.activateFlow, which generates a data packet for every 1 KB of the flow.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class FlowActivate {
+        @Param({"16", "1024", "65536"})
+        public int packets;
+
+        private Flow flow;
+
+        @Setup
+        public void setup() {
+            this.flow = new HostFixture(1, packets, Main.Protocol.RENO).flow;
+        }
+
+        @Benchmark
+        public int flowActivate() {
+            flow.activateFlow();
+            return flow.lastPacketID;
+        }
+    }
+
+    /**
+     * One tick of a whole k-ary fat-tree carrying web search traffic at half load: starting the flows that are due,
+     * then updating every Node and Link. The first 2 s of simulated time fill the network up, and as flows keep
+     * arriving and finishing it stays about as full however long it is measured.
+     */
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class NetworkTick {
+        @Param({"4", "8", "16"})
+        public int k;
+
+        private ArrayList<Updatable> updatables;
+        private Workload workload;
+
+        @Setup
+        public void setup() throws TopologyParseException {
+            Network network = TopologyGenerator.fromSpec("fattree:k=" + k + ",runtime=2000",
+                    Main.Protocol.RENO);
+            this.workload = Workload.fromSpec("websearch:load=0.5", network);
+            Simulation simulation = new Simulation("networkTick", network);
+            simulation.addFlowSource(workload);
+            prepare(simulation);
+            this.updatables = new ArrayList<>();
+            updatables.addAll(network.getNodes());
+            updatables.addAll(network.getLinks());
+        }
+
+        @Benchmark
+        public int networkTick() {
+            Main.currentTime += Main.intervalTime;
+            while (workload.getNextStartTime() <= Main.currentTime) {
+                Flow flow = workload.nextFlow();
+                flow.getSource().addFlow(flow);
+            }
+            for (Updatable updatable : updatables) {
+                updatable.update();
+            }
+            return Main.currentTime;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.ricketts;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs whole simulations end to end to see how they scale: t0, t1 and t2 under FAST and Reno, then Reno dumbbells
+ * and fat-trees from 10 to 100k Hosts, and the dumbbells again with Hosts sending in segments (see DataSegment).
+ * Every scenario runs in a fresh JVM, so one can't leave garbage or a warm JIT for the next, and one that runs out of
+ * memory or time is recorded as such rather than ending the suite.
+ *
+ * For each scenario the report has the wall time, simulated seconds per wall second, packets delivered across
+ * links per wall second, the peak heap and the time spent in GC. Within a family, the cost of a simulated second is
+ * compared with the next smaller size: growing faster than the number of Hosts is marked superlinear.
+ *
+ * Run it from the directory holding t0.json to t2.json.
+ * Usage: Macrobenchmarks [options] [scenario name patterns]
+ *   --runtime MS     simulated time of the generated scenarios (2000)
+ *   --max-hosts N    skip generated scenarios with more Hosts than this (100000)
+ *   --timeout S      longest one scenario may take, in wall seconds (1800)
+ *   -rf FILE         where to write the report (macrobenchmarks.json)
+ *   -l               list the scenarios
+ *   --report FILE    print the summary of an earlier report
+ */
+public class Macrobenchmarks {
+    /**
+     * Prefixes of the lines a child JVM prints its result on
+     */
+    private static final String ResultPrefix = "RESULT ";
+    private static final String FailurePrefix = "FAILED ";
+    /**
+     * Exponent of the growth in cost per simulated second against the growth in Hosts above which scaling is
+     * marked superlinear. A little over 1, so noise on linear scaling isn't flagged.
+     */
+    private static final double SuperlinearExponent = 1.1;
+    /**
+     * Sizes of the generated scenarios: dumbbell sender/receiver pairs and fat-tree k
+     */
+    private static final int[] DumbbellPairs = {5, 50, 500, 5000, 50000};
+    private static final int[] FatTreeK = {4, 8, 16, 34, 74};
+    /**
+     * Traffic for the fat-trees, which have no flows of their own
+     */
+    private static final String FatTreeWorkload = "websearch:load=0.3";
+    /**
+     * Packets per segment in the segmented dumbbells
+     */
+    private static final int SegmentSize = 16;
+
+    /**
+     * What the command line asked for.
+     */
+    private static class Options {
+        public int runtime = 2000;
+        public int maxHosts = 100000;
+        public int timeout = 1800;
+        public String resultFile = "macrobenchmarks.json";
+        public boolean list = false;
+        public ArrayList<Pattern> patterns = new ArrayList<>();
+    }
+
+    /**
+     * One run of the suite.
+     */
+    private static class Scenario {
+        public final String name;
+        /**
+         * Scenarios of one family differ only in size, and are compared with each other
+         */
+        public final String family;
+        /**
+         * A JSON file or a generator spec, optionally followed by "@" and a workload spec, as given to Main
+         */
+        public final String spec;
+        public final int protocol;
+        /**
+         * Hosts in the network, or 0 if not known before it is built
+         */
+        public final int hosts;
+        /**
+         * Packets per segment the Hosts send, 1 for none
+         */
+        public final int segmentSize;
+
+        public Scenario(String name, String family, String spec, int protocol, int hosts) {
+            this(name, family, spec, protocol, hosts, 1);
+        }
+
+        public Scenario(String name, String family, String spec, int protocol, int hosts, int segmentSize) {
+            this.name = name;
+            this.family = family;
+            this.spec = spec;
+            this.protocol = protocol;
+            this.hosts = hosts;
+            this.segmentSize = segmentSize;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].startsWith("--run=")) {
+            // This JVM is a child running one scenario
+            try {
+                System.out.println(ResultPrefix + runScenario(args[0].substring("--run=".length()),
+                        Integer.parseInt(args[1].substring("--protocol=".length())),
+                        Integer.parseInt(args[2].substring("--segment=".length()))));
+            } catch (Throwable e) {
+                System.out.println(FailurePrefix + e);
+            }
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--report")) {
+            printSummary(readReport(args[1]));
+            return;
+        }
+        Options options = parseOptions(args);
+        if (options == null) {
+            System.out.println("Usage: Macrobenchmarks [--runtime MS] [--max-hosts N] [--timeout S] [-rf FILE] [-l] " +
+                    "[patterns]\n       Macrobenchmarks --report FILE");
+            return;
+        }
+
+        ArrayList<Scenario> scenarios = new ArrayList<>();
+        for (Scenario scenario : suite(options.runtime)) {
+            if (scenario.hosts <= options.maxHosts && matches(scenario, options))
+                scenarios.add(scenario);
+        }
+        if (options.list) {
+            for (Scenario scenario : scenarios) {
+                System.out.println(scenario.name + ": " + scenario.spec);
+            }
+            return;
+        }
+
+        JSONArray results = new JSONArray();
+        for (Scenario scenario : scenarios) {
+            System.out.println("# " + scenario.name + ": " + scenario.spec);
+            JSONObject result = runChild(scenario, options.timeout);
+            if (result.getString("status").equals("ok"))
+                System.out.println(String.format("# %.3f simulated s per wall s, %d ms", result.getDouble(
+                        "simulatedSecondsPerWallSecond"), result.getLong("wallMs")));
+            else
+                System.out.println("# " + result.getString("status"));
+            results.put(result);
+        }
+        addScalingExponents(results);
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.resultFile),
+                StandardCharsets.UTF_8))) {
+            out.write(results.toString(4));
+            out.write('\n');
+        }
+        System.out.println();
+        printSummary(results);
+        System.out.println("Wrote " + results.length() + " results to " + options.resultFile);
+    }
+
+    /**
+     * Read the command line.
+     * @param args the arguments
+     * @return the options, or null if they don't make sense
+     */
+    private static Options parseOptions(String[] args) {
+        Options options = new Options();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("--runtime"))
+                    options.runtime = Integer.parseInt(args[++i]);
+                else if (arg.equals("--max-hosts"))
+                    options.maxHosts = Integer.parseInt(args[++i]);
+                else if (arg.equals("--timeout"))
+                    options.timeout = Integer.parseInt(args[++i]);
+                else if (arg.equals("-rf"))
+                    options.resultFile = args[++i];
+                else if (arg.equals("-l"))
+                    options.list = true;
+                else if (arg.startsWith("-"))
+                    return null;
+                else
+                    options.patterns.add(Pattern.compile(arg));
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+        if (options.runtime < 1 || options.timeout < 1)
+            return null;
+        return options;
+    }
+
+    /**
+     * Every scenario of the suite, smallest first within each family.
+     * @param runtime simulated time of the generated scenarios, in ms
+     * @return the scenarios
+     */
+    private static ArrayList<Scenario> suite(int runtime) {
+        ArrayList<Scenario> scenarios = new ArrayList<>();
+        for (String topology : new String[]{"t0", "t1", "t2"}) {
+            scenarios.add(new Scenario(topology + " Fast", topology, topology + ".json", Main.Protocol.FAST, 0));
+            scenarios.add(new Scenario(topology + " Reno", topology, topology + ".json", Main.Protocol.RENO, 0));
+        }
+        for (int n : DumbbellPairs) {
+            scenarios.add(new Scenario("dumbbell n=" + n + " Reno", "dumbbell", "dumbbell:n=" + n + ",runtime=" +
+                    runtime, Main.Protocol.RENO, 2 * n));
+        }
+        for (int n : DumbbellPairs) {
+            scenarios.add(new Scenario("dumbbell n=" + n + " Reno segment=" + SegmentSize, "dumbbell segmented",
+                    "dumbbell:n=" + n + ",runtime=" + runtime, Main.Protocol.RENO, 2 * n, SegmentSize));
+        }
+        for (int k : FatTreeK) {
+            scenarios.add(new Scenario("fattree k=" + k + " Reno", "fattree", "fattree:k=" + k + ",runtime=" +
+                    runtime + "@" + FatTreeWorkload, Main.Protocol.RENO, k * k * k / 4));
+        }
+        return scenarios;
+    }
+
+    private static boolean matches(Scenario scenario, Options options) {
+        if (options.patterns.isEmpty())
+            return true;
+        for (Pattern pattern : options.patterns) {
+            if (pattern.matcher(scenario.name).find())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run one scenario in a new JVM with the same settings as this one, e.g. the same maximum heap.
+     * @param scenario the scenario
+     * @param timeout longest to wait for it, in s
+     * @return its result, with a status saying whether it finished
+     */
+    private static JSONObject runChild(Scenario scenario, int timeout)
+            throws IOException, JSONException, InterruptedException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Macrobenchmarks.class.getName());
+        command.add("--run=" + scenario.spec);
+        command.add("--protocol=" + scenario.protocol);
+        command.add("--segment=" + scenario.segmentSize);
+
+        // The child's output goes to a file rather than a pipe, so a child that hangs can't block this JVM
+        File log = File.createTempFile("macrobenchmark", ".log");
+        log.deleteOnExit();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        String status = null;
+        if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+            status = "timeout after " + timeout + " s";
+        }
+
+        JSONObject result = null;
+        String lastLine = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(log),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(ResultPrefix))
+                    result = new JSONObject(line.substring(ResultPrefix.length()));
+                else if (line.startsWith(FailurePrefix) && status == null)
+                    status = "failed: " + line.substring(FailurePrefix.length());
+                else if (!line.trim().isEmpty())
+                    lastLine = line;
+            }
+        }
+        log.delete();
+        if (result == null) {
+            result = new JSONObject();
+            if (status == null)
+                status = "failed: exit code " + process.exitValue() + (lastLine == null ? "" : ", " + lastLine);
+        }
+        result.put("scenario", scenario.name);
+        result.put("family", scenario.family);
+        result.put("spec", scenario.spec);
+        result.put("protocol", scenario.protocol == Main.Protocol.RENO ? "Reno" : "Fast");
+        result.put("segmentSize", scenario.segmentSize);
+        result.put("status", status == null ? "ok" : status);
+        if (!result.has("hosts"))
+            result.put("hosts", scenario.hosts);
+        return result;
+    }
+
+    /**
+     * Build and run one scenario in this JVM, with the simulation's own output thrown away.
+     * @param spec the scenario's spec
+     * @param protocol the tcp protocol
+     * @param segmentSize packets per segment the Hosts send
+     * @return what was measured
+     */
+    private static JSONObject runScenario(String spec, int protocol, int segmentSize) throws Exception {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+
+        long buildStart = System.nanoTime();
+        String workloadSpec = null;
+        int at = spec.indexOf('@');
+        if (at >= 0) {
+            workloadSpec = spec.substring(at + 1);
+            spec = spec.substring(0, at);
+        }
+        Network network;
+        if (spec.endsWith(".json")) {
+            String compiledFilename = spec.substring(0, spec.length() - ".json".length()) + ".topo";
+            CompiledTopology.compileIfStale(spec, compiledFilename);
+            network = CompiledTopology.load(compiledFilename, protocol);
+        } else {
+            network = TopologyGenerator.fromSpec(spec, protocol);
+        }
+        Simulation simulation = new Simulation(spec, network);
+        simulation.setSegmentSize(segmentSize);
+        if (workloadSpec != null)
+            simulation.addFlowSource(Workload.fromSpec(workloadSpec, network));
+        long buildTime = System.nanoTime() - buildStart;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        long runStart = System.nanoTime();
+        try {
+            simulation.run();
+        } finally {
+            System.setOut(out);
+        }
+        long wallTime = System.nanoTime() - runStart;
+
+        long packets = 0;
+        for (Link link : network.getLinks()) {
+            packets += link.getPacketsDelivered();
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+        double wallSeconds = Math.max(1, wallTime) / 1e9;
+
+        JSONObject result = new JSONObject();
+        result.put("hosts", network.getHosts().size());
+        result.put("nodes", network.getNodes().size());
+        result.put("links", network.getLinks().size());
+        result.put("simulatedMs", network.getRuntime());
+        result.put("buildMs", buildTime / 1000000);
+        result.put("wallMs", wallTime / 1000000);
+        result.put("simulatedSecondsPerWallSecond", network.getRuntime() / 1000.0 / wallSeconds);
+        result.put("packets", packets);
+        result.put("packetsPerSecond", packets / wallSeconds);
+        result.put("peakHeapBytes", peakHeap);
+        result.put("gcCount", gcCount() - gcCount);
+        result.put("gcTimeMs", gcTime() - gcTime);
+        return result;
+    }
+
+    /**
+     * Give every finished result the exponent of its growth in wall time per simulated second against the growth
+     * in Hosts, relative to the next smaller finished scenario of its family and protocol. 1 is linear scaling.
+     * @param results the results, smallest first within each family
+     */
+    private static void addScalingExponents(JSONArray results) throws JSONException {
+        LinkedHashMap<String, JSONObject> previous = new LinkedHashMap<>();
+        for (int i = 0; i < results.length(); ++i) {
+            JSONObject result = results.getJSONObject(i);
+            if (!result.getString("status").equals("ok"))
+                continue;
+            String key = result.getString("family") + " " + result.getString("protocol");
+            JSONObject smaller = previous.get(key);
+            previous.put(key, result);
+            if (smaller == null || result.getInt("hosts") <= smaller.getInt("hosts"))
+                continue;
+            double cost = cost(result);
+            double smallerCost = cost(smaller);
+            if (cost > 0 && smallerCost > 0)
+                result.put("scalingExponent", Math.log(cost / smallerCost) /
+                        Math.log(result.getDouble("hosts") / smaller.getDouble("hosts")));
+        }
+    }
+
+    /**
+     * Wall time per simulated second.
+     */
+    private static double cost(JSONObject result) throws JSONException {
+        return result.getDouble("wallMs") / Math.max(1, result.getDouble("simulatedMs"));
+    }
+
+    /**
+     * Print a row for every result, then the first size at which each family scales superlinearly.
+     * @param results the results
+     */
+    private static void printSummary(JSONArray results) throws JSONException {
+        ArrayList<String[]> rows = new ArrayList<>();
+        rows.add(new String[]{"Scenario", "Protocol", "Hosts", "Wall ms", "Sim s/wall s", "Packets/s", "Heap MB",
+                "GC ms", "Exponent", "Scaling"});
+        LinkedHashMap<String, String> superlinearFrom = new LinkedHashMap<>();
+        for (int i = 0; i < results.length(); ++i) {
+            JSONObject result = results.getJSONObject(i);
+            String status = result.getString("status");
+            if (!status.equals("ok")) {
+                rows.add(new String[]{result.getString("scenario"), result.getString("protocol"),
+                        Integer.toString(result.getInt("hosts")), "", "", "", "", "", "", status});
+                continue;
+            }
+            String exponent = "";
+            String scaling = "";
+            if (result.has("scalingExponent")) {
+                double value = result.getDouble("scalingExponent");
+                exponent = String.format("%.2f", value);
+                scaling = value > SuperlinearExponent ? "superlinear" : "";
+                String key = result.getString("family") + " " + result.getString("protocol");
+                if (value > SuperlinearExponent && !superlinearFrom.containsKey(key))
+                    superlinearFrom.put(key, result.getString("scenario"));
+            }
+            rows.add(new String[]{result.getString("scenario"), result.getString("protocol"),
+                    Integer.toString(result.getInt("hosts")), Long.toString(result.getLong("wallMs")),
+                    String.format("%.3f", result.getDouble("simulatedSecondsPerWallSecond")),
+                    String.format("%.0f", result.getDouble("packetsPerSecond")),
+                    String.format("%.1f", result.getLong("peakHeapBytes") / 1048576.0),
+                    Long.toString(result.getLong("gcTimeMs")), exponent, scaling});
+        }
+        printTable(rows);
+        for (String key : superlinearFrom.keySet()) {
+            System.out.println(key + " scales superlinearly from " + superlinearFrom.get(key));
+        }
+    }
+
+    /**
+     * Print rows with every column as wide as its widest cell, text left aligned and numbers right aligned.
+     * @param rows the rows, the first being the headings
+     */
+    private static void printTable(ArrayList<String[]> rows) {
+        int[] widths = new int[rows.get(0).length];
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; ++i) {
+                widths[i] = Math.max(Math.max(1, widths[i]), row[i].length());
+            }
+        }
+        for (String[] row : rows) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < row.length; ++i) {
+                boolean text = i < 2 || i == row.length - 1;
+                line.append(String.format("%" + (text ? "-" : "") + widths[i] + "s  ", row[i]));
+            }
+            System.out.println(line.toString().trim());
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static JSONArray readReport(String filename) throws IOException, JSONException {
+        try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename),
+                StandardCharsets.UTF_8))) {
+            return new JSONArray(new JSONTokener(in));
+        }
+    }
+}
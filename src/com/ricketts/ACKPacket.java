@@ -10,13 +10,34 @@ public class ACKPacket extends Packet {
      */
     public static final Integer ACKPacketSize = 8 * 64;
 
+    /**
+     * Whether the DataPacket acknowledged was marked by a Link on the way (ECN-Echo)
+     */
+    private final boolean ecnEcho;
+
     /**
      * Construct an ACKPacket from packetID, a source Host and a destination Host
      * @param packetID ID to create the new ACK packet with
      * @param source source Host
      * @param destination destination Host
+     * @param flowID ID of the Flow being acknowledged
      */
-    public ACKPacket(Integer packetID, Host source, Host destination) {
-        super(packetID, ACKPacketSize, source, destination);
+    public ACKPacket(Integer packetID, Host source, Host destination, int flowID) {
+        this(packetID, source, destination, flowID, false);
     }
-}
\ No newline at end of file
+
+    /**
+     * Construct an ACKPacket that echoes whether the DataPacket acknowledged was marked
+     * @param packetID ID to create the new ACK packet with
+     * @param source source Host
+     * @param destination destination Host
+     * @param flowID ID of the Flow being acknowledged
+     * @param ecnEcho whether the DataPacket was marked
+     */
+    public ACKPacket(Integer packetID, Host source, Host destination, int flowID, boolean ecnEcho) {
+        super(packetID, ACKPacketSize, source, destination, flowID);
+        this.ecnEcho = ecnEcho;
+    }
+
+    public boolean getECNEcho() { return ecnEcho; }
+}
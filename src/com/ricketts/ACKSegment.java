@@ -0,0 +1,42 @@
+package com.ricketts;
+
+/**
+ * The acknowledgement of a DataSegment: one packet on the wire carrying the ACK the destination would have sent for
+ * each of the segment's DataPackets. The source handles those ACKs one by one, so its TCP sees the same duplicate
+ * ACKs and window growth as if the packets had been sent on their own.
+ */
+public class ACKSegment extends ACKPacket {
+    /**
+     * ID of each ACK, in the order they were made
+     */
+    private final int[] ackIDs;
+    /**
+     * Whether the packet each ACK is for was marked by a Link, or null if none were
+     */
+    private final boolean[] ecnEchoes;
+
+    /**
+     * Construct an ACKSegment from the IDs of the ACKs it carries.
+     * @param ackIDs the IDs, at least one, in order; the last one is the segment's own ID
+     * @param source source Host
+     * @param destination destination Host
+     * @param flowID ID of the Flow being acknowledged
+     * @param ecnEchoes whether the packet each ACK is for was marked, or null if none were
+     */
+    public ACKSegment(int[] ackIDs, Host source, Host destination, int flowID, boolean[] ecnEchoes) {
+        super(ackIDs[ackIDs.length - 1], source, destination, flowID);
+        this.ackIDs = ackIDs;
+        this.ecnEchoes = ecnEchoes;
+    }
+
+    public int[] getACKIDs() { return ackIDs; }
+
+    /**
+     * Whether the packet one of the ACKs is for was marked.
+     * @param index the ACK's index in getACKIDs()
+     * @return true if it was marked
+     */
+    public boolean getECNEcho(int index) {
+        return ecnEchoes != null && ecnEchoes[index];
+    }
+}
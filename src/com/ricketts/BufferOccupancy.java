@@ -0,0 +1,108 @@
+package com.ricketts;
+
+/**
+ * The time-weighted distribution of how full one of a Link's buffers is. The Link records the most bits the buffer
+ * held during every interval, so each count stands for an interval's worth of time and the percentiles are the
+ * fraction of intervals whose peak was at or below a level, not the fraction of packets that found it so. Taking the
+ * peak rather than what is left after the interval's transmissions means an interval with drops counts as full.
+ */
+public class BufferOccupancy {
+    /**
+     * Occupancy is counted in units of this many bits, the size of an ACKPacket
+     */
+    private static final int Unit = ACKPacket.ACKPacketSize;
+    /**
+     * Occupancy is known to within 1 / 2^(PrecisionBits - 1) of itself, which with the unit above keeps the
+     * histogram to a few hundred counters for buffers of a few MB
+     */
+    private static final int PrecisionBits = 7;
+
+    /**
+     * Size of the buffer, in bits
+     */
+    private final int bufferSize;
+    /**
+     * Units in the buffer, rounded up, one count per interval
+     */
+    private final LatencyHistogram occupancy;
+    /**
+     * Intervals in which the buffer was at some point left without room for another DataPacket
+     */
+    private long fullIntervals;
+    /**
+     * Most bits in the buffer so far in the current interval
+     */
+    private int intervalPeak;
+
+    /**
+     * Construct an empty distribution for a buffer.
+     * @param bufferSize size of the buffer, in bits
+     */
+    public BufferOccupancy(int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.occupancy = new LatencyHistogram(Math.max(1, units(bufferSize)), PrecisionBits);
+    }
+
+    /**
+     * Note how full the buffer is after a packet is added to it.
+     * @param occupiedBits bits in the buffer
+     */
+    public void observe(int occupiedBits) {
+        if (occupiedBits > intervalPeak)
+            intervalPeak = occupiedBits;
+    }
+
+    /**
+     * Count the fullest the buffer was over the interval that is ending, and start the next one from how full it is
+     * now.
+     * @param occupiedBits bits in the buffer at the end of the interval
+     */
+    public void endInterval(int occupiedBits) {
+        int peak = Math.max(intervalPeak, occupiedBits);
+        occupancy.record(units(peak));
+        if (bufferSize - peak < DataPacket.DataPacketSize)
+            ++fullIntervals;
+        intervalPeak = occupiedBits;
+    }
+
+    /**
+     * Time recorded, in ms
+     */
+    public long getTime() { return occupancy.getCount() * Main.intervalTime; }
+    public long getMaxBits() { return occupancy.getMax() * Unit; }
+
+    /**
+     * The occupancy the buffer was at or below for a given percentage of the time.
+     * @param percentile the percentage, 0 to 100
+     * @return the occupancy in bits, or 0 if nothing has been recorded
+     */
+    public long getBitsAtPercentile(double percentile) {
+        return occupancy.getValueAtPercentile(percentile) * Unit;
+    }
+
+    /**
+     * Fraction of the time the buffer had no room for another DataPacket.
+     * @return between 0 and 1
+     */
+    public double getFullFraction() {
+        return occupancy.getCount() == 0 ? 0.0 : (double) fullIntervals / occupancy.getCount();
+    }
+
+    /**
+     * Describe the distribution for a report, in KB.
+     * @return e.g. "p50 12.0 KB, p99 63.5 KB, max 64.0 KB, full 2.1% of the time"
+     */
+    public String summary() {
+        return "p50 " + kilobytes(getBitsAtPercentile(50)) + " KB, p99 " + kilobytes(getBitsAtPercentile(99)) +
+                " KB, max " + kilobytes(getMaxBits()) + " KB, full " +
+                String.format("%.1f", 100 * getFullFraction()) + "% of the time";
+    }
+
+    private static int units(int bits) {
+        return (bits + Unit - 1) / Unit;
+    }
+
+    private static String kilobytes(long bits) {
+        return String.format("%.1f", bits / 8192.0);
+    }
+}
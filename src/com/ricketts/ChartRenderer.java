@@ -0,0 +1,191 @@
+package com.ricketts;
+
+import org.jfree.data.xy.XYSeries;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.*;
+
+/**
+ * Renders the charts of finished simulations headless, in parallel on a thread pool, so the next simulation can
+ * start while the last one's JPEGs are encoded. Run on its own, renders the same charts offline from metrics files
+ * written with "--metrics" (see MetricsExporter).
+ */
+public class ChartRenderer implements Closeable {
+    static {
+        // Charts are only ever saved to files, so never look for a display
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    private final ExecutorService executor;
+    private final ArrayList<Future<?>> pending = new ArrayList<>();
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Start a renderer with a thread per processor.
+     */
+    public ChartRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start a renderer.
+     * @param threads number of charts rendered at once
+     */
+    public ChartRenderer(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chart renderer " + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a plot to be rendered.
+     * @param plot the plot
+     */
+    public void submit(OverlaidPlot plot) {
+        pending.add(executor.submit(plot));
+    }
+
+    /**
+     * Queue the seven charts of one run: buffer occupancy, packet loss and rate of the graphed links, and rate, window
+     * size, median packet delay and tail packet delay of the flows.
+     * @param label name of the run used in the file names, e.g. "t1 Reno"
+     * @param buffer buffer occupancy series
+     * @param packetLoss packet loss series
+     * @param linkRates link rate series
+     * @param flowRates flow rate series
+     * @param windowSizes window size series
+     * @param packetDelay median packet delay series
+     * @param packetDelayTail p99 and p99.9 packet delay series
+     */
+    public void submitReport(String label, ArrayList<XYSeries> buffer, ArrayList<XYSeries> packetLoss,
+                             ArrayList<XYSeries> linkRates, ArrayList<XYSeries> flowRates,
+                             ArrayList<XYSeries> windowSizes, ArrayList<XYSeries> packetDelay,
+                             ArrayList<XYSeries> packetDelayTail) {
+        submit(new OverlaidPlot("Buffer", "Buffer Occupancy " + label + ".jpeg", buffer,
+                "Time (ms)", "Buffer occupancy (bits)", 888, 188));
+        submit(new OverlaidPlot("Packet Loss", "Packet Loss " + label + ".jpeg", packetLoss,
+                "Time (ms)", "Packet Loss (pkts)", 888, 188));
+        submit(new OverlaidPlot("Link Rates", "Link Rates " + label + ".jpeg", linkRates,
+                "Time (ms)", "Link Rate (Mbps)", 888, 188));
+        submit(new OverlaidPlot("Flow Rate", "Flow Rate " + label + ".jpeg", flowRates,
+                "Time (ms)", "Flow Rate (Mbps)", 888, 188));
+        submit(new OverlaidPlot("Window Size", "Window Size " + label + ".jpeg", windowSizes,
+                "Time (ms)", "Window Size (pkts)", 888, 188));
+        submit(new OverlaidPlot("Packet delay", "Packet Delay " + label + ".jpeg", packetDelay,
+                "Time (ms)", "Median Packet Delay (ms)", 888, 188));
+        submit(new OverlaidPlot("Packet delay tail", "Packet Delay Tail " + label + ".jpeg", packetDelayTail,
+                "Time (ms)", "Packet Delay (ms)", 888, 188));
+    }
+
+    /**
+     * Wait for every queued chart to be rendered and stop the threads.
+     */
+    public void close() {
+        executor.shutdown();
+        int failed = 0;
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                System.out.println("Error in creating chart " + e.getCause());
+                ++failed;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.println("Rendered " + (pending.size() - failed) + " charts in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Render the charts of metrics files written by earlier runs. Every link in a file is graphed, as the file
+     * doesn't record which links the network asked to graph.
+     * @param args metrics files, e.g. "t1 Reno.metrics"
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: ChartRenderer <file.metrics>...");
+            return;
+        }
+        ChartRenderer renderer = new ChartRenderer();
+        for (String filename : args) {
+            // Rebuild the series as the collectors would have, with the same resolution and decimation
+            final LinkedHashMap<String, TimeSeries> series = new LinkedHashMap<>();
+            try (MetricsFile metricsFile = new MetricsFile(filename)) {
+                metricsFile.read(new MetricsFile.SampleHandler() {
+                    public void sample(String key, long time, double value) {
+                        TimeSeries s = series.get(key);
+                        if (s == null) {
+                            String[] parts = key.split("/");
+                            String name = (parts[0].equals("link") ? "Link " : "Flow ") + parts[1];
+                            if (parts[2].equals("delay_p99"))
+                                name += " p99";
+                            else if (parts[2].equals("delay_p999"))
+                                name += " p99.9";
+                            // Drops are a running total and delay tails are kept by their largest, like in the
+                            // collectors
+                            TimeSeries.Decimation decimation = parts[2].equals("loss") ||
+                                    parts[2].startsWith("delay_") ? TimeSeries.Decimation.MAX :
+                                    TimeSeries.Decimation.MEAN;
+                            s = new TimeSeries(name, LinkAnalyticsCollector.DefaultSampleInterval, decimation,
+                                    LinkAnalyticsCollector.DefaultMaxPoints);
+                            series.put(key, s);
+                        }
+                        s.add(time, value);
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Cannot read " + filename + ": " + e.getMessage());
+                continue;
+            }
+
+            String label = filename.endsWith(".metrics") ?
+                    filename.substring(0, filename.length() - ".metrics".length()) : filename;
+            ArrayList<XYSeries> packetDelayTail = select(series, "flow", "delay_p99");
+            packetDelayTail.addAll(select(series, "flow", "delay_p999"));
+            renderer.submitReport(label, select(series, "link", "buffer"), select(series, "link", "loss"),
+                    select(series, "link", "rate"), select(series, "flow", "rate"),
+                    select(series, "flow", "window"), select(series, "flow", "delay"), packetDelayTail);
+        }
+        renderer.close();
+    }
+
+    /**
+     * Pick the series of one statistic out of a metrics file, in the order they were written.
+     * @param series the file's series by key
+     * @param kind "link" or "flow"
+     * @param statistic e.g. "buffer"
+     * @return the matching series in order of ID, converted for plotting
+     */
+    private static ArrayList<XYSeries> select(LinkedHashMap<String, TimeSeries> series, String kind,
+                                              String statistic) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (String key : series.keySet()) {
+            if (key.startsWith(kind + "/") && key.endsWith("/" + statistic))
+                keys.add(key);
+        }
+        // The writer defines series as their first chunk fills, which needn't be in order of ID
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Integer.compare(Integer.parseInt(a.split("/")[1]), Integer.parseInt(b.split("/")[1]));
+            }
+        });
+        ArrayList<XYSeries> output = new ArrayList<>();
+        for (String key : keys) {
+            output.add(series.get(key).toXYSeries());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,333 @@
+package com.ricketts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A network definition compiled into a compact binary image, so that repeated runs of the same topology skip JSON
+ * parsing entirely. The image is memory mapped when loaded and the objects are built straight from its tables.
+ *
+ * Layout (all integers big endian):
+ *  header: magic, format version, CRC32 of the body, body length
+ *  body:   runtime, routing protocol
+ *          string pool: count, then per string its UTF-8 length and bytes
+ *          links:   count, then per link id, rate, delay, buffer size, graph flag
+ *          hosts:   count, then per host its address (pool index) and link (link table index)
+ *          routers: count, then per router its address and link count, then all router links (link table indices)
+ *          flows:   count, then per flow id, source and destination (host table indices), data size (long), start time
+ *          instrumentation: rule count (-1 if the network has no rules), then per rule whether it is for links,
+ *                   its glob's UTF-8 length and bytes, metric mask, sample interval, max points
+ *          events:  count, then per event time, link id, action, new link rate (-1 unless a capacity change)
+ */
+public class CompiledTopology {
+    /**
+     * "NSIM"
+     */
+    private static final int Magic = 0x4E53494D;
+    /**
+     * Bumped whenever the layout changes, so stale images are recompiled rather than misread
+     */
+    private static final int FormatVersion = 4;
+    /**
+     * Header size in bytes
+     */
+    private static final int HeaderSize = 20;
+
+    /**
+     * Compile a network definition unless an image newer than it already exists.
+     * @param jsonFile the JSON network definition
+     * @param imageFile where the image is (or goes)
+     * @throws TopologyParseException if the definition cannot be parsed or the image cannot be written
+     */
+    public static void compileIfStale(String jsonFile, String imageFile) throws TopologyParseException {
+        File json = new File(jsonFile);
+        File image = new File(imageFile);
+        if (image.exists() && image.lastModified() >= json.lastModified() && hasCurrentVersion(image))
+            return;
+        // The TCP protocol is not part of the topology; it is chosen again when the image is loaded
+        Network network = new InputParser().parse(jsonFile, Main.Protocol.RENO);
+        try {
+            write(network, image);
+        } catch (IOException e) {
+            throw new TopologyParseException(imageFile, 0, "cannot write compiled topology: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Check that an image was written by this version of the format.
+     * @param image the image file
+     * @return true if its header carries the current magic and version
+     */
+    private static boolean hasCurrentVersion(File image) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(image))) {
+            return in.readInt() == Magic && in.readInt() == FormatVersion;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write the binary image of a network.
+     * @param network the network
+     * @param image the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Network network, File image) throws IOException {
+        // Assign dense indices to links and hosts, and pool the addresses
+        IdentityHashMap<Link, Integer> linkIndices = new IdentityHashMap<>();
+        for (Link link : network.getLinks()) {
+            linkIndices.put(link, linkIndices.size());
+        }
+        IdentityHashMap<Host, Integer> hostIndices = new IdentityHashMap<>();
+        for (Host host : network.getHosts()) {
+            hostIndices.put(host, hostIndices.size());
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            file.setLength(0);
+            file.seek(HeaderSize);
+            CRC32 checksum = new CRC32();
+            CheckedOutputStream checkedStream = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file.getFD()), 1 << 16), checksum);
+            DataOutputStream out = new DataOutputStream(checkedStream);
+
+            out.writeInt(network.getRuntime());
+            out.writeInt(network.getRoutingProtocol());
+
+            // String pool: host addresses first, then router addresses, so the index is the node index
+            out.writeInt(network.getHosts().size() + network.getRouters().size());
+            for (Node node : network.getNodes()) {
+                byte[] bytes = node.getAddress().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(network.getLinks().size());
+            for (Link link : network.getLinks()) {
+                out.writeInt(link.getID());
+                out.writeInt(link.getLinkRate());
+                out.writeInt(link.getLinkDelay());
+                out.writeInt(link.getLinkBufferSize());
+                out.writeBoolean(link.graph);
+            }
+
+            out.writeInt(network.getHosts().size());
+            for (int i = 0; i < network.getHosts().size(); ++i) {
+                out.writeInt(i);
+                out.writeInt(linkIndices.get(network.getHosts().get(i).getLink()));
+            }
+
+            out.writeInt(network.getRouters().size());
+            int totalRouterLinks = 0;
+            for (int i = 0; i < network.getRouters().size(); ++i) {
+                out.writeInt(network.getHosts().size() + i);
+                out.writeInt(network.getRouters().get(i).getLinks().size());
+                totalRouterLinks += network.getRouters().get(i).getLinks().size();
+            }
+            out.writeInt(totalRouterLinks);
+            for (Router router : network.getRouters()) {
+                for (Link link : router.getLinks()) {
+                    out.writeInt(linkIndices.get(link));
+                }
+            }
+
+            out.writeInt(network.getFlows().size());
+            for (Flow flow : network.getFlows()) {
+                out.writeInt(flow.getID());
+                out.writeInt(hostIndices.get(flow.getSource()));
+                out.writeInt(hostIndices.get(flow.getDestination()));
+                out.writeLong(flow.getDataSize());
+                out.writeInt(flow.getStartTime());
+            }
+
+            InstrumentationConfig instrumentation = network.getInstrumentation();
+            if (instrumentation == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(instrumentation.getRules().size());
+                for (InstrumentationConfig.Rule rule : instrumentation.getRules()) {
+                    out.writeBoolean(rule.forLinks);
+                    byte[] bytes = rule.glob.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.writeInt(rule.metrics);
+                    out.writeInt(rule.sampleInterval);
+                    out.writeInt(rule.maxPoints);
+                }
+            }
+
+            out.writeInt(network.getEvents().size());
+            for (NetworkEvent event : network.getEvents()) {
+                out.writeInt(event.getTime());
+                out.writeInt(event.getLinkID());
+                out.writeInt(event.getAction());
+                out.writeInt(event.getLinkRate() == null ? -1 : event.getLinkRate());
+            }
+            out.flush();
+
+            long bodyLength = file.length() - HeaderSize;
+            file.seek(0);
+            file.writeInt(Magic);
+            file.writeInt(FormatVersion);
+            file.writeLong(checksum.getValue());
+            file.writeInt((int) bodyLength);
+        }
+    }
+
+    /**
+     * Memory map an image and build the network it describes.
+     * @param imageFile the image file
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     * @throws TopologyParseException if the image cannot be read, is from another format version or is corrupt
+     */
+    public static Network load(String imageFile, int protocol) throws TopologyParseException {
+        try (FileChannel channel = new RandomAccessFile(imageFile, "r").getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HeaderSize || buffer.getInt(0) != Magic)
+                throw new TopologyParseException(imageFile, 0, "not a compiled topology");
+            if (buffer.getInt(4) != FormatVersion)
+                throw new TopologyParseException(imageFile, 0, "compiled with format version " + buffer.getInt(4) +
+                        ", expected " + FormatVersion);
+            long expectedChecksum = buffer.getLong(8);
+            int bodyLength = buffer.getInt(16);
+            if (bodyLength != buffer.remaining() - HeaderSize)
+                throw new TopologyParseException(imageFile, 0, "truncated compiled topology");
+
+            buffer.position(HeaderSize);
+            ByteBuffer body = buffer.slice();
+            CRC32 checksum = new CRC32();
+            checksum.update(body.duplicate());
+            if (checksum.getValue() != expectedChecksum)
+                throw new TopologyParseException(imageFile, 0, "checksum mismatch, compiled topology is corrupt");
+
+            return build(body, protocol);
+        } catch (IOException e) {
+            throw new TopologyParseException(imageFile, 0, "cannot read compiled topology: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Build the objects from the tables of an image body.
+     * @param body the body, positioned at its start
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    private static Network build(ByteBuffer body, int protocol) {
+        int runtime = body.getInt();
+        int routingProtocol = body.getInt();
+
+        String[] addresses = new String[body.getInt()];
+        for (int i = 0; i < addresses.length; ++i) {
+            byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            addresses[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int linkCount = body.getInt();
+        ArrayList<Link> links = new ArrayList<>(linkCount);
+        for (int i = 0; i < linkCount; ++i) {
+            int id = body.getInt();
+            int rate = body.getInt();
+            int delay = body.getInt();
+            int bufferSize = body.getInt();
+            boolean graph = body.get() != 0;
+            links.add(new Link(id, rate, delay, bufferSize, graph));
+        }
+
+        int hostCount = body.getInt();
+        ArrayList<Host> hosts = new ArrayList<>(hostCount);
+        for (int i = 0; i < hostCount; ++i) {
+            String address = addresses[body.getInt()];
+            hosts.add(new Host(address, links.get(body.getInt()), protocol));
+        }
+
+        int routerCount = body.getInt();
+        String[] routerAddresses = new String[routerCount];
+        int[] routerLinkCounts = new int[routerCount];
+        for (int i = 0; i < routerCount; ++i) {
+            routerAddresses[i] = addresses[body.getInt()];
+            routerLinkCounts[i] = body.getInt();
+        }
+        // Total number of router links; the per router counts are enough here
+        body.getInt();
+        ArrayList<Router> routers = new ArrayList<>(routerCount);
+        for (int i = 0; i < routerCount; ++i) {
+            ArrayList<Link> routerLinks = new ArrayList<>(routerLinkCounts[i]);
+            for (int j = 0; j < routerLinkCounts[i]; ++j) {
+                routerLinks.add(links.get(body.getInt()));
+            }
+            routers.add(new Router(routerAddresses[i], routerLinks, routingProtocol));
+        }
+
+        int flowCount = body.getInt();
+        ArrayList<Flow> flows = new ArrayList<>(flowCount);
+        for (int i = 0; i < flowCount; ++i) {
+            int id = body.getInt();
+            Host source = hosts.get(body.getInt());
+            Host destination = hosts.get(body.getInt());
+            long dataSize = body.getLong();
+            int startTime = body.getInt();
+            flows.add(new Flow(id, source, destination, dataSize, startTime));
+        }
+
+        InstrumentationConfig instrumentation = null;
+        int ruleCount = body.getInt();
+        if (ruleCount >= 0) {
+            instrumentation = new InstrumentationConfig();
+            for (int i = 0; i < ruleCount; ++i) {
+                boolean forLinks = body.get() != 0;
+                byte[] bytes = new byte[body.getInt()];
+                body.get(bytes);
+                int metrics = body.getInt();
+                int sampleInterval = body.getInt();
+                int maxPoints = body.getInt();
+                instrumentation.add(new InstrumentationConfig.Rule(forLinks, new String(bytes, StandardCharsets.UTF_8),
+                        metrics, sampleInterval, maxPoints));
+            }
+        }
+
+        int eventCount = body.getInt();
+        ArrayList<NetworkEvent> events = new ArrayList<>(eventCount);
+        for (int i = 0; i < eventCount; ++i) {
+            int time = body.getInt();
+            int linkID = body.getInt();
+            int action = body.getInt();
+            int linkRate = body.getInt();
+            events.add(new NetworkEvent(time, linkID, action, linkRate < 0 ? null : linkRate));
+        }
+
+        return new Network(links, hosts, routers, flows, runtime, routingProtocol, instrumentation, events);
+    }
+
+    /**
+     * Compile network definitions ahead of time.
+     * @param args pairs of JSON definition and image file names
+     */
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Usage: CompiledTopology <network.json> <network.topo> [...]");
+            return;
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            try {
+                long startTime = System.currentTimeMillis();
+                Network network = new InputParser().parse(args[i], Main.Protocol.RENO);
+                write(network, new File(args[i + 1]));
+                System.out.println("Compiled " + args[i] + " to " + args[i + 1] + " in " +
+                        (System.currentTimeMillis() - startTime) + " ms");
+            } catch (TopologyParseException e) {
+                System.out.println(e.getMessage());
+            } catch (IOException e) {
+                System.out.println("Cannot write " + args[i + 1] + ": " + e.getMessage());
+            }
+        }
+    }
+}
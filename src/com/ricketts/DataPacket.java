@@ -11,6 +11,15 @@ public class DataPacket extends Packet {
      */
     public static final Integer DataPacketSize = 8 * 1024;
 
+    /**
+     * Whether the sender reacts to ECN marks, so Links may mark the packet instead of only dropping it
+     */
+    private final boolean ecnCapable;
+    /**
+     * Whether a Link has marked this transmission of the packet as having met congestion
+     */
+    private boolean congestionExperienced;
+
     /**
      * Construct a DataPacket from packetID and a flow that the new DataPacket belongs to
      * @param packetID ID of new DataPacket
@@ -18,5 +27,30 @@ public class DataPacket extends Packet {
      */
     public DataPacket(Integer packetID, Flow parentFlow) {
         super(packetID, DataPacketSize, parentFlow);
+        this.ecnCapable = false;
+    }
+
+    /**
+     * Construct an ECN capable copy of a DataPacket for one transmission of it
+     * @param original the packet the Flow keeps
+     */
+    private DataPacket(DataPacket original) {
+        super(original.getID(), DataPacketSize, original.getSource(), original.getDestination(),
+                original.getFlowID());
+        this.ecnCapable = true;
+    }
+
+    public boolean isECNCapable() { return ecnCapable; }
+    public boolean isCongestionExperienced() { return congestionExperienced; }
+    public void markCongestionExperienced() { this.congestionExperienced = true; }
+
+    /**
+     * The packet to hand to a Link for one transmission. An ECN capable transmission is a copy of its own, so a mark
+     * a Link puts on it stays with that copy and never reaches the Flow's packet or another copy still in flight.
+     * @param ecnCapable whether Links may mark it
+     * @return a fresh copy if ECN capable, otherwise the packet itself, which nothing marks
+     */
+    public DataPacket transmission(boolean ecnCapable) {
+        return ecnCapable ? new DataPacket(this) : this;
     }
-}
\ No newline at end of file
+}
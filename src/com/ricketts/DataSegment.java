@@ -0,0 +1,40 @@
+package com.ricketts;
+
+import java.util.List;
+
+/**
+ * Consecutive DataPackets of one Flow sent as a single unit, the way a NIC doing TCP segmentation offload takes
+ * them from the host. Links and Routers handle a segment as one packet the size of all of its DataPackets, so a bulk
+ * flow costs them one event per segment instead of one per packet. Drops still happen packet by packet: a Link
+ * whose buffer only has room for some of a segment queues those and drops the rest.
+ */
+public class DataSegment extends Packet {
+    /**
+     * The DataPackets, in order
+     */
+    private final List<DataPacket> packets;
+
+    /**
+     * Construct a DataSegment from consecutive DataPackets of one Flow.
+     * @param packets the packets, at least one, in order
+     */
+    public DataSegment(List<DataPacket> packets) {
+        super(packets.get(0).getID(), packets.size() * DataPacket.DataPacketSize, packets.get(0).getSource(),
+                packets.get(0).getDestination(), packets.get(0).getFlowID());
+        this.packets = packets;
+    }
+
+    public List<DataPacket> getPackets() { return packets; }
+    public int getPacketCount() { return packets.size(); }
+
+    /**
+     * The first packets of the segment, as a smaller segment or, if just one, as the packet itself.
+     * @param count how many packets, between 1 and the packet count
+     * @return the packets
+     */
+    public Packet head(int count) {
+        if (count == 1)
+            return packets.get(0);
+        return new DataSegment(packets.subList(0, count));
+    }
+}
@@ -0,0 +1,177 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Who a Link's drops happen to and who causes them. Every dropped packet is counted against its flow and kind (see
+ * PacketTrace.Kind). The blame for each packet dropped from a full buffer is shared among the flows holding the
+ * buffer at the time, in proportion to the bits each has queued there, so a flow that keeps a standing queue is
+ * charged for the drops it makes others suffer. Only flows with drops have counters, and at most MaxFlows of them:
+ * to make room for another, the flow with the fewest drops is folded into a single counter for all other flows, and
+ * starts again from nothing if it has drops later.
+ */
+public class DropAttribution {
+    /**
+     * Most flows counted on their own at a Link
+     */
+    public static final int MaxFlows = 64;
+
+    /**
+     * The drops one flow suffered and caused at the Link.
+     */
+    public static class FlowDrops {
+        private final int flowID;
+        /**
+         * Packets of the flow dropped, by PacketTrace.Kind
+         */
+        private final int[] lostByKind = new int[PacketTrace.Kind.Names.length];
+        private int lost;
+        /**
+         * The flow's share of the blame for drops from a full buffer, in packets
+         */
+        private double caused;
+
+        public FlowDrops(int flowID) {
+            this.flowID = flowID;
+        }
+
+        public int getFlowID() { return flowID; }
+        public int getLost() { return lost; }
+        public int getLost(int kind) { return lostByKind[kind]; }
+        public double getCaused() { return caused; }
+
+        /**
+         * Add another flow's drops to these.
+         * @param other the other flow
+         */
+        private void add(FlowDrops other) {
+            for (int kind = 0; kind < lostByKind.length; ++kind) {
+                lostByKind[kind] += other.lostByKind[kind];
+            }
+            lost += other.lost;
+            caused += other.caused;
+        }
+    }
+
+    private final HashMap<Integer, FlowDrops> flows = new HashMap<>();
+    /**
+     * The drops of every flow without a counter of its own
+     */
+    private final FlowDrops otherFlows = new FlowDrops(Packet.NoFlowID);
+    /**
+     * Packets dropped, by PacketTrace.Kind
+     */
+    private final int[] dropsByKind = new int[PacketTrace.Kind.Names.length];
+    private int drops;
+
+    /**
+     * Count a dropped packet against its flow and kind.
+     * @param packet the packet, a single packet rather than a DataSegment
+     */
+    public void recordDrop(Packet packet) {
+        int kind = PacketTrace.kindOf(packet);
+        ++dropsByKind[kind];
+        ++drops;
+        if (packet.getFlowID() == Packet.NoFlowID)
+            return;
+        FlowDrops flow = flowDrops(packet.getFlowID());
+        ++flow.lostByKind[kind];
+        ++flow.lost;
+    }
+
+    /**
+     * Blame a flow for some of the packets dropped from a full buffer.
+     * @param flowID the flow; control packets that are not part of a flow take no blame
+     * @param packets its share of the drops, in packets
+     */
+    public void recordCause(int flowID, double packets) {
+        if (flowID != Packet.NoFlowID)
+            flowDrops(flowID).caused += packets;
+    }
+
+    private FlowDrops flowDrops(int flowID) {
+        FlowDrops flow = flows.get(flowID);
+        if (flow == null) {
+            if (flows.size() == MaxFlows)
+                foldSmallestFlow();
+            flow = new FlowDrops(flowID);
+            flows.put(flowID, flow);
+        }
+        return flow;
+    }
+
+    /**
+     * Fold the flow that lost and caused the fewest drops into the counter for other flows.
+     */
+    private void foldSmallestFlow() {
+        FlowDrops smallest = null;
+        for (FlowDrops flow : flows.values()) {
+            if (smallest == null || flow.lost + flow.caused < smallest.lost + smallest.caused)
+                smallest = flow;
+        }
+        otherFlows.add(smallest);
+        flows.remove(smallest.flowID);
+    }
+
+    public int getDrops() { return drops; }
+    public int getDrops(int kind) { return dropsByKind[kind]; }
+
+    /**
+     * The drops of flows without a counter of their own.
+     * @return the drops, under Packet.NoFlowID
+     */
+    public FlowDrops getOtherFlows() { return otherFlows; }
+
+    /**
+     * The flows with counters of their own, those that lost or caused the most first.
+     * @return the flows
+     */
+    public ArrayList<FlowDrops> getFlows() {
+        ArrayList<FlowDrops> sorted = new ArrayList<>(flows.values());
+        Collections.sort(sorted, new Comparator<FlowDrops>() {
+            public int compare(FlowDrops a, FlowDrops b) {
+                int byDrops = Double.compare(b.lost + b.caused, a.lost + a.caused);
+                return byDrops != 0 ? byDrops : Integer.compare(a.flowID, b.flowID);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Describe the drops for a report.
+     * @param maxFlows most flows to name
+     * @return e.g. "183 drops (data 180, ack 3), flow 1 lost 180 and caused 150.2, flow 2 lost 3 and caused 32.8",
+     * followed by what the flows not named lost and caused between them
+     */
+    public String summary(int maxFlows) {
+        StringBuilder summary = new StringBuilder();
+        summary.append(drops).append(" drops (");
+        String separator = "";
+        for (int kind = 1; kind < dropsByKind.length; ++kind) {
+            if (dropsByKind[kind] > 0) {
+                summary.append(separator).append(PacketTrace.Kind.Names[kind]).append(' ').append(dropsByKind[kind]);
+                separator = ", ";
+            }
+        }
+        summary.append(')');
+        ArrayList<FlowDrops> sorted = getFlows();
+        FlowDrops rest = new FlowDrops(Packet.NoFlowID);
+        rest.add(otherFlows);
+        for (int i = 0; i < sorted.size(); ++i) {
+            FlowDrops flow = sorted.get(i);
+            if (i >= maxFlows) {
+                rest.add(flow);
+                continue;
+            }
+            summary.append(", flow ").append(flow.flowID).append(" lost ").append(flow.lost).append(" and caused ")
+                    .append(String.format("%.1f", flow.caused));
+        }
+        if (rest.lost > 0 || rest.caused > 0)
+            summary.append(", other flows lost ").append(rest.lost).append(" and caused ")
+                    .append(String.format("%.1f", rest.caused));
+        return summary.toString();
+    }
+}
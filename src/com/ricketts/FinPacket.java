@@ -0,0 +1,31 @@
+package com.ricketts;
+
+/**
+ * FinPacket: packet sent once a flow's data is all acknowledged, telling the destination to forget the flow, and
+ * sent back by the destination to acknowledge that it has.
+ */
+public class FinPacket extends Packet {
+    /**
+     * FIN packet is 64 bytes, like a setup packet.
+     */
+    private static final Integer FinPacketSize = 8 * 64;
+
+    /**
+     * Whether this is the destination's reply rather than the source's FIN
+     */
+    private boolean acknowledgement;
+
+    public boolean isAcknowledgement() { return this.acknowledgement; }
+
+    /**
+     * Create a FIN packet
+     * @param source Where the packet is coming from
+     * @param destination Where the packet is going to
+     * @param flowID ID of the Flow being closed
+     * @param acknowledgement true for the reply to a FIN
+     */
+    public FinPacket(Host source, Host destination, int flowID, boolean acknowledgement) {
+        super(0, FinPacketSize, source, destination, flowID);
+        this.acknowledgement = acknowledgement;
+    }
+}
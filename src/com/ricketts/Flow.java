@@ -53,6 +53,21 @@ public class Flow {
      */
     public int slowStartThreshold;
 
+    /**
+     * DCTCP's moving average of the fraction of packets marked by Links (alpha), starting at 1 so the first mark
+     * halves the window
+     */
+    public double congestionEstimate;
+    /**
+     * Packets acknowledged, and those acknowledged with an ECN echo, since the estimate was last updated
+     */
+    public int ecnAcknowledgedPackets, ecnMarkedPackets;
+    /**
+     * The estimate is updated once the packets up to this ID are acknowledged, and the window is not cut again for
+     * marks until the packets up to ecnReductionEndID are
+     */
+    public int ecnWindowEndID, ecnReductionEndID;
+
     /**
      * Monotonically increasing count of how many times we have recieved an ACK of ID = the largest ACK ID recieved yet
      * If this is 3, we go into retransmitting
@@ -85,6 +100,12 @@ public class Flow {
      */
     public HashMap<Integer, Integer> sendTimes;
 
+    /**
+     * No packet in sendTimes was sent before this time, in milliseconds. Lets the source skip looking through
+     * sendTimes for timed out packets until one of them could have timed out.
+     */
+    public int earliestSendTime;
+
     /**
      * Index of the first not received ACK
      */
@@ -120,6 +141,16 @@ public class Flow {
      */
     public Integer totalBitsSent;
 
+    /**
+     * Number of packets sent again after a timeout or three duplicate ACKs
+     */
+    public int retransmissionCount;
+
+    /**
+     * When the last packet was acknowledged, in ms, or null while the flow is running
+     */
+    private Integer completionTime;
+
     /**
      * The ID of the flow
      */
@@ -143,7 +174,7 @@ public class Flow {
     /**
      * dataSize is measured in bits. Total data sent over all packets.
      */
-    private Integer dataSize;
+    private long dataSize;
 
     /**
      * Measured in milliseconds. Denotes when relative to the global time this flow should initiate.
@@ -163,7 +194,7 @@ public class Flow {
      * @param dataSize amount of data to send in this flow
      * @param startTime starting time of the flow
      */
-    public Flow(Integer id, Host source, Host destination, Integer dataSize, Integer startTime) {
+    public Flow(Integer id, Host source, Host destination, long dataSize, Integer startTime) {
         this.id = id;
         this.source = source;
         this.destination = destination;
@@ -194,6 +225,11 @@ public class Flow {
         this.slowStart = true;
         this.awaitingRetransmit = false;
         this.slowStartThreshold = Integer.MAX_VALUE;
+        this.congestionEstimate = 1.0;
+        this.ecnAcknowledgedPackets = 0;
+        this.ecnMarkedPackets = 0;
+        this.ecnWindowEndID = 0;
+        this.ecnReductionEndID = 0;
         this.mostRecentRetransmittedPacketID = 0;
         this.mostRecentQueuedID = -1;
         this.numbPacketsInWindow = 0;
@@ -204,6 +240,21 @@ public class Flow {
     public Host getDestination() { return this.destination; }
     public Integer getID() { return this.id; }
     public Integer getStartTime() { return this.startTime; }
+    public long getDataSize() { return this.dataSize; }
+    public Integer getCompletionTime() { return this.completionTime; }
+    public boolean isComplete() { return this.completionTime != null; }
+
+    /**
+     * Mark the flow complete once all of its data is acknowledged, and let go of everything but its statistics.
+     * @param completionTime when the last ACK arrived, in ms
+     */
+    public void complete(int completionTime) {
+        this.completionTime = completionTime;
+        this.activated = false;
+        this.packets = null;
+        this.sendTimes = null;
+        flowAnalyticsCollector.close();
+    }
 
     /**
      * This method generates a LinkedList of DataPackets corresponding to the size of data of the flow.
@@ -213,10 +264,9 @@ public class Flow {
      */
     private ArrayList<DataPacket> generateDataPackets(Integer initID) {
         Integer dataPacketSize = DataPacket.DataPacketSize;
-        //We have to take the intValue or we're manipulating that data point itself (Objects not Primitives)
-        Integer dataToPacketSize = this.dataSize.intValue();
+        long dataToPacketSize = this.dataSize;
 
-        ArrayList<DataPacket> dataPackets = new ArrayList<>(dataToPacketSize / dataPacketSize + 1);
+        ArrayList<DataPacket> dataPackets = new ArrayList<>((int) (dataToPacketSize / dataPacketSize + 1));
         Integer packetID = initID;
         while (dataToPacketSize - dataPacketSize > 0) {
             DataPacket newPacket = new DataPacket(packetID, this);
@@ -236,6 +286,22 @@ public class Flow {
         return dataPackets;
     }
 
+    /**
+     * Instrument the flow as a config says, replacing its default statistics collector.
+     * @param instrumentation the config
+     */
+    public void instrument(InstrumentationConfig instrumentation) {
+        this.flowAnalyticsCollector = instrumentation.flowCollector(this.id);
+    }
+
+    /**
+     * Write the flow's statistics to a metrics file as they are collected.
+     * @param exporter the metrics file
+     */
+    public void exportMetrics(MetricsExporter exporter) {
+        flowAnalyticsCollector.exportTo(exporter, this.id);
+    }
+
     /**
      * Returns the data for graphing
      * @return Graphing Data
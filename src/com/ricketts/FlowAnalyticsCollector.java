@@ -6,29 +6,119 @@ import java.util.ArrayList;
 
 /**
  * Collect statistics (flow rate, window size, packet delay) for a flow.
+ * Packet delays are counted in histograms rather than kept one by one: one for the whole run, and one per window
+ * whose percentiles become the delay series.
+ * Statistics that are not collected (see InstrumentationConfig) have no series, and adding to them does nothing.
  */
 public class FlowAnalyticsCollector {
+    /**
+     * Default width of the interval each point covers, in ms
+     */
+    public static final int DefaultSampleInterval = 1;
+    /**
+     * Default most points kept per series; plots are under 900 pixels wide
+     */
+    public static final int DefaultMaxPoints = 1024;
+    /**
+     * Length of the windows delay percentiles are reported over, in ms
+     */
+    public static final int DelayWindow = 100;
+    /**
+     * Largest delay told apart by the histograms, in ms
+     */
+    public static final int DelayHighestTrackable = 60000;
+    /**
+     * Precision of the histograms; delays are kept to within 1/64
+     */
+    public static final int DelayPrecisionBits = 7;
+
+    /**
+     * The statistics that can be collected, combined as a bit mask.
+     */
+    public static class Metric {
+        public static final int RATE = 1;
+        public static final int WINDOW = 2;
+        public static final int DELAY = 4;
+        public static final int ALL = RATE | WINDOW | DELAY;
+    }
+
+    /**
+     * Name of the series, used when a statistic is not collected
+     */
+    private final String name;
+
     /**
      * Series for flow rate over time.
      */
-    private XYSeries flowRates;
+    private TimeSeries flowRates;
     /**
      * Series for window size over time.
      */
-    private XYSeries windowSizes;
+    private TimeSeries windowSizes;
+    /**
+     * Series for median packet delay over time.
+     */
+    private TimeSeries packetDelays;
+    /**
+     * Series for 99th percentile packet delay over time.
+     */
+    private TimeSeries packetDelaysP99;
+    /**
+     * Series for 99.9th percentile packet delay over time.
+     */
+    private TimeSeries packetDelaysP999;
     /**
-     * Series for packet delay over time.
+     * Packet delays over the whole run, made when the first delay arrives.
      */
-    private XYSeries packetDelays;
+    private LatencyHistogram runDelays;
+    /**
+     * Packet delays in the current window, made when the first delay arrives.
+     */
+    private LatencyHistogram windowDelays;
+    /**
+     * Start of the current window, in ms
+     */
+    private int windowStart;
 
     /**
-     * Create a FlowAnalyticsCollector with XYSeries for the series we want to collect.
+     * Create a FlowAnalyticsCollector with series for the statistics we want to collect.
      * @param flowId The flow ID
      */
     public FlowAnalyticsCollector(int flowId) {
-        this.flowRates = new XYSeries("Flow " + flowId);
-        this.windowSizes = new XYSeries("Flow " + flowId);
-        this.packetDelays = new XYSeries("Flow " + flowId);
+        this(flowId, Metric.ALL, DefaultSampleInterval, DefaultMaxPoints);
+    }
+
+    /**
+     * Create a FlowAnalyticsCollector with a given resolution.
+     * @param flowId The flow ID
+     * @param sampleInterval width of the interval each point covers, in ms
+     * @param maxPoints most points kept per series
+     */
+    public FlowAnalyticsCollector(int flowId, int sampleInterval, int maxPoints) {
+        this(flowId, Metric.ALL, sampleInterval, maxPoints);
+    }
+
+    /**
+     * Create a FlowAnalyticsCollector for some of the statistics with a given resolution.
+     * @param flowId The flow ID
+     * @param metrics the statistics to collect, a mask of Metric values
+     * @param sampleInterval width of the interval each point covers, in ms
+     * @param maxPoints most points kept per series
+     */
+    public FlowAnalyticsCollector(int flowId, int metrics, int sampleInterval, int maxPoints) {
+        this.name = "Flow " + flowId;
+        if ((metrics & Metric.RATE) != 0)
+            this.flowRates = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MEAN, maxPoints);
+        if ((metrics & Metric.WINDOW) != 0)
+            this.windowSizes = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MEAN, maxPoints);
+        if ((metrics & Metric.DELAY) != 0) {
+            this.packetDelays = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MEAN, maxPoints);
+            // Combining windows by their largest tail keeps the tail visible when the series coarsens
+            this.packetDelaysP99 = new TimeSeries(name + " p99", sampleInterval,
+                    TimeSeries.Decimation.MAX, maxPoints);
+            this.packetDelaysP999 = new TimeSeries(name + " p99.9", sampleInterval,
+                    TimeSeries.Decimation.MAX, maxPoints);
+        }
     }
 
     /**
@@ -37,7 +127,8 @@ public class FlowAnalyticsCollector {
      * @param time Current simulation time
      */
     public void addToFlowRates(double rate, int time) {
-        flowRates.add(time, rate);
+        if (flowRates != null)
+            flowRates.add(time, rate);
     }
 
     /**
@@ -46,28 +137,108 @@ public class FlowAnalyticsCollector {
      * @param time The current simulation time
      */
     public void addToWindowSize(int size, int time) {
-
-        windowSizes.add(time, size);
+        if (windowSizes != null)
+            windowSizes.add(time, size);
     }
 
     /**
-     * Add a packet delay to packet delays.
+     * Count a packet delay in the run and window histograms, reporting the last window first if it has ended.
      * @param delay The current packet delay
      * @param time The simulation time
      */
     public void addToPacketDelay(double delay, int time) {
-        packetDelays.add(time, delay);
+        if (packetDelays == null)
+            return;
+        if (runDelays == null) {
+            runDelays = new LatencyHistogram(DelayHighestTrackable, DelayPrecisionBits);
+            windowDelays = new LatencyHistogram(DelayHighestTrackable, DelayPrecisionBits);
+            windowStart = time - time % DelayWindow;
+        } else if (time >= windowStart + DelayWindow) {
+            reportDelayWindow();
+            windowStart = time - time % DelayWindow;
+        }
+        runDelays.record((long) delay);
+        windowDelays.record((long) delay);
+    }
+
+    /**
+     * Add the percentiles of the current window to the delay series and empty it.
+     */
+    private void reportDelayWindow() {
+        if (windowDelays.getCount() == 0)
+            return;
+        packetDelays.add(windowStart, windowDelays.getValueAtPercentile(50));
+        packetDelaysP99.add(windowStart, windowDelays.getValueAtPercentile(99));
+        packetDelaysP999.add(windowStart, windowDelays.getValueAtPercentile(99.9));
+        windowDelays.reset();
+    }
+
+    /**
+     * Report the window in progress at the end of the run.
+     */
+    public void finish() {
+        if (windowDelays != null)
+            reportDelayWindow();
+    }
+
+    /**
+     * Report the window in progress and stop exporting, once the flow has completed.
+     */
+    public void close() {
+        finish();
+        for (TimeSeries series : new TimeSeries[]{flowRates, windowSizes, packetDelays, packetDelaysP99,
+                packetDelaysP999}) {
+            if (series != null)
+                series.closeExport();
+        }
+    }
+
+    /**
+     * Packet delays over the whole run.
+     * @return the histogram, or null if no delay was counted or delays are not collected
+     */
+    public LatencyHistogram getDelayHistogram() {
+        return runDelays;
+    }
+
+    /**
+     * Write every sample of the series to a metrics file as well, under keys such as "flow/<id>/rate".
+     * @param exporter the metrics file
+     * @param flowId The ID of the current flow
+     */
+    public void exportTo(MetricsExporter exporter, int flowId) {
+        if (flowRates != null)
+            flowRates.exportTo(exporter.openChannel("flow/" + flowId + "/rate"));
+        if (windowSizes != null)
+            windowSizes.exportTo(exporter.openChannel("flow/" + flowId + "/window"));
+        if (packetDelays != null) {
+            packetDelays.exportTo(exporter.openChannel("flow/" + flowId + "/delay"));
+            packetDelaysP99.exportTo(exporter.openChannel("flow/" + flowId + "/delay_p99"));
+            packetDelaysP999.exportTo(exporter.openChannel("flow/" + flowId + "/delay_p999"));
+        }
+    }
+
+    /**
+     * Convert a series for plotting.
+     * @param series the series, or null if it is not collected
+     * @param suffix added to the name of an empty series in place of one not collected
+     * @return the XYSeries, empty if not collected
+     */
+    private XYSeries dataset(TimeSeries series, String suffix) {
+        return series == null ? new XYSeries(name + suffix) : series.toXYSeries();
     }
 
     /**
-     * Create a list of the three series.
-     * @return ArrayList of the three series.
+     * Create a list of the series (rate, window size, and median, p99 and p99.9 delay), converted for plotting.
+     * @return ArrayList of the five series.
      */
     public ArrayList<XYSeries> getDatasets() {
         ArrayList<XYSeries> output = new ArrayList<>();
-        output.add(flowRates);
-        output.add(windowSizes);
-        output.add(packetDelays);
+        output.add(dataset(flowRates, ""));
+        output.add(dataset(windowSizes, ""));
+        output.add(dataset(packetDelays, ""));
+        output.add(dataset(packetDelaysP99, " p99"));
+        output.add(dataset(packetDelaysP999, " p99.9"));
         return output;
     }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package com.ricketts;
+
+import java.io.*;
+
+/**
+ * Records the completion of every Flow in a run: its flow completion time (FCT), slowdown, retransmissions and
+ * goodput. Keeps FCT and slowdown distributions by flow size in fixed size histograms, so a run with millions of
+ * flows costs no more memory than one with a few, and can also write every completion to a CSV file.
+ *
+ * The ideal FCT a flow is compared against is its smallest round trip time plus the time to send its data at the
+ * rate of the source's link, i.e. the FCT of a flow that sends at line rate through empty queues.
+ */
+public class FlowCompletions implements Closeable {
+    /**
+     * Upper bounds of the flow size buckets, in bytes
+     */
+    public static final long[] SizeBucketLimits = {100 * 1024, 1024 * 1024, 10 * 1024 * 1024, Long.MAX_VALUE};
+    public static final String[] SizeBucketNames = {"<100KB", "100KB-1MB", "1MB-10MB", ">=10MB"};
+    /**
+     * Largest FCT told apart by the histograms, in ms
+     */
+    private static final long HighestFlowCompletionTime = 3600000;
+    /**
+     * Slowdowns are counted in hundredths
+     */
+    private static final int SlowdownScale = 100;
+    /**
+     * Largest slowdown told apart by the histograms
+     */
+    private static final long HighestSlowdown = 100000;
+
+    private final LatencyHistogram[] flowCompletionTimes;
+    private final LatencyHistogram[] slowdowns;
+    private final double[] goodputSums;
+    private final long[] retransmissions;
+    /**
+     * Where every completion is written, or null
+     */
+    private Writer eventsOut;
+
+    /**
+     * Construct an empty record of completions.
+     */
+    public FlowCompletions() {
+        int buckets = SizeBucketLimits.length;
+        this.flowCompletionTimes = new LatencyHistogram[buckets];
+        this.slowdowns = new LatencyHistogram[buckets];
+        for (int i = 0; i < buckets; ++i) {
+            flowCompletionTimes[i] = new LatencyHistogram(HighestFlowCompletionTime,
+                    FlowAnalyticsCollector.DelayPrecisionBits);
+            slowdowns[i] = new LatencyHistogram(HighestSlowdown * SlowdownScale,
+                    FlowAnalyticsCollector.DelayPrecisionBits);
+        }
+        this.goodputSums = new double[buckets];
+        this.retransmissions = new long[buckets];
+    }
+
+    /**
+     * Also write every completion to a CSV file.
+     * @param filename the file
+     * @throws IOException if the file can't be created
+     */
+    public void writeEventsTo(String filename) throws IOException {
+        eventsOut = new BufferedWriter(new FileWriter(filename), 1 << 16);
+        eventsOut.write("flow,source,destination,bytes,start,fct,ideal_fct,slowdown,retransmissions,goodput_mbps\n");
+    }
+
+    /**
+     * Size bucket of a flow.
+     * @param bytes flow size in bytes
+     * @return index into SizeBucketLimits
+     */
+    private static int sizeBucket(long bytes) {
+        int bucket = 0;
+        while (bytes >= SizeBucketLimits[bucket])
+            ++bucket;
+        return bucket;
+    }
+
+    /**
+     * Record that a flow has had all of its data acknowledged.
+     * @param flow the flow
+     * @param completionTime when the last ACK arrived, in ms
+     */
+    public void record(Flow flow, int completionTime) {
+        long bits = flow.getDataSize();
+        long bytes = bits / 8;
+        int flowCompletionTime = Math.max(1, completionTime - flow.getStartTime());
+        int minRoundTripTime = flow.minRoundTripTime == Integer.MAX_VALUE ? 0 : flow.minRoundTripTime;
+        double idealFlowCompletionTime = Math.max(1.0,
+                minRoundTripTime + (double) bits / flow.getSource().getLink().getLinkRate());
+        double slowdown = flowCompletionTime / idealFlowCompletionTime;
+        // Mbps, as used by the flow rate series
+        double goodput = bits / 1048.576 / flowCompletionTime;
+
+        int bucket = sizeBucket(bytes);
+        flowCompletionTimes[bucket].record(flowCompletionTime);
+        slowdowns[bucket].record(Math.round(slowdown * SlowdownScale));
+        goodputSums[bucket] += goodput;
+        retransmissions[bucket] += flow.retransmissionCount;
+
+        if (eventsOut != null) {
+            try {
+                eventsOut.write(flow.getID() + "," + flow.getSource().getAddress() + "," +
+                        flow.getDestination().getAddress() + "," + bytes + "," + flow.getStartTime() + "," +
+                        flowCompletionTime + "," + String.format("%.1f", idealFlowCompletionTime) + "," +
+                        String.format("%.3f", slowdown) + "," + flow.retransmissionCount + "," +
+                        String.format("%.3f", goodput) + "\n");
+            } catch (IOException e) {
+                System.out.println("Cannot write flow completions: " + e.getMessage());
+                eventsOut = null;
+            }
+        }
+    }
+
+    /**
+     * Number of flows completed.
+     * @return the count over all size buckets
+     */
+    public long getCount() {
+        long count = 0;
+        for (LatencyHistogram h : flowCompletionTimes) {
+            count += h.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * FCTs of the flows in a size bucket.
+     * @param bucket index into SizeBucketLimits
+     * @return the histogram, in ms
+     */
+    public LatencyHistogram getFlowCompletionTimes(int bucket) {
+        return flowCompletionTimes[bucket];
+    }
+
+    /**
+     * Slowdowns of the flows in a size bucket.
+     * @param bucket index into SizeBucketLimits
+     * @param percentile the percentage, 0 to 100
+     * @return the slowdown at that percentile
+     */
+    public double getSlowdownAtPercentile(int bucket, double percentile) {
+        return (double) slowdowns[bucket].getValueAtPercentile(percentile) / SlowdownScale;
+    }
+
+    /**
+     * Print the FCT distribution of every size bucket that has flows.
+     * @param name name used to label the report
+     * @param startedFlows number of flows started, to report how many didn't finish
+     */
+    public void report(String name, long startedFlows) {
+        System.out.println(name + " completed " + getCount() + " of " + startedFlows + " flows");
+        for (int i = 0; i < SizeBucketLimits.length; ++i) {
+            LatencyHistogram fct = flowCompletionTimes[i];
+            long count = fct.getCount();
+            if (count == 0)
+                continue;
+            System.out.println(name + " flows " + SizeBucketNames[i] + ": " + count + " completed, fct p50 " +
+                    fct.getValueAtPercentile(50) + " ms, p99 " + fct.getValueAtPercentile(99) + " ms, max " +
+                    fct.getMax() + " ms, slowdown p50 " + String.format("%.2f", getSlowdownAtPercentile(i, 50)) +
+                    ", p99 " + String.format("%.2f", getSlowdownAtPercentile(i, 99)) + ", mean goodput " +
+                    String.format("%.3f", goodputSums[i] / count) + " Mbps, " + retransmissions[i] +
+                    " retransmissions");
+        }
+    }
+
+    /**
+     * Finish writing the completions file, if there is one.
+     */
+    public void close() throws IOException {
+        if (eventsOut != null) {
+            eventsOut.close();
+            eventsOut = null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.ricketts;
+
+import java.util.Random;
+
+/**
+ * An empirical distribution of flow sizes, given as points of its CDF and interpolated linearly between them.
+ * The built-in ones are the flow size distributions measured in a web search cluster and a data mining cluster that
+ * are used throughout the data center transport literature.
+ */
+public class FlowSizeDistribution {
+    /**
+     * Bytes per packet the published CDFs are measured in
+     */
+    private static final int CDFPacketSize = 1460;
+
+    /**
+     * Web search: mostly short query traffic with a tail of background updates up to a few MB.
+     * Pairs of (size in packets, cumulative probability).
+     */
+    private static final double[][] WebSearch = {
+            {1, 0}, {1, .15}, {2, .2}, {3, .3}, {5, .4}, {7, .53}, {40, .6}, {72, .7}, {137, .8}, {267, .9},
+            {1187, .97}, {2107, 1}};
+
+    /**
+     * Data mining: half the flows are a single packet but most bytes are in flows of hundreds of MB.
+     * Pairs of (size in packets, cumulative probability).
+     */
+    private static final double[][] DataMining = {
+            {1, 0}, {1, .5}, {2, .6}, {3, .7}, {7, .8}, {267, .9}, {2107, .95}, {66667, .99}, {666667, 1}};
+
+    /**
+     * Sizes of the CDF points, in bits
+     */
+    private final double[] sizes;
+    /**
+     * Cumulative probabilities of the CDF points, non-decreasing and ending at 1
+     */
+    private final double[] probabilities;
+    private final String name;
+
+    /**
+     * Construct a distribution from points of its CDF.
+     * @param name name used in reports
+     * @param points pairs of (size in bits, cumulative probability), sorted by both
+     */
+    public FlowSizeDistribution(String name, double[][] points) {
+        this.name = name;
+        this.sizes = new double[points.length];
+        this.probabilities = new double[points.length];
+        for (int i = 0; i < points.length; ++i) {
+            sizes[i] = points[i][0];
+            probabilities[i] = points[i][1];
+        }
+        if (probabilities[points.length - 1] != 1)
+            throw new IllegalArgumentException("a CDF has to end at probability 1");
+    }
+
+    /**
+     * Find a distribution by name: "websearch", "datamining", or "fixed" with every flow the given size.
+     * @param name the name
+     * @param fixedSize size in MB used by "fixed"
+     * @return the distribution
+     * @throws IllegalArgumentException if there is none by that name
+     */
+    public static FlowSizeDistribution named(String name, double fixedSize) {
+        if (name.equals("websearch"))
+            return new FlowSizeDistribution(name, inBits(WebSearch));
+        if (name.equals("datamining"))
+            return new FlowSizeDistribution(name, inBits(DataMining));
+        if (name.equals("fixed")) {
+            double bits = fixedSize * 8388608;
+            return new FlowSizeDistribution(name, new double[][] {{bits, 0}, {bits, 1}});
+        }
+        throw new IllegalArgumentException("unknown flow size distribution \"" + name + "\"");
+    }
+
+    /**
+     * Convert CDF points measured in packets to bits.
+     * @param packetPoints pairs of (size in packets, cumulative probability)
+     * @return pairs of (size in bits, cumulative probability)
+     */
+    private static double[][] inBits(double[][] packetPoints) {
+        double[][] points = new double[packetPoints.length][];
+        for (int i = 0; i < packetPoints.length; ++i) {
+            points[i] = new double[] {packetPoints[i][0] * CDFPacketSize * 8, packetPoints[i][1]};
+        }
+        return points;
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Draw a flow size.
+     * @param random source of randomness
+     * @return size in bits, at least one data packet
+     */
+    public long sample(Random random) {
+        double p = random.nextDouble();
+        int i = 1;
+        while (probabilities[i] < p) {
+            ++i;
+        }
+        double span = probabilities[i] - probabilities[i - 1];
+        double size = sizes[i];
+        if (span > 0)
+            size = sizes[i - 1] + (sizes[i] - sizes[i - 1]) * (p - probabilities[i - 1]) / span;
+        return (long) Math.max(DataPacket.DataPacketSize, size);
+    }
+
+    /**
+     * Mean size drawn by sample: the mean of the interpolated CDF, with sizes below one data packet counted as one.
+     * @return mean size in bits
+     */
+    public double getMean() {
+        double mean = 0;
+        for (int i = 1; i < sizes.length; ++i) {
+            mean += (probabilities[i] - probabilities[i - 1]) * getClampedMean(sizes[i - 1], sizes[i]);
+        }
+        return mean;
+    }
+
+    /**
+     * Mean of sizes spread evenly between two CDF points, once those below one data packet are raised to one.
+     * @param low size at the lower point, in bits
+     * @param high size at the upper point, in bits
+     * @return mean size in bits
+     */
+    private static double getClampedMean(double low, double high) {
+        double floor = DataPacket.DataPacketSize;
+        if (high <= floor)
+            return floor;
+        if (low >= floor)
+            return (low + high) / 2;
+        // The part of the segment below the floor is drawn as the floor, the rest keeps its own mean
+        double raised = (floor - low) / (high - low);
+        return raised * floor + (1 - raised) * (floor + high) / 2;
+    }
+}
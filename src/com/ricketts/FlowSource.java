@@ -0,0 +1,19 @@
+package com.ricketts;
+
+/**
+ * Something that creates Flows while the simulation runs, rather than having them all listed up front.
+ * The Simulation asks for each Flow once its start time comes up, so only Flows that have started are in memory.
+ */
+public interface FlowSource {
+    /**
+     * When the next Flow starts.
+     * @return start time of the next Flow in milliseconds, or Integer.MAX_VALUE if there are no more
+     */
+    int getNextStartTime();
+
+    /**
+     * Create the next Flow. Only called once its start time has come.
+     * @return the Flow
+     */
+    Flow nextFlow();
+}
@@ -0,0 +1,191 @@
+package com.ricketts;
+
+import java.util.Arrays;
+
+/**
+ * Compression of a chunk of (time, value) samples in the style of Facebook's Gorilla time series database.
+ * Times are stored as the change in their delta, which is zero for regularly spaced samples and costs one bit.
+ * Values are stored as the XOR with the previous value, which is zero for a repeated value and otherwise has its
+ * meaningful bits in a narrow window that is often the same as the last one.
+ */
+public class GorillaChunk {
+    /**
+     * Encode samples.
+     * @param times sample times, in order
+     * @param values sample values
+     * @param count number of samples to encode
+     * @return the encoded bytes
+     */
+    public static byte[] encode(long[] times, double[] values, int count) {
+        BitWriter out = new BitWriter(count * 2 + 16);
+        if (count == 0)
+            return out.toByteArray();
+        out.write(times[0], 64);
+        out.write(Double.doubleToRawLongBits(values[0]), 64);
+
+        long previousTime = times[0];
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; ++i) {
+            long delta = times[i] - previousTime;
+            long deltaOfDelta = delta - previousDelta;
+            if (deltaOfDelta == 0) {
+                out.write(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                out.write(0b10, 2);
+                out.write(deltaOfDelta + 63, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                out.write(0b110, 3);
+                out.write(deltaOfDelta + 255, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                out.write(0b1110, 4);
+                out.write(deltaOfDelta + 2047, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(deltaOfDelta, 64);
+            }
+            previousTime = times[i];
+            previousDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            // Leading zeros are capped so the count fits in 5 bits
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // The meaningful bits fit in the previous window
+                out.write(0b10, 2);
+                out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                // A length of 64 is stored as 0, so it fits in 6 bits
+                out.write(length & 63, 6);
+                out.write(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode samples.
+     * @param data the encoded bytes
+     * @param count number of samples encoded
+     * @param times where the times go, at least count long
+     * @param values where the values go, at least count long
+     */
+    public static void decode(byte[] data, int count, long[] times, double[] values) {
+        if (count == 0)
+            return;
+        BitReader in = new BitReader(data);
+        times[0] = in.read(64);
+        long previousBits = in.read(64);
+        values[0] = Double.longBitsToDouble(previousBits);
+
+        long previousDelta = 0;
+        int previousLeading = 0;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; ++i) {
+            long deltaOfDelta;
+            if (in.read(1) == 0)
+                deltaOfDelta = 0;
+            else if (in.read(1) == 0)
+                deltaOfDelta = in.read(7) - 63;
+            else if (in.read(1) == 0)
+                deltaOfDelta = in.read(9) - 255;
+            else if (in.read(1) == 0)
+                deltaOfDelta = in.read(12) - 2047;
+            else
+                deltaOfDelta = in.read(64);
+            previousDelta += deltaOfDelta;
+            times[i] = times[i - 1] + previousDelta;
+
+            if (in.read(1) == 1) {
+                if (in.read(1) == 1) {
+                    previousLeading = (int) in.read(5);
+                    int length = (int) in.read(6);
+                    if (length == 0)
+                        length = 64;
+                    previousTrailing = 64 - previousLeading - length;
+                }
+                previousBits ^= in.read(64 - previousLeading - previousTrailing) << previousTrailing;
+            }
+            values[i] = Double.longBitsToDouble(previousBits);
+        }
+    }
+
+    /**
+     * Appends bits to a growable byte array, most significant bit first.
+     */
+    private static class BitWriter {
+        private byte[] bytes;
+        /**
+         * Number of bits written
+         */
+        private long length;
+
+        public BitWriter(int initialBytes) {
+            this.bytes = new byte[initialBytes];
+        }
+
+        /**
+         * Write the low bits of a value.
+         * @param value the value
+         * @param bits how many of its low bits to write, 0 to 64
+         */
+        public void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; --i) {
+                int index = (int) (length >>> 3);
+                if (index == bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                if (((value >>> i) & 1) != 0)
+                    bytes[index] |= (byte) (0x80 >>> (length & 7));
+                ++length;
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (int) ((length + 7) >>> 3));
+        }
+    }
+
+    /**
+     * Reads bits written by a BitWriter.
+     */
+    private static class BitReader {
+        private final byte[] bytes;
+        /**
+         * Number of bits read
+         */
+        private long position;
+
+        public BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Read bits into the low bits of a value.
+         * @param bits how many bits to read, 0 to 64
+         * @return the value
+         */
+        public long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; ++i) {
+                int bit = (bytes[(int) (position >>> 3)] >>> (7 - (position & 7))) & 1;
+                value = (value << 1) | bit;
+                ++position;
+            }
+            return value;
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.ricketts;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Set;
+import java.util.*;
 
 /**
  * A Host is a Node meant to simulate a source or sink of data. Hosts have only one Link. Flows begin at Hosts.
+ * A Host can send and receive any number of Flows at once; they are told apart by flow ID.
  */
 public class Host extends Node {
     /**
@@ -22,6 +21,15 @@ public class Host extends Node {
      * new_avg = new_element * catchupFactor + old_avg * (1 - catchupFactor)
      */
     private final static Double catchupFactor = .1;
+    /**
+     * Weight of the latest window's fraction of marked packets in DCTCP's estimate of congestion (g in the DCTCP
+     * paper). Used like: alpha = fraction * DCTCPGain + alpha * (1 - DCTCPGain)
+     */
+    private final static Double DCTCPGain = 1.0 / 16;
+    /**
+     * Times a FIN is sent before the destination is assumed to have gone
+     */
+    private final static int MaxFinAttempts = 8;
 
     /**
      * Link that Host is connected to
@@ -35,19 +43,38 @@ public class Host extends Node {
     private LinkedList<Packet> immediatePacketsToSend;
 
     /**
-     * Download coming into current Host
+     * Downloads coming into current Host, by flow ID
+     */
+    private HashMap<Integer, Download> downloads;
+    /**
+     * Flows going out from current Host that haven't reached their start time yet
+     */
+    private ArrayList<Flow> pendingFlows;
+    /**
+     * Flows going out from current Host that have started, by flow ID, in the order they started
      */
-    private Download download;
+    private LinkedHashMap<Integer, Flow> activeFlows;
     /**
-     * Flow going out from current Host
+     * Completed flows going out from current Host whose FIN hasn't been acknowledged yet, by flow ID
      */
-    private Flow flow;
+    private HashMap<Integer, Closing> closingFlows;
 
     /**
      * Protocol used by Host
      */
     private int protocol;
 
+    /**
+     * Where Flows from this Host are recorded when they complete, or null
+     */
+    private FlowCompletions flowCompletions;
+
+    /**
+     * Most DataPackets of a flow sent together as one DataSegment when filling its window; 1 sends every packet on
+     * its own. Retransmissions always go on their own.
+     */
+    private int segmentSize = 1;
+
     /**
      * A Download represents a Flow incoming from another Host
      * As we are only simulating, no track of the actual packets is kept, just the packetIds
@@ -80,20 +107,42 @@ public class Host extends Node {
     }
 
     /**
-     * Construct a Host from address, link, immediatePacketsToSend, flow, download and protocol
+     * A Closing is what is left of a completed Flow until the destination acknowledges its FIN
+     */
+    private class Closing {
+        /**
+         * Host the FIN is sent to
+         */
+        public Host destination;
+        /**
+         * When the FIN was last sent
+         */
+        public int sendTime;
+        /**
+         * Times the FIN has been sent
+         */
+        public int attempts;
+
+        public Closing(Host destination) {
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * Construct a Host from address, link, immediatePacketsToSend and protocol
      * @param address network address of the new Host
      * @param link link that the new Host is connected to
      * @param immediatePacketsToSend packets to send as soon as possible after construction
-     * @param flow flow going out of the new Host
-     * @param download download coming into the new Host
      * @param protocol TCP protocol used by the new Host
      */
-    public Host(String address, Link link, LinkedList<Packet> immediatePacketsToSend, Flow flow, Download download, int protocol) {
+    public Host(String address, Link link, LinkedList<Packet> immediatePacketsToSend, int protocol) {
         super(address);
         this.link = link;
         this.immediatePacketsToSend = immediatePacketsToSend;
-        this.flow = flow;
-        this.download = download;
+        this.downloads = new HashMap<>();
+        this.pendingFlows = new ArrayList<>();
+        this.activeFlows = new LinkedHashMap<>();
+        this.closingFlows = new HashMap<>();
         this.protocol = protocol;
     }
 
@@ -104,36 +153,66 @@ public class Host extends Node {
      * @param protocol TCP protocol used by the new Host
      */
     public Host(String address, Link link, int protocol) {
-        this(address, link, new LinkedList<Packet>(), null, null, protocol);
+        this(address, link, new LinkedList<Packet>(), protocol);
     }
 
     public Link getLink() { return this.link; }
 
+    /**
+     * Record the Flows from this Host when they complete.
+     * @param flowCompletions the record
+     */
+    public void setFlowCompletions(FlowCompletions flowCompletions) {
+        this.flowCompletions = flowCompletions;
+    }
+
+    /**
+     * Send the window of each flow in DataSegments of up to this many packets, which Links and Routers handle as one
+     * packet each.
+     * @param segmentSize packets per segment, 1 to send every packet on its own
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
     /**
      * Add a flow starting from this Host
-     * This involves checking if we already have flows going to that destination,
-     * and getting the flowsByDestination HashMap set accordingly
-     * Lastly, we send a setup packet to initiate the flow
+     * The flow waits until its start time, then a setup packet is sent to initiate it
      * @param flow The flow to be added
      */
     public void addFlow(Flow flow) {
-        this.flow = flow;
+        pendingFlows.add(flow);
+    }
+
+    /**
+     * Whether this Host's flows grow and cut their windows the way Reno does. DCTCP does, and on top of that cuts
+     * them in proportion to the congestion Links mark.
+     * @return true for Reno and DCTCP
+     */
+    private boolean usesRenoWindow() {
+        return protocol == Main.Protocol.RENO || protocol == Main.Protocol.DCTCP;
     }
 
     /**
      * Handles the reception of an ACK packet.
-     * @param ackPacket the ACK received
+     * @param flowID the flow the ACK is for
+     * @param ackPacketID the ACK's ID, the next packet the destination expects
+     * @param ecnEcho whether the packet acknowledged was marked by a Link
      */
-    private void receiveACKPacket(ACKPacket ackPacket) {
-        Integer ackPacketID = ackPacket.getID();
+    private void receiveACKPacket(int flowID, Integer ackPacketID, boolean ecnEcho) {
         //Check to make sure the source of the ACK is from one which we are sending flows to
-        if (flow != null && flow.activated) {
+        Flow flow = activeFlows.get(flowID);
+        if (flow != null && NetworkTimeline.active != null)
+            NetworkTimeline.active.recordACK(this, flow.getID(), ackPacketID);
+        if (flow != null) {
+            if (protocol == Main.Protocol.DCTCP)
+                respondToECN(flow, ackPacketID, ecnEcho);
             // If the ACK is for a new packet, we know the destination has
             // received packets at least up to that one
             if (ackPacketID > flow.firstNotRecievedPacketIndex) {
                 flow.numbPacketsInWindow--;
                 flow.numberOfLatestACKIDRecieved = 0;
-                if (protocol == Main.Protocol.RENO) {
+                if (usesRenoWindow()) {
                     if (flow.slowStart) {
                         // If we're in slow start & Reno, cwnd <- cwnd + 1
                         flow.windowSize++;
@@ -188,11 +267,13 @@ public class Host extends Node {
                 // it's been dropped and retransmit (TCP FAST)
 
                 if (flow.numberOfLatestACKIDRecieved >= 3 && flow.mostRecentRetransmittedPacketID != ackPacketID) {
-                    if (protocol != Main.Protocol.RENO || !flow.slowStart) {
+                    if (!usesRenoWindow() || !flow.slowStart) {
                         flow.mostRecentRetransmittedPacketID = ackPacketID;
-                        DataPacket packet = flow.packets.get(flow.firstNotRecievedPacketIndex);
+                        DataPacket packet = flow.packets.get(flow.firstNotRecievedPacketIndex)
+                                .transmission(protocol == Main.Protocol.DCTCP);
                         flow.sendTimes.put(flow.firstNotRecievedPacketIndex, Main.currentTime);
-                        this.link.clearBuffer(this);
+                        flow.retransmissionCount++;
+                        clearBufferFor(flow);
                         this.link.addPacket(packet, this);
                         flow.currBitsSent += packet.getSize();
                         // Since we haven't found a RTT for the retransmitted packets, assume the RTT is
@@ -203,7 +284,7 @@ public class Host extends Node {
                         // 1 (since we just retransmitted a packet).
                         flow.numbPacketsInWindow = 1;
                         flow.mostRecentQueuedID = packet.getID();
-                        if (protocol == Main.Protocol.RENO && !flow.awaitingRetransmit) {
+                        if (usesRenoWindow() && !flow.awaitingRetransmit) {
                             // Enter FR/FR.
                             if (flow.windowSize / 2 < 2) {
                                 flow.slowStartThreshold = 2;
@@ -221,6 +302,48 @@ public class Host extends Node {
                     }
                 }
             }
+            // An ACK past the last packet means the destination has all of the data, so the flow can be closed
+            if (ackPacketID > flow.lastPacketID) {
+                activeFlows.remove(flow.getID());
+                flow.complete(Main.currentTime);
+                if (flowCompletions != null)
+                    flowCompletions.record(flow, Main.currentTime);
+                closingFlows.put(flow.getID(), new Closing(flow.getDestination()));
+                sendFin(flow.getID());
+            }
+        }
+    }
+
+    /**
+     * DCTCP's response to ECN marks: estimate the fraction of a flow's packets marked over each window of data, as
+     * a moving average alpha, and when a mark is echoed cut the window by alpha / 2, at most once a window. A flow
+     * that sees marks on every packet halves its window as Reno would; one that sees a few cuts it a little, which
+     * keeps the queue near the marking threshold instead of swinging between empty and full.
+     * @param flow the flow
+     * @param ackPacketID the ACK's ID, the next packet the destination expects
+     * @param ecnEcho whether the packet acknowledged was marked
+     */
+    private void respondToECN(Flow flow, int ackPacketID, boolean ecnEcho) {
+        int acknowledged = Math.max(0, ackPacketID - flow.firstNotRecievedPacketIndex);
+        flow.ecnAcknowledgedPackets += acknowledged;
+        if (ecnEcho)
+            flow.ecnMarkedPackets += acknowledged;
+        // Once the window sent after the last update is acknowledged, fold its fraction of marks into alpha
+        if (ackPacketID > flow.ecnWindowEndID) {
+            if (flow.ecnAcknowledgedPackets > 0) {
+                double markedFraction = (double) flow.ecnMarkedPackets / flow.ecnAcknowledgedPackets;
+                flow.congestionEstimate = markedFraction * DCTCPGain + flow.congestionEstimate * (1 - DCTCPGain);
+            }
+            flow.ecnAcknowledgedPackets = 0;
+            flow.ecnMarkedPackets = 0;
+            flow.ecnWindowEndID = flow.mostRecentQueuedID + 1;
+        }
+        if (ecnEcho && ackPacketID > flow.ecnReductionEndID) {
+            flow.windowSize = Math.max(2, flow.windowSize - (int) (flow.windowSize * flow.congestionEstimate / 2));
+            flow.slowStartThreshold = flow.windowSize;
+            flow.slowStart = false;
+            flow.partialWindowSize = 0;
+            flow.ecnReductionEndID = flow.mostRecentQueuedID + 1;
         }
     }
 
@@ -229,7 +352,35 @@ public class Host extends Node {
      * @param packet The Setup packet
      */
     private void receiveSetupPacket(SetupPacket packet) {
-        download = new Download((Host) packet.getSource(), 0, packet.getMaxPacketID());
+        downloads.put(packet.getFlowID(), new Download((Host) packet.getSource(), 0, packet.getMaxPacketID()));
+    }
+
+    /**
+     * Handles a FIN: the destination of the flow forgets its Download and acknowledges, and the source, on getting
+     * the acknowledgement, forgets the flow. A FIN for a Download already forgotten is acknowledged again, in case
+     * the first acknowledgement was lost.
+     * @param packet The FIN packet
+     */
+    private void receiveFinPacket(FinPacket packet) {
+        if (packet.isAcknowledgement()) {
+            closingFlows.remove(packet.getFlowID());
+            return;
+        }
+        Download download = downloads.get(packet.getFlowID());
+        if (download != null && download.source == packet.getSource())
+            downloads.remove(packet.getFlowID());
+        immediatePacketsToSend.add(new FinPacket(this, (Host) packet.getSource(), packet.getFlowID(), true));
+    }
+
+    /**
+     * Send, or send again, the FIN of a completed flow.
+     * @param flowID the flow
+     */
+    private void sendFin(int flowID) {
+        Closing closing = closingFlows.get(flowID);
+        closing.sendTime = Main.currentTime;
+        closing.attempts++;
+        immediatePacketsToSend.add(new FinPacket(this, closing.destination, flowID, false));
     }
 
     /**
@@ -237,19 +388,57 @@ public class Host extends Node {
      * @param packet The Setup packet
      */
     private void receiveDataPacket(DataPacket packet) {
+        Integer ackID = acknowledge(packet);
+        // Add an ACK packet to the queue of packets to send immediately, echoing any ECN mark
+        if (ackID != null)
+            immediatePacketsToSend.add(new ACKPacket(ackID, this, (Host) packet.getSource(), packet.getFlowID(),
+                    packet.isCongestionExperienced()));
+    }
+
+    /**
+     * Handles the reception of a DataSegment as that of each of its packets, sending back their ACKs together.
+     * @param segment The DataSegment
+     */
+    private void receiveDataSegment(DataSegment segment) {
+        int[] ackIDs = new int[segment.getPacketCount()];
+        boolean[] ecnEchoes = null;
+        int ackCount = 0;
+        for (DataPacket packet : segment.getPackets()) {
+            Integer ackID = acknowledge(packet);
+            if (ackID != null) {
+                if (packet.isCongestionExperienced()) {
+                    if (ecnEchoes == null)
+                        ecnEchoes = new boolean[ackIDs.length];
+                    ecnEchoes[ackCount] = true;
+                }
+                ackIDs[ackCount++] = ackID;
+            }
+        }
+        if (ackCount > 0)
+            immediatePacketsToSend.add(new ACKSegment(Arrays.copyOf(ackIDs, ackCount), this,
+                    (Host) segment.getSource(), segment.getFlowID(), ecnEchoes));
+    }
+
+    /**
+     * Take in a DataPacket of a download.
+     * @param packet the packet
+     * @return the ID of the ACK to send for it, the next packet expected, or null if it isn't part of a download
+     */
+    private Integer acknowledge(DataPacket packet) {
         Integer packetID = packet.getID();
+        Download download = downloads.get(packet.getFlowID());
         if (download != null && download.source == packet.getSource()) {
-            if (download.nextPacketID <= packetID && packetID <= download.maxPacketID) {
+            // Packets already received are acknowledged again too, in case every ACK for them was lost
+            if (packetID <= download.maxPacketID) {
                 // If this was the next packet in the download...
                 if (download.nextPacketID.equals(packetID)) {
                     // Start expecting the following one
                     download.nextPacketID++;
                 }
-                // Add an ACK packet to the queue of packets to send immediately
-                immediatePacketsToSend.add(new ACKPacket(download.nextPacketID,
-                        (Host) packet.getDestination(), (Host) packet.getSource()));
+                return download.nextPacketID;
             }
         }
+        return null;
     }
 
     /**
@@ -258,25 +447,86 @@ public class Host extends Node {
      * @param receivingLink The link that the packet came on
      */
     public void receivePacket(Packet packet, Link receivingLink) {
-        if (packet instanceof ACKPacket)
-            this.receiveACKPacket((ACKPacket) packet);
+        if (packet instanceof ACKSegment) {
+            if (PacketTrace.active != null)
+                PacketTrace.active.record(PacketTrace.Event.ACK, packet, null, this);
+            ACKSegment segment = (ACKSegment) packet;
+            int[] ackIDs = segment.getACKIDs();
+            for (int i = 0; i < ackIDs.length; ++i) {
+                this.receiveACKPacket(packet.getFlowID(), ackIDs[i], segment.getECNEcho(i));
+            }
+        }
+        else if (packet instanceof ACKPacket) {
+            if (PacketTrace.active != null)
+                PacketTrace.active.record(PacketTrace.Event.ACK, packet, null, this);
+            this.receiveACKPacket(packet.getFlowID(), packet.getID(), ((ACKPacket) packet).getECNEcho());
+        }
         else if (packet instanceof SetupPacket)
             this.receiveSetupPacket((SetupPacket) packet);
         else if (packet instanceof DataPacket)
             this.receiveDataPacket((DataPacket) packet);
+        else if (packet instanceof DataSegment)
+            this.receiveDataSegment((DataSegment) packet);
+        else if (packet instanceof FinPacket)
+            this.receiveFinPacket((FinPacket) packet);
         //else if (packet instanceof RoutingTablePacket)
         //Do nothing
     }
 
+    /**
+     * Send consecutive packets of a flow as one DataSegment, or on its own if there is just one.
+     * @param packets the packets, which the segment keeps
+     */
+    private void sendSegment(ArrayList<DataPacket> packets) {
+        if (packets.size() == 1)
+            this.link.addPacket(packets.get(0), this);
+        else if (!packets.isEmpty())
+            this.link.addPacket(new DataSegment(packets), this);
+    }
+
+    /**
+     * Clear this Host's side of its link buffer before a retransmission.
+     * Only done when the flow is the only one running, since otherwise it would throw away other flows' packets.
+     * @param flow the flow about to retransmit
+     */
+    private void clearBufferFor(Flow flow) {
+        if (activeFlows.size() == 1)
+            this.link.clearBuffer(this);
+    }
+
     /**
      * Updates a Host so that it sends the packets it currently has available
      * to the link buffer.
      */
     public void update() {
-        //Activate the flow if the time is ready
-        if(flow != null && flow.getStartTime() <= Main.currentTime && flow.activated == false) {
-            flow.activateFlow();
-            this.immediatePacketsToSend.add(new SetupPacket(0, this, flow.getDestination(), flow.lastPacketID));
+        //Activate the flows whose time is ready
+        if (!pendingFlows.isEmpty()) {
+            Iterator<Flow> it = pendingFlows.iterator();
+            while (it.hasNext()) {
+                Flow flow = it.next();
+                if (flow.getStartTime() <= Main.currentTime) {
+                    it.remove();
+                    flow.activateFlow();
+                    activeFlows.put(flow.getID(), flow);
+                    this.immediatePacketsToSend.add(new SetupPacket(0, this, flow.getDestination(),
+                            flow.lastPacketID, flow.getID()));
+                }
+            }
+        }
+
+        // Send FINs again that haven't been acknowledged in time, and give up on those sent too often
+        if (!closingFlows.isEmpty()) {
+            Iterator<Map.Entry<Integer, Closing>> it = closingFlows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Closing> entry = it.next();
+                Closing closing = entry.getValue();
+                if (closing.sendTime + Flow.timeoutLength < Main.currentTime) {
+                    if (closing.attempts >= MaxFinAttempts)
+                        it.remove();
+                    else
+                        sendFin(entry.getKey());
+                }
+            }
         }
 
         // If this host is connected
@@ -286,111 +536,141 @@ public class Host extends Node {
                 this.link.addPacket(this.immediatePacketsToSend.remove(), this);
             }
 
-            //If there is an active flow
-            if(flow != null && flow.activated) {
-                flow.currBitsSent = 0;
-                // For each currently outstanding packet, check if the
-                // timeout time has elapsed since it was sent, and
-                // retransmit if so
-                Integer minTimedOutPacketID = Integer.MAX_VALUE;
-
-                Set<Integer> sentPacketIDs = flow.sendTimes.keySet();
-                for(Integer sentPacketID : sentPacketIDs) {
-                    Integer sendTime = flow.sendTimes.get(sentPacketID);
-                    if (sendTime + flow.timeoutLength < Main.currentTime) {
-                        //Flow has timed out
-                        if (minTimedOutPacketID > sentPacketID)
-                            minTimedOutPacketID = sentPacketID;
-                    }
+            for (Flow flow : activeFlows.values()) {
+                sendPackets(flow);
+            }
+        }
+    }
+
+    /**
+     * Retransmit timed out packets of an active flow, fill its window and update its window size and statistics.
+     * @param flow the flow
+     */
+    private void sendPackets(Flow flow) {
+        flow.currBitsSent = 0;
+        // For each currently outstanding packet, check if the
+        // timeout time has elapsed since it was sent, and
+        // retransmit if so
+        Integer minTimedOutPacketID = Integer.MAX_VALUE;
+
+        // Nothing can have timed out before the earliest send time has, which saves going through every
+        // outstanding packet each interval
+        if (flow.earliestSendTime + Flow.timeoutLength < Main.currentTime) {
+            int earliestSendTime = Main.currentTime;
+            Set<Integer> sentPacketIDs = flow.sendTimes.keySet();
+            for(Integer sentPacketID : sentPacketIDs) {
+                Integer sendTime = flow.sendTimes.get(sentPacketID);
+                if (sendTime + Flow.timeoutLength < Main.currentTime) {
+                    //Flow has timed out
+                    if (minTimedOutPacketID > sentPacketID)
+                        minTimedOutPacketID = sentPacketID;
                 }
+                earliestSendTime = Math.min(earliestSendTime, sendTime);
+            }
+            flow.earliestSendTime = earliestSendTime;
+        }
 
-                //Now for the minTimedOutPackedID (assuming sentPacketIDs wasn't empty)
-                if(minTimedOutPacketID != Integer.MAX_VALUE) {
-                    if (protocol == Main.Protocol.RENO) {
-                        if (flow.windowSize / 2 < 2) {
-                            flow.slowStartThreshold = 2;
-                        } else {
-                            flow.slowStartThreshold = flow.windowSize / 2;
-                        }
-                        flow.slowStart = true;
-                        flow.windowSize = Flow.initWindowSize;
-                    }
-                    // Since we haven't found a RTT for the retransmitted packets, assume the RTT is
-                    // RTO * 1.2 for all packets currently queued.
-                    flow.totalRoundTripTime += (int) (flow.timeoutLength * 1.2);
-                    flow.numbRoundTrips += 1;
-                    flow.sendTimes.clear();
-                    flow.sendTimes.put(minTimedOutPacketID, Main.currentTime);
-                    flow.numbPacketsInWindow = 1;
-                    flow.mostRecentQueuedID = minTimedOutPacketID;
-                    link.clearBuffer(this);
-                    DataPacket packetToResend = flow.packets.get(minTimedOutPacketID);
-                    this.link.addPacket(packetToResend, this);
-                    flow.currBitsSent += packetToResend.getSize();
+        //Now for the minTimedOutPackedID (assuming sentPacketIDs wasn't empty)
+        if(minTimedOutPacketID != Integer.MAX_VALUE) {
+            if (usesRenoWindow()) {
+                if (flow.windowSize / 2 < 2) {
+                    flow.slowStartThreshold = 2;
+                } else {
+                    flow.slowStartThreshold = flow.windowSize / 2;
                 }
+                flow.slowStart = true;
+                flow.windowSize = Flow.initWindowSize;
+            }
+            // Since we haven't found a RTT for the retransmitted packets, assume the RTT is
+            // RTO * 1.2 for all packets currently queued.
+            flow.totalRoundTripTime += (int) (Flow.timeoutLength * 1.2);
+            flow.numbRoundTrips += 1;
+            flow.sendTimes.clear();
+            flow.sendTimes.put(minTimedOutPacketID, Main.currentTime);
+            flow.earliestSendTime = Main.currentTime;
+            flow.numbPacketsInWindow = 1;
+            flow.mostRecentQueuedID = minTimedOutPacketID;
+            clearBufferFor(flow);
+            DataPacket packetToResend = flow.packets.get(minTimedOutPacketID)
+                    .transmission(protocol == Main.Protocol.DCTCP);
+            flow.retransmissionCount++;
+            this.link.addPacket(packetToResend, this);
+            flow.currBitsSent += packetToResend.getSize();
+        }
 
-                // Packets are ACKed sequentially, so the outstanding
-                // packets are just the ones from mostRecentQueuedID onwards. Thus
-                // we can jump past them and fill up the rest of the window.
-                int next = flow.mostRecentQueuedID + 1;
-                if(flow.packets.size() > next) {
-                    ListIterator<DataPacket> it = flow.packets.listIterator(next);
-                    if (it.hasNext()) {
-                        DataPacket packet = it.next();
-                        while (flow.windowSize > flow.numbPacketsInWindow) {
-                            // If we're in FR/FR and we're retransmitting, we need to deflate the window.
-                            if (protocol == Main.Protocol.RENO && flow.awaitingRetransmit) {
-                                flow.windowSize = flow.slowStartThreshold;
-                                flow.awaitingRetransmit = false;
-                            }
-                            flow.numbPacketsInWindow++;
-                            this.link.addPacket(packet, this);
-                            flow.sendTimes.put(packet.getID(), Main.currentTime);
-                            flow.mostRecentQueuedID = packet.getID();
-                            flow.currBitsSent += packet.getSize();
-                            if (it.hasNext())
-                                packet = it.next();
-                            else
-                                break;
-                        }
+        // Packets are ACKed sequentially, so the outstanding
+        // packets are just the ones from mostRecentQueuedID onwards. Thus
+        // we can jump past them and fill up the rest of the window. After a retransmission the destination may
+        // have acknowledged past them, and the window starts from what it expects next.
+        int next = Math.max(flow.mostRecentQueuedID + 1, flow.firstNotRecievedPacketIndex);
+        if(flow.packets.size() > next) {
+            ListIterator<DataPacket> it = flow.packets.listIterator(next);
+            if (it.hasNext()) {
+                DataPacket packet = it.next();
+                // Packets waiting to go out together as a segment
+                ArrayList<DataPacket> segmentPackets = new ArrayList<>();
+                while (flow.windowSize > flow.numbPacketsInWindow) {
+                    // If we're in FR/FR and we're retransmitting, we need to deflate the window.
+                    if (usesRenoWindow() && flow.awaitingRetransmit) {
+                        flow.windowSize = flow.slowStartThreshold;
+                        flow.awaitingRetransmit = false;
                     }
-                }
-                // Update FastTCP window size
-                if (protocol == Main.Protocol.FAST && flow.minRoundTripTime < Integer.MAX_VALUE
-                        && flow.activated && Main.currentTime % TCPFastUpdateInterval == 0) {
-                    // if avgRTT is null no ACK was acknowledged so force window size down
-                    if (flow.avgRoundTripTime == null) {
-                        flow.windowSize = (int) (flow.windowSize / 1.05);
+                    flow.numbPacketsInWindow++;
+                    DataPacket transmission = packet.transmission(protocol == Main.Protocol.DCTCP);
+                    if (segmentSize == 1) {
+                        this.link.addPacket(transmission, this);
                     } else {
-                        // update window size using the avgRTT
-                        flow.windowSize = (int) (catchupFactor * ((flow.windowSize * (flow.minRoundTripTime /
-                                flow.avgRoundTripTime)) + TCPFastAlpha)
-                                + (1.0 - catchupFactor) * flow.windowSize);
-
-                        // reset avgRTT since we want to react to average RTTs in small portions to avoid sluggish
-                        // response
-                        flow.avgRoundTripTime = null;
+                        segmentPackets.add(transmission);
+                        if (segmentPackets.size() == segmentSize) {
+                            sendSegment(segmentPackets);
+                            segmentPackets = new ArrayList<>();
+                        }
                     }
+                    flow.sendTimes.put(packet.getID(), Main.currentTime);
+                    flow.mostRecentQueuedID = packet.getID();
+                    flow.currBitsSent += packet.getSize();
+                    if (it.hasNext())
+                        packet = it.next();
+                    else
+                        break;
                 }
-                // Handle RTT divide by 0 error
-                if (flow.numbRoundTrips == 0) {
-                    flow.numbRoundTrips = 1;
-                }
-                // Update RTO threshold to be 3 * average RTT
-                //flow.timeoutLength = 3 * flow.totalRoundTripTime / flow.numbRoundTrips;
-                flow.totalBitsSent += flow.currBitsSent;
-                if (flow.windowSize > 0) {
-                    flow.flowAnalyticsCollector.addToWindowSize(flow.windowSize, Main.currentTime);
-                }
-                // Average the flow rate over an interval of 100 ms
-                if (Main.currentTime % 100 == 0) {
-                    flow.flowAnalyticsCollector.addToFlowRates((double) flow.totalBitsSent / (100 / Main.intervalTime)
-                            * Main.intervalTime / 1048.576, Main.currentTime);
-                    flow.totalBitsSent = 0;
-                }
-                flow.totalRoundTripTime = 0;
-                flow.numbRoundTrips = 0;
+                sendSegment(segmentPackets);
             }
         }
+        // Update FastTCP window size
+        if (protocol == Main.Protocol.FAST && flow.minRoundTripTime < Integer.MAX_VALUE
+                && flow.activated && Main.currentTime % TCPFastUpdateInterval == 0) {
+            // if avgRTT is null no ACK was acknowledged so force window size down
+            if (flow.avgRoundTripTime == null) {
+                flow.windowSize = (int) (flow.windowSize / 1.05);
+            } else {
+                // update window size using the avgRTT
+                flow.windowSize = (int) (catchupFactor * ((flow.windowSize * (flow.minRoundTripTime /
+                        flow.avgRoundTripTime)) + TCPFastAlpha)
+                        + (1.0 - catchupFactor) * flow.windowSize);
+
+                // reset avgRTT since we want to react to average RTTs in small portions to avoid sluggish
+                // response
+                flow.avgRoundTripTime = null;
+            }
+        }
+        // Handle RTT divide by 0 error
+        if (flow.numbRoundTrips == 0) {
+            flow.numbRoundTrips = 1;
+        }
+        // Update RTO threshold to be 3 * average RTT
+        //flow.timeoutLength = 3 * flow.totalRoundTripTime / flow.numbRoundTrips;
+        flow.totalBitsSent += flow.currBitsSent;
+        if (flow.windowSize > 0) {
+            flow.flowAnalyticsCollector.addToWindowSize(flow.windowSize, Main.currentTime);
+        }
+        // Average the flow rate over an interval of 100 ms
+        if (Main.currentTime % 100 == 0) {
+            flow.flowAnalyticsCollector.addToFlowRates((double) flow.totalBitsSent / (100 / Main.intervalTime)
+                    * Main.intervalTime / 1048.576, Main.currentTime);
+            flow.totalBitsSent = 0;
+        }
+        flow.totalRoundTripTime = 0;
+        flow.numbRoundTrips = 0;
     }
-}
\ No newline at end of file
+}
@@ -3,21 +3,73 @@ package com.ricketts;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
-import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * The InputParser is used to read the JSON definition for the parameters of the project and convert it to objects.
+ *
+ * The file is read as a stream: the tokenizer pulls one Link, Host, Router or Flow definition at a time and turns it
+ * into its object straight away, so the whole document is never held in memory. Definitions that refer to something
+ * not yet defined (for example a Host listed before its Link) are kept aside and resolved at the end of the file;
+ * listing links first, then hosts and routers, then flows avoids that entirely.
  */
 public class InputParser {
 
     /**
-     * Java Library Object to ease parsing
+     * The sections of the network definition holding lists of objects
      */
-    private JSONObject jsonObject;
+    private enum Section {LINKS, HOSTS, ROUTERS, FLOWS}
+
+    /**
+     * A definition that refers to a Link or Node not yet defined, kept until the end of the file.
+     */
+    private static class PendingDefinition {
+        public final Section section;
+        public final JSONObject json;
+        public final int line;
+
+        public PendingDefinition(Section section, JSONObject json, int line) {
+            this.section = section;
+            this.json = json;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Name of the file being read, for error messages
+     */
+    private String filename;
+    /**
+     * Reader over the file, which keeps track of the current line
+     */
+    private LineNumberReader reader;
+    /**
+     * Java Library Object to ease parsing, pulling tokens from the reader
+     */
+    private JSONTokener tokener;
+    /**
+     * TCP protocol given to the Hosts
+     */
+    private int protocol;
+
+    private ArrayList<Link> links;
+    private ArrayList<Host> hosts;
+    private ArrayList<Router> routers;
+    private ArrayList<Flow> flows;
+    private HashMap<Integer, Link> linkMap;
+    private HashMap<String, Node> addressBook;
+    private ArrayList<PendingDefinition> pendingDefinitions;
+    private Integer runtime;
+    private int routingProtocol;
+    private InstrumentationConfig instrumentation;
+    private ArrayList<NetworkEvent> events;
 
     /**
      * Empty constructor
@@ -25,168 +77,406 @@ public class InputParser {
     public InputParser() {}
 
     /**
-     * Reads file and generates equivalent string.
-     * @param filename The filename we're reading from, include directory
-     * @return String equivalent of entire file
+     * Read a network definition file and build its objects.
+     * @param fileLocation Location of JSON file
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     * @throws TopologyParseException if the file cannot be read or does not describe a valid network
      */
-    public static String readFile(String filename) {
-        String result = "";
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(filename));
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
-            // Read lines from the file until we hit the end.
-            while (line != null) {
-                sb.append(line);
-                line = br.readLine();
+    public Network parse(String fileLocation, int protocol) throws TopologyParseException {
+        this.filename = fileLocation;
+        this.protocol = protocol;
+        this.links = new ArrayList<>();
+        this.hosts = new ArrayList<>();
+        this.routers = new ArrayList<>();
+        this.flows = new ArrayList<>();
+        this.linkMap = new HashMap<>();
+        this.addressBook = new HashMap<>();
+        this.pendingDefinitions = new ArrayList<>();
+        this.runtime = null;
+        this.routingProtocol = Main.RoutingProtocol.DISTANCE_VECTOR;
+        this.instrumentation = null;
+        this.events = new ArrayList<>();
+
+        try (LineNumberReader lineNumberReader = new LineNumberReader(new FileReader(fileLocation))) {
+            this.reader = lineNumberReader;
+            this.tokener = new JSONTokener(lineNumberReader);
+            readDocument();
+        } catch (IOException e) {
+            throw new TopologyParseException(filename, 0, "cannot read file: " + e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new TopologyParseException(filename, currentLine(), e.getMessage(), e);
+        } finally {
+            this.reader = null;
+            this.tokener = null;
+        }
+
+        // Resolve definitions that came before what they refer to. Nodes first, since Flows refer to them.
+        for (Section section : new Section[] {Section.HOSTS, Section.ROUTERS, Section.FLOWS}) {
+            for (PendingDefinition pending : pendingDefinitions) {
+                try {
+                    if (pending.section == section && !define(pending.section, pending.json, pending.line)) {
+                        throw new TopologyParseException(filename, pending.line,
+                                "refers to an undefined link or node: " + pending.json);
+                    }
+                } catch (JSONException e) {
+                    throw new TopologyParseException(filename, pending.line, e.getMessage(), e);
+                }
             }
-            result = sb.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return result;
+        pendingDefinitions = null;
+
+        // Routers are built as soon as they are read, which may be before the "routing" key
+        for (Router router : routers) {
+            router.setRoutingProtocol(routingProtocol);
+        }
+
+        if (runtime == null)
+            throw new TopologyParseException(filename, 0, "missing runtime");
+        for (NetworkEvent event : events) {
+            if (!linkMap.containsKey(event.getLinkID()))
+                throw new TopologyParseException(filename, 0, "event at " + event.getTime() + " ms refers to " +
+                        "undefined link " + event.getLinkID());
+        }
+        return new Network(links, hosts, routers, flows, runtime, routingProtocol, instrumentation, events);
     }
 
     /**
-     * Construct the JSON object to assist with parsing
-     * @param fileLocation Location of JSON file
+     * @return the line the reader is on, counting from 1
      */
-    public void parseJSON(String fileLocation) {
-        this.jsonObject = null;
-        try {
-            String jsonData = readFile(fileLocation);
-            this.jsonObject = new JSONObject(jsonData);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private int currentLine() {
+        return reader == null ? 0 : reader.getLineNumber() + 1;
     }
 
     /**
-     * Extract the time length the simulation should run for.
-     * @return The simulation runtime
+     * Read the outer object, which holds the network object.
      */
-    public int extractRuntime() {
-        try {
-            return jsonObject.getJSONObject("network").getInt("runtime");
-        } catch (JSONException e) {
-            System.out.println(e);
-        }
-        return -1;
+    private void readDocument() throws JSONException, TopologyParseException {
+        expect('{');
+        if (atEnd('}'))
+            return;
+        do {
+            String key = readKey();
+            if (key.equals("network"))
+                readNetwork();
+            else
+                tokener.nextValue();
+        } while (nextSeparator('}'));
     }
 
     /**
-     * Using the JSON definition, produce ArrayList of Links
-     * @return ArrayList of Links
+     * Read the network object, streaming through its lists.
      */
-    public ArrayList<Link> extractLinks() {
-        ArrayList<Link> output = new ArrayList<>();
-        try {
-            JSONArray linkArray = jsonObject.getJSONObject("network").getJSONArray("links");
-            for (int i = 0; i < linkArray.length(); ++i) {
-                JSONObject linkJson = linkArray.getJSONObject(i);
-                int id = linkJson.getInt("id");
-                int capacity = (int) (linkJson.getDouble("capacity") * 1048.576);
-                int transmissionDelay = linkJson.getInt("transmissionDelay");
-                int buffer = linkJson.getInt("bufferSize") * 8192;
-                // Indicator saying whether or not we should graph this link
-                boolean graph = linkJson.getBoolean("graph");
-                output.add(new Link(id, capacity, transmissionDelay, buffer, graph));
+    private void readNetwork() throws JSONException, TopologyParseException {
+        expect('{');
+        if (atEnd('}'))
+            return;
+        do {
+            String key = readKey();
+            if (key.equals("links")) {
+                readList(Section.LINKS);
+            } else if (key.equals("hosts")) {
+                readList(Section.HOSTS);
+            } else if (key.equals("routers")) {
+                readList(Section.ROUTERS);
+            } else if (key.equals("flows")) {
+                readList(Section.FLOWS);
+            } else if (key.equals("runtime")) {
+                int line = currentLine();
+                Object value = tokener.nextValue();
+                if (!(value instanceof Integer))
+                    throw new TopologyParseException(filename, line, "runtime must be an integer, not " + value);
+                runtime = (Integer) value;
+            } else if (key.equals("routing")) {
+                routingProtocol = parseRoutingProtocol(tokener.nextValue().toString());
+            } else if (key.equals("instrumentation")) {
+                // The list of rules is short, so it is read whole
+                int line = currentLine();
+                Object value = tokener.nextValue();
+                if (!(value instanceof JSONArray))
+                    throw new TopologyParseException(filename, line, "instrumentation must be a list, not " + value);
+                try {
+                    instrumentation = parseInstrumentation((JSONArray) value, line);
+                } catch (JSONException e) {
+                    throw new TopologyParseException(filename, line, e.getMessage(), e);
+                }
+            } else if (key.equals("events")) {
+                // The timeline is short too
+                int line = currentLine();
+                Object value = tokener.nextValue();
+                if (!(value instanceof JSONArray))
+                    throw new TopologyParseException(filename, line, "events must be a list, not " + value);
+                try {
+                    parseEvents((JSONArray) value, line);
+                } catch (JSONException e) {
+                    throw new TopologyParseException(filename, line, e.getMessage(), e);
+                }
+            } else {
+                // Unknown settings are skipped
+                tokener.nextValue();
             }
-        } catch (JSONException e) {
-            System.out.println(e);
-        }
-        return output;
+        } while (nextSeparator('}'));
     }
 
     /**
-     * Given a HashMap of Link Ids to Links and the JSON definition, extract information about the Hosts
-     * @param linkMap HashMap of Link Ids to Links
-     * @param protocol the tcp protocol
-     * @return ArrayList of Hosts
+     * Parse the routing protocol the Routers should use. Topologies choose "DV" (distance vector, the default),
+     * "LS" (link state), "STATIC" (all routes computed before the simulation starts) or "ADAPTIVE" (distance vector
+     * over smoothed queueing delay, with damped route changes and per-flow path pinning).
+     * @param routing the name of the routing protocol
+     * @return The routing protocol
      */
-    public ArrayList<Host> extractHosts(HashMap<Integer, Link> linkMap, int protocol) {
-        ArrayList<Host> output = new ArrayList<>();
+    private int parseRoutingProtocol(String routing) throws TopologyParseException {
+        Integer routingProtocol = lookupRoutingProtocol(routing);
+        if (routingProtocol == null)
+            throw new TopologyParseException(filename, currentLine(), "unknown routing protocol " + routing);
+        return routingProtocol;
+    }
 
-        try {
-            JSONArray hostArray = jsonObject.getJSONObject("network").getJSONArray("hosts");
+    /**
+     * Parse the rules saying which statistics to collect (see InstrumentationConfig).
+     * @param rulesJson the list of rules
+     * @param line line the list starts on
+     * @return the config
+     */
+    private InstrumentationConfig parseInstrumentation(JSONArray rulesJson, int line)
+            throws JSONException, TopologyParseException {
+        InstrumentationConfig config = new InstrumentationConfig();
+        for (int i = 0; i < rulesJson.length(); ++i) {
+            JSONObject ruleJson = rulesJson.getJSONObject(i);
+            boolean forLinks = ruleJson.has("links");
+            if (forLinks == ruleJson.has("flows"))
+                throw new TopologyParseException(filename, line, "instrumentation rule must have either links or " +
+                        "flows: " + ruleJson);
+            String glob = ruleJson.get(forLinks ? "links" : "flows").toString();
 
-            for (int i = 0; i < hostArray.length(); ++i) {
-                JSONObject hostJson = hostArray.getJSONObject(i);
+            int metrics = 0;
+            Object metricsJson = ruleJson.opt("metrics");
+            ArrayList<String> names = new ArrayList<>();
+            if (metricsJson == null)
+                names.add("all");
+            else if (metricsJson instanceof JSONArray) {
+                for (int j = 0; j < ((JSONArray) metricsJson).length(); ++j) {
+                    names.add(((JSONArray) metricsJson).getString(j));
+                }
+            } else
+                names.add(metricsJson.toString());
+            for (String name : names) {
+                Integer metric = InstrumentationConfig.lookupMetric(forLinks, name);
+                if (metric == null)
+                    throw new TopologyParseException(filename, line, "unknown " + (forLinks ? "link" : "flow") +
+                            " metric " + name);
+                metrics |= metric;
+            }
 
-                String address = hostJson.getString("address");
-                int linkId = hostJson.getInt("link");
-                //Get associated Link object using map
-                Link link = linkMap.get(linkId);
-                Host host = new Host(address, link, protocol);
-                output.add(host);
+            Iterator<?> keys = ruleJson.keys();
+            while (keys.hasNext()) {
+                String key = keys.next().toString();
+                if (!key.equals("links") && !key.equals("flows") && !key.equals("metrics") &&
+                        !key.equals("resolution") && !key.equals("points"))
+                    throw new TopologyParseException(filename, line, "unknown instrumentation setting " + key);
+            }
+            int sampleInterval = ruleJson.optInt("resolution", LinkAnalyticsCollector.DefaultSampleInterval);
+            int maxPoints = ruleJson.optInt("points", LinkAnalyticsCollector.DefaultMaxPoints);
+            try {
+                config.add(new InstrumentationConfig.Rule(forLinks, glob, metrics, sampleInterval, maxPoints));
+            } catch (IllegalArgumentException e) {
+                throw new TopologyParseException(filename, line, e.getMessage());
             }
-        } catch (JSONException e) {
-            System.out.println(e);
         }
-        return output;
+        return config;
     }
 
     /**
-     * Given a HashMap of Link Ids to Links and the JSON definition, extract information about the Hosts
-     * @param linkMap HashMap of Link Ids to Links
-     * @return ArrayList of Hosts
+     * Parse the timeline of link events. Each event has a time in ms, a link id and an action: "down", "up" or
+     * "capacity", which also gives the new capacity in Mbps, e.g. {"time": 5000, "link": 3, "action": "down"}.
+     * @param eventsJson the list of events
+     * @param line line the list starts on
      */
-    public ArrayList<Router> extractRouters(HashMap<Integer, Link> linkMap) {
-        ArrayList<Router> output = new ArrayList<>();
-
-        try {
-            JSONArray routerArray = jsonObject.getJSONObject("network").getJSONArray("routers");
-
-            for (int i = 0; i < routerArray.length(); ++i) {
-                JSONObject routerJson = routerArray.getJSONObject(i);
-                String address = routerJson.getString("address");
-                JSONArray linksJson = routerJson.getJSONArray("links");
-                ArrayList<Link> links = new ArrayList<>(linksJson.length());
-
-                for(int j = 0; j < linksJson.length(); ++j) {
-                    int linkId = linksJson.getInt(j);
-                    //Get Link objects using map
-                    Link link = linkMap.get(linkId);
-                    links.add(link);
-                }
-
-                Router router = new Router(address, links);
-                output.add(router);
-            }
+    private void parseEvents(JSONArray eventsJson, int line) throws JSONException, TopologyParseException {
+        for (int i = 0; i < eventsJson.length(); ++i) {
+            JSONObject eventJson = eventsJson.getJSONObject(i);
+            String actionName = eventJson.getString("action");
+            Integer action = NetworkEvent.lookupAction(actionName);
+            if (action == null)
+                throw new TopologyParseException(filename, line, "unknown event action " + actionName);
+            Integer linkRate = null;
+            if (action == NetworkEvent.Action.CAPACITY)
+                linkRate = (int) (eventJson.getDouble("capacity") * 1048.576);
+            events.add(new NetworkEvent(eventJson.getInt("time"), eventJson.getInt("link"), action, linkRate));
         }
-        catch (JSONException e) {
-            System.out.println(e);
+    }
+
+    /**
+     * Find the routing protocol with a given name.
+     * @param routing the name of the routing protocol, as used in network definitions
+     * @return The routing protocol, or null if there is none by that name
+     */
+    public static Integer lookupRoutingProtocol(String routing) {
+        if (routing.equals("DV")) {
+            return Main.RoutingProtocol.DISTANCE_VECTOR;
+        } else if (routing.equals("LS")) {
+            return Main.RoutingProtocol.LINK_STATE;
+        } else if (routing.equals("STATIC")) {
+            return Main.RoutingProtocol.STATIC;
+        } else if (routing.equals("ADAPTIVE")) {
+            return Main.RoutingProtocol.ADAPTIVE;
         }
-        return output;
+        return null;
     }
 
     /**
-     * Given an address book of nodes, construct all the flows in the network.
-     * @param addressBook Map of IDs to nodes
-     * @param filename The json filename
-     * @param protocol TCP FAST or Reno
-     * @return The list of Flows in the network
+     * Read a list of definitions one element at a time, building each as soon as it is read.
+     * @param section which list is being read
      */
-    public ArrayList<Flow> extractFlows(HashMap<String, Node> addressBook, String filename, int protocol) {
-        ArrayList<Flow> output = new ArrayList<>();
-        try {
-            JSONArray flowArray = jsonObject.getJSONObject("network").getJSONArray("flows");
-            for (int i = 0; i < flowArray.length(); ++i) {
-                JSONObject flowJson = flowArray.getJSONObject(i);
-                int id = flowJson.getInt("id");
-                String sourceId = flowJson.getString("source");
-                Host source = (Host) addressBook.get(sourceId);
-                String destinationId = flowJson.getString("destination");
-                Host destination = (Host) addressBook.get(destinationId);
-                // Convert data amount from MB to bits.
-                int dataAmount = flowJson.getInt("dataAmount") * 8388608;
-                int startTime = flowJson.getInt("startTime");
-                output.add(new Flow(id, source, destination, dataAmount, startTime));
+    private void readList(Section section) throws JSONException, TopologyParseException {
+        expect('[');
+        if (atEnd(']'))
+            return;
+        do {
+            // Note the line the definition starts on
+            tokener.nextClean();
+            int line = currentLine();
+            tokener.back();
+            Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject))
+                throw new TopologyParseException(filename, line, "expected an object in " + section + ", not " + value);
+            try {
+                if (!define(section, (JSONObject) value, line))
+                    pendingDefinitions.add(new PendingDefinition(section, (JSONObject) value, line));
+            } catch (JSONException e) {
+                throw new TopologyParseException(filename, line, e.getMessage(), e);
             }
-        } catch (JSONException e) {
-            System.out.println(e);
+        } while (nextSeparator(']'));
+    }
+
+    /**
+     * Build the object for a single definition.
+     * @param section which list the definition is from
+     * @param json the definition
+     * @param line line the definition starts on
+     * @return false if it refers to a Link or Node that is not defined yet
+     */
+    private boolean define(Section section, JSONObject json, int line) throws JSONException, TopologyParseException {
+        switch (section) {
+            case LINKS:
+                defineLink(json, line);
+                return true;
+            case HOSTS:
+                return defineHost(json, line);
+            case ROUTERS:
+                return defineRouter(json, line);
+            default:
+                return defineFlow(json, line);
         }
-        return output;
+    }
+
+    private void defineLink(JSONObject linkJson, int line) throws JSONException, TopologyParseException {
+        int id = linkJson.getInt("id");
+        int capacity = (int) (linkJson.getDouble("capacity") * 1048.576);
+        int transmissionDelay = linkJson.getInt("transmissionDelay");
+        int buffer = linkJson.getInt("bufferSize") * 8192;
+        // Indicator saying whether or not we should graph this link
+        boolean graph = linkJson.getBoolean("graph");
+        if (linkMap.containsKey(id))
+            throw new TopologyParseException(filename, line, "duplicate link id " + id);
+        Link link = new Link(id, capacity, transmissionDelay, buffer, graph);
+        links.add(link);
+        linkMap.put(id, link);
+    }
+
+    private boolean defineHost(JSONObject hostJson, int line) throws JSONException, TopologyParseException {
+        String address = hostJson.getString("address");
+        //Get associated Link object using map
+        Link link = linkMap.get(hostJson.getInt("link"));
+        if (link == null)
+            return false;
+        Host host = new Host(address, link, protocol);
+        addNode(host, line);
+        hosts.add(host);
+        return true;
+    }
+
+    private boolean defineRouter(JSONObject routerJson, int line) throws JSONException, TopologyParseException {
+        String address = routerJson.getString("address");
+        JSONArray linksJson = routerJson.getJSONArray("links");
+        ArrayList<Link> routerLinks = new ArrayList<>(linksJson.length());
+        for (int j = 0; j < linksJson.length(); ++j) {
+            //Get Link objects using map
+            Link link = linkMap.get(linksJson.getInt(j));
+            if (link == null)
+                return false;
+            routerLinks.add(link);
+        }
+        Router router = new Router(address, routerLinks, routingProtocol);
+        addNode(router, line);
+        routers.add(router);
+        return true;
+    }
+
+    private boolean defineFlow(JSONObject flowJson, int line) throws JSONException, TopologyParseException {
+        int id = flowJson.getInt("id");
+        Node source = addressBook.get(flowJson.getString("source"));
+        Node destination = addressBook.get(flowJson.getString("destination"));
+        if (source == null || destination == null)
+            return false;
+        if (!(source instanceof Host) || !(destination instanceof Host))
+            throw new TopologyParseException(filename, line, "flow " + id + " must run between two hosts");
+        // Convert data amount from MB to bits.
+        long dataAmount = flowJson.getInt("dataAmount") * 8388608L;
+        int startTime = flowJson.getInt("startTime");
+        flows.add(new Flow(id, (Host) source, (Host) destination, dataAmount, startTime));
+        return true;
+    }
+
+    private void addNode(Node node, int line) throws TopologyParseException {
+        if (addressBook.containsKey(node.getAddress()))
+            throw new TopologyParseException(filename, line, "duplicate address " + node.getAddress());
+        addressBook.put(node.getAddress(), node);
+    }
+
+    /**
+     * Read an object key and the colon following it.
+     * @return the key
+     */
+    private String readKey() throws JSONException {
+        String key = tokener.nextValue().toString();
+        expect(':');
+        return key;
+    }
+
+    /**
+     * Consume the next non-whitespace character, which must be the given one.
+     */
+    private void expect(char c) throws JSONException {
+        char next = tokener.nextClean();
+        if (next != c)
+            throw tokener.syntaxError("Expected '" + c + "' and instead saw '" + next + "'");
+    }
+
+    /**
+     * Check whether an object or list is closed right away (is empty). Consumes the closing character if so.
+     * @param close the closing character
+     * @return true if the next character closes it
+     */
+    private boolean atEnd(char close) throws JSONException {
+        if (tokener.nextClean() == close)
+            return true;
+        tokener.back();
+        return false;
+    }
+
+    /**
+     * Consume the separator after an element of an object or list.
+     * @param close the closing character of the object or list
+     * @return true if another element follows, false if it was closed
+     */
+    private boolean nextSeparator(char close) throws JSONException {
+        char c = tokener.nextClean();
+        if (c == ',')
+            return true;
+        if (c == close)
+            return false;
+        throw tokener.syntaxError("Expected ',' or '" + close + "' and instead saw '" + c + "'");
     }
 
     /**
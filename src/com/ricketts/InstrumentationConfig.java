@@ -0,0 +1,168 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Which statistics are collected for which Links and Flows, and at what resolution. Set in a network definition by
+ * an "instrumentation" list of rules, e.g.
+ *
+ *   "instrumentation": [
+ *     {"links": "*", "metrics": "none"},
+ *     {"links": "1?", "metrics": ["buffer", "rate"], "resolution": 10},
+ *     {"flows": "*", "metrics": ["delay"], "points": 256}
+ *   ]
+ *
+ * Every rule matches Link or Flow IDs with a glob ("*" for any digits, "?" for one). Where several rules match, the
+ * last one wins. Links and Flows no rule matches collect everything at the default resolution, as do all of them in
+ * a network without rules. Link metrics are "buffer", "loss" and "rate"; Flow metrics are "rate", "window" and
+ * "delay"; "all" and "none" can be given instead of a list.
+ */
+public class InstrumentationConfig {
+    /**
+     * One rule of the config.
+     */
+    public static class Rule {
+        public final boolean forLinks;
+        public final String glob;
+        /**
+         * Statistics to collect, a mask of LinkAnalyticsCollector.Metric or FlowAnalyticsCollector.Metric values
+         */
+        public final int metrics;
+        public final int sampleInterval;
+        public final int maxPoints;
+        private final Pattern pattern;
+
+        /**
+         * Construct a rule.
+         * @param forLinks true if the rule is for Links, false for Flows
+         * @param glob glob over the IDs the rule is for
+         * @param metrics statistics to collect
+         * @param sampleInterval width of the interval each point covers, in ms
+         * @param maxPoints most points kept per series
+         */
+        public Rule(boolean forLinks, String glob, int metrics, int sampleInterval, int maxPoints) {
+            if (sampleInterval < 1 || maxPoints < 2)
+                throw new IllegalArgumentException("instrumentation needs a resolution of at least 1 and 2 points");
+            this.forLinks = forLinks;
+            this.glob = glob;
+            this.metrics = metrics;
+            this.sampleInterval = sampleInterval;
+            this.maxPoints = maxPoints;
+            this.pattern = Pattern.compile(globToRegex(glob));
+        }
+
+        /**
+         * Check whether the rule is for an ID.
+         * @param id the Link or Flow ID
+         * @return true if the glob matches it
+         */
+        public boolean matches(int id) {
+            return pattern.matcher(Integer.toString(id)).matches();
+        }
+    }
+
+    private final ArrayList<Rule> rules = new ArrayList<>();
+
+    /**
+     * Add a rule, which takes precedence over the ones before it.
+     * @param rule the rule
+     */
+    public void add(Rule rule) {
+        rules.add(rule);
+    }
+
+    public ArrayList<Rule> getRules() { return rules; }
+
+    /**
+     * Find the rule that applies to a Link or Flow.
+     * @param forLinks true for a Link, false for a Flow
+     * @param id its ID
+     * @return the last rule matching it, or null if none does
+     */
+    private Rule find(boolean forLinks, int id) {
+        for (int i = rules.size() - 1; i >= 0; --i) {
+            Rule rule = rules.get(i);
+            if (rule.forLinks == forLinks && rule.matches(id))
+                return rule;
+        }
+        return null;
+    }
+
+    /**
+     * Make the collector for a Link.
+     * @param linkId the Link's ID
+     * @return a collector for the statistics asked for
+     */
+    public LinkAnalyticsCollector linkCollector(int linkId) {
+        Rule rule = find(true, linkId);
+        if (rule == null)
+            return new LinkAnalyticsCollector(linkId);
+        return new LinkAnalyticsCollector(linkId, rule.metrics, rule.sampleInterval, rule.maxPoints);
+    }
+
+    /**
+     * Make the collector for a Flow.
+     * @param flowId the Flow's ID
+     * @return a collector for the statistics asked for
+     */
+    public FlowAnalyticsCollector flowCollector(int flowId) {
+        Rule rule = find(false, flowId);
+        if (rule == null)
+            return new FlowAnalyticsCollector(flowId);
+        return new FlowAnalyticsCollector(flowId, rule.metrics, rule.sampleInterval, rule.maxPoints);
+    }
+
+    /**
+     * Find the mask of a metric by name.
+     * @param forLinks true for a Link metric, false for a Flow metric
+     * @param name the metric's name, or "all" or "none"
+     * @return the mask, or null if there is no metric by that name
+     */
+    public static Integer lookupMetric(boolean forLinks, String name) {
+        if (name.equals("all"))
+            return forLinks ? LinkAnalyticsCollector.Metric.ALL : FlowAnalyticsCollector.Metric.ALL;
+        if (name.equals("none"))
+            return 0;
+        if (forLinks) {
+            if (name.equals("buffer"))
+                return LinkAnalyticsCollector.Metric.BUFFER;
+            else if (name.equals("loss"))
+                return LinkAnalyticsCollector.Metric.LOSS;
+            else if (name.equals("rate"))
+                return LinkAnalyticsCollector.Metric.RATE;
+        } else {
+            if (name.equals("rate"))
+                return FlowAnalyticsCollector.Metric.RATE;
+            else if (name.equals("window"))
+                return FlowAnalyticsCollector.Metric.WINDOW;
+            else if (name.equals("delay"))
+                return FlowAnalyticsCollector.Metric.DELAY;
+        }
+        return null;
+    }
+
+    /**
+     * Translate a glob into a regular expression.
+     * @param glob the glob, with "*" for any run of characters and "?" for one
+     * @return the regular expression
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0)
+            regex.append(Pattern.quote(literal.toString()));
+        return regex.toString();
+    }
+}
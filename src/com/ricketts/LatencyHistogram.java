@@ -0,0 +1,114 @@
+package com.ricketts;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non-negative integer values, in the style of HdrHistogram. Values below 2^subBucketBits
+ * get a bucket each; above that, every power of two is split into 2^(subBucketBits - 1) equal buckets, so any value
+ * is known to within 1 / 2^(subBucketBits - 1) of itself. Memory is fixed when the histogram is made and recording a
+ * value is a few shifts and an increment.
+ */
+public class LatencyHistogram {
+    private final int subBucketBits;
+    /**
+     * Largest value told apart; larger values are counted as this one
+     */
+    private final long highestTrackableValue;
+    private final long[] counts;
+    private long totalCount;
+    private long min;
+    private long max;
+
+    /**
+     * Construct an empty histogram.
+     * @param highestTrackableValue largest value told apart, at least 1
+     * @param subBucketBits precision, 1 to 16; values are kept to within 1 / 2^(subBucketBits - 1)
+     */
+    public LatencyHistogram(long highestTrackableValue, int subBucketBits) {
+        if (highestTrackableValue < 1 || subBucketBits < 1 || subBucketBits > 16)
+            throw new IllegalArgumentException("a histogram needs a highest value of at least 1 and 1 to 16 bits");
+        this.subBucketBits = subBucketBits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new long[bucketIndex(highestTrackableValue) + 1];
+        reset();
+    }
+
+    /**
+     * Bucket a value is counted in.
+     * @param value the value, 0 to highestTrackableValue
+     * @return the bucket
+     */
+    private int bucketIndex(long value) {
+        if (value < (1L << subBucketBits))
+            return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - (subBucketBits - 1);
+        int halfCount = 1 << (subBucketBits - 1);
+        // The top subBucketBits bits of the value pick the bucket within its power of two
+        return (1 << subBucketBits) + (highestBit - subBucketBits) * halfCount + (int) (value >>> shift) - halfCount;
+    }
+
+    /**
+     * Largest value counted in a bucket.
+     * @param index the bucket
+     * @return the value
+     */
+    private long highestValueIn(int index) {
+        if (index < (1 << subBucketBits))
+            return index;
+        int halfCount = 1 << (subBucketBits - 1);
+        int offset = index - (1 << subBucketBits);
+        int highestBit = offset / halfCount + subBucketBits;
+        int shift = highestBit - (subBucketBits - 1);
+        long lowest = (long) (offset % halfCount + halfCount) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Count a value.
+     * @param value the value; negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        ++counts[bucketIndex(Math.min(value, highestTrackableValue))];
+        ++totalCount;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Forget every value counted.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() { return totalCount; }
+    public long getMin() { return totalCount == 0 ? 0 : min; }
+    public long getMax() { return max; }
+
+    /**
+     * The value a given percentage of counted values are at or below.
+     * @param percentile the percentage, 0 to 100
+     * @return the largest value of the bucket the percentile falls in, no more than the largest value counted, or 0
+     *         if nothing has been counted
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(highestValueIn(i), max);
+        }
+        return max;
+    }
+}
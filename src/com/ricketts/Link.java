@@ -3,7 +3,10 @@ package com.ricketts;
 import org.jfree.data.xy.XYSeries;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 /**
@@ -18,11 +21,17 @@ public class Link implements Updatable {
      */
     public enum Direction {LEFT, RIGHT}
 
+    /**
+     * Weight of the newest buffer delay estimate in the smoothed (exponentially weighted moving average) estimate.
+     * Used like: new_avg = new_estimate * queueDelaySmoothingFactor + old_avg * (1 - queueDelaySmoothingFactor)
+     */
+    private final static Double queueDelaySmoothingFactor = .25;
+
     private final Integer linkID;
     /**
-     * Link rate in bits per millisecond
+     * Link rate in bits per millisecond. Can be changed during the simulation by a capacity event.
      */
-    private final Integer linkRate;
+    private Integer linkRate;
     /**
      * Link delay in milliseconds
      */
@@ -47,10 +56,33 @@ public class Link implements Updatable {
     private Double latestLeftBufferDelayEstimate, latestRightBufferDelayEstimate;
 
     /**
-     * Packet drops for current interval
+     * Exponentially weighted moving averages of the buffer delay estimates
+     */
+    private Double smoothedLeftBufferDelay, smoothedRightBufferDelay;
+
+    /**
+     * Packet drops since the start of the simulation
      */
     private Integer packetDrops;
 
+    /**
+     * Bits queued in a buffer above which ECN capable DataPackets arriving at it are marked rather than left to
+     * fill it, or null not to mark anything
+     */
+    private Integer ecnThreshold;
+    /**
+     * DataPackets marked since the start of the simulation
+     */
+    private long ecnMarks;
+    /**
+     * Every drop since the start of the simulation, by flow and kind of packet
+     */
+    private final DropAttribution dropAttribution;
+    /**
+     * How full each buffer has been over time
+     */
+    private final BufferOccupancy leftBufferOccupancy, rightBufferOccupancy;
+
     private LinkAnalyticsCollector linkAnalyticsCollector;
     /**
      * Indicator for whether or not we should graph this link
@@ -81,6 +113,11 @@ public class Link implements Updatable {
      * Remaining capacity in the two buffers, in bits
      */
     private Integer leftBufferRemainingCapacity, rightBufferRemainingCapacity;
+    /**
+     * Bits each flow has queued in the two buffers, kept up to date on enqueue and dequeue so that blame for drops
+     * is shared without walking the buffer. Flows with nothing queued have no entry.
+     */
+    private HashMap<Integer, Integer> leftQueuedFlowBits, rightQueuedFlowBits;
 
     /**
      * Packet currently being transmitted ordered by time entered in transmission
@@ -92,6 +129,35 @@ public class Link implements Updatable {
      */
     private Integer totalBitsTransmitted;
 
+    /**
+     * How many bits have been transmitted since the start of the simulation
+     */
+    private long cumulativeBitsTransmitted;
+
+    /**
+     * How many packets have reached the other end since the start of the simulation
+     */
+    private long packetsDelivered;
+
+    /**
+     * Bits the link could have carried before its latest rate change, and when that change happened. Used so the
+     * utilization is measured against the rate the link actually had.
+     */
+    private long capacityBeforeRateChange;
+    private int rateChangeTime;
+
+    /**
+     * The link is still putting a packet bigger than one interval's worth of bits on the wire until this time, and
+     * starts nothing else before it
+     */
+    private int busyUntilTime;
+
+    /**
+     * The failure the link is down for, or null if it is up. A down link drops everything queued on it or sent to
+     * it, and its drops are charged to the failure.
+     */
+    private NetworkEvent failure;
+
     /**
      * Total buffer capacity and link rate over an interval so we can average for analytics.
      */
@@ -119,7 +185,12 @@ public class Link implements Updatable {
         this.rightPacketBuffer = new LinkedList<>();
         this.leftBufferRemainingCapacity = linkBufferSize;
         this.rightBufferRemainingCapacity = linkBufferSize;
+        this.leftQueuedFlowBits = new HashMap<>();
+        this.rightQueuedFlowBits = new HashMap<>();
         this.packetDrops = 0;
+        this.dropAttribution = new DropAttribution();
+        this.leftBufferOccupancy = new BufferOccupancy(linkBufferSize);
+        this.rightBufferOccupancy = new BufferOccupancy(linkBufferSize);
         this.totalBitsTransmitted = 0;
         this.linkAnalyticsCollector = new LinkAnalyticsCollector(linkID);
         this.sumBufferCapacity = 0;
@@ -129,6 +200,8 @@ public class Link implements Updatable {
         initializeBufferDelayEstimate();
         latestLeftBufferDelayEstimate = 0.0;
         latestRightBufferDelayEstimate = 0.0;
+        smoothedLeftBufferDelay = 0.0;
+        smoothedRightBufferDelay = 0.0;
 
         currentlyTransmittingPackets = new LinkedList<>();
     }
@@ -147,8 +220,55 @@ public class Link implements Updatable {
     public Node getLeftNode() { return this.leftNode; }
     public Node getRightNode() { return this.rightNode; }
     public Integer getLinkDelay() { return this.linkDelay; }
+    public Integer getLinkRate() { return this.linkRate; }
+    public Integer getLinkBufferSize() { return this.linkBufferSize; }
     public void setLeftNode(Node node) { this.leftNode = node; }
     public void setRightNode(Node node) { this.rightNode = node; }
+    public NetworkEvent getFailure() { return this.failure; }
+    public boolean isDown() { return this.failure != null; }
+
+    /**
+     * Change the link rate from now on.
+     * @param linkRate new link rate in bits per millisecond
+     */
+    public void setLinkRate(Integer linkRate) {
+        capacityBeforeRateChange += (long) this.linkRate * (Main.currentTime - rateChangeTime);
+        rateChangeTime = Main.currentTime;
+        this.linkRate = linkRate;
+    }
+
+    /**
+     * Take the link down. Every packet in its buffers or on the wire is lost.
+     * @param failure the failure taking it down, which the lost packets are charged to
+     */
+    public void setDown(NetworkEvent failure) {
+        this.failure = failure;
+        for (TransmittingPacket transmittingPacket : leftPacketBuffer) {
+            dropPacket(transmittingPacket.packet, leftNode);
+        }
+        for (TransmittingPacket transmittingPacket : rightPacketBuffer) {
+            dropPacket(transmittingPacket.packet, rightNode);
+        }
+        for (TransmittingPacket transmittingPacket : currentlyTransmittingPackets) {
+            dropPacket(transmittingPacket.packet,
+                    transmittingPacket.direction == Direction.LEFT ? rightNode : leftNode);
+        }
+        leftPacketBuffer.clear();
+        rightPacketBuffer.clear();
+        leftQueuedFlowBits.clear();
+        rightQueuedFlowBits.clear();
+        currentlyTransmittingPackets.clear();
+        leftBufferRemainingCapacity = linkBufferSize;
+        rightBufferRemainingCapacity = linkBufferSize;
+        busyUntilTime = Main.currentTime;
+    }
+
+    /**
+     * Bring the link back up, empty.
+     */
+    public void setUp() {
+        this.failure = null;
+    }
 
     /**
      * Returns the buffer delay estimate for the given direction
@@ -187,6 +307,74 @@ public class Link implements Updatable {
         return getLinkDelay() + getBufferDelay(node);
     }
 
+    /**
+     * Sum of link delay and the smoothed buffer delay. Changes more slowly than getDelay, which makes it a more
+     * stable routing cost.
+     * @param node tells the side that its coming from
+     * @return sum delay
+     */
+    public Double getSmoothedDelay(Node node) {
+        if (node == leftNode) {
+            return getLinkDelay() + smoothedLeftBufferDelay;
+        } else if (node == rightNode) {
+            return getLinkDelay() + smoothedRightBufferDelay;
+        } else {
+            return getLinkDelay() + 0.0;
+        }
+    }
+
+    /**
+     * Fraction of the link rate used since the start of the simulation. Both directions share the link rate.
+     * @param elapsedTime simulation time elapsed in milliseconds
+     * @return utilization between 0 and 1
+     */
+    public double getUtilization(int elapsedTime) {
+        if (elapsedTime <= 0)
+            return 0.0;
+        return cumulativeBitsTransmitted /
+                (capacityBeforeRateChange + (double) linkRate * (elapsedTime - rateChangeTime));
+    }
+
+    public long getPacketsDelivered() { return packetsDelivered; }
+    public Integer getPacketDrops() { return packetDrops; }
+    public long getECNMarks() { return ecnMarks; }
+    public Integer getECNThreshold() { return ecnThreshold; }
+    public DropAttribution getDropAttribution() { return dropAttribution; }
+
+    /**
+     * How full the buffer packets from one end wait in has been over time.
+     * @param sendingNode the end
+     * @return the buffer's occupancy
+     */
+    public BufferOccupancy getBufferOccupancy(Node sendingNode) {
+        return sendingNode == leftNode ? leftBufferOccupancy : rightBufferOccupancy;
+    }
+
+    /**
+     * Mark ECN capable DataPackets that arrive at a buffer holding more than a threshold, the way a DCTCP switch
+     * does, so their senders can slow down before the buffer overflows.
+     * @param ecnThreshold queued bits above which packets are marked, or null not to mark
+     */
+    public void setECNThreshold(Integer ecnThreshold) {
+        this.ecnThreshold = ecnThreshold;
+    }
+
+    /**
+     * Bits waiting in the two buffers.
+     * @return queue depth in bits
+     */
+    public int getQueuedBits() {
+        return 2 * linkBufferSize - leftBufferRemainingCapacity - rightBufferRemainingCapacity;
+    }
+
+    /**
+     * Packets waiting in the two buffers or on the wire.
+     * @return packet count
+     */
+    public int getPacketsInFlight() {
+        return leftPacketBuffer.size() + rightPacketBuffer.size() + currentlyTransmittingPackets.size();
+    }
+
     /**
      * Returns the other end of the link if this node is one of them
      * @param oneEnd node of the link
@@ -205,20 +393,38 @@ public class Link implements Updatable {
     /**
      * Check if the packet can fit in the buffer otherwise drop it
      * Return a Boolean if the Packet was added to the buffer
+     * A DataSegment that doesn't fit whole is cut down to the packets that do, and the rest are dropped.
      * @param packet the packet being sent across the node
      * @param sendingNode the node sending the packet
      * @return false if Dropped Packet or true if Successfully Added to Buffer
      */
     public Boolean addPacket(Packet packet, Node sendingNode) {
         Integer newRemainingCapacity;
+        if (packet instanceof DataSegment && failure == null) {
+            int remainingCapacity =
+                    sendingNode == leftNode ? leftBufferRemainingCapacity : rightBufferRemainingCapacity;
+            if (packet.getSize() > remainingCapacity)
+                packet = fitSegment((DataSegment) packet, remainingCapacity, sendingNode);
+        }
+        // A down link takes nothing
+        if (failure != null) {
+            dropPacket(packet, sendingNode);
+            return false;
+        }
         // If packet is coming from the left
-        if (sendingNode == leftNode) {
+        else if (sendingNode == leftNode) {
             // Check if it fits in the buffer
             newRemainingCapacity = leftBufferRemainingCapacity - packet.getSize();
             if (newRemainingCapacity >= 0) {
                 // If so, add it and update the remaining capacity
                 leftPacketBuffer.add(new TransmittingPacket(packet, Direction.RIGHT, Main.currentTime));
+                if (ecnThreshold != null)
+                    markCongestion(packet, linkBufferSize - leftBufferRemainingCapacity);
                 leftBufferRemainingCapacity = newRemainingCapacity;
+                addQueuedBits(leftQueuedFlowBits, packet, packet.getSize());
+                leftBufferOccupancy.observe(linkBufferSize - leftBufferRemainingCapacity);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.ENQUEUE, packet, this, sendingNode);
                 return true;
             }
         }
@@ -227,7 +433,13 @@ public class Link implements Updatable {
             newRemainingCapacity = rightBufferRemainingCapacity - packet.getSize();
             if (newRemainingCapacity >= 0) {
                 rightPacketBuffer.add(new TransmittingPacket(packet, Direction.LEFT, Main.currentTime));
+                if (ecnThreshold != null)
+                    markCongestion(packet, linkBufferSize - rightBufferRemainingCapacity);
                 rightBufferRemainingCapacity = newRemainingCapacity;
+                addQueuedBits(rightQueuedFlowBits, packet, packet.getSize());
+                rightBufferOccupancy.observe(linkBufferSize - rightBufferRemainingCapacity);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.ENQUEUE, packet, this, sendingNode);
                 return true;
             }
         }
@@ -236,10 +448,116 @@ public class Link implements Updatable {
             System.out.println("addPacket() from unconnected node");
         }
         // We dropped this packet
-        packetDrops++;
+        blameDrops(sendingNode, packet instanceof DataSegment ? ((DataSegment) packet).getPacketCount() : 1);
+        dropPacket(packet, sendingNode);
         return false;
     }
 
+    /**
+     * Mark a packet arriving at a buffer if the buffer holds more than the ECN threshold. The packets of a segment
+     * are marked one by one, as if each arrived behind the ones before it.
+     * @param packet the packet
+     * @param queuedBits bits in the buffer ahead of it
+     */
+    private void markCongestion(Packet packet, int queuedBits) {
+        if (packet instanceof DataSegment) {
+            for (DataPacket segmentPacket : ((DataSegment) packet).getPackets()) {
+                markCongestion(segmentPacket, queuedBits);
+                queuedBits += segmentPacket.getSize();
+            }
+        }
+        else if (packet instanceof DataPacket && queuedBits > ecnThreshold && ((DataPacket) packet).isECNCapable()) {
+            ((DataPacket) packet).markCongestionExperienced();
+            ecnMarks++;
+        }
+    }
+
+    /**
+     * Drop the packets of a segment that don't fit in a buffer.
+     * @param segment the segment
+     * @param remainingCapacity room left in the buffer, in bits
+     * @param sendingNode the node that sent it
+     * @return what is left of the segment, or the whole segment if not even one packet fits, to be dropped as well
+     */
+    private Packet fitSegment(DataSegment segment, int remainingCapacity, Node sendingNode) {
+        int fittingPackets = remainingCapacity / DataPacket.DataPacketSize;
+        if (fittingPackets == 0)
+            return segment;
+        List<DataPacket> packets = segment.getPackets();
+        blameDrops(sendingNode, packets.size() - fittingPackets);
+        for (int i = fittingPackets; i < packets.size(); ++i) {
+            dropPacket(packets.get(i), sendingNode);
+        }
+        return segment.head(fittingPackets);
+    }
+
+    /**
+     * Share the blame for packets dropped from a full buffer among the flows holding it, in proportion to the bits
+     * each has queued there.
+     * @param sendingNode the node whose buffer is full
+     * @param drops how many packets were dropped
+     */
+    private void blameDrops(Node sendingNode, int drops) {
+        HashMap<Integer, Integer> queuedFlowBits;
+        int queuedBits;
+        if (sendingNode == leftNode) {
+            queuedFlowBits = leftQueuedFlowBits;
+            queuedBits = linkBufferSize - leftBufferRemainingCapacity;
+        }
+        else if (sendingNode == rightNode) {
+            queuedFlowBits = rightQueuedFlowBits;
+            queuedBits = linkBufferSize - rightBufferRemainingCapacity;
+        }
+        else
+            return;
+        if (queuedBits <= 0)
+            return;
+        // Control packets hold part of the buffer too, and their share of the blame goes to no flow
+        for (Map.Entry<Integer, Integer> flowBits : queuedFlowBits.entrySet()) {
+            dropAttribution.recordCause(flowBits.getKey(), (double) drops * flowBits.getValue() / queuedBits);
+        }
+    }
+
+    /**
+     * Add to or take from the bits a packet's flow has queued in a buffer. Packets that are not part of a flow are
+     * not counted.
+     * @param queuedFlowBits bits queued by each flow in the buffer
+     * @param packet the packet
+     * @param bits bits to add, negative to take away
+     */
+    private static void addQueuedBits(HashMap<Integer, Integer> queuedFlowBits, Packet packet, int bits) {
+        int flowID = packet.getFlowID();
+        if (flowID == Packet.NoFlowID)
+            return;
+        Integer queued = queuedFlowBits.get(flowID);
+        int total = (queued == null ? 0 : queued) + bits;
+        if (total == 0)
+            queuedFlowBits.remove(flowID);
+        else
+            queuedFlowBits.put(flowID, total);
+    }
+
+    /**
+     * Count a dropped packet, and charge it to the failure if the link is down. A segment counts as each of its
+     * packets.
+     * @param packet the packet
+     * @param sendingNode the node that sent it
+     */
+    private void dropPacket(Packet packet, Node sendingNode) {
+        if (packet instanceof DataSegment) {
+            for (DataPacket segmentPacket : ((DataSegment) packet).getPackets()) {
+                dropPacket(segmentPacket, sendingNode);
+            }
+            return;
+        }
+        packetDrops++;
+        dropAttribution.recordDrop(packet);
+        if (PacketTrace.active != null)
+            PacketTrace.active.record(PacketTrace.Event.DROP, packet, this, sendingNode);
+        if (failure != null)
+            failure.recordLoss(packet);
+    }
+
     /**
      * Clears the buffers (we want to do this if we have a timeout or retransmit to avoid sending
      * a lot of unnecessary packets).
@@ -249,10 +567,12 @@ public class Link implements Updatable {
         // We want to clear the buffer we're sending from
         if (sendingNode == leftNode) {
             leftPacketBuffer.clear();
+            leftQueuedFlowBits.clear();
             leftBufferRemainingCapacity = linkBufferSize;
         }
         else if (sendingNode == rightNode) {
             rightPacketBuffer.clear();
+            rightQueuedFlowBits.clear();
             rightBufferRemainingCapacity = linkBufferSize;
         }
         else {
@@ -260,6 +580,39 @@ public class Link implements Updatable {
         }
     }
 
+    /**
+     * Whether a packet can go on the wire now: it fits in what is left of this interval's bits, or it is bigger than
+     * a whole interval's bits and nothing else has gone this interval. A link with no rate sends nothing.
+     * @param packet the packet
+     * @param bitsAddedToLink bits already put on the wire this interval
+     * @param bitsAddableToLink bits the link can put on the wire in an interval
+     * @return true if it can go
+     */
+    private boolean canTransmit(Packet packet, int bitsAddedToLink, int bitsAddableToLink) {
+        int size = packet.getSize();
+        return size <= bitsAddableToLink - bitsAddedToLink ||
+                (size > bitsAddableToLink && bitsAddedToLink == 0 && bitsAddableToLink > 0);
+    }
+
+    /**
+     * Put a packet taken from a buffer on the wire. A packet bigger than an interval's bits, such as a DataSegment,
+     * keeps the link busy for as many intervals as it needs and reaches the other end that much later.
+     * @param transmittingPacket the packet
+     * @param bitsAddableToLink bits the link can put on the wire in an interval
+     * @return bits of the link's interval the packet used
+     */
+    private int transmit(TransmittingPacket transmittingPacket, int bitsAddableToLink) {
+        currentlyTransmittingPackets.add(transmittingPacket);
+        transmittingPacket.transmissionStartTime = Main.currentTime;
+        int size = transmittingPacket.packet.getSize();
+        if (size <= bitsAddableToLink)
+            return size;
+        int intervals = (size + bitsAddableToLink - 1) / bitsAddableToLink;
+        busyUntilTime = Main.currentTime + intervals * Main.intervalTime;
+        transmittingPacket.transmissionStartTime = busyUntilTime - Main.intervalTime;
+        return bitsAddableToLink;
+    }
+
     /**
      * Updates the state of the Link. This involves any of the following:
      * Calculate the buffer delay (periodically)
@@ -282,6 +635,11 @@ public class Link implements Updatable {
             else
                 latestRightBufferDelayEstimate = sumRightBufferTime / numbRightPktsThruBuffer;
 
+            smoothedLeftBufferDelay = latestLeftBufferDelayEstimate * queueDelaySmoothingFactor
+                    + smoothedLeftBufferDelay * (1 - queueDelaySmoothingFactor);
+            smoothedRightBufferDelay = latestRightBufferDelayEstimate * queueDelaySmoothingFactor
+                    + smoothedRightBufferDelay * (1 - queueDelaySmoothingFactor);
+
             initializeBufferDelayEstimate();
         }
 
@@ -298,11 +656,15 @@ public class Link implements Updatable {
             TransmittingPacket transmittedPacket = currentlyTransmittingPackets.remove();
             Integer size = transmittedPacket.packet.getSize();
             totalBitsTransmitted += size;
-            if(transmittedPacket.direction == Direction.LEFT) {
-                leftNode.receivePacket(transmittedPacket.packet, this);
-            } else {
-                rightNode.receivePacket(transmittedPacket.packet, this);
-            }
+            cumulativeBitsTransmitted += size;
+            if (transmittedPacket.packet instanceof DataSegment)
+                packetsDelivered += ((DataSegment) transmittedPacket.packet).getPacketCount();
+            else
+                ++packetsDelivered;
+            Node receivingNode = transmittedPacket.direction == Direction.LEFT ? leftNode : rightNode;
+            if (PacketTrace.active != null)
+                PacketTrace.active.record(PacketTrace.Event.DELIVER, transmittedPacket.packet, this, receivingNode);
+            receivingNode.receivePacket(transmittedPacket.packet, this);
         }
 
         /*
@@ -314,14 +676,14 @@ public class Link implements Updatable {
         /*
          * Indicates if we should still be transmitting packets or not
          */
-        boolean transmitPackets = true;
+        boolean transmitPackets = Main.currentTime >= busyUntilTime;
 
         /*
          * If both of the left and right buffers have packets to send, then compare the latest packets and send accordingly
          */
         while(transmitPackets && !this.leftPacketBuffer.isEmpty() && !this.rightPacketBuffer.isEmpty()) {
             if(leftPacketBuffer.peek().transmissionStartTime <= rightPacketBuffer.peek().transmissionStartTime &&
-                    leftPacketBuffer.peek().packet.getSize() <= bitsAddableToLink - bitsAddedToLink) {
+                    canTransmit(leftPacketBuffer.peek().packet, bitsAddedToLink, bitsAddableToLink)) {
 
                 //Remove left packet and put onto transmitting
 
@@ -329,13 +691,14 @@ public class Link implements Updatable {
                 sumLeftBufferTime += Main.currentTime - transmittingPacket.transmissionStartTime;
                 numbLeftPktsThruBuffer++;
                 this.leftBufferRemainingCapacity += transmittingPacket.packet.getSize();
-                currentlyTransmittingPackets.add(transmittingPacket);
-                bitsAddedToLink += transmittingPacket.packet.getSize();
-                transmittingPacket.transmissionStartTime = Main.currentTime;
+                addQueuedBits(leftQueuedFlowBits, transmittingPacket.packet, -transmittingPacket.packet.getSize());
+                bitsAddedToLink += transmit(transmittingPacket, bitsAddableToLink);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.TRANSMIT, transmittingPacket.packet, this, leftNode);
 
 
             } else if(leftPacketBuffer.peek().transmissionStartTime > rightPacketBuffer.peek().transmissionStartTime &&
-                    rightPacketBuffer.peek().packet.getSize() <= bitsAddableToLink - bitsAddedToLink) {
+                    canTransmit(rightPacketBuffer.peek().packet, bitsAddedToLink, bitsAddableToLink)) {
 
                 //Remove right packet and put onto transmitting
 
@@ -343,9 +706,10 @@ public class Link implements Updatable {
                 sumRightBufferTime += Main.currentTime - transmittingPacket.transmissionStartTime;
                 numbRightPktsThruBuffer++;
                 this.rightBufferRemainingCapacity += transmittingPacket.packet.getSize();
-                currentlyTransmittingPackets.add(transmittingPacket);
-                bitsAddedToLink += transmittingPacket.packet.getSize();
-                transmittingPacket.transmissionStartTime = Main.currentTime;
+                addQueuedBits(rightQueuedFlowBits, transmittingPacket.packet, -transmittingPacket.packet.getSize());
+                bitsAddedToLink += transmit(transmittingPacket, bitsAddableToLink);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.TRANSMIT, transmittingPacket.packet, this, rightNode);
             } else {
                 //There is no space left so stop transmission
                 transmitPackets = false;
@@ -356,15 +720,16 @@ public class Link implements Updatable {
          * If only the left buffer has packets to send
          */
         while(transmitPackets && !leftPacketBuffer.isEmpty()) {
-            if(leftPacketBuffer.peek().packet.getSize() <= bitsAddableToLink - bitsAddedToLink) {
+            if(canTransmit(leftPacketBuffer.peek().packet, bitsAddedToLink, bitsAddableToLink)) {
                 //Remove leftpacket and put onto transmitting
                 TransmittingPacket transmittingPacket = leftPacketBuffer.remove();
                 sumLeftBufferTime += Main.currentTime - transmittingPacket.transmissionStartTime;
                 numbLeftPktsThruBuffer++;
                 this.leftBufferRemainingCapacity += transmittingPacket.packet.getSize();
-                currentlyTransmittingPackets.add(transmittingPacket);
-                bitsAddedToLink += transmittingPacket.packet.getSize();
-                transmittingPacket.transmissionStartTime = Main.currentTime;
+                addQueuedBits(leftQueuedFlowBits, transmittingPacket.packet, -transmittingPacket.packet.getSize());
+                bitsAddedToLink += transmit(transmittingPacket, bitsAddableToLink);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.TRANSMIT, transmittingPacket.packet, this, leftNode);
             } else {
                 //There is no space left so stop transmission
                 transmitPackets = false;
@@ -375,20 +740,24 @@ public class Link implements Updatable {
          * If only the left buffer has packets to send
          */
         while(transmitPackets && !rightPacketBuffer.isEmpty()) {
-            if(rightPacketBuffer.peek().packet.getSize() <= bitsAddableToLink - bitsAddedToLink) {
+            if(canTransmit(rightPacketBuffer.peek().packet, bitsAddedToLink, bitsAddableToLink)) {
                 TransmittingPacket transmittingPacket = rightPacketBuffer.remove();
                 sumRightBufferTime += Main.currentTime - transmittingPacket.transmissionStartTime;
                 numbRightPktsThruBuffer++;
                 this.rightBufferRemainingCapacity += transmittingPacket.packet.getSize();
-                currentlyTransmittingPackets.add(transmittingPacket);
-                bitsAddedToLink += transmittingPacket.packet.getSize();
-                transmittingPacket.transmissionStartTime = Main.currentTime;
+                addQueuedBits(rightQueuedFlowBits, transmittingPacket.packet, -transmittingPacket.packet.getSize());
+                bitsAddedToLink += transmit(transmittingPacket, bitsAddableToLink);
+                if (PacketTrace.active != null)
+                    PacketTrace.active.record(PacketTrace.Event.TRANSMIT, transmittingPacket.packet, this, rightNode);
             } else {
                 //There is no space left so stop transmission
                 transmitPackets = false;
             }
         }
 
+        leftBufferOccupancy.endInterval(linkBufferSize - leftBufferRemainingCapacity);
+        rightBufferOccupancy.endInterval(linkBufferSize - rightBufferRemainingCapacity);
+
         // Calculating buffer rate per second
         sumBufferCapacity += linkBufferSize - leftBufferRemainingCapacity;
         sumTotalBitsTransmitted += totalBitsTransmitted;
@@ -405,6 +774,22 @@ public class Link implements Updatable {
         }
     }
 
+    /**
+     * Replace the link's statistics collector, to collect other statistics or at another resolution.
+     * @param linkAnalyticsCollector the new collector
+     */
+    public void setAnalyticsCollector(LinkAnalyticsCollector linkAnalyticsCollector) {
+        this.linkAnalyticsCollector = linkAnalyticsCollector;
+    }
+
+    /**
+     * Write the link's statistics to a metrics file as they are collected.
+     * @param exporter the metrics file
+     */
+    public void exportMetrics(MetricsExporter exporter) {
+        linkAnalyticsCollector.exportTo(exporter, linkID);
+    }
+
     /**
      * Generate graph data
      * @return graph data
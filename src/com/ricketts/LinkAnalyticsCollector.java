@@ -5,29 +5,79 @@ import java.util.ArrayList;
 
 /**
  * Collect statistics (buffer occupancy, link rate, and packet loss) for links.
+ * Statistics that are not collected (see InstrumentationConfig) have no series, and adding to them does nothing.
  */
 public class LinkAnalyticsCollector {
+    /**
+     * Default width of the interval each point covers, in ms
+     */
+    public static final int DefaultSampleInterval = 1;
+    /**
+     * Default most points kept per series; plots are under 900 pixels wide
+     */
+    public static final int DefaultMaxPoints = 1024;
+
+    /**
+     * The statistics that can be collected, combined as a bit mask.
+     */
+    public static class Metric {
+        public static final int BUFFER = 1;
+        public static final int LOSS = 2;
+        public static final int RATE = 4;
+        public static final int ALL = BUFFER | LOSS | RATE;
+    }
+
+    /**
+     * Name of the series, used when a statistic is not collected
+     */
+    private final String name;
     /**
      * Series tracking buffer occupancy over time.
      */
-    private XYSeries bufferOccupancy;
+    private TimeSeries bufferOccupancy;
     /**
      * Series tracking packet loss.
      */
-    private XYSeries packetLoss;
+    private TimeSeries packetLoss;
     /**
      * Series tracking link rate.
      */
-    private XYSeries linkRates;
+    private TimeSeries linkRates;
 
     /**
      * Create a new LinkAnalyticsCollector
      * @param linkId The ID of the current link
      */
     public LinkAnalyticsCollector(int linkId) {
-        this.bufferOccupancy = new XYSeries("Link " + linkId);
-        this.packetLoss = new XYSeries("Link " + linkId);
-        this.linkRates = new XYSeries("Link " + linkId);
+        this(linkId, Metric.ALL, DefaultSampleInterval, DefaultMaxPoints);
+    }
+
+    /**
+     * Create a new LinkAnalyticsCollector with a given resolution
+     * @param linkId The ID of the current link
+     * @param sampleInterval width of the interval each point covers, in ms
+     * @param maxPoints most points kept per series
+     */
+    public LinkAnalyticsCollector(int linkId, int sampleInterval, int maxPoints) {
+        this(linkId, Metric.ALL, sampleInterval, maxPoints);
+    }
+
+    /**
+     * Create a new LinkAnalyticsCollector for some of the statistics with a given resolution
+     * @param linkId The ID of the current link
+     * @param metrics the statistics to collect, a mask of Metric values
+     * @param sampleInterval width of the interval each point covers, in ms
+     * @param maxPoints most points kept per series
+     */
+    public LinkAnalyticsCollector(int linkId, int metrics, int sampleInterval, int maxPoints) {
+        this.name = "Link " + linkId;
+        if ((metrics & Metric.BUFFER) != 0)
+            this.bufferOccupancy = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MEAN, maxPoints);
+        // Drops are a running total, so the largest value in an interval is the latest
+        if ((metrics & Metric.LOSS) != 0)
+            this.packetLoss = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MAX, maxPoints);
+        if ((metrics & Metric.RATE) != 0)
+            this.linkRates = new TimeSeries(name, sampleInterval, TimeSeries.Decimation.MEAN, maxPoints);
     }
 
     /**
@@ -36,7 +86,8 @@ public class LinkAnalyticsCollector {
      * @param time Current simulation time
      */
     public void addToBuffer(double occupancy, int time) {
-        bufferOccupancy.add(time, occupancy);
+        if (bufferOccupancy != null)
+            bufferOccupancy.add(time, occupancy);
     }
 
     /**
@@ -45,7 +96,8 @@ public class LinkAnalyticsCollector {
      * @param time Current simulation time
      */
     public void addToPacketLoss(int packetsDropped, int time) {
-        packetLoss.add(time, packetsDropped);
+        if (packetLoss != null)
+            packetLoss.add(time, packetsDropped);
     }
 
     /**
@@ -54,18 +106,42 @@ public class LinkAnalyticsCollector {
      * @param time Current simulation time
      */
     public void addToLinkRates(double rate, int time) {
-        linkRates.add(time, rate);
+        if (linkRates != null)
+            linkRates.add(time, rate);
+    }
+
+    /**
+     * Write every sample of the collected series to a metrics file as well, under keys such as "link/<id>/buffer".
+     * @param exporter the metrics file
+     * @param linkId The ID of the current link
+     */
+    public void exportTo(MetricsExporter exporter, int linkId) {
+        if (bufferOccupancy != null)
+            bufferOccupancy.exportTo(exporter.openChannel("link/" + linkId + "/buffer"));
+        if (packetLoss != null)
+            packetLoss.exportTo(exporter.openChannel("link/" + linkId + "/loss"));
+        if (linkRates != null)
+            linkRates.exportTo(exporter.openChannel("link/" + linkId + "/rate"));
+    }
+
+    /**
+     * Convert a series for plotting.
+     * @param series the series, or null if it is not collected
+     * @return the XYSeries, empty if not collected
+     */
+    private XYSeries dataset(TimeSeries series) {
+        return series == null ? new XYSeries(name) : series.toXYSeries();
     }
 
     /**
-     * Create a list of all 3 series.
+     * Create a list of all 3 series, converted for plotting.
      * @return ArrayList of the series.
      */
     public ArrayList<XYSeries> getDatasets() {
         ArrayList<XYSeries> output = new ArrayList<>();
-        output.add(bufferOccupancy);
-        output.add(packetLoss);
-        output.add(linkRates);
+        output.add(dataset(bufferOccupancy));
+        output.add(dataset(packetLoss));
+        output.add(dataset(linkRates));
         return output;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+package com.ricketts;
+
+/**
+ * A Packet carrying a link-state advertisement (LSA). An LSA describes the adjacencies of a single originating Router
+ * (its neighbors and the cost of reaching each of them) and is flooded unchanged through every Router in the network.
+ */
+public class LinkStatePacket extends Packet {
+    /**
+     * Fixed header size in bytes: origin address, sequence number and adjacency count.
+     */
+    private static final int HeaderSize = 24;
+    /**
+     * Size in bytes of a single adjacency: neighbor address and cost.
+     */
+    private static final int AdjacencySize = 12;
+
+    /**
+     * The Router whose adjacencies this advertisement describes
+     */
+    private final Router origin;
+    /**
+     * Monotonically increasing per origin. Used to discard stale or duplicate advertisements.
+     */
+    private final int sequenceNumber;
+    /**
+     * Neighbors of the origin. The cost to reach neighbors[i] is costs[i].
+     */
+    private final Node[] neighbors;
+    private final double[] costs;
+
+    /**
+     * Create a LinkStatePacket
+     * @param source Where the packet is coming from (the flooding Router, not necessarily the origin)
+     * @param destination Where the packet is going
+     * @param origin Router that originated the advertisement
+     * @param sequenceNumber sequence number of the advertisement
+     * @param neighbors neighbors of the origin
+     * @param costs cost from the origin to each neighbor
+     */
+    public LinkStatePacket(Node source, Node destination, Router origin, int sequenceNumber,
+                           Node[] neighbors, double[] costs) {
+        super(sequenceNumber, 8 * (HeaderSize + AdjacencySize * neighbors.length), source, destination);
+        this.origin = origin;
+        this.sequenceNumber = sequenceNumber;
+        this.neighbors = neighbors;
+        this.costs = costs;
+    }
+
+    /**
+     * Create a copy of this advertisement to be flooded to the next hop.
+     * @param source the Router flooding the copy
+     * @param destination the neighbor the copy is sent to
+     * @return the copy
+     */
+    public LinkStatePacket floodTo(Node source, Node destination) {
+        return new LinkStatePacket(source, destination, origin, sequenceNumber, neighbors, costs);
+    }
+
+    public Router getOrigin() { return this.origin; }
+    public int getSequenceNumber() { return this.sequenceNumber; }
+    public Node[] getNeighbors() { return this.neighbors; }
+    public double[] getCosts() { return this.costs; }
+}
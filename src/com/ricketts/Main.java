@@ -2,11 +2,11 @@ package com.ricketts;
 
 import org.jfree.data.xy.XYSeries;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
- * Main class: runs the simulation for T0, T1, and T2.
+ * Main class: runs the simulation for T0, T1, and T2, or for the scenarios given on the command line.
  */
 public class Main {
     /**
@@ -24,108 +24,233 @@ public class Main {
     public static class Protocol {
         public static int RENO = 1;
         public static int FAST = 2;
+        public static int DCTCP = 3;
+        public static final String[] Names = {"?", "Reno", "Fast", "DCTCP"};
+    }
+
+    /**
+     * The routing protocol the Routers use to build their routing tables.
+     */
+    public static class RoutingProtocol {
+        public static int DISTANCE_VECTOR = 1;
+        public static int LINK_STATE = 2;
+        public static int STATIC = 3;
+        public static int ADAPTIVE = 4;
     }
 
     /**
      * Run the simulation!!!!!
-     * @param args Args
+     * @param args Scenarios to run: JSON network definitions, or topology generator specs such as
+     *             "fattree:k=4,flows=8" (see TopologyGenerator). Either can be followed by "@" and a workload
+     *             spec such as "websearch:load=0.5" (see Workload) or a trace such as "trace:file=flows.csv" (see
+     *             TraceReplay). Runs t0, t1 and t2 if none are given.
+     *             The option "--metrics" also writes every run's statistics to a ".metrics" file as it goes (see
+     *             MetricsExporter and MetricsFile). The option "--fct" writes every flow's completion time to a
+     *             ".fct.csv" file (see FlowCompletions). Progress is always visible over JMX (see
+     *             SimulationTelemetry), and "--telemetry=port" also serves it over HTTP (see TelemetryServer).
+     *             The option "--trace" traces every packet to a ".ptrace" file (see PacketTrace and
+     *             PacketTraceFile), and "--trace=flows=1+2,links=3,from=0,to=5000" traces only some of them.
+     *             The option "--segment=n" has Hosts send their flows in segments of up to n packets, which Links and
+     *             Routers handle as one (see DataSegment).
+     *             The option "--ecn=bits" has every Link mark ECN capable packets that arrive at a buffer holding
+     *             more than that many bits, and runs every scenario with DCTCP, which reacts to the marks, as well.
+     *             The option "--serve=port" runs nothing itself, but serves simulations to clients over HTTP from a
+     *             warm JVM (see SimulationService), running "--workers=n" of them at once.
      */
     public static void main(String[] args) {
-        ArrayList<String> fileList = new ArrayList<>();
-        fileList.add("t0.json");
-        fileList.add("t1.json");
-        fileList.add("t2.json");
+        ArrayList<String> scenarios = new ArrayList<>();
+        boolean exportMetrics = false;
+        boolean writeFlowCompletions = false;
+        Integer telemetryPort = null;
+        PacketTrace.Filter packetTraceFilter = null;
+        Integer servePort = null;
+        int segmentSize = 1;
+        Integer ecnThreshold = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            if (arg.equals("--metrics"))
+                exportMetrics = true;
+            else if (arg.equals("--fct"))
+                writeFlowCompletions = true;
+            else if (arg.startsWith("--telemetry="))
+                telemetryPort = Integer.parseInt(arg.substring("--telemetry=".length()));
+            else if (arg.startsWith("--serve="))
+                servePort = Integer.parseInt(arg.substring("--serve=".length()));
+            else if (arg.startsWith("--workers="))
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            else if (arg.startsWith("--segment=")) {
+                segmentSize = Integer.parseInt(arg.substring("--segment=".length()));
+                if (segmentSize < 1) {
+                    System.out.println("Segment size must be at least 1 packet");
+                    return;
+                }
+            }
+            else if (arg.startsWith("--ecn=")) {
+                ecnThreshold = Integer.parseInt(arg.substring("--ecn=".length()));
+                if (ecnThreshold < 0) {
+                    System.out.println("ECN threshold must not be negative");
+                    return;
+                }
+            }
+            else if (arg.equals("--trace") || arg.startsWith("--trace=")) {
+                String filters = arg.equals("--trace") ? "" : arg.substring("--trace=".length());
+                try {
+                    packetTraceFilter = PacketTrace.Filter.parse(filters);
+                } catch (TopologyParseException e) {
+                    System.out.println(e.getMessage());
+                    return;
+                }
+            }
+            else
+                scenarios.add(arg);
+        }
+        if (servePort != null) {
+            // The service's threads keep the JVM running
+            try {
+                new SimulationService(servePort, workers, SimulationService.DefaultQueueCapacity,
+                        SimulationService.DefaultWarmup);
+            } catch (IOException e) {
+                System.out.println("Cannot serve simulations on port " + servePort + ": " + e.getMessage());
+            }
+            return;
+        }
+        if (scenarios.isEmpty()) {
+            scenarios.add("t0.json");
+            scenarios.add("t1.json");
+            scenarios.add("t1_ls.json");
+            scenarios.add("t2.json");
+        }
+
+        SimulationTelemetry telemetry = new SimulationTelemetry();
+        telemetry.register();
+        TelemetryServer telemetryServer = null;
+        if (telemetryPort != null) {
+            try {
+                telemetryServer = new TelemetryServer(telemetryPort, telemetry);
+            } catch (IOException e) {
+                System.out.println("Cannot serve telemetry on port " + telemetryPort + ": " + e.getMessage());
+            }
+        }
+
+        // Charts are rendered headless in the background, so simulations don't wait on them
+        ChartRenderer renderer = new ChartRenderer();
 
         ArrayList<Integer> protocols = new ArrayList<>();
         protocols.add(Protocol.FAST);
         protocols.add(Protocol.RENO);
+        if (ecnThreshold != null)
+            protocols.add(Protocol.DCTCP);
 
-        for (String filename : fileList) {
-            for (int protocol : protocols) {
-                currentTime = 0;
-                String filenameSubstring = filename.substring(0, filename.length() - ".json".length());
-                // Parse the network from the json using the an InputParser.
-                InputParser ip = new InputParser();
-                ip.parseJSON(filename);
-
-                ArrayList<Link> links = ip.extractLinks();
-                HashMap<Integer, Link> linkMap = InputParser.makeLinkMap(links);
-
-                // Get hosts and routers given links
-                ArrayList<Host> hosts = ip.extractHosts(linkMap, protocol);
-                ArrayList<Router> routers = ip.extractRouters(linkMap);
-
-                // Make map of addresses to nodes
-                ArrayList<Node> nodes = new ArrayList<>(hosts.size() + routers.size());
-                nodes.addAll(hosts);
-                nodes.addAll(routers);
-                HashMap<String, Node> addressBook = InputParser.makeNodeMap(nodes);
-
-                // Make flows given the address book
-                ArrayList<Flow> flows = ip.extractFlows(addressBook, filenameSubstring, protocol);
-
-                // Add nodes to links
-                InputParser.addNodesToLinks(nodes);
-
-                // After nodes are added to links, we can now setup routing tables
-                // Have each router setup its routing table based on its neighbors
-                for (Router router : routers) {
-                    router.initializeRoutingTable();
+        for (String scenario : scenarios) {
+            String workloadSpec = null;
+            int at = scenario.indexOf('@');
+            if (at >= 0) {
+                workloadSpec = scenario.substring(at + 1);
+                scenario = scenario.substring(0, at);
+            }
+            String name;
+            String compiledFilename = null;
+            if (scenario.endsWith(".json")) {
+                name = scenario.substring(0, scenario.length() - ".json".length());
+                // Compile the json once into a binary image, unless an up to date one exists from an earlier run.
+                compiledFilename = name + ".topo";
+                try {
+                    CompiledTopology.compileIfStale(scenario, compiledFilename);
+                } catch (TopologyParseException e) {
+                    System.out.println(e.getMessage());
+                    continue;
                 }
+            } else {
+                // Generated topologies are named after their spec, minus the characters that don't belong in a filename
+                name = scenario.replace(':', '_').replace(',', '_');
+            }
+            if (workloadSpec != null)
+                name += "_" + workloadSpec.replace(':', '_').replace(',', '_');
 
-                for (Flow flow : flows) {
-                    flow.getSource().addFlow(flow);
+            for (int protocol : protocols) {
+                // Each protocol's run is reported and written to files under the scenario name and the protocol name
+                String simulationName = name + " " + Protocol.Names[protocol];
+                // Build the network from the compiled image, or generate it, and add its workload.
+                Simulation simulation;
+                try {
+                    Network network;
+                    if (compiledFilename != null)
+                        network = CompiledTopology.load(compiledFilename, protocol);
+                    else
+                        network = TopologyGenerator.fromSpec(scenario, protocol);
+                    simulation = new Simulation(simulationName, network);
+                    if (workloadSpec != null && workloadSpec.startsWith("trace:"))
+                        simulation.addFlowSource(TraceReplay.fromSpec(workloadSpec, network));
+                    else if (workloadSpec != null)
+                        simulation.addFlowSource(Workload.fromSpec(workloadSpec, network));
+                } catch (TopologyParseException e) {
+                    System.out.println(e.getMessage());
+                    continue;
                 }
 
-                ArrayList<Updatable> updatableLinkedList = new ArrayList<>();
-                updatableLinkedList.addAll(nodes);
-                updatableLinkedList.addAll(links);
-
-                // In every interval, update the Updatables (Hosts, Routers, Flows).
-                for (; currentTime < ip.extractRuntime(); currentTime += intervalTime) {
-                    for (Updatable u : updatableLinkedList) {
-                        u.update();
+                if (exportMetrics)
+                    simulation.setMetricsFile(simulationName + ".metrics");
+                if (writeFlowCompletions) {
+                    try {
+                        simulation.setFlowCompletionsFile(simulationName + ".fct.csv");
+                    } catch (IOException e) {
+                        System.out.println("Cannot write flow completions: " + e.getMessage());
                     }
                 }
+                if (packetTraceFilter != null)
+                    simulation.setPacketTrace(simulationName + ".ptrace", packetTraceFilter);
+                simulation.setSegmentSize(segmentSize);
+                simulation.setECNThreshold(ecnThreshold);
+                simulation.setTelemetry(telemetry);
+                simulation.run();
+                plot(simulation, renderer);
+            }
+        }
 
-                // After simulation ends, get the host and link stats.
-                ArrayList<XYSeries> buffer = new ArrayList<>();
-                ArrayList<XYSeries> packetLoss = new ArrayList<>();
-                ArrayList<XYSeries> linkRates = new ArrayList<>();
-                for (Link l : links) {
-                    if (l.graph) {
-                        ArrayList<XYSeries> curr = l.getDatasets();
-                        buffer.add(curr.get(0));
-                        packetLoss.add(curr.get(1));
-                        linkRates.add(curr.get(2));
-                    }
-                }
+        renderer.close();
+        if (telemetryServer != null)
+            telemetryServer.stop();
+    }
 
-                ArrayList<XYSeries> flowRates = new ArrayList<>();
-                ArrayList<XYSeries> windowSizes = new ArrayList<>();
-                ArrayList<XYSeries> packetDelay = new ArrayList<>();
-                for (Flow f : flows) {
-                    ArrayList<XYSeries> curr = f.getDatasets();
-                    flowRates.add(curr.get(0));
-                    windowSizes.add(curr.get(1));
-                    packetDelay.add(curr.get(2));
-                }
+    /**
+     * Plot the link and flow statistics of a finished simulation.
+     * @param simulation the simulation, after it has run
+     * @param renderer where the charts are rendered
+     */
+    private static void plot(Simulation simulation, ChartRenderer renderer) {
+        String name = simulation.getName();
 
-                // Plot the graphs and output to .png files.
-                String protocolName = (protocol == Protocol.RENO) ? "Reno" : "Fast";
-                OverlaidPlot op1 = new OverlaidPlot("Buffer", "Buffer Occupancy " + filenameSubstring + " " +
-                        protocolName + ".jpeg", buffer, "Time (ms)", "Buffer occupancy (bits)", 888, 188);
-                OverlaidPlot op3 = new OverlaidPlot("Packet Loss", "Packet Loss " + filenameSubstring + " " +
-                        protocolName + ".jpeg", packetLoss, "Time (ms)", "Packet Loss (pkts)", 888, 188);
-                OverlaidPlot op4 = new OverlaidPlot("Link Rates", "Link Rates " + filenameSubstring + " " +
-                        protocolName + ".jpeg", linkRates, "Time (ms)", "Link Rate (Mbps)", 888, 188);
-                OverlaidPlot op5 = new OverlaidPlot("Flow Rate", "Flow Rate " + filenameSubstring + " " +
-                        protocolName + ".jpeg", flowRates, "Time (ms)", "Flow Rate (Mbps)", 888, 188);
-                OverlaidPlot op6 = new OverlaidPlot("Window Size", "Window Size " + filenameSubstring + " " +
-                        protocolName + ".jpeg", windowSizes, "Time (ms)", "Window Size (pkts)", 888, 188);
-                OverlaidPlot op7 = new OverlaidPlot("Packet delay", "Packet Delay " + filenameSubstring + " " +
-                        protocolName + ".jpeg", packetDelay, "Time (ms)", "Packet Delay (ms)", 888, 188);
+        // After simulation ends, get the host and link stats.
+        ArrayList<XYSeries> buffer = new ArrayList<>();
+        ArrayList<XYSeries> packetLoss = new ArrayList<>();
+        ArrayList<XYSeries> linkRates = new ArrayList<>();
+        for (Link l : simulation.getNetwork().getLinks()) {
+            if (l.graph) {
+                ArrayList<XYSeries> curr = l.getDatasets();
+                buffer.add(curr.get(0));
+                packetLoss.add(curr.get(1));
+                linkRates.add(curr.get(2));
             }
         }
+
+        ArrayList<XYSeries> flowRates = new ArrayList<>();
+        ArrayList<XYSeries> windowSizes = new ArrayList<>();
+        ArrayList<XYSeries> packetDelay = new ArrayList<>();
+        ArrayList<XYSeries> packetDelayP99 = new ArrayList<>();
+        ArrayList<XYSeries> packetDelayP999 = new ArrayList<>();
+        for (Flow f : simulation.getNetwork().getFlows()) {
+            ArrayList<XYSeries> curr = f.getDatasets();
+            flowRates.add(curr.get(0));
+            windowSizes.add(curr.get(1));
+            packetDelay.add(curr.get(2));
+            packetDelayP99.add(curr.get(3));
+            packetDelayP999.add(curr.get(4));
+        }
+        ArrayList<XYSeries> packetDelayTail = new ArrayList<>(packetDelayP99);
+        packetDelayTail.addAll(packetDelayP999);
+
+        // Queue the graphs to be output to .jpeg files while the next simulation runs.
+        renderer.submitReport(name, buffer, packetLoss, linkRates, flowRates, windowSizes,
+                packetDelay, packetDelayTail);
     }
-}
\ No newline at end of file
+}
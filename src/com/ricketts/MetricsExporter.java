@@ -0,0 +1,226 @@
+package com.ricketts;
+
+import java.io.*;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams raw metric samples to disk while the simulation runs, so a run that dies still leaves its data behind and
+ * the data can be analysed after the run.
+ *
+ * Every series writes into a Channel, which fills a chunk of primitive arrays. Full chunks are handed to a
+ * background writer thread through a lock-free queue, so the simulation never waits on the disk. The writer
+ * compresses each chunk (see GorillaChunk) and appends it to a single metrics file; MetricsFile reads it back.
+ *
+ * File layout (all integers big endian):
+ *  header:  magic, format version
+ *  records: a series definition (type 1, series id, series key as UTF) before the first chunk of that series, or
+ *           a chunk (type 2, series id, sample count, byte count, compressed bytes)
+ */
+public class MetricsExporter implements Closeable {
+    /**
+     * "NMET"
+     */
+    public static final int Magic = 0x4E4D4554;
+    public static final int FormatVersion = 1;
+    public static final byte SeriesRecord = 1;
+    public static final byte ChunkRecord = 2;
+    /**
+     * Samples per chunk
+     */
+    private static final int ChunkSize = 512;
+    /**
+     * How long the writer sleeps when it has nothing to do, in ns
+     */
+    private static final long IdleWait = 1000000;
+
+    /**
+     * A chunk of samples from one series on its way to the writer.
+     */
+    private static class Chunk {
+        public final long[] times = new long[ChunkSize];
+        public final double[] values = new double[ChunkSize];
+        public Channel channel;
+        public int count;
+    }
+
+    /**
+     * Where one series writes its samples.
+     */
+    public class Channel {
+        private final int id;
+        private final String key;
+        private Chunk chunk;
+        /**
+         * Whether the writer has written this series' definition. Only touched by the writer.
+         */
+        private boolean defined;
+
+        private Channel(int id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        /**
+         * Add a sample, handing the chunk to the writer if it fills up.
+         * @param time sample time in ms
+         * @param value the value
+         */
+        public void add(long time, double value) {
+            if (chunk == null) {
+                chunk = freeChunks.poll();
+                if (chunk == null)
+                    chunk = new Chunk();
+                chunk.channel = this;
+                chunk.count = 0;
+            }
+            chunk.times[chunk.count] = time;
+            chunk.values[chunk.count] = value;
+            if (++chunk.count == ChunkSize)
+                flush();
+        }
+
+        /**
+         * Hand any samples not yet sent to the writer. Once the writer has failed the samples are dropped instead,
+         * and the chunk is reused.
+         */
+        public void flush() {
+            if (chunk == null || chunk.count == 0)
+                return;
+            if (writeError != null) {
+                chunk.count = 0;
+                return;
+            }
+            fullChunks.offer(chunk);
+            chunk = null;
+            LockSupport.unpark(writer);
+        }
+
+        /**
+         * Flush the Channel and forget it, once its series won't get any more samples, e.g. when a flow completes.
+         */
+        public void close() {
+            flush();
+            channels.remove(this);
+        }
+    }
+
+    private final String filename;
+    private final DataOutputStream out;
+    private final ConcurrentLinkedQueue<Chunk> fullChunks = new ConcurrentLinkedQueue<>();
+    /**
+     * Chunks the writer is done with, reused so a long run doesn't allocate a chunk per 512 samples
+     */
+    private final ConcurrentLinkedQueue<Chunk> freeChunks = new ConcurrentLinkedQueue<>();
+    /**
+     * Channels handed out and not closed, so they can all be flushed at the end. Only touched by the simulation
+     * thread.
+     */
+    private final LinkedHashSet<Channel> channels = new LinkedHashSet<>();
+    private int channelCount;
+    private final Thread writer;
+    private volatile boolean closing;
+    /**
+     * Written by the writer thread, read after it finishes
+     */
+    private long sampleCount, chunkCount;
+    /**
+     * Set by the writer thread if writing fails, after which Channels stop handing it chunks
+     */
+    private volatile IOException writeError;
+
+    /**
+     * Open a metrics file and start the writer thread.
+     * @param filename the file to write
+     * @throws IOException if the file can't be created
+     */
+    public MetricsExporter(String filename) throws IOException {
+        this.filename = filename;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+        out.writeInt(Magic);
+        out.writeInt(FormatVersion);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeChunks();
+            }
+        }, "metrics writer " + filename);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Make a Channel for a series.
+     * @param key name of the series in the file, e.g. "link 3 buffer"
+     * @return the Channel
+     */
+    public Channel openChannel(String key) {
+        Channel channel = new Channel(channelCount++, key);
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Writer thread: compress and write chunks as they arrive until closed.
+     */
+    private void writeChunks() {
+        try {
+            while (true) {
+                Chunk chunk = fullChunks.poll();
+                if (chunk == null) {
+                    // Let whatever has been written so far reach the disk before waiting for more
+                    out.flush();
+                    if (closing && fullChunks.isEmpty())
+                        break;
+                    LockSupport.parkNanos(IdleWait);
+                    continue;
+                }
+                Channel channel = chunk.channel;
+                if (!channel.defined) {
+                    out.writeByte(SeriesRecord);
+                    out.writeInt(channel.id);
+                    out.writeUTF(channel.key);
+                    channel.defined = true;
+                }
+                byte[] data = GorillaChunk.encode(chunk.times, chunk.values, chunk.count);
+                out.writeByte(ChunkRecord);
+                out.writeInt(channel.id);
+                out.writeInt(chunk.count);
+                out.writeInt(data.length);
+                out.write(data);
+                sampleCount += chunk.count;
+                ++chunkCount;
+                freeChunks.offer(chunk);
+            }
+            out.close();
+        } catch (IOException e) {
+            writeError = e;
+            // Nothing will write the chunks already queued, so let them go
+            fullChunks.clear();
+        }
+    }
+
+    /**
+     * Flush every Channel, wait for the writer to write everything and close the file.
+     */
+    public void close() {
+        for (Channel channel : channels) {
+            channel.flush();
+        }
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeError != null) {
+            System.out.println("Cannot write metrics to " + filename + ": " + writeError.getMessage());
+            return;
+        }
+        long bytes = new File(filename).length();
+        System.out.println("Wrote " + sampleCount + " samples of " + channelCount + " series in " + chunkCount +
+                " chunks to " + filename + ", " + bytes + " bytes (" +
+                String.format("%.2f", sampleCount == 0 ? 0 : (double) bytes / sampleCount) + " bytes per sample)");
+    }
+}
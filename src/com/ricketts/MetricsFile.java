@@ -0,0 +1,118 @@
+package com.ricketts;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * Reads a metrics file written by MetricsExporter, one chunk at a time, so a file of any size can be read back.
+ * Run on its own, converts a metrics file to CSV.
+ */
+public class MetricsFile implements Closeable {
+    /**
+     * Receives the samples of a metrics file.
+     */
+    public interface SampleHandler {
+        /**
+         * Called for every sample, in the order they were written for each series.
+         * @param key the series, e.g. "link/3/buffer"
+         * @param time sample time in ms
+         * @param value the value
+         */
+        void sample(String key, long time, double value) throws IOException;
+    }
+
+    private final String filename;
+    private final DataInputStream in;
+    /**
+     * Series keys by series id
+     */
+    private final ArrayList<String> keys = new ArrayList<>();
+
+    /**
+     * Open a metrics file and check its header.
+     * @param filename the file
+     * @throws IOException if the file can't be read or isn't a metrics file
+     */
+    public MetricsFile(String filename) throws IOException {
+        this.filename = filename;
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+        if (in.readInt() != MetricsExporter.Magic) {
+            in.close();
+            throw new IOException(filename + " is not a metrics file");
+        }
+        int version = in.readInt();
+        if (version != MetricsExporter.FormatVersion) {
+            in.close();
+            throw new IOException(filename + " has metrics format version " + version + ", expected " +
+                    MetricsExporter.FormatVersion);
+        }
+    }
+
+    /**
+     * Read the rest of the file, passing every sample to a handler.
+     * @param handler the handler
+     * @throws IOException if the file can't be read or is corrupt
+     */
+    public void read(SampleHandler handler) throws IOException {
+        long[] times = new long[0];
+        double[] values = new double[0];
+        int type;
+        while ((type = in.read()) >= 0) {
+            int id = in.readInt();
+            if (type == MetricsExporter.SeriesRecord) {
+                String key = in.readUTF();
+                while (keys.size() <= id)
+                    keys.add(null);
+                keys.set(id, key);
+            } else if (type == MetricsExporter.ChunkRecord) {
+                int count = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                if (id >= keys.size() || keys.get(id) == null)
+                    throw new IOException(filename + " has a chunk for undefined series " + id);
+                if (count > times.length) {
+                    times = new long[count];
+                    values = new double[count];
+                }
+                GorillaChunk.decode(data, count, times, values);
+                String key = keys.get(id);
+                for (int i = 0; i < count; ++i) {
+                    handler.sample(key, times[i], values[i]);
+                }
+            } else {
+                throw new IOException(filename + " has an unknown record type " + type);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Convert a metrics file to CSV with the columns series, time and value.
+     * @param args the metrics file and the CSV file to write
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: MetricsFile <file.metrics> <file.csv>");
+            return;
+        }
+        try (MetricsFile metricsFile = new MetricsFile(args[0]);
+             final Writer out = new BufferedWriter(new FileWriter(args[1]), 1 << 16)) {
+            out.write("series,time,value\n");
+            metricsFile.read(new SampleHandler() {
+                public void sample(String key, long time, double value) throws IOException {
+                    out.write(key);
+                    out.write(',');
+                    out.write(Long.toString(time));
+                    out.write(',');
+                    out.write(Double.toString(value));
+                    out.write('\n');
+                }
+            });
+        }
+        System.out.println("Wrote " + args[1] + ", " + new File(args[1]).length() + " bytes from " + args[0] + ", " +
+                new File(args[0]).length() + " bytes");
+    }
+}
@@ -0,0 +1,103 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A complete network definition: the Links, Hosts, Routers and Flows of a simulation plus its settings.
+ */
+public class Network {
+    private final ArrayList<Link> links;
+    private final ArrayList<Host> hosts;
+    private final ArrayList<Router> routers;
+    private final ArrayList<Flow> flows;
+    /**
+     * How long the simulation runs for, in milliseconds
+     */
+    private final int runtime;
+    /**
+     * Routing protocol used by the Routers
+     */
+    private final int routingProtocol;
+    /**
+     * Which statistics to collect, or null to collect everything
+     */
+    private final InstrumentationConfig instrumentation;
+    /**
+     * Link failures, recoveries and capacity changes scheduled during the run
+     */
+    private final List<NetworkEvent> events;
+
+    /**
+     * Construct a Network from its parts.
+     * @param links all Links
+     * @param hosts all Hosts
+     * @param routers all Routers
+     * @param flows all Flows
+     * @param runtime simulation runtime in milliseconds
+     * @param routingProtocol routing protocol used by the Routers
+     */
+    public Network(ArrayList<Link> links, ArrayList<Host> hosts, ArrayList<Router> routers, ArrayList<Flow> flows,
+                   int runtime, int routingProtocol) {
+        this(links, hosts, routers, flows, runtime, routingProtocol, null);
+    }
+
+    /**
+     * Construct a Network from its parts, collecting only some statistics.
+     * @param links all Links
+     * @param hosts all Hosts
+     * @param routers all Routers
+     * @param flows all Flows
+     * @param runtime simulation runtime in milliseconds
+     * @param routingProtocol routing protocol used by the Routers
+     * @param instrumentation which statistics to collect, or null to collect everything
+     */
+    public Network(ArrayList<Link> links, ArrayList<Host> hosts, ArrayList<Router> routers, ArrayList<Flow> flows,
+                   int runtime, int routingProtocol, InstrumentationConfig instrumentation) {
+        this(links, hosts, routers, flows, runtime, routingProtocol, instrumentation, new ArrayList<NetworkEvent>());
+    }
+
+    /**
+     * Construct a Network from its parts, with events changing its Links during the run.
+     * @param links all Links
+     * @param hosts all Hosts
+     * @param routers all Routers
+     * @param flows all Flows
+     * @param runtime simulation runtime in milliseconds
+     * @param routingProtocol routing protocol used by the Routers
+     * @param instrumentation which statistics to collect, or null to collect everything
+     * @param events the events, in any order
+     */
+    public Network(ArrayList<Link> links, ArrayList<Host> hosts, ArrayList<Router> routers, ArrayList<Flow> flows,
+                   int runtime, int routingProtocol, InstrumentationConfig instrumentation,
+                   List<NetworkEvent> events) {
+        this.links = links;
+        this.hosts = hosts;
+        this.routers = routers;
+        this.flows = flows;
+        this.runtime = runtime;
+        this.routingProtocol = routingProtocol;
+        this.instrumentation = instrumentation;
+        this.events = events;
+    }
+
+    public ArrayList<Link> getLinks() { return links; }
+    public ArrayList<Host> getHosts() { return hosts; }
+    public ArrayList<Router> getRouters() { return routers; }
+    public ArrayList<Flow> getFlows() { return flows; }
+    public int getRuntime() { return runtime; }
+    public int getRoutingProtocol() { return routingProtocol; }
+    public InstrumentationConfig getInstrumentation() { return instrumentation; }
+    public List<NetworkEvent> getEvents() { return events; }
+
+    /**
+     * All Nodes in the network, Hosts first.
+     * @return list of Nodes
+     */
+    public ArrayList<Node> getNodes() {
+        ArrayList<Node> nodes = new ArrayList<>(hosts.size() + routers.size());
+        nodes.addAll(hosts);
+        nodes.addAll(routers);
+        return nodes;
+    }
+}
@@ -0,0 +1,276 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A change to a Link at a given time in the simulation: the Link going down, coming back up, or changing capacity.
+ *
+ * A down event also keeps the score of its failover. Every packet the failure destroys (queued on or travelling
+ * along the Link when it goes down, or sent to it while it is down) is charged to the event, and the flows those
+ * packets belonged to are followed until their source gets an ACK for data past the lost packet. The event has
+ * recovered once every such flow has.
+ */
+public class NetworkEvent {
+    /**
+     * The things that can happen to a Link.
+     */
+    public static class Action {
+        public static final int DOWN = 1;
+        public static final int UP = 2;
+        public static final int CAPACITY = 3;
+        public static final String[] Names = {"?", "down", "up", "capacity"};
+    }
+
+    /**
+     * A flow that lost packets to a failure.
+     */
+    private static class FlowRecovery {
+        /**
+         * The flow has recovered once its source gets an ACK with at least this ID
+         */
+        public int recoveryACKID;
+        /**
+         * When it recovered, or null if it hasn't since it last lost a packet
+         */
+        public Integer recoveryTime;
+    }
+
+    /**
+     * When the event happens, in milliseconds
+     */
+    private final int time;
+    private final int linkID;
+    private final int action;
+    /**
+     * New link rate in bits per millisecond, for capacity changes
+     */
+    private final Integer linkRate;
+
+    /**
+     * Whether the event has happened and changed its Link
+     */
+    private boolean applied;
+    /**
+     * Link rate before a capacity change, once it has happened
+     */
+    private Integer previousLinkRate;
+    /**
+     * When the Link came back up, for down events
+     */
+    private Integer restoreTime;
+    /**
+     * Packets destroyed by a down event
+     */
+    private int packetsLost;
+    /**
+     * Flows that lost packets to a down event: flow source maps to (flow id maps to its recovery)
+     */
+    private HashMap<Node, HashMap<Integer, FlowRecovery>> flowRecoveries;
+    private int flowCount;
+    /**
+     * Flows that have lost packets and not recovered since
+     */
+    private int unrecoveredFlowCount;
+    /**
+     * Destinations the Routers at either end moved onto other Links of their group, onto a backup Link, or had no
+     * other way to when the Link went down
+     */
+    private int routesMovedInGroup, routesMovedToBackup, routesLost;
+
+    /**
+     * Construct an event.
+     * @param time when it happens, in milliseconds
+     * @param linkID the Link it happens to
+     * @param action what happens, one of Action
+     * @param linkRate the new link rate in bits per millisecond for a capacity change, null otherwise
+     */
+    public NetworkEvent(int time, int linkID, int action, Integer linkRate) {
+        this.time = time;
+        this.linkID = linkID;
+        this.action = action;
+        this.linkRate = linkRate;
+        this.flowRecoveries = new HashMap<>();
+    }
+
+    public int getTime() { return time; }
+    public int getLinkID() { return linkID; }
+    public int getAction() { return action; }
+    public Integer getLinkRate() { return linkRate; }
+
+    /**
+     * Find the action with a given name.
+     * @param name the name of the action, as used in network definitions
+     * @return the action, or null if there is none by that name
+     */
+    public static Integer lookupAction(String name) {
+        for (int i = 1; i < Action.Names.length; ++i) {
+            if (Action.Names[i].equals(name))
+                return i;
+        }
+        return null;
+    }
+
+    /**
+     * Parse a list of events written "time:action:link" and joined with "+", where a capacity change also gives
+     * the new capacity in Mbps, as in "5000:down:3+8000:up:3+9000:capacity:3:5".
+     * @param text the list
+     * @return the events
+     * @throws IllegalArgumentException if an event is written wrong
+     */
+    public static ArrayList<NetworkEvent> parseList(String text) {
+        ArrayList<NetworkEvent> events = new ArrayList<>();
+        for (String eventText : text.split("\\+")) {
+            String[] parts = eventText.split(":");
+            Integer action = parts.length >= 3 ? lookupAction(parts[1]) : null;
+            if (action == null || parts.length != (action == Action.CAPACITY ? 4 : 3))
+                throw new IllegalArgumentException("expected time:down|up:link or time:capacity:link:Mbps, got \"" +
+                        eventText + "\"");
+            try {
+                Integer linkRate = null;
+                if (action == Action.CAPACITY)
+                    linkRate = (int) (Double.parseDouble(parts[3]) * 1048.576);
+                events.add(new NetworkEvent(Integer.parseInt(parts[0]), Integer.parseInt(parts[2]), action,
+                        linkRate));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad number in event \"" + eventText + "\"");
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Apply the event to its Link and tell the Routers at either end.
+     * @param link the Link
+     */
+    public void apply(Link link) {
+        if (action == Action.DOWN) {
+            if (link.isDown())
+                return;
+            link.setDown(this);
+        } else if (action == Action.UP) {
+            NetworkEvent failure = link.getFailure();
+            if (failure == null)
+                return;
+            failure.restoreTime = Main.currentTime;
+            link.setUp();
+        } else {
+            previousLinkRate = link.getLinkRate();
+            link.setLinkRate(linkRate);
+            applied = true;
+            return;
+        }
+        applied = true;
+        for (Node node : new Node[] {link.getLeftNode(), link.getRightNode()}) {
+            if (node instanceof Router)
+                ((Router) node).adjacentLinkChanged(link);
+        }
+    }
+
+    /**
+     * Charge a packet destroyed by this failure to it.
+     * @param packet the packet
+     */
+    public void recordLoss(Packet packet) {
+        packetsLost++;
+        // A data packet is recovered by an ACK past it, and a lost ACK by any ACK at least as far along
+        Node flowSource;
+        int recoveryACKID;
+        if (packet instanceof DataPacket) {
+            flowSource = packet.getSource();
+            recoveryACKID = packet.getID() + 1;
+        } else if (packet instanceof ACKPacket) {
+            flowSource = packet.getDestination();
+            recoveryACKID = packet.getID();
+        } else {
+            return;
+        }
+        HashMap<Integer, FlowRecovery> sourceFlows = flowRecoveries.get(flowSource);
+        if (sourceFlows == null) {
+            sourceFlows = new HashMap<>();
+            flowRecoveries.put(flowSource, sourceFlows);
+        }
+        FlowRecovery recovery = sourceFlows.get(packet.getFlowID());
+        if (recovery == null) {
+            recovery = new FlowRecovery();
+            sourceFlows.put(packet.getFlowID(), recovery);
+            flowCount++;
+            unrecoveredFlowCount++;
+        } else if (recovery.recoveryTime != null) {
+            recovery.recoveryTime = null;
+            unrecoveredFlowCount++;
+        }
+        recovery.recoveryACKID = Math.max(recovery.recoveryACKID, recoveryACKID);
+    }
+
+    /**
+     * Note an ACK reaching the source of a flow, which recovers the flow if it acknowledges its lost packets.
+     * @param source the source of the flow
+     * @param flowID the flow
+     * @param ackID the ACK's ID, the next packet the destination expects
+     */
+    public void recordACK(Node source, int flowID, int ackID) {
+        if (unrecoveredFlowCount == 0)
+            return;
+        HashMap<Integer, FlowRecovery> sourceFlows = flowRecoveries.get(source);
+        FlowRecovery recovery = (sourceFlows == null) ? null : sourceFlows.get(flowID);
+        if (recovery != null && recovery.recoveryTime == null && ackID >= recovery.recoveryACKID) {
+            recovery.recoveryTime = Main.currentTime;
+            unrecoveredFlowCount--;
+        }
+    }
+
+    /**
+     * Note how a Router at either end of the Link repaired the route to one destination when the Link went down.
+     * @param inGroup moved onto the other Links of the destination's group
+     * @param toBackup moved onto the destination's backup Link
+     */
+    public void recordRepair(boolean inGroup, boolean toBackup) {
+        if (inGroup)
+            routesMovedInGroup++;
+        else if (toBackup)
+            routesMovedToBackup++;
+        else
+            routesLost++;
+    }
+
+    /**
+     * Whether the event has flows that lost packets and haven't recovered.
+     * @return true if some flow is still recovering
+     */
+    public boolean isRecovering() {
+        return unrecoveredFlowCount > 0;
+    }
+
+    /**
+     * Describe what the event did, for the report at the end of a run.
+     * @return the description
+     */
+    public String describe() {
+        String description = "link " + linkID + " " + Action.Names[action] + " at " + time + " ms";
+        if (!applied) {
+            return description + ", not applied";
+        } else if (action == Action.CAPACITY) {
+            return description + String.format(", %.1f -> %.1f Mbps", previousLinkRate / 1048.576,
+                    linkRate / 1048.576);
+        } else if (action == Action.UP) {
+            return description;
+        }
+
+        description += ", " + (restoreTime == null ? "still down at the end" :
+                "down for " + (restoreTime - time) + " ms") + ", fast reroute moved " + routesMovedInGroup +
+                " routes within their group and " + routesMovedToBackup + " to backups, " + routesLost +
+                " routes lost, " + packetsLost + " packets lost from " + flowCount + " flows";
+        if (flowCount == 0)
+            return description;
+        if (unrecoveredFlowCount > 0)
+            return description + ", " + unrecoveredFlowCount + " flows not recovered by the end";
+        int lastRecoveryTime = time;
+        for (HashMap<Integer, FlowRecovery> sourceFlows : flowRecoveries.values()) {
+            for (FlowRecovery recovery : sourceFlows.values()) {
+                lastRecoveryTime = Math.max(lastRecoveryTime, recovery.recoveryTime);
+            }
+        }
+        return description + ", recovered in " + (lastRecoveryTime - time) + " ms";
+    }
+}
@@ -0,0 +1,88 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The events of a Network in time order, applied to its Links as the simulation reaches them, and the report of
+ * what each of them did.
+ */
+public class NetworkTimeline {
+    /**
+     * Timeline of the simulation running now, which Hosts tell about the ACKs they get, or null
+     */
+    public static NetworkTimeline active;
+
+    /**
+     * Events in the order they happen
+     */
+    private final ArrayList<NetworkEvent> events;
+    /**
+     * Index of the next event to apply
+     */
+    private int nextEvent;
+    private final HashMap<Integer, Link> linkMap;
+    /**
+     * Down events applied so far, which may still have flows recovering
+     */
+    private final ArrayList<NetworkEvent> failures;
+
+    /**
+     * Construct a timeline.
+     * @param events the events, in any order; events at the same time keep their order
+     * @param links all Links of the network
+     */
+    public NetworkTimeline(List<NetworkEvent> events, ArrayList<Link> links) {
+        this.events = new ArrayList<>(events);
+        Collections.sort(this.events, new Comparator<NetworkEvent>() {
+            public int compare(NetworkEvent a, NetworkEvent b) {
+                return Integer.compare(a.getTime(), b.getTime());
+            }
+        });
+        this.linkMap = InputParser.makeLinkMap(links);
+        this.failures = new ArrayList<>();
+    }
+
+    /**
+     * Apply every event due by the current time.
+     */
+    public void applyDue() {
+        while (nextEvent < events.size() && events.get(nextEvent).getTime() <= Main.currentTime) {
+            NetworkEvent event = events.get(nextEvent++);
+            Link link = linkMap.get(event.getLinkID());
+            if (link == null) {
+                System.out.println("Network event for unknown link " + event.getLinkID());
+                continue;
+            }
+            event.apply(link);
+            if (event.getAction() == NetworkEvent.Action.DOWN)
+                failures.add(event);
+        }
+    }
+
+    /**
+     * Note an ACK reaching the source of a flow, for the failures the flow is recovering from.
+     * @param source the source of the flow
+     * @param flowID the flow
+     * @param ackID the ACK's ID
+     */
+    public void recordACK(Node source, int flowID, int ackID) {
+        for (NetworkEvent failure : failures) {
+            if (failure.isRecovering())
+                failure.recordACK(source, flowID, ackID);
+        }
+    }
+
+    /**
+     * Print what every event did.
+     * @param name name used to label the report
+     */
+    public void report(String name) {
+        for (int i = 0; i < events.size(); ++i) {
+            System.out.println(name + " event " + (i + 1) + ": " + events.get(i).describe());
+        }
+    }
+}
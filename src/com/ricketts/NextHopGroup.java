@@ -0,0 +1,92 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The set of equal-cost Links a Router may use to reach one destination.
+ * Packets are spread over the group per flow: a hash of (source, destination, flow id) picks the Link, so every
+ * packet of a flow takes the same path and is not reordered. The choice is made by rendezvous hashing, so when a Link
+ * joins or leaves the group only the flows on that Link move.
+ */
+public class NextHopGroup {
+    /**
+     * Links in the group, in the order they were added
+     */
+    private final ArrayList<Link> links;
+
+    /**
+     * Construct a group with a single Link.
+     * @param link the Link
+     */
+    public NextHopGroup(Link link) {
+        this.links = new ArrayList<>(1);
+        this.links.add(link);
+    }
+
+    /**
+     * Construct a group of Links.
+     * @param links the Links, at least one
+     */
+    public NextHopGroup(List<Link> links) {
+        this.links = new ArrayList<>(links);
+    }
+
+    public List<Link> getLinks() { return links; }
+    public int size() { return links.size(); }
+
+    /**
+     * Add a Link to the group if it isn't already in it.
+     * @param link the Link
+     */
+    public void add(Link link) {
+        if (!links.contains(link))
+            links.add(link);
+    }
+
+    /**
+     * Check whether another group holds exactly the same Links, in any order.
+     * @param other the other group
+     * @return true if both groups hold the same Links
+     */
+    public boolean hasSameLinks(NextHopGroup other) {
+        return links.size() == other.links.size() && links.containsAll(other.links);
+    }
+
+    /**
+     * Choose the Link a packet should be forwarded on.
+     * @param packet the packet being forwarded
+     * @return the Link for the packet's flow
+     */
+    public Link select(Packet packet) {
+        if (links.size() == 1)
+            return links.get(0);
+
+        long flowHash = packet.getSource().getAddress().hashCode();
+        flowHash = flowHash * 31 + packet.getDestination().getAddress().hashCode();
+        flowHash = flowHash * 31 + packet.getFlowID();
+
+        // Rendezvous hashing: every Link gets a pseudo-random weight for this flow and the heaviest one wins
+        Link bestLink = null;
+        long bestWeight = Long.MIN_VALUE;
+        for (Link link : links) {
+            long weight = mix(flowHash * 31 + link.getID());
+            if (bestLink == null || weight > bestWeight) {
+                bestWeight = weight;
+                bestLink = link;
+            }
+        }
+        return bestLink;
+    }
+
+    /**
+     * Scramble the bits of a value (the SplitMix64 finalizer) so nearby inputs give unrelated weights.
+     * @param value input value
+     * @return mixed value
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
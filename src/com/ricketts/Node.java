@@ -8,6 +8,10 @@ public abstract class Node implements Updatable {
      * The network location of the Node. Hosts have full addresses, Routers are given subnets.
      */
     protected final String address;
+    /**
+     * Number the current PacketTrace refers to this Node by, or -1
+     */
+    private int traceIndex = -1;
 
     /**
      * Construct a Node with a given address.
@@ -33,4 +37,7 @@ public abstract class Node implements Updatable {
     public String getAddress() {
         return this.address;
     }
+
+    public int getTraceIndex() { return traceIndex; }
+    public void setTraceIndex(int traceIndex) { this.traceIndex = traceIndex; }
 }
\ No newline at end of file
@@ -9,30 +9,52 @@ import org.jfree.chart.plot.XYPlot;
 import org.jfree.data.xy.XYDataset;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
-import org.jfree.ui.ApplicationFrame;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
 /**
- * Utilities for creating a line plot of multiple series and save as JPEG.
+ * A line plot of multiple series, saved as JPEG when run. Needs no display, so it can be rendered headless on any
+ * thread (see ChartRenderer).
  */
-public class OverlaidPlot extends ApplicationFrame
+public class OverlaidPlot implements Runnable
 {
+    private final String title;
+    private final String filename;
+    private final ArrayList<XYSeries> series;
+    private final String xAxis;
+    private final String yAxis;
+    private final int width;
+    private final int height;
+
     /**
-     * Create a lineplot of the specified dataset and save as a .jpeg.
+     * Create a lineplot of the specified dataset, to be saved as a .jpeg when run.
      * @param title Plot title
      * @param filename Output filename the plot is saved as
      * @param series List of data series to plot
      * @param xAxis X axis title
      * @param yAxis Y axis title
-     * @param width Plot width (pixels0
+     * @param width Plot width (pixels)
      * @param height Plot height (pixels)
      */
     public OverlaidPlot(final String title, final String filename, ArrayList<XYSeries> series,
                         final String xAxis, final String yAxis, int width, int height) {
-        super(title);
+        this.title = title;
+        this.filename = filename;
+        this.series = series;
+        this.xAxis = xAxis;
+        this.yAxis = yAxis;
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getFilename() { return filename; }
+
+    /**
+     * Render the plot and save it.
+     */
+    public void run() {
         final XYDataset dataset = createDataset(series);
         final JFreeChart chart = createChart(dataset, title, xAxis, yAxis);
 
@@ -45,18 +67,70 @@ public class OverlaidPlot extends ApplicationFrame
     }
 
     /**
-     * Create a dataset given a list of series.
+     * Create a dataset given a list of series, downsampled to about one point per pixel.
      * @param series The list of XYSeries we collected
      * @return A XYSeriesCollection consisting of all the input series
      */
     private XYSeriesCollection createDataset(ArrayList<XYSeries> series) {
         final XYSeriesCollection dataset = new XYSeriesCollection();
         for (XYSeries s : series) {
-            dataset.addSeries(s);
+            dataset.addSeries(downsample(s, width));
         }
         return dataset;
     }
 
+    /**
+     * Downsample a series with Largest-Triangle-Three-Buckets: split the points into buckets and keep the point in
+     * each that makes the largest triangle with the point kept before it and the mean of the next bucket. Unlike
+     * taking the mean or every nth point, this keeps the peaks and troughs that make a line plot look right.
+     * @param series the series, sorted by x
+     * @param threshold number of points to keep, at least 3
+     * @return the downsampled series, or the series itself if it is no larger than the threshold
+     */
+    public static XYSeries downsample(XYSeries series, int threshold) {
+        int n = series.getItemCount();
+        if (threshold < 3 || n <= threshold)
+            return series;
+        double[][] data = series.toArray();
+        double[] x = data[0];
+        double[] y = data[1];
+
+        XYSeries output = new XYSeries(series.getKey(), false, true);
+        output.add(x[0], y[0], false);
+        // The first and last points are always kept; the rest are split into threshold - 2 buckets
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int kept = 0;
+        for (int bucket = 0; bucket < threshold - 2; ++bucket) {
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min(n, (int) ((bucket + 2) * bucketSize) + 1);
+            double meanX = 0;
+            double meanY = 0;
+            for (int i = nextStart; i < nextEnd; ++i) {
+                meanX += x[i];
+                meanY += y[i];
+            }
+            meanX /= nextEnd - nextStart;
+            meanY /= nextEnd - nextStart;
+
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = nextStart;
+            double largestArea = -1;
+            int largest = start;
+            for (int i = start; i < end; ++i) {
+                // Twice the triangle's area, which ranks the same
+                double area = Math.abs((x[kept] - meanX) * (y[i] - y[kept]) - (x[kept] - x[i]) * (meanY - y[kept]));
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = i;
+                }
+            }
+            output.add(x[largest], y[largest], false);
+            kept = largest;
+        }
+        output.add(x[n - 1], y[n - 1], false);
+        return output;
+    }
+
     /**
      * Create a JFreeChart given a dataset.
      * @param dataset The collection of series we want to graph.
@@ -87,4 +161,4 @@ public class OverlaidPlot extends ApplicationFrame
 
         return chart;
     }
-}
\ No newline at end of file
+}
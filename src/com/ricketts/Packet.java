@@ -14,6 +14,15 @@ public abstract class Packet {
     private final Integer size;
     private final Node source;
     private final Node destination;
+    /**
+     * ID of the Flow this packet belongs to, or NoFlowID for control packets that are not part of a Flow
+     */
+    private final int flowID;
+
+    /**
+     * Flow ID of packets that do not belong to any Flow
+     */
+    public static final int NoFlowID = -1;
 
     /**
      * Constructor based on the packet's source and destination
@@ -23,10 +32,23 @@ public abstract class Packet {
      * @param destination Where the packet is going to
      */
     public Packet(Integer id, Integer size, Node source, Node destination) {
+        this(id, size, source, destination, NoFlowID);
+    }
+
+    /**
+     * Constructor based on the packet's source and destination, for a packet belonging to a Flow
+     * @param id Packet id
+     * @param size Size in bits
+     * @param source Where the packet is coming from
+     * @param destination Where the packet is going to
+     * @param flowID ID of the Flow the packet belongs to
+     */
+    public Packet(Integer id, Integer size, Node source, Node destination, int flowID) {
         this.id = id;
         this.size = size;
         this.source = source;
         this.destination = destination;
+        this.flowID = flowID;
     }
 
     /**
@@ -36,11 +58,12 @@ public abstract class Packet {
      * @param parentFlow The flow this packet is being sent on
      */
     public Packet(Integer id, Integer size, Flow parentFlow) {
-        this(id, size, parentFlow.getSource(), parentFlow.getDestination());
+        this(id, size, parentFlow.getSource(), parentFlow.getDestination(), parentFlow.getID());
     }
 
     public Integer getID() { return id; }
     public Integer getSize() { return size; }
     public Node getSource() { return source; }
     public Node getDestination() { return destination; }
+    public int getFlowID() { return flowID; }
 }
\ No newline at end of file
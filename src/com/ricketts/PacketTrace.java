@@ -0,0 +1,342 @@
+package com.ricketts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An opt-in trace of what happens to every packet: enqueued on or dropped by a Link, starting transmission,
+ * delivered to the Node at the other end, and ACKs arriving back at their Host. Read it back with PacketTraceFile.
+ * A DataSegment is traced as one data packet with the ID of its first packet, except that its drops are traced
+ * packet by packet.
+ *
+ * Events are fixed size records written into a direct buffer per thread. Full buffers are handed to a writer thread,
+ * which writes them straight from native memory to the file, so recording an event is a handful of stores.
+ * (Copying them into a memory mapped file instead costs several times as much, in page faults on the new pages.)
+ * Links and Nodes record only while a trace is active, and a Filter can narrow it to some flows, links or a window
+ * of time.
+ *
+ * File layout:
+ *  header:  magic, format version, record size, node count, then every node's address (UTF), all big endian
+ *  records: as little endian longs, so they are stored in the order of most machines without swapping bytes:
+ *           time << 32 | event << 24 | packet kind << 16, link ID (or -1) << 32 | node index (or -1),
+ *           flow ID << 32 | packet ID
+ */
+public class PacketTrace implements Closeable {
+    /**
+     * "PTRC"
+     */
+    public static final int Magic = 0x50545243;
+    public static final int FormatVersion = 1;
+    public static final int RecordSize = 24;
+    /**
+     * Records in a ring buffer
+     */
+    private static final int RingRecords = 1 << 14;
+    /**
+     * Longest the writer sleeps when there is nothing to write, in ns
+     */
+    private static final long IdleWait = 1000000;
+
+    /**
+     * The things that happen to packets.
+     */
+    public static class Event {
+        public static final int ENQUEUE = 1;
+        public static final int DROP = 2;
+        public static final int TRANSMIT = 3;
+        public static final int DELIVER = 4;
+        public static final int ACK = 5;
+        public static final String[] Names = {"?", "enqueue", "drop", "transmit", "deliver", "ack"};
+    }
+
+    /**
+     * The kinds of packet.
+     */
+    public static class Kind {
+        public static final int DATA = 1;
+        public static final int ACK = 2;
+        public static final int SETUP = 3;
+        public static final int ROUTING = 4;
+        public static final int OTHER = 5;
+        public static final int FIN = 6;
+        public static final String[] Names = {"?", "data", "ack", "setup", "routing", "other", "fin"};
+    }
+
+    /**
+     * Which events to keep, by flow, link and time. Used when tracing and when reading a trace.
+     */
+    public static class Filter {
+        /**
+         * Sorted flow IDs to keep, or null for all
+         */
+        private final int[] flows;
+        /**
+         * Sorted link IDs to keep, or null for all
+         */
+        private final int[] links;
+        private final int from;
+        private final int to;
+
+        /**
+         * Construct a filter.
+         * @param flows flow IDs to keep, or null for all
+         * @param links link IDs to keep, or null for all; events at Nodes are kept either way
+         * @param from first time kept, in ms
+         * @param to last time kept, in ms
+         */
+        public Filter(int[] flows, int[] links, int from, int to) {
+            this.flows = flows == null ? null : sorted(flows);
+            this.links = links == null ? null : sorted(links);
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Take a filter from text of the form "flows=1+2,links=3,from=1000,to=2000", where every key is optional,
+         * flows and links are IDs joined by "+", and from and to are in ms. Empty text keeps everything.
+         * @param text the filters
+         * @return the filter
+         * @throws TopologyParseException if the text is malformed
+         */
+        public static Filter parse(String text) throws TopologyParseException {
+            ScenarioSpec spec = new ScenarioSpec("trace:" + text);
+            Filter filter;
+            try {
+                filter = new Filter(parseIDs(spec.getString("flows", null)), parseIDs(spec.getString("links", null)),
+                        spec.getInt("from", 0), spec.getInt("to", Integer.MAX_VALUE));
+            } catch (IllegalArgumentException e) {
+                throw new TopologyParseException(text, 0, e.getMessage());
+            }
+            spec.checkAllUsed();
+            return filter;
+        }
+
+        private static int[] parseIDs(String text) {
+            if (text == null)
+                return null;
+            String[] parts = text.split("\\+");
+            int[] ids = new int[parts.length];
+            for (int i = 0; i < parts.length; ++i) {
+                try {
+                    ids[i] = Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("IDs must be integers joined by +, got \"" + text + "\"");
+                }
+            }
+            return ids;
+        }
+
+        private static int[] sorted(int[] ids) {
+            int[] copy = ids.clone();
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        /**
+         * Check whether to keep an event.
+         * @param time when it happened
+         * @param linkID the link, or -1 for an event at a Node
+         * @param flowID the flow of the packet
+         * @return true to keep it
+         */
+        public boolean accepts(int time, int linkID, int flowID) {
+            return time >= from && time <= to &&
+                    (flows == null || Arrays.binarySearch(flows, flowID) >= 0) &&
+                    (links == null || linkID < 0 || Arrays.binarySearch(links, linkID) >= 0);
+        }
+    }
+
+    /**
+     * The buffer one thread is recording events into.
+     */
+    private static class Ring {
+        public ByteBuffer buffer;
+    }
+
+    /**
+     * The trace being recorded, or null when not tracing. Checked by Links and Nodes before recording.
+     */
+    public static PacketTrace active;
+
+    private final String filename;
+    private final Filter filter;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long recordCount;
+
+    /**
+     * The thread that started the trace records into its own ring without a ThreadLocal lookup
+     */
+    private final Thread ownerThread;
+    private final Ring ownerRing = new Ring();
+    private final ThreadLocal<Ring> otherRings = new ThreadLocal<Ring>() {
+        protected Ring initialValue() {
+            Ring ring = new Ring();
+            synchronized (rings) {
+                rings.add(ring);
+            }
+            return ring;
+        }
+    };
+    private final ArrayList<Ring> rings = new ArrayList<>();
+    /**
+     * Full buffers waiting to be written to the file, and buffers ready to be reused
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> fullBuffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    /**
+     * Writes full buffers to the file, so the simulation never waits on the disk
+     */
+    private final Thread writer;
+    private volatile boolean closing;
+    private IOException writeError;
+
+    /**
+     * Start a trace file for a network, numbering its Nodes so records can refer to them.
+     * @param filename the file to write
+     * @param network the Network being traced
+     * @param filter which events to keep
+     * @throws IOException if the file can't be written
+     */
+    public PacketTrace(String filename, Network network, Filter filter) throws IOException {
+        this.filename = filename;
+        this.filter = filter;
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        file.setLength(0);
+        ArrayList<Node> nodes = network.getNodes();
+        file.writeInt(Magic);
+        file.writeInt(FormatVersion);
+        file.writeInt(RecordSize);
+        file.writeInt(nodes.size());
+        for (int i = 0; i < nodes.size(); ++i) {
+            nodes.get(i).setTraceIndex(i);
+            file.writeUTF(nodes.get(i).getAddress());
+        }
+        this.ownerThread = Thread.currentThread();
+        rings.add(ownerRing);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeBuffers();
+            }
+        }, "packet trace writer " + filename);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record an event, if the filter keeps it.
+     * @param event what happened, an Event value
+     * @param packet the packet
+     * @param link the Link it happened on, or null for an event at a Node
+     * @param node the Node it happened at (the sender for ENQUEUE, DROP and TRANSMIT), or null
+     */
+    public void record(int event, Packet packet, Link link, Node node) {
+        int linkID = link == null ? -1 : link.getID();
+        if (!filter.accepts(Main.currentTime, linkID, packet.getFlowID()))
+            return;
+        Ring ring = Thread.currentThread() == ownerThread ? ownerRing : otherRings.get();
+        ByteBuffer buffer = ring.buffer;
+        if (buffer == null) {
+            buffer = freeBuffers.poll();
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(RingRecords * RecordSize).order(ByteOrder.LITTLE_ENDIAN);
+            ring.buffer = buffer;
+        }
+        // Three longs rather than seven smaller stores
+        buffer.putLong((long) Main.currentTime << 32 | (long) event << 24 | (long) kindOf(packet) << 16);
+        buffer.putLong((long) linkID << 32 | ((node == null ? -1 : node.getTraceIndex()) & 0xFFFFFFFFL));
+        buffer.putLong((long) packet.getFlowID() << 32 | (packet.getID() & 0xFFFFFFFFL));
+        if (!buffer.hasRemaining())
+            flush(ring);
+    }
+
+    /**
+     * The kind of a packet, a Kind value.
+     * @param packet the packet
+     * @return its kind
+     */
+    static int kindOf(Packet packet) {
+        if (packet instanceof DataPacket || packet instanceof DataSegment)
+            return Kind.DATA;
+        if (packet instanceof ACKPacket)
+            return Kind.ACK;
+        if (packet instanceof SetupPacket)
+            return Kind.SETUP;
+        if (packet instanceof FinPacket)
+            return Kind.FIN;
+        if (packet instanceof RoutingTablePacket || packet instanceof LinkStatePacket)
+            return Kind.ROUTING;
+        return Kind.OTHER;
+    }
+
+    /**
+     * Hand a ring's events to the writer and give the ring an empty buffer next time it records.
+     * @param ring the ring
+     */
+    private void flush(Ring ring) {
+        if (ring.buffer == null || ring.buffer.position() == 0)
+            return;
+        ring.buffer.flip();
+        fullBuffers.offer(ring.buffer);
+        ring.buffer = null;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Run by the writer thread: write full buffers to the file until closed.
+     */
+    private void writeBuffers() {
+        try {
+            while (true) {
+                ByteBuffer buffer = fullBuffers.poll();
+                if (buffer == null) {
+                    if (closing && fullBuffers.isEmpty())
+                        break;
+                    LockSupport.parkNanos(IdleWait);
+                    continue;
+                }
+                recordCount += buffer.remaining() / RecordSize;
+                // The records follow the header, where the channel is positioned
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                freeBuffers.offer(buffer);
+            }
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+
+    /**
+     * Flush every ring and wait for the writer to write them.
+     */
+    public void close() throws IOException {
+        synchronized (rings) {
+            for (Ring ring : rings) {
+                flush(ring);
+            }
+        }
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long length = channel.position();
+        file.close();
+        if (writeError != null)
+            throw writeError;
+        System.out.println("Wrote " + recordCount + " packet events to " + filename + ", " + length + " bytes");
+    }
+}
@@ -0,0 +1,193 @@
+package com.ricketts;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a packet trace written by PacketTrace, mapping the file a segment at a time so a trace of any size can be
+ * read back. Run on its own, prints the timeline of every traced packet followed by a summary.
+ */
+public class PacketTraceFile implements Closeable {
+    /**
+     * Bytes of the file mapped at a time, a whole number of records
+     */
+    private static final long SegmentSize = (1L << 26) / PacketTrace.RecordSize * PacketTrace.RecordSize;
+
+    /**
+     * Receives the events of a packet trace.
+     */
+    public interface EventHandler {
+        /**
+         * Called for every event, in the order they were recorded by each thread.
+         * @param time when it happened, in ms
+         * @param event what happened, a PacketTrace.Event value
+         * @param kind the kind of packet, a PacketTrace.Kind value
+         * @param linkID the Link it happened on, or -1
+         * @param node the Node it happened at, or -1
+         * @param flowID the flow of the packet
+         * @param packetID the packet's ID
+         */
+        void event(int time, int event, int kind, int linkID, int node, int flowID, int packetID);
+    }
+
+    private final String filename;
+    private final RandomAccessFile file;
+    /**
+     * Node addresses by the index records refer to them by
+     */
+    private final String[] nodeAddresses;
+    /**
+     * Where the records start in the file
+     */
+    private final long dataStart;
+
+    /**
+     * Open a packet trace and read its header.
+     * @param filename the file
+     * @throws IOException if the file can't be read or isn't a packet trace
+     */
+    public PacketTraceFile(String filename) throws IOException {
+        this.filename = filename;
+        this.file = new RandomAccessFile(filename, "r");
+        if (file.length() < 16 || file.readInt() != PacketTrace.Magic) {
+            file.close();
+            throw new IOException(filename + " is not a packet trace");
+        }
+        int version = file.readInt();
+        int recordSize = file.readInt();
+        if (version != PacketTrace.FormatVersion || recordSize != PacketTrace.RecordSize) {
+            file.close();
+            throw new IOException(filename + " has packet trace format version " + version + ", expected " +
+                    PacketTrace.FormatVersion);
+        }
+        this.nodeAddresses = new String[file.readInt()];
+        for (int i = 0; i < nodeAddresses.length; ++i) {
+            nodeAddresses[i] = file.readUTF();
+        }
+        this.dataStart = file.getFilePointer();
+    }
+
+    /**
+     * Find a Node's address.
+     * @param node the index a record refers to it by
+     * @return its address, or null for -1
+     */
+    public String getNodeAddress(int node) {
+        return node < 0 || node >= nodeAddresses.length ? null : nodeAddresses[node];
+    }
+
+    public long getRecordCount() throws IOException {
+        return (file.length() - dataStart) / PacketTrace.RecordSize;
+    }
+
+    /**
+     * Read every event the filter keeps.
+     * @param filter which events to pass on
+     * @param handler the handler
+     * @throws IOException if the file can't be read
+     */
+    public void read(PacketTrace.Filter filter, EventHandler handler) throws IOException {
+        FileChannel channel = file.getChannel();
+        long end = dataStart + getRecordCount() * PacketTrace.RecordSize;
+        for (long position = dataStart; position < end; position += SegmentSize) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(SegmentSize, end - position));
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            while (segment.hasRemaining()) {
+                long timeAndEvent = segment.getLong();
+                long linkAndNode = segment.getLong();
+                long flowAndPacket = segment.getLong();
+                int time = (int) (timeAndEvent >> 32);
+                int event = (int) (timeAndEvent >> 24) & 0xFF;
+                int kind = (int) (timeAndEvent >> 16) & 0xFF;
+                int linkID = (int) (linkAndNode >> 32);
+                int node = (int) linkAndNode;
+                int flowID = (int) (flowAndPacket >> 32);
+                int packetID = (int) flowAndPacket;
+                if (filter.accepts(time, linkID, flowID))
+                    handler.event(time, event, kind, linkID, node, flowID, packetID);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Print the timeline of every packet in a trace, i.e. every event that happened to it in order, then counts of
+     * the events and of the drops on each link.
+     * @param args the trace, then optionally filters as for PacketTrace.Filter.parse and "--summary" to print only
+     *             the counts
+     */
+    public static void main(String[] args) throws IOException, TopologyParseException {
+        if (args.length < 1) {
+            System.out.println("Usage: PacketTraceFile <file.ptrace> [flows=1+2,links=3,from=0,to=5000] [--summary]");
+            return;
+        }
+        String filters = "";
+        boolean summaryOnly = false;
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].equals("--summary"))
+                summaryOnly = true;
+            else
+                filters = args[i];
+        }
+        final boolean printTimelines = !summaryOnly;
+        final LinkedHashMap<String, StringBuilder> timelines = new LinkedHashMap<>();
+        final long[] eventCounts = new long[PacketTrace.Event.Names.length];
+        final TreeMap<Integer, Long> dropsByLink = new TreeMap<>();
+        try (final PacketTraceFile traceFile = new PacketTraceFile(args[0])) {
+            traceFile.read(PacketTrace.Filter.parse(filters), new EventHandler() {
+                public void event(int time, int event, int kind, int linkID, int node, int flowID, int packetID) {
+                    if (event > 0 && event < eventCounts.length)
+                        eventCounts[event]++;
+                    if (event == PacketTrace.Event.DROP) {
+                        Long drops = dropsByLink.get(linkID);
+                        dropsByLink.put(linkID, drops == null ? 1 : drops + 1);
+                    }
+                    if (!printTimelines)
+                        return;
+                    String packet = (flowID < 0 ? "no flow " : "flow " + flowID + " ") +
+                            name(PacketTrace.Kind.Names, kind) + " " + packetID;
+                    StringBuilder timeline = timelines.get(packet);
+                    if (timeline == null) {
+                        timeline = new StringBuilder(packet).append(':');
+                        timelines.put(packet, timeline);
+                    } else {
+                        timeline.append(',');
+                    }
+                    timeline.append(' ').append(time).append(' ').append(name(PacketTrace.Event.Names, event));
+                    String address = traceFile.getNodeAddress(node);
+                    if (address != null)
+                        timeline.append(' ').append(address);
+                    if (linkID >= 0)
+                        timeline.append(" link ").append(linkID);
+                }
+            });
+        }
+
+        for (StringBuilder timeline : timelines.values()) {
+            System.out.println(timeline);
+        }
+        long total = 0;
+        StringBuilder counts = new StringBuilder();
+        for (int event = 1; event < eventCounts.length; ++event) {
+            total += eventCounts[event];
+            counts.append(", ").append(eventCounts[event]).append(' ').append(PacketTrace.Event.Names[event]);
+        }
+        System.out.println(total + " events" + counts);
+        for (Map.Entry<Integer, Long> drops : dropsByLink.entrySet()) {
+            System.out.println("link " + drops.getKey() + " dropped " + drops.getValue() + " packets");
+        }
+    }
+
+    private static String name(String[] names, int value) {
+        return value > 0 && value < names.length ? names[value] : Integer.toString(value);
+    }
+}
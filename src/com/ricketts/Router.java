@@ -11,11 +11,73 @@ import java.util.*;
  */
 public class Router extends Node
 {
+    /**
+     * Interval at which a link state Router checks whether the costs of its links have changed. Measured in
+     * milliseconds
+     */
+    private final static Integer LinkStateCheckInterval = 100;
+    /**
+     * Interval at which a link state Router re-floods its advertisement even if nothing changed, so that
+     * advertisements lost to full buffers are eventually replaced. Measured in milliseconds
+     */
+    private final static Integer LinkStateRefreshInterval = 5000;
+    /**
+     * A link state Router's table has converged once it has gone this long without changing. Measured in
+     * milliseconds
+     */
+    private final static Integer LinkStateSettleTime = 3 * LinkStateCheckInterval;
+    /**
+     * Two paths whose costs differ by at most this much are considered equal and share traffic.
+     */
+    private final static Double EqualCostTolerance = 1e-6;
+    /**
+     * With adaptive routing, a destination only moves to a new path if it is cheaper than the current one by at
+     * least this fraction.
+     */
+    private final static Double AdaptiveSwitchThreshold = .2;
+    /**
+     * With adaptive routing, after a destination or a flow moves to a new path it stays there for at least this
+     * long. Measured in milliseconds
+     */
+    private final static Integer AdaptiveHoldDown = 3000;
+    /**
+     * With adaptive routing, a flow that sends nothing through this Router for this long loses its pinned path.
+     * Measured in milliseconds
+     */
+    private final static Integer PinIdleTimeout = 2000;
+
+    /**
+     * Routing protocol used by this Router
+     */
+    private int routingProtocol;
+
     /**
      * Boolean indicating if routing tables have converged.
      */
     private boolean routingTablesConverged = false;
 
+    /**
+     * Simulation time at which the routing table converged. For distance vector routing this is when the table
+     * stopped changing between rounds; for link state routing it is when the table reached the state it then kept
+     * for LinkStateSettleTime. Null if the table has not converged yet.
+     */
+    private Integer convergenceTime;
+
+    /**
+     * With link state routing, the last time the routing table changed
+     */
+    private int linkStateChangeTime;
+
+    /**
+     * Number of times the forwarding table entry of an existing destination changed
+     */
+    private int routeChangeCount;
+
+    /**
+     * Number of times a pinned flow was moved to a different Link (adaptive routing only)
+     */
+    private int flowMoveCount;
+
     /**
      * The set of Links that this router is connected to.
      */
@@ -42,13 +104,119 @@ public class Router extends Node
     private LinkedList<HashMap<Node, Pair<Double, Link>>> previousRoutingTables;
 
     /**
-     * Generic constructor
+     * The forwarding table actually used to forward packets. HashMap: destination maps to the group of equal-cost
+     * Links leading to it. It is rebuilt from the routing table whenever that changes.
+     */
+    private HashMap<Node, NextHopGroup> forwardingTable;
+
+    /**
+     * The latest routing table received on every Link. Used to find equal-cost alternatives to the best Link.
+     */
+    private HashMap<Link, HashMap<Node, Pair<Double, Link>>> neighborRoutingTables;
+
+    /**
+     * Link state database: the latest advertisement received from every Router (including this one).
+     */
+    private HashMap<Router, LinkStatePacket> linkStateDatabase;
+
+    /**
+     * Shortest path tree rooted at this Router computed over the link state database.
+     */
+    private ShortestPathTree shortestPathTree;
+
+    /**
+     * With fast reroute, a shortest path tree rooted at each neighboring Router over the same database, to find
+     * loop-free alternates with. Updated along with this Router's own tree.
+     */
+    private HashMap<Node, ShortestPathTree> neighborTrees;
+
+    /**
+     * Sequence number of the latest advertisement this Router originated.
+     */
+    private int linkStateSequenceNumber;
+
+    /**
+     * Link costs in the latest advertisement this Router originated. Used to decide when to re-originate.
+     */
+    private HashMap<Node, Double> advertisedCosts;
+
+    /**
+     * With adaptive routing, the time until which each destination's routing table entry may not move to another
+     * Link.
+     */
+    private HashMap<Node, Integer> holdDownTimers;
+
+    /**
+     * Whether to keep a backup Link for every destination, so that routes are repaired the moment a Link goes down
+     * instead of after the routing protocol reconverges (fast reroute)
+     */
+    private boolean fastReroute;
+
+    /**
+     * With fast reroute, a loop-free alternate Link per destination: one outside its group whose neighbor does not
+     * reach the destination back through this Router. Used when every Link of the group is down.
+     */
+    private HashMap<Node, Link> backupLinks;
+
+    /**
+     * Forwarding table entries repaired around down Links, by destination. Cleared whenever a Link goes down or up
+     * or the forwarding table changes.
+     */
+    private HashMap<Node, NextHopGroup> repairedGroups;
+
+    /**
+     * Number of adjacent Links that are down. While it is 0, no entry needs repairing.
+     */
+    private int downLinkCount;
+
+    /**
+     * A flow's pinned path through this Router (adaptive routing only).
+     */
+    private static class FlowPin {
+        /**
+         * Link the flow is pinned to
+         */
+        public final Link link;
+        /**
+         * When the flow was pinned to the Link
+         */
+        public final int pinnedTime;
+        /**
+         * When the flow last sent a packet through this Router
+         */
+        public int lastUsedTime;
+
+        public FlowPin(Link link, int pinnedTime) {
+            this.link = link;
+            this.pinnedTime = pinnedTime;
+            this.lastUsedTime = pinnedTime;
+        }
+    }
+
+    /**
+     * With adaptive routing, pinned paths: destination maps to (flow id maps to pin).
+     */
+    private HashMap<Node, HashMap<Integer, FlowPin>> pinnedFlows;
+
+    /**
+     * Generic constructor, using distance vector routing
      * @param address address given to the Router
      * @param links adjacent Links
      */
     public Router(String address, ArrayList<Link> links) {
+        this(address, links, Main.RoutingProtocol.DISTANCE_VECTOR);
+    }
+
+    /**
+     * Construct a Router with a given routing protocol
+     * @param address address given to the Router
+     * @param links adjacent Links
+     * @param routingProtocol distance vector, link state, static or adaptive
+     */
+    public Router(String address, ArrayList<Link> links, int routingProtocol) {
         super(address);
         this.links = links;
+        this.routingProtocol = routingProtocol;
 
         //Generate HashMap
         packetsToSend = new HashMap<>();
@@ -57,23 +225,81 @@ public class Router extends Node
         }
 
         previousRoutingTables = new LinkedList<>();
+        forwardingTable = new HashMap<>();
+        neighborRoutingTables = new HashMap<>();
+        holdDownTimers = new HashMap<>();
+        pinnedFlows = new HashMap<>();
+        backupLinks = new HashMap<>();
+        repairedGroups = new HashMap<>();
     }
 
     public ArrayList<Link> getLinks() {
         return links;
     }
 
+    public Integer getConvergenceTime() {
+        return convergenceTime;
+    }
+
+    public int getRouteChangeCount() {
+        return routeChangeCount;
+    }
+
+    public int getFlowMoveCount() {
+        return flowMoveCount;
+    }
+
+    /**
+     * Change the routing protocol, for a Router built before its network's protocol was known. Must be called
+     * before the routing table is set up.
+     * @param routingProtocol distance vector, link state, static or adaptive
+     */
+    public void setRoutingProtocol(int routingProtocol) {
+        this.routingProtocol = routingProtocol;
+    }
+
+    /**
+     * Keep a backup Link for every destination from now on, so routes can be repaired as soon as a Link goes down.
+     * Must be called before the routing table is set up.
+     */
+    public void enableFastReroute() {
+        this.fastReroute = true;
+    }
+
+    /**
+     * The cost of using a Link for distance vector and adaptive routing. Adaptive routing uses the smoothed delay so
+     * that routes follow sustained load rather than momentary queueing.
+     * @param link an adjacent Link
+     * @return the cost
+     */
+    private Double getLinkCost(Link link) {
+        if (routingProtocol == Main.RoutingProtocol.ADAPTIVE)
+            return link.getSmoothedDelay(this);
+        return link.getDelay(this);
+    }
+
     /**
      * Initializes the next routing table to include information only about self and neighbors (everything the router
      * inherently knows). If the current routing table is null, it initializes that as well.
+     * For link state routing, builds the initial database from this Router's own advertisement instead. Static
+     * routes are installed from outside, so there is nothing to do for them.
      */
     public void initializeRoutingTable() {
+        if (routingProtocol == Main.RoutingProtocol.LINK_STATE) {
+            initializeLinkState();
+            return;
+        } else if (routingProtocol == Main.RoutingProtocol.STATIC) {
+            return;
+        }
+
         nextRoutingTable = new HashMap<>();
 
         //Add neighbors
         for(Link link : links) {
+            if (link.isDown())
+                continue;
             Node neighbor = link.getOtherEnd(this);
-            Pair<Double, Link> neighborInformation = Pair.of(link.getDelay(this), link);
+            Pair<Double, Link> neighborInformation = Pair.of(getLinkCost(link), link);
             nextRoutingTable.put(neighbor, neighborInformation);
         }
 
@@ -83,6 +309,7 @@ public class Router extends Node
 
         if(currentRoutingTable == null) {
             currentRoutingTable = nextRoutingTable;
+            rebuildForwardingTable();
             initializeRoutingTable();
         }
     }
@@ -94,10 +321,21 @@ public class Router extends Node
      * @param neighborRoutingTable and the routing table of the neighbor on that link
      */
     private void updateRoutingTable(Link connectingLink, HashMap<Node,Pair<Double,Link>> neighborRoutingTable) {
+        HashMap<Node, Pair<Double, Link>> previousNeighborTable = neighborRoutingTables.put(connectingLink,
+                neighborRoutingTable);
+        // With fast reroute, a neighbor gaining or losing destinations means the topology changed somewhere, so go
+        // back to exchanging tables often until they settle, rather than waiting out the slow converged interval
+        if (fastReroute && routingTablesConverged && (previousNeighborTable == null ||
+                !previousNeighborTable.keySet().equals(neighborRoutingTable.keySet())))
+            restartConvergence();
         for(Node node : neighborRoutingTable.keySet()) {
             Pair<Double, Link> neighborsKnowledge = neighborRoutingTable.get(node);
+            // Split horizon: a route the neighbor has through this Router is no route for this Router. Only needed
+            // once routes can disappear, so that a Router losing one doesn't learn it back from its neighbors
+            if (fastReroute && neighborsKnowledge.snd == connectingLink)
+                continue;
             Pair<Double, Link> myKnowledge = nextRoutingTable.get(node);
-            Double distanceThroughNeighbor = connectingLink.getDelay(this) + neighborsKnowledge.fst;
+            Double distanceThroughNeighbor = getLinkCost(connectingLink) + neighborsKnowledge.fst;
             if(myKnowledge == null || distanceThroughNeighbor < myKnowledge.fst) {
                 Pair<Double, Link> tableEntry = Pair.of(distanceThroughNeighbor, connectingLink);
                 nextRoutingTable.put(node, tableEntry);
@@ -105,9 +343,648 @@ public class Router extends Node
         }
     }
 
+    /**
+     * Install a precomputed forwarding table. Used for static routing, where the table never changes afterwards.
+     * @param forwardingTable destination maps to the group of Links leading to it
+     */
+    public void installForwardingTable(HashMap<Node, NextHopGroup> forwardingTable) {
+        installForwardingTable(forwardingTable, new HashMap<Node, Link>());
+    }
+
+    /**
+     * Install a precomputed forwarding table along with backup Links for fast reroute.
+     * @param forwardingTable destination maps to the group of Links leading to it
+     * @param backupLinks destination maps to its loop-free alternate Link, where it has one
+     */
+    public void installForwardingTable(HashMap<Node, NextHopGroup> forwardingTable, HashMap<Node, Link> backupLinks) {
+        this.backupLinks = backupLinks;
+        setForwardingTable(forwardingTable);
+        this.routingTablesConverged = true;
+        this.convergenceTime = Main.currentTime;
+    }
+
+    /**
+     * Replace the forwarding table, counting the destinations whose group of Links changed.
+     * @param table the new forwarding table
+     */
+    private void setForwardingTable(HashMap<Node, NextHopGroup> table) {
+        for (Map.Entry<Node, NextHopGroup> entry : table.entrySet()) {
+            NextHopGroup oldGroup = forwardingTable.get(entry.getKey());
+            if (oldGroup != null && !oldGroup.hasSameLinks(entry.getValue()))
+                routeChangeCount++;
+        }
+        forwardingTable = table;
+        repairedGroups.clear();
+    }
+
+    /**
+     * Check whether a neighbor is a loop-free alternate on the way to a destination: its own shortest path there
+     * does not come back through this Router.
+     * @param neighborToDestination the neighbor's distance to the destination
+     * @param neighborToThis the neighbor's distance to this Router
+     * @param thisToDestination this Router's distance to the destination
+     * @return true if the neighbor is loop-free
+     */
+    private static boolean isLoopFree(double neighborToDestination, double neighborToThis, double thisToDestination) {
+        return neighborToDestination + EqualCostTolerance < neighborToThis + thisToDestination;
+    }
+
+    /**
+     * Choose the backup Link of every destination from the routing tables last received from the neighbors: the
+     * cheapest Link outside the destination's group whose neighbor is loop-free.
+     * @param table the forwarding table
+     */
+    private void computeDistanceVectorBackups(HashMap<Node, NextHopGroup> table) {
+        HashMap<Node, Link> backups = new HashMap<>();
+        for (Map.Entry<Node, NextHopGroup> entry : table.entrySet()) {
+            Node destination = entry.getKey();
+            // A destination kept after becoming unreachable has no neighbor to back it up
+            Pair<Double, Link> route = currentRoutingTable.get(destination);
+            if (route == null)
+                continue;
+            double distance = route.fst;
+            Link backup = null;
+            double backupCost = Double.POSITIVE_INFINITY;
+            for (Link link : links) {
+                HashMap<Node, Pair<Double, Link>> neighborTable = neighborRoutingTables.get(link);
+                if (neighborTable == null || link.isDown() || entry.getValue().getLinks().contains(link))
+                    continue;
+                Pair<Double, Link> toDestination = neighborTable.get(destination);
+                Pair<Double, Link> toThis = neighborTable.get(this);
+                if (toDestination == null ||
+                        !isLoopFree(toDestination.fst, toThis == null ? getLinkCost(link) : toThis.fst, distance))
+                    continue;
+                double cost = getLinkCost(link) + toDestination.fst;
+                if (cost < backupCost) {
+                    backup = link;
+                    backupCost = cost;
+                }
+            }
+            if (backup != null)
+                backups.put(destination, backup);
+        }
+        backupLinks = backups;
+    }
+
+    /**
+     * Find the Links to use for a destination while some adjacent Links are down: the Links of its group that are
+     * still up, or failing that its backup Link.
+     * @param destination the destination
+     * @param group the destination's group in the forwarding table
+     * @return the repaired group, or the group itself if nothing is left to repair it with
+     */
+    private NextHopGroup repairRoute(Node destination, NextHopGroup group) {
+        NextHopGroup repaired = repairedGroups.get(destination);
+        if (repaired != null)
+            return repaired;
+        ArrayList<Link> liveLinks = new ArrayList<>(group.size());
+        for (Link link : group.getLinks()) {
+            if (!link.isDown())
+                liveLinks.add(link);
+        }
+        if (liveLinks.size() == group.size()) {
+            repaired = group;
+        } else if (!liveLinks.isEmpty()) {
+            repaired = new NextHopGroup(liveLinks);
+        } else {
+            // Packets sent along the dead group are dropped by its Link and charged to the failure
+            Link backup = backupLinks.get(destination);
+            repaired = (backup == null || backup.isDown()) ? group : new NextHopGroup(backup);
+        }
+        repairedGroups.put(destination, repaired);
+        return repaired;
+    }
+
+    /**
+     * React to an adjacent Link going down or coming back up. When it goes down, every route through it is
+     * repaired at once, and the routing protocol is told so that it converges on the new topology.
+     * @param link the Link
+     */
+    public void adjacentLinkChanged(Link link) {
+        repairedGroups.clear();
+        if (link.isDown()) {
+            downLinkCount++;
+            neighborRoutingTables.remove(link);
+            for (Map.Entry<Node, NextHopGroup> entry : forwardingTable.entrySet()) {
+                NextHopGroup group = entry.getValue();
+                if (!group.getLinks().contains(link))
+                    continue;
+                Link firstLink = repairRoute(entry.getKey(), group).getLinks().get(0);
+                link.getFailure().recordRepair(!firstLink.isDown() && group.getLinks().contains(firstLink),
+                        !firstLink.isDown() && !group.getLinks().contains(firstLink));
+            }
+        } else {
+            downLinkCount--;
+        }
+
+        if (routingProtocol == Main.RoutingProtocol.LINK_STATE) {
+            originateLinkState();
+        } else if (routingProtocol == Main.RoutingProtocol.DISTANCE_VECTOR ||
+                routingProtocol == Main.RoutingProtocol.ADAPTIVE) {
+            restartConvergence();
+        }
+    }
+
+    /**
+     * Go back to exchanging tables often until the tables settle again. The tables from before the change don't
+     * count towards settling.
+     */
+    private void restartConvergence() {
+        routingTablesConverged = false;
+        previousRoutingTables.clear();
+    }
+
+    /**
+     * The cost of reaching a destination through an adjacent Link, according to the routing table last received on
+     * that Link.
+     * @param link an adjacent Link
+     * @param destination the destination
+     * @return the cost, or null if the neighbor on that Link did not advertise the destination or reaches it through
+     * this Router
+     */
+    private Double getCostThrough(Link link, Node destination) {
+        Double advertised = getAdvertisedDistance(link, destination);
+        return (advertised == null) ? null : getLinkCost(link) + advertised;
+    }
+
+    /**
+     * The distance to a destination that the neighbor on an adjacent Link advertised in the routing table last
+     * received on that Link.
+     * @param link an adjacent Link
+     * @param destination the destination
+     * @return the distance, 0 if the neighbor is the destination, or null if the neighbor did not advertise the
+     * destination or reaches it through this Router
+     */
+    private Double getAdvertisedDistance(Link link, Node destination) {
+        if (link.isDown())
+            return null;
+        if (link.getOtherEnd(this) == destination)
+            return 0.0;
+        HashMap<Node, Pair<Double, Link>> neighborTable = neighborRoutingTables.get(link);
+        Pair<Double, Link> neighborEntry = (neighborTable == null) ? null : neighborTable.get(destination);
+        // Tables from different rounds can disagree, so never trust a path that comes straight back to us
+        if (neighborEntry == null || neighborEntry.snd == link)
+            return null;
+        return neighborEntry.fst;
+    }
+
+    /**
+     * Whether the neighbor on an adjacent Link is downstream of this Router for a destination, i.e. advertised a
+     * distance to it strictly below this Router's own. Forwarding only to downstream neighbors cannot loop, however
+     * far apart the rounds of the tables it is based on.
+     * @param link an adjacent Link
+     * @param destination the destination
+     * @param distance this Router's own distance to the destination
+     * @return true if the neighbor is downstream
+     */
+    private boolean isDownstream(Link link, Node destination, double distance) {
+        Double advertised = getAdvertisedDistance(link, destination);
+        return advertised != null && advertised < distance;
+    }
+
+    /**
+     * Rebuild the forwarding table from the current distance vector routing table. Besides the best Link, every Link
+     * whose neighbor advertised a path of equal total cost joins the destination's group, as long as that neighbor is
+     * downstream of this Router. Without that condition the neighbors' tables, which come from different rounds,
+     * could send traffic round a loop through an extra path while they settle.
+     */
+    private void rebuildForwardingTable() {
+        HashMap<Node, NextHopGroup> table = new HashMap<>();
+        for (Map.Entry<Node, Pair<Double, Link>> entry : currentRoutingTable.entrySet()) {
+            Node destination = entry.getKey();
+            Link bestLink = entry.getValue().snd;
+            // Nothing to forward to ourselves
+            if (bestLink == null)
+                continue;
+            NextHopGroup group = new NextHopGroup(bestLink);
+            for (Link link : links) {
+                if (link == bestLink)
+                    continue;
+                Double cost = getCostThrough(link, destination);
+                if (cost == null || cost > entry.getValue().fst + EqualCostTolerance ||
+                        !isDownstream(link, destination, entry.getValue().fst))
+                    continue;
+                // An adaptive Router may be kept on a path dearer than the best, and only shares it with equals
+                if (routingProtocol == Main.RoutingProtocol.ADAPTIVE &&
+                        cost < entry.getValue().fst - EqualCostTolerance)
+                    continue;
+                group.add(link);
+            }
+            if (routingProtocol == Main.RoutingProtocol.ADAPTIVE)
+                group = keepCurrentGroup(destination, group, bestLink, entry.getValue().fst);
+            table.put(destination, group);
+        }
+        // Destinations no longer reachable keep their old group, which fast reroute repairs or drops packets on
+        for (Map.Entry<Node, NextHopGroup> entry : forwardingTable.entrySet()) {
+            if (!table.containsKey(entry.getKey()))
+                table.put(entry.getKey(), entry.getValue());
+        }
+        if (fastReroute)
+            computeDistanceVectorBackups(table);
+        setForwardingTable(table);
+
+        if (routingProtocol == Main.RoutingProtocol.ADAPTIVE)
+            reviewFlowPins();
+    }
+
+    /**
+     * Keep destinations of a newly computed routing table on the Links they use now, unless the current path is gone,
+     * or the new path is cheaper by the switch threshold and the destination is not held down after a recent move.
+     * A destination that stays is given the cost of its current path, so what this Router advertises is always the
+     * path it forwards on.
+     * @param table the newly computed routing table, changed in place
+     */
+    private void dampRouteChanges(HashMap<Node, Pair<Double, Link>> table) {
+        for (Map.Entry<Node, Pair<Double, Link>> entry : table.entrySet()) {
+            Node destination = entry.getKey();
+            Pair<Double, Link> candidate = entry.getValue();
+            Pair<Double, Link> current = currentRoutingTable.get(destination);
+            if (candidate.snd == null || current == null || current.snd == null || current.snd == candidate.snd)
+                continue;
+
+            Double currentCost = getCostThrough(current.snd, destination);
+            if (currentCost != null) {
+                Integer holdDownEnd = holdDownTimers.get(destination);
+                boolean heldDown = holdDownEnd != null && Main.currentTime < holdDownEnd;
+                boolean worthSwitching = candidate.fst < currentCost * (1 - AdaptiveSwitchThreshold);
+                if (heldDown || !worthSwitching) {
+                    entry.setValue(Pair.of(currentCost, current.snd));
+                    continue;
+                }
+            }
+            holdDownTimers.put(destination, Main.currentTime + AdaptiveHoldDown);
+        }
+    }
+
+    /**
+     * With adaptive routing, keep a destination's current group of Links while it still holds the Link its routing
+     * table entry uses and every Link of it is within the switch threshold of that entry's cost and still leads to a
+     * downstream neighbor, so that Links don't join and leave the group with every small change in load.
+     * @param destination the destination
+     * @param candidate the newly computed group
+     * @param bestLink the Link the routing table entry uses
+     * @param cost the cost of the routing table entry
+     * @return the group to use
+     */
+    private NextHopGroup keepCurrentGroup(Node destination, NextHopGroup candidate, Link bestLink, Double cost) {
+        NextHopGroup current = forwardingTable.get(destination);
+        if (current == null || current.hasSameLinks(candidate) || !current.getLinks().contains(bestLink))
+            return candidate;
+        for (Link link : current.getLinks()) {
+            Double linkCost = getCostThrough(link, destination);
+            if (linkCost == null || linkCost * (1 - AdaptiveSwitchThreshold) > cost)
+                return candidate;
+            if (link != bestLink && !isDownstream(link, destination, cost))
+                return candidate;
+        }
+        return current;
+    }
+
+    /**
+     * The cost of reaching a destination through the cheapest Link of a group.
+     * @param group the group
+     * @param destination the destination
+     * @return the cost, or null if no Link in the group still leads to the destination
+     */
+    private Double getGroupCost(NextHopGroup group, Node destination) {
+        Double best = null;
+        for (Link link : group.getLinks()) {
+            Double cost = getCostThrough(link, destination);
+            if (cost != null && (best == null || cost < best))
+                best = cost;
+        }
+        return best;
+    }
+
+    /**
+     * Release pins of idle flows, and unpin flows whose Link has left the destination's group when that Link no
+     * longer leads to the destination, or is worse than the new group by the switch threshold and the pin is past
+     * its hold-down. Unpinned flows are pinned again to the current group by their next packet.
+     */
+    private void reviewFlowPins() {
+        for (Map.Entry<Node, HashMap<Integer, FlowPin>> destinationPins : pinnedFlows.entrySet()) {
+            Node destination = destinationPins.getKey();
+            NextHopGroup group = forwardingTable.get(destination);
+            Double groupCost = (group == null) ? null : getGroupCost(group, destination);
+            Iterator<FlowPin> it = destinationPins.getValue().values().iterator();
+            while (it.hasNext()) {
+                FlowPin pin = it.next();
+                if (Main.currentTime - pin.lastUsedTime > PinIdleTimeout) {
+                    it.remove();
+                    continue;
+                }
+                if (group == null || group.getLinks().contains(pin.link))
+                    continue;
+                Double pinCost = getCostThrough(pin.link, destination);
+                boolean pastHoldDown = Main.currentTime >= pin.pinnedTime + AdaptiveHoldDown;
+                if (pinCost == null ||
+                        (pastHoldDown && groupCost != null && groupCost < pinCost * (1 - AdaptiveSwitchThreshold))) {
+                    it.remove();
+                    flowMoveCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Choose the Link for a packet with adaptive routing. Packets of a flow keep using the Link the flow was pinned
+     * to; a flow without a pin is pinned to the Link its hash selects in the destination's group.
+     * @param packet the packet
+     * @param nextHops the destination's group
+     * @return the Link to forward on
+     */
+    private Link selectPinnedLink(Packet packet, NextHopGroup nextHops) {
+        if (packet.getFlowID() == Packet.NoFlowID)
+            return nextHops.select(packet);
+        HashMap<Integer, FlowPin> destinationPins = pinnedFlows.get(packet.getDestination());
+        if (destinationPins == null) {
+            destinationPins = new HashMap<>();
+            pinnedFlows.put(packet.getDestination(), destinationPins);
+        }
+        FlowPin pin = destinationPins.get(packet.getFlowID());
+        // A flow pinned to a Link that went down moves, unless fast reroute had nowhere else to send it
+        if (pin != null && pin.link.isDown() && !nextHops.getLinks().contains(pin.link)) {
+            pin = null;
+            flowMoveCount++;
+        }
+        if (pin == null) {
+            pin = new FlowPin(nextHops.select(packet), Main.currentTime);
+            destinationPins.put(packet.getFlowID(), pin);
+        }
+        pin.lastUsedTime = Main.currentTime;
+        // A FIN, or the reply to one, is the last packet of its flow this way
+        if (packet instanceof FinPacket)
+            destinationPins.remove(packet.getFlowID());
+        return pin.link;
+    }
+
+    /**
+     * Set up an empty link state database and shortest path tree, then originate this Router's first advertisement.
+     */
+    private void initializeLinkState() {
+        linkStateDatabase = new HashMap<>();
+        shortestPathTree = new ShortestPathTree(this);
+        neighborTrees = new HashMap<>();
+        if (fastReroute) {
+            for (Link link : links) {
+                Node neighbor = link.getOtherEnd(this);
+                if (neighbor instanceof Router && !neighborTrees.containsKey(neighbor))
+                    neighborTrees.put(neighbor, new ShortestPathTree(neighbor));
+            }
+        }
+        currentRoutingTable = new HashMap<>();
+        currentRoutingTable.put(this, Pair.of(0.0, (Link) null));
+        linkStateSequenceNumber = 0;
+        originateLinkState();
+    }
+
+    /**
+     * Compute the cost of reaching each neighbor. With parallel links to the same neighbor the cheapest one counts.
+     * @return neighbor maps to cost
+     */
+    private HashMap<Node, Double> computeNeighborCosts() {
+        HashMap<Node, Double> costs = new HashMap<>();
+        for (Link link : links) {
+            if (link.isDown())
+                continue;
+            Node neighbor = link.getOtherEnd(this);
+            Double cost = getLinkStateCost(link);
+            Double existing = costs.get(neighbor);
+            if (existing == null || cost < existing)
+                costs.put(neighbor, cost);
+        }
+        return costs;
+    }
+
+    /**
+     * The cost of a Link in link state advertisements: its propagation delay. Queueing delay is left out, so that
+     * advertisements aren't flooded and routes don't move every time a buffer fills or drains.
+     * @param link an adjacent Link
+     * @return the cost
+     */
+    private Double getLinkStateCost(Link link) {
+        return (double) link.getLinkDelay();
+    }
+
+    /**
+     * Find the cheapest Link to an adjacent Node.
+     * @param neighbor adjacent Node
+     * @return the Link, or null if the Node is not adjacent
+     */
+    private Link getLinkTo(Node neighbor) {
+        Link bestLink = null;
+        for (Link link : links) {
+            if (link.getOtherEnd(this) == neighbor && !link.isDown() &&
+                    (bestLink == null || getLinkStateCost(link) < getLinkStateCost(bestLink)))
+                bestLink = link;
+        }
+        return bestLink;
+    }
+
+    /**
+     * Update the forwarding table from the shortest path tree. A destination's group holds the cheapest Links to
+     * every neighbor that begins a shortest path to it. Destinations that can no longer be reached keep their old
+     * group, as they do with distance vector routing, so their packets are dropped where the path is broken.
+     * @param destinations the destinations whose first hops changed, or null for every destination, as when this
+     * Router's own Links change
+     */
+    private void updateLinkStateForwardingTable(Set<Node> destinations) {
+        Collection<Node> regrouped = (destinations == null) ? shortestPathTree.getReachableNodes() : destinations;
+        for (Node destination : regrouped) {
+            HashSet<Node> firstHops = shortestPathTree.getEqualCostFirstHops(destination);
+            if (destination == this || firstHops == null)
+                continue;
+            NextHopGroup group = null;
+            for (Node neighbor : firstHops) {
+                Link cheapest = getLinkTo(neighbor);
+                if (cheapest == null)
+                    continue;
+                for (Link link : links) {
+                    if (link.getOtherEnd(this) == neighbor && !link.isDown() &&
+                            getLinkStateCost(link) <= getLinkStateCost(cheapest) + EqualCostTolerance) {
+                        if (group == null)
+                            group = new NextHopGroup(link);
+                        else
+                            group.add(link);
+                    }
+                }
+            }
+            if (group != null)
+                setForwardingGroup(destination, group);
+        }
+    }
+
+    /**
+     * Replace the group of one destination in the forwarding table, counting it if its Links changed.
+     * @param destination the destination
+     * @param group its new group
+     */
+    private void setForwardingGroup(Node destination, NextHopGroup group) {
+        NextHopGroup oldGroup = forwardingTable.put(destination, group);
+        if (oldGroup != null && !oldGroup.hasSameLinks(group))
+            routeChangeCount++;
+        repairedGroups.remove(destination);
+    }
+
+    /**
+     * Choose the backup Link of destinations from the shortest path trees rooted at each neighboring Router: the
+     * cheapest Link outside the destination's group whose neighbor is loop-free.
+     * @param destinations the destinations to choose for, or null for every destination in the forwarding table
+     */
+    private void updateLinkStateBackups(Set<Node> destinations) {
+        Collection<Node> stale = (destinations == null) ? forwardingTable.keySet() : destinations;
+        for (Node destination : stale) {
+            NextHopGroup group = forwardingTable.get(destination);
+            Double distance = shortestPathTree.getDistance(destination);
+            Link backup = null;
+            double backupCost = Double.POSITIVE_INFINITY;
+            for (Link link : links) {
+                ShortestPathTree tree = neighborTrees.get(link.getOtherEnd(this));
+                if (group == null || distance == null || tree == null || link.isDown() ||
+                        group.getLinks().contains(link))
+                    continue;
+                Double toDestination = tree.getDistance(destination);
+                Double toThis = tree.getDistance(this);
+                if (toDestination == null || toThis == null || !isLoopFree(toDestination, toThis, distance))
+                    continue;
+                double cost = getLinkStateCost(link) + toDestination;
+                if (cost < backupCost) {
+                    backup = link;
+                    backupCost = cost;
+                }
+            }
+            if (backup != null)
+                backupLinks.put(destination, backup);
+            else
+                backupLinks.remove(destination);
+            repairedGroups.remove(destination);
+        }
+    }
+
+    /**
+     * Originate a new advertisement of this Router's current link costs, install it locally and flood it to every
+     * neighboring Router.
+     */
+    private void originateLinkState() {
+        advertisedCosts = computeNeighborCosts();
+        Node[] neighbors = new Node[advertisedCosts.size()];
+        double[] costs = new double[advertisedCosts.size()];
+        int i = 0;
+        for (Map.Entry<Node, Double> entry : advertisedCosts.entrySet()) {
+            neighbors[i] = entry.getKey();
+            costs[i] = entry.getValue();
+            i++;
+        }
+        linkStateSequenceNumber++;
+        LinkStatePacket advertisement = new LinkStatePacket(this, this, this, linkStateSequenceNumber,
+                neighbors, costs);
+        installLinkState(advertisement);
+        floodLinkState(advertisement, null);
+    }
+
+    /**
+     * Handle an advertisement received from a neighbor: if it is newer than what the database holds, install it and
+     * keep flooding it.
+     * @param advertisement the advertisement
+     * @param receivingLink the Link it arrived on (it is not flooded back along this Link)
+     */
+    private void receiveLinkStatePacket(LinkStatePacket advertisement, Link receivingLink) {
+        if (advertisement.getOrigin() == this)
+            return;
+        LinkStatePacket known = linkStateDatabase.get(advertisement.getOrigin());
+        if (known != null && known.getSequenceNumber() >= advertisement.getSequenceNumber())
+            return;
+        installLinkState(advertisement);
+        floodLinkState(advertisement, receivingLink);
+    }
+
+    /**
+     * Send copies of an advertisement to every neighboring Router.
+     * @param advertisement the advertisement to flood
+     * @param exceptLink Link not to flood along, may be null
+     */
+    private void floodLinkState(LinkStatePacket advertisement, Link exceptLink) {
+        for (Link link : links) {
+            Node otherEnd = link.getOtherEnd(this);
+            if (link != exceptLink && otherEnd instanceof Router && !link.isDown())
+                packetsToSend.get(link).addFirst(advertisement.floodTo(this, otherEnd));
+        }
+    }
+
+    /**
+     * Store an advertisement in the database and incrementally update the shortest path trees, forwarding table and
+     * routing table for the destinations it affects.
+     * @param advertisement the advertisement
+     */
+    private void installLinkState(LinkStatePacket advertisement) {
+        Router origin = advertisement.getOrigin();
+        LinkStatePacket previous = linkStateDatabase.put(origin, advertisement);
+        HashMap<Node, Double> edges = getAdjacencies(advertisement);
+        Set<Node> changed = shortestPathTree.setEdges(origin, edges);
+
+        if (previous == null || !edges.equals(getAdjacencies(previous))) {
+            // Equal-cost alternatives can appear without any distance changing, so the heads of the origin's edges,
+            // old and new, are looked at as well
+            HashSet<Node> seeds = new HashSet<>(changed);
+            seeds.addAll(edges.keySet());
+            if (previous != null)
+                seeds.addAll(getAdjacencies(previous).keySet());
+            Set<Node> regrouped = shortestPathTree.updateEqualCostFirstHops(seeds, EqualCostTolerance);
+            // A change to this Router's own Links can change the group of every destination
+            boolean ownLinks = origin == this;
+            updateLinkStateForwardingTable(ownLinks ? null : regrouped);
+            if (fastReroute) {
+                HashSet<Node> stale = new HashSet<>(changed);
+                stale.addAll(regrouped);
+                for (ShortestPathTree tree : neighborTrees.values()) {
+                    Set<Node> treeChanged = tree.setEdges(origin, edges);
+                    // A neighbor's distance back to this Router counts for every destination
+                    ownLinks |= treeChanged.contains(this);
+                    stale.addAll(treeChanged);
+                }
+                updateLinkStateBackups(ownLinks ? null : stale);
+            }
+        }
+
+        boolean tableChanged = false;
+        for (Node node : changed) {
+            Pair<Double, Link> oldEntry = currentRoutingTable.get(node);
+            Double distance = shortestPathTree.getDistance(node);
+            if (distance == null) {
+                if (currentRoutingTable.remove(node) != null)
+                    tableChanged = true;
+                continue;
+            }
+            Link firstLink = getLinkTo(shortestPathTree.getFirstHop(node));
+            if (oldEntry == null || oldEntry.snd != firstLink)
+                tableChanged = true;
+            currentRoutingTable.put(node, Pair.of(distance, firstLink));
+        }
+        if (tableChanged) {
+            linkStateChangeTime = Main.currentTime;
+            routingTablesConverged = false;
+        }
+    }
+
+    /**
+     * Read the adjacencies of an advertisement into a map.
+     * @param advertisement the advertisement
+     * @return neighbor maps to cost
+     */
+    private static HashMap<Node, Double> getAdjacencies(LinkStatePacket advertisement) {
+        HashMap<Node, Double> edges = new HashMap<>();
+        Node[] neighbors = advertisement.getNeighbors();
+        double[] costs = advertisement.getCosts();
+        for (int i = 0; i < neighbors.length; ++i) {
+            edges.put(neighbors[i], costs[i]);
+        }
+        return edges;
+    }
+
     /**
      * When a non-routingtablepacket is received it is forwarded along the appropriate link in accordance to the routing table.
      * When a routingtablepacket is received it is used to recompute the routing table.
+     * When a linkstatepacket is received it is used to update the link state database.
      * @param packet The packet being receiving
      * @param receivingLink The link that it was sent on
      */
@@ -115,14 +992,19 @@ public class Router extends Node
         if (packet instanceof RoutingTablePacket) {
             RoutingTablePacket rpacket = (RoutingTablePacket) packet;
             updateRoutingTable(receivingLink, rpacket.getRoutingTable());
+        } else if (packet instanceof LinkStatePacket) {
+            receiveLinkStatePacket((LinkStatePacket) packet, receivingLink);
         } else {
             Node destination = packet.getDestination();
-            //Check the routing table for which link to send out these packets on
-            Pair<Double, Link> bestPath = currentRoutingTable.get(destination);
-            if (bestPath == null) {
+            //Check the forwarding table for which links lead to the destination and pick one for the packet's flow
+            NextHopGroup nextHops = forwardingTable.get(destination);
+            if (nextHops == null) {
                 System.out.println("Destination unknown in routing table.");
             } else {
-                Link bestLink = bestPath.snd;
+                if (downLinkCount > 0)
+                    nextHops = repairRoute(destination, nextHops);
+                Link bestLink = (routingProtocol == Main.RoutingProtocol.ADAPTIVE) ?
+                        selectPinnedLink(packet, nextHops) : nextHops.select(packet);
                 Deque<Packet> sendingQueue = packetsToSend.get(bestLink);
                 sendingQueue.add(packet);
             }
@@ -136,6 +1018,42 @@ public class Router extends Node
      * Pays no attention to any constraints.
      */
     public void update() {
+        if (routingProtocol == Main.RoutingProtocol.LINK_STATE)
+            updateLinkState();
+        else if (routingProtocol == Main.RoutingProtocol.DISTANCE_VECTOR ||
+                routingProtocol == Main.RoutingProtocol.ADAPTIVE)
+            updateDistanceVector();
+
+        /**
+         * For every link, send all the packets if they exist
+         */
+        for(Link link : links) {
+            Deque<Packet> sendingQueue = packetsToSend.get(link);
+            while(!sendingQueue.isEmpty())
+                link.addPacket(sendingQueue.remove(), this);
+        }
+    }
+
+    /**
+     * Re-originate this Router's advertisement when its link costs have changed, and periodically refresh it. Note
+     * when the routing table has settled.
+     */
+    private void updateLinkState() {
+        if (Main.currentTime > 0 && Main.currentTime % LinkStateRefreshInterval == 0) {
+            originateLinkState();
+        } else if (Main.currentTime % LinkStateCheckInterval == 0 && !computeNeighborCosts().equals(advertisedCosts)) {
+            originateLinkState();
+        }
+        if (!routingTablesConverged && Main.currentTime - linkStateChangeTime >= LinkStateSettleTime) {
+            routingTablesConverged = true;
+            convergenceTime = linkStateChangeTime;
+        }
+    }
+
+    /**
+     * Send the routing table to the neighbors and swap in the next routing table, both periodically.
+     */
+    private void updateDistanceVector() {
 
         /*
          * Forward packets to the neighbors on a periodic interval
@@ -143,6 +1061,8 @@ public class Router extends Node
         if((routingTablesConverged && Main.currentTime % 4000 == 0) ||
                 (!routingTablesConverged && Main.currentTime % 100 == 0)) {
             for(Link link : links) {
+                if (link.isDown())
+                    continue;
                 Node otherEnd = link.getOtherEnd(this);
                 RoutingTablePacket routingTablePacket = new RoutingTablePacket(this, otherEnd, currentRoutingTable);
                 packetsToSend.get(link).addFirst(routingTablePacket);
@@ -173,34 +1093,33 @@ public class Router extends Node
                             }
                         }
                     }
-                    if (agreement)
+                    if (agreement) {
                         routingTablesConverged = true;
+                        convergenceTime = Main.currentTime;
+                    }
                 }
             }
             previousRoutingTables.addFirst(currentRoutingTable);
 
             /*
              * As part of switching to the next routing table, we need to make sure that it has every entry that was
-             * in the old routing table. Do this by copying over any entries that weren't.
+             * in the old routing table. Do this by copying over any entries that weren't, except those through a
+             * Link that is down, so that destinations lost with it stop being advertised.
              */
             for(Node node : currentNodesKnown) {
                 if(!nextRoutingTable.containsKey(node)) {
                     Pair<Double, Link> entry = currentRoutingTable.get(node);
+                    if (entry.snd != null && entry.snd.isDown())
+                        continue;
                     nextRoutingTable.put(node, entry);
                 }
             }
 
+            if (routingProtocol == Main.RoutingProtocol.ADAPTIVE)
+                dampRouteChanges(nextRoutingTable);
             currentRoutingTable = nextRoutingTable;
+            rebuildForwardingTable();
             initializeRoutingTable();
         }
-
-        /**
-         * For every link, send all the packets if they exist
-         */
-        for(Link link : links) {
-            Deque<Packet> sendingQueue = packetsToSend.get(link);
-            while(!sendingQueue.isEmpty())
-                link.addPacket(sendingQueue.remove(), this);
-        }
     }
 }
\ No newline at end of file
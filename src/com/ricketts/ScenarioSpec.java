@@ -0,0 +1,100 @@
+package com.ricketts;
+
+import java.util.HashMap;
+
+/**
+ * A short command line description of something to build, of the form "name:key=value,key=value", e.g.
+ * "fattree:k=4,capacity=100". Values are taken out as they are read, so anything left over was misspelled.
+ */
+public class ScenarioSpec {
+    /**
+     * The spec as written
+     */
+    private final String text;
+    private final String name;
+    /**
+     * Values not read yet, by key
+     */
+    private final HashMap<String, String> values;
+
+    /**
+     * Split a spec into its name and values.
+     * @param text the spec
+     * @throws TopologyParseException if a value isn't written as key=value
+     */
+    public ScenarioSpec(String text) throws TopologyParseException {
+        this.text = text;
+        int colon = text.indexOf(':');
+        this.name = colon < 0 ? text : text.substring(0, colon);
+        this.values = new HashMap<>();
+        if (colon >= 0 && colon < text.length() - 1) {
+            for (String pair : text.substring(colon + 1).split(",")) {
+                int equals = pair.indexOf('=');
+                if (equals < 0)
+                    throw new TopologyParseException(text, 0, "expected key=value, got \"" + pair + "\"");
+                values.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+            }
+        }
+    }
+
+    public String getName() { return name; }
+
+    @Override
+    public String toString() { return text; }
+
+    /**
+     * Take a text value.
+     * @param key the value's key
+     * @param defaultValue value if it isn't given
+     * @return the value
+     */
+    public String getString(String key, String defaultValue) {
+        String value = values.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Take an integer value.
+     * @param key the value's key
+     * @param defaultValue value if it isn't given
+     * @return the value
+     * @throws IllegalArgumentException if the value isn't an integer
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = values.remove(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be an integer, got \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Take a decimal value.
+     * @param key the value's key
+     * @param defaultValue value if it isn't given
+     * @return the value
+     * @throws IllegalArgumentException if the value isn't a number
+     */
+    public double getDouble(String key, double defaultValue) {
+        String value = values.remove(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, got \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Check that every value has been taken.
+     * @throws TopologyParseException if any are left
+     */
+    public void checkAllUsed() throws TopologyParseException {
+        if (!values.isEmpty())
+            throw new TopologyParseException(text, 0, "unknown parameters " + values.keySet());
+    }
+}
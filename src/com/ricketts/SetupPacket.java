@@ -22,9 +22,10 @@ public class SetupPacket extends Packet {
      * @param source Where the packet is coming from
      * @param destination Where the packet is going to
      * @param maxPacketID Number of packets that will be arriving
+     * @param flowID ID of the Flow being set up
      */
-    public SetupPacket(Integer packetID, Host source, Host destination, Integer maxPacketID) {
-        super(packetID, SetupPacketSize, source, destination);
+    public SetupPacket(Integer packetID, Host source, Host destination, Integer maxPacketID, int flowID) {
+        super(packetID, SetupPacketSize, source, destination, flowID);
         this.maxPacketID = maxPacketID;
     }
 }
\ No newline at end of file
@@ -0,0 +1,386 @@
+package com.ricketts;
+
+import java.util.*;
+
+/**
+ * A shortest path tree rooted at a single Node, computed by Dijkstra's algorithm over a directed graph of
+ * advertised adjacencies. The tree supports incremental updates: when the adjacencies of one Node change, only the
+ * parts of the tree affected by the changed edges are recomputed.
+ *
+ * An edge cost increase on a tree edge invalidates the subtree below it; those nodes are reattached by running
+ * Dijkstra seeded from their best neighbors outside the subtree. A cost decrease is propagated by running Dijkstra
+ * from the head of the improved edge. Edges that are not in the tree and get more expensive need no work at all.
+ */
+public class ShortestPathTree {
+    /**
+     * Root of the tree (the computing Router)
+     */
+    private final Node root;
+
+    /**
+     * Outgoing edges: node maps to (neighbor maps to cost)
+     */
+    private final HashMap<Node, HashMap<Node, Double>> outgoingEdges;
+    /**
+     * Incoming edges: node maps to (neighbor maps to cost). Needed to reattach invalidated subtrees.
+     */
+    private final HashMap<Node, HashMap<Node, Double>> incomingEdges;
+
+    /**
+     * Current distance from the root for every reachable node
+     */
+    private final HashMap<Node, Double> distances;
+    /**
+     * Predecessor of every reachable node in the tree
+     */
+    private final HashMap<Node, Node> parents;
+    /**
+     * Successors of every node in the tree
+     */
+    private final HashMap<Node, HashSet<Node>> children;
+    /**
+     * Every neighbor of the root that begins a shortest path to a node, for every reachable node but the root, as of
+     * the last call to updateEqualCostFirstHops
+     */
+    private final HashMap<Node, HashSet<Node>> firstHops;
+
+    /**
+     * Entry in the Dijkstra priority queue. Entries are never removed; stale ones are skipped when polled.
+     */
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        public final Node node;
+        public final double distance;
+
+        public QueueEntry(Node node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+
+        public int compareTo(QueueEntry other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    /**
+     * Construct an empty tree containing only the root.
+     * @param root the root of the tree
+     */
+    public ShortestPathTree(Node root) {
+        this.root = root;
+        this.outgoingEdges = new HashMap<>();
+        this.incomingEdges = new HashMap<>();
+        this.distances = new HashMap<>();
+        this.parents = new HashMap<>();
+        this.children = new HashMap<>();
+        this.firstHops = new HashMap<>();
+        distances.put(root, 0.0);
+    }
+
+    public Double getDistance(Node node) { return distances.get(node); }
+    public Node getParent(Node node) { return parents.get(node); }
+    public Set<Node> getReachableNodes() { return distances.keySet(); }
+    public HashSet<Node> getEqualCostFirstHops(Node node) { return firstHops.get(node); }
+
+    /**
+     * Find the neighbor of the root through which the path to the given node leaves the root.
+     * @param node destination
+     * @return first hop on the path, the root itself for the root, or null if unreachable
+     */
+    public Node getFirstHop(Node node) {
+        if (!distances.containsKey(node))
+            return null;
+        Node current = node;
+        Node parent = parents.get(current);
+        while (parent != null && parent != root) {
+            current = parent;
+            parent = parents.get(current);
+        }
+        return current;
+    }
+
+    /**
+     * Bring the equal-cost first hops (see getEqualCostFirstHops) up to date after edges have changed. A node's first
+     * hops are the union of those of its predecessors on a shortest path, so only the nodes given and the nodes
+     * downstream of any whose first hops change are looked at, in order of distance so that every predecessor is
+     * up to date first.
+     * @param seeds the nodes whose distance changed and the heads of every changed edge
+     * @param tolerance paths whose costs differ by at most this much count as equally short
+     * @return the nodes whose first hops changed, including those no longer reachable
+     */
+    public Set<Node> updateEqualCostFirstHops(Set<Node> seeds, double tolerance) {
+        HashSet<Node> regrouped = new HashSet<>();
+        PriorityQueue<QueueEntry> queue = new PriorityQueue<>();
+        HashSet<Node> queued = new HashSet<>();
+        HashSet<Node> expanded = new HashSet<>();
+        for (Node node : seeds) {
+            if (node == root)
+                continue;
+            Double distance = distances.get(node);
+            if (distance != null) {
+                queued.add(node);
+                queue.add(new QueueEntry(node, distance));
+            } else {
+                if (firstHops.remove(node) != null)
+                    regrouped.add(node);
+                enqueueSuccessors(node, queue, queued);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll().node;
+            queued.remove(node);
+            HashSet<Node> hops = findEqualCostFirstHops(node, tolerance);
+            if (!hops.equals(firstHops.put(node, hops))) {
+                regrouped.add(node);
+                enqueueSuccessors(node, queue, queued);
+            } else if (seeds.contains(node) && expanded.add(node)) {
+                // Its distance may have changed, which changes which of its successors it is a shortest path to
+                enqueueSuccessors(node, queue, queued);
+            }
+        }
+        return regrouped;
+    }
+
+    /**
+     * Find the first hops of a node from those of its predecessors on a shortest path.
+     * @param node a reachable node other than the root
+     * @param tolerance paths whose costs differ by at most this much count as equally short
+     * @return the first hops
+     */
+    private HashSet<Node> findEqualCostFirstHops(Node node, double tolerance) {
+        double distance = distances.get(node);
+        HashSet<Node> hops = new HashSet<>();
+        HashMap<Node, Double> incoming = incomingEdges.get(node);
+        if (incoming == null)
+            return hops;
+        for (Map.Entry<Node, Double> edge : incoming.entrySet()) {
+            Double predecessorDistance = distances.get(edge.getKey());
+            if (predecessorDistance == null || predecessorDistance + edge.getValue() > distance + tolerance)
+                continue;
+            if (edge.getKey() == root) {
+                hops.add(node);
+            } else if (firstHops.containsKey(edge.getKey())) {
+                hops.addAll(firstHops.get(edge.getKey()));
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * Queue the reachable nodes a node has edges to, other than the root, to have their first hops looked at.
+     */
+    private void enqueueSuccessors(Node node, PriorityQueue<QueueEntry> queue, HashSet<Node> queued) {
+        HashMap<Node, Double> outgoing = outgoingEdges.get(node);
+        if (outgoing == null)
+            return;
+        for (Node successor : outgoing.keySet()) {
+            Double distance = distances.get(successor);
+            if (successor != root && distance != null && queued.add(successor))
+                queue.add(new QueueEntry(successor, distance));
+        }
+    }
+
+    /**
+     * Replace every outgoing edge of a node and incrementally update the tree.
+     * @param origin the node whose adjacencies changed
+     * @param newEdges neighbor maps to cost of the edge from the origin
+     * @return the nodes whose distance or parent changed
+     */
+    public Set<Node> setEdges(Node origin, Map<Node, Double> newEdges) {
+        HashMap<Node, Double> oldEdges = outgoingEdges.get(origin);
+        if (oldEdges == null)
+            oldEdges = new HashMap<>();
+
+        HashSet<Node> changed = new HashSet<>();
+        // Removed edges behave like an increase to infinity
+        for (Node neighbor : new ArrayList<>(oldEdges.keySet())) {
+            if (!newEdges.containsKey(neighbor))
+                changed.addAll(updateEdge(origin, neighbor, Double.POSITIVE_INFINITY));
+        }
+        for (Map.Entry<Node, Double> edge : newEdges.entrySet()) {
+            changed.addAll(updateEdge(origin, edge.getKey(), edge.getValue()));
+        }
+        return changed;
+    }
+
+    /**
+     * Change the cost of a single directed edge and repair the tree.
+     * @param from tail of the edge
+     * @param to head of the edge
+     * @param newCost new cost, or positive infinity to remove the edge
+     * @return the nodes whose distance or parent changed
+     */
+    public Set<Node> updateEdge(Node from, Node to, double newCost) {
+        Double oldCostBoxed = getEdgeCost(from, to);
+        double oldCost = (oldCostBoxed == null) ? Double.POSITIVE_INFINITY : oldCostBoxed;
+        if (oldCost == newCost)
+            return Collections.emptySet();
+
+        setEdgeCost(from, to, newCost);
+
+        if (newCost > oldCost) {
+            // Only a tree edge getting worse can change anything
+            if (parents.get(to) == from)
+                return reattachSubtree(to);
+            return Collections.emptySet();
+        }
+
+        // The edge got better: propagate if it now offers a shorter path
+        Double fromDistance = distances.get(from);
+        if (fromDistance == null)
+            return Collections.emptySet();
+        Double toDistance = distances.get(to);
+        double candidate = fromDistance + newCost;
+        if (toDistance != null && candidate >= toDistance)
+            return Collections.emptySet();
+
+        HashSet<Node> changed = new HashSet<>();
+        PriorityQueue<QueueEntry> queue = new PriorityQueue<>();
+        setParent(to, from, candidate);
+        changed.add(to);
+        queue.add(new QueueEntry(to, candidate));
+        propagate(queue, changed);
+        return changed;
+    }
+
+    /**
+     * Recompute the entire tree from scratch.
+     */
+    public void recompute() {
+        distances.clear();
+        parents.clear();
+        children.clear();
+        distances.put(root, 0.0);
+        PriorityQueue<QueueEntry> queue = new PriorityQueue<>();
+        queue.add(new QueueEntry(root, 0.0));
+        propagate(queue, new HashSet<Node>());
+    }
+
+    /**
+     * Detach the subtree rooted at a node whose incoming tree edge got worse, then reattach its nodes through their
+     * best remaining neighbors outside the subtree.
+     * @param subtreeRoot root of the invalidated subtree
+     * @return the nodes of the subtree (all of which may have changed)
+     */
+    private Set<Node> reattachSubtree(Node subtreeRoot) {
+        // Collect the subtree
+        HashSet<Node> subtree = new HashSet<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(subtreeRoot);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            subtree.add(node);
+            HashSet<Node> nodeChildren = children.get(node);
+            if (nodeChildren != null)
+                for (Node child : nodeChildren)
+                    stack.push(child);
+        }
+
+        // Invalidate it
+        for (Node node : subtree) {
+            Node parent = parents.remove(node);
+            if (parent != null && children.containsKey(parent))
+                children.get(parent).remove(node);
+            distances.remove(node);
+        }
+
+        // Seed each subtree node with its best incoming edge from outside the subtree
+        PriorityQueue<QueueEntry> queue = new PriorityQueue<>();
+        for (Node node : subtree) {
+            HashMap<Node, Double> incoming = incomingEdges.get(node);
+            if (incoming == null)
+                continue;
+            Node bestParent = null;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (Map.Entry<Node, Double> edge : incoming.entrySet()) {
+                if (subtree.contains(edge.getKey()))
+                    continue;
+                Double parentDistance = distances.get(edge.getKey());
+                if (parentDistance != null && parentDistance + edge.getValue() < bestDistance) {
+                    bestDistance = parentDistance + edge.getValue();
+                    bestParent = edge.getKey();
+                }
+            }
+            if (bestParent != null) {
+                setParent(node, bestParent, bestDistance);
+                queue.add(new QueueEntry(node, bestDistance));
+            }
+        }
+
+        propagate(queue, subtree);
+        return subtree;
+    }
+
+    /**
+     * Run Dijkstra from the entries in the queue, relaxing edges only where they strictly improve a distance.
+     * @param queue initial queue
+     * @param changed accumulates every node whose distance or parent was changed
+     */
+    private void propagate(PriorityQueue<QueueEntry> queue, Set<Node> changed) {
+        while (!queue.isEmpty()) {
+            QueueEntry entry = queue.poll();
+            Double settled = distances.get(entry.node);
+            if (settled == null || entry.distance > settled)
+                continue;
+            HashMap<Node, Double> outgoing = outgoingEdges.get(entry.node);
+            if (outgoing == null)
+                continue;
+            for (Map.Entry<Node, Double> edge : outgoing.entrySet()) {
+                Node neighbor = edge.getKey();
+                double candidate = entry.distance + edge.getValue();
+                Double current = distances.get(neighbor);
+                if (current == null || candidate < current) {
+                    setParent(neighbor, entry.node, candidate);
+                    changed.add(neighbor);
+                    queue.add(new QueueEntry(neighbor, candidate));
+                }
+            }
+        }
+    }
+
+    /**
+     * Attach a node to the tree under a new parent.
+     * @param node node being attached
+     * @param parent its new parent
+     * @param distance its new distance from the root
+     */
+    private void setParent(Node node, Node parent, double distance) {
+        Node oldParent = parents.put(node, parent);
+        if (oldParent != null && children.containsKey(oldParent))
+            children.get(oldParent).remove(node);
+        HashSet<Node> parentChildren = children.get(parent);
+        if (parentChildren == null) {
+            parentChildren = new HashSet<>();
+            children.put(parent, parentChildren);
+        }
+        parentChildren.add(node);
+        distances.put(node, distance);
+    }
+
+    private Double getEdgeCost(Node from, Node to) {
+        HashMap<Node, Double> outgoing = outgoingEdges.get(from);
+        return (outgoing == null) ? null : outgoing.get(to);
+    }
+
+    /**
+     * Store an edge in both adjacency maps, or remove it if the cost is infinite.
+     */
+    private void setEdgeCost(Node from, Node to, double cost) {
+        HashMap<Node, Double> outgoing = outgoingEdges.get(from);
+        if (outgoing == null) {
+            outgoing = new HashMap<>();
+            outgoingEdges.put(from, outgoing);
+        }
+        HashMap<Node, Double> incoming = incomingEdges.get(to);
+        if (incoming == null) {
+            incoming = new HashMap<>();
+            incomingEdges.put(to, incoming);
+        }
+        if (cost == Double.POSITIVE_INFINITY) {
+            outgoing.remove(to);
+            incoming.remove(from);
+        } else {
+            outgoing.put(to, cost);
+            incoming.put(from, cost);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.ricketts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Runs one Network from time 0 to the end of its runtime: wires up the Links, sets up routing, starts the Flows and
+ * updates every Node and Link each interval, applying the Network's scheduled link events as it reaches them. Used
+ * by Main for both parsed and generated networks.
+ */
+public class Simulation {
+    /**
+     * Name used to label the reports, e.g. "t1" or "fattree"
+     */
+    private final String name;
+    private final Network network;
+    /**
+     * Sources of Flows made while the simulation runs, on top of the Network's own
+     */
+    private final ArrayList<FlowSource> flowSources;
+    /**
+     * File the link and flow statistics are written to while the simulation runs, or null
+     */
+    private String metricsFilename;
+    /**
+     * Completions of every Flow in the run
+     */
+    private final FlowCompletions flowCompletions;
+    /**
+     * Where progress is published while the simulation runs, or null
+     */
+    private SimulationTelemetry telemetry;
+    /**
+     * File every packet event is traced to, or null
+     */
+    private String packetTraceFilename;
+    private PacketTrace.Filter packetTraceFilter;
+    /**
+     * Set from another thread to stop the run early
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Construct a Simulation of a Network that has not been run yet.
+     * @param name name used to label the reports
+     * @param network the Network
+     */
+    public Simulation(String name, Network network) {
+        this.name = name;
+        this.network = network;
+        this.flowSources = new ArrayList<>();
+        this.flowCompletions = new FlowCompletions();
+    }
+
+    public String getName() { return name; }
+    public Network getNetwork() { return network; }
+    public FlowCompletions getFlowCompletions() { return flowCompletions; }
+
+    /**
+     * Publish progress while the simulation runs.
+     * @param telemetry where to publish it
+     */
+    public void setTelemetry(SimulationTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Write every Flow's completion to a CSV file (see FlowCompletions).
+     * @param filename the file
+     * @throws IOException if the file can't be created
+     */
+    public void setFlowCompletionsFile(String filename) throws IOException {
+        flowCompletions.writeEventsTo(filename);
+    }
+
+    /**
+     * Add a source of Flows to start while the simulation runs.
+     * @param flowSource the source
+     */
+    public void addFlowSource(FlowSource flowSource) {
+        flowSources.add(flowSource);
+    }
+
+    /**
+     * Write the link and flow statistics to a metrics file while the simulation runs (see MetricsExporter).
+     * @param metricsFilename the file, or null not to write one
+     */
+    public void setMetricsFile(String metricsFilename) {
+        this.metricsFilename = metricsFilename;
+    }
+
+    /**
+     * Trace what happens to every packet to a file while the simulation runs (see PacketTrace).
+     * @param filename the file
+     * @param filter which events to keep
+     */
+    public void setPacketTrace(String filename, PacketTrace.Filter filter) {
+        this.packetTraceFilename = filename;
+        this.packetTraceFilter = filter;
+    }
+
+    /**
+     * Have every Host send its flows in DataSegments of several packets (see Host.setSegmentSize).
+     * @param segmentSize packets per segment, 1 to send every packet on its own
+     */
+    public void setSegmentSize(int segmentSize) {
+        for (Host host : network.getHosts()) {
+            host.setSegmentSize(segmentSize);
+        }
+    }
+
+    /**
+     * Have every Link mark ECN capable packets arriving at a buffer that holds more than a threshold (see
+     * Link.setECNThreshold).
+     * @param ecnThreshold queued bits above which packets are marked, or null not to mark
+     */
+    public void setECNThreshold(Integer ecnThreshold) {
+        for (Link link : network.getLinks()) {
+            link.setECNThreshold(ecnThreshold);
+        }
+    }
+
+    /**
+     * Stop the simulation at the end of the current interval, if it is running, or as soon as it starts. It still
+     * reports on the time it did simulate.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * Run the simulation to the end of the Network's runtime and report on the routers and links.
+     */
+    public void run() {
+        Main.currentTime = 0;
+        ArrayList<Link> links = network.getLinks();
+        ArrayList<Router> routers = network.getRouters();
+        ArrayList<Node> nodes = network.getNodes();
+
+        // Add nodes to links
+        InputParser.addNodesToLinks(nodes);
+
+        // Links that can fail need Routers ready to reroute around them
+        NetworkTimeline timeline = null;
+        if (!network.getEvents().isEmpty()) {
+            timeline = new NetworkTimeline(network.getEvents(), links);
+            for (Router router : routers) {
+                router.enableFastReroute();
+            }
+        }
+
+        // After nodes are added to links, we can now setup routing tables
+        // With static routing, every forwarding table is computed up front
+        if (network.getRoutingProtocol() == Main.RoutingProtocol.STATIC) {
+            StaticRoutes.install(nodes, timeline != null);
+        }
+        // Have each router setup its routing table based on its neighbors
+        for (Router router : routers) {
+            router.initializeRoutingTable();
+        }
+
+        // Collect only the statistics asked for
+        InstrumentationConfig instrumentation = network.getInstrumentation();
+        if (instrumentation != null) {
+            for (Link link : links) {
+                link.setAnalyticsCollector(instrumentation.linkCollector(link.getID()));
+            }
+            for (Flow flow : network.getFlows()) {
+                flow.instrument(instrumentation);
+            }
+        }
+
+        for (Host host : network.getHosts()) {
+            host.setFlowCompletions(flowCompletions);
+        }
+        for (Flow flow : network.getFlows()) {
+            flow.getSource().addFlow(flow);
+        }
+
+        MetricsExporter metricsExporter = null;
+        if (metricsFilename != null) {
+            try {
+                metricsExporter = new MetricsExporter(metricsFilename);
+                for (Link link : links) {
+                    link.exportMetrics(metricsExporter);
+                }
+                for (Flow flow : network.getFlows()) {
+                    flow.exportMetrics(metricsExporter);
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot write metrics to " + metricsFilename + ": " + e.getMessage());
+            }
+        }
+
+        PacketTrace packetTrace = null;
+        if (packetTraceFilename != null) {
+            try {
+                packetTrace = new PacketTrace(packetTraceFilename, network, packetTraceFilter);
+            } catch (IOException e) {
+                System.out.println("Cannot trace packets to " + packetTraceFilename + ": " + e.getMessage());
+            }
+        }
+        PacketTrace.active = packetTrace;
+        NetworkTimeline.active = timeline;
+
+        ArrayList<Updatable> updatableLinkedList = new ArrayList<>();
+        updatableLinkedList.addAll(nodes);
+        updatableLinkedList.addAll(links);
+
+        // In every interval, start the Flows that are due, then update the Updatables (Hosts, Routers, Flows).
+        long startedFlows = 0;
+        long wallStartTime = System.currentTimeMillis();
+        if (telemetry != null)
+            telemetry.start(name, network);
+        for (; Main.currentTime < network.getRuntime() && !cancelled; Main.currentTime += Main.intervalTime) {
+            if (telemetry != null && Main.currentTime % SimulationTelemetry.PublishInterval == 0)
+                telemetry.publish(Main.currentTime, links);
+            if (timeline != null)
+                timeline.applyDue();
+            for (FlowSource flowSource : flowSources) {
+                while (flowSource.getNextStartTime() <= Main.currentTime) {
+                    Flow flow = flowSource.nextFlow();
+                    if (instrumentation != null)
+                        flow.instrument(instrumentation);
+                    if (metricsExporter != null)
+                        flow.exportMetrics(metricsExporter);
+                    flow.getSource().addFlow(flow);
+                    ++startedFlows;
+                }
+            }
+            for (Updatable u : updatableLinkedList) {
+                u.update();
+            }
+        }
+
+        if (telemetry != null)
+            telemetry.publish(Main.currentTime, links);
+        NetworkTimeline.active = null;
+        for (Flow flow : network.getFlows()) {
+            flow.flowAnalyticsCollector.finish();
+        }
+        if (metricsExporter != null)
+            metricsExporter.close();
+        if (packetTrace != null) {
+            PacketTrace.active = null;
+            try {
+                packetTrace.close();
+            } catch (IOException e) {
+                System.out.println("Cannot write packet trace " + packetTraceFilename + ": " + e.getMessage());
+            }
+        }
+
+        if (!flowSources.isEmpty()) {
+            long wallTime = Math.max(1, System.currentTimeMillis() - wallStartTime);
+            System.out.println(name + " started " + startedFlows + " generated flows in " + wallTime + " ms, " +
+                    (startedFlows * 1000 / wallTime) + " flows/s");
+            for (FlowSource flowSource : flowSources) {
+                if (flowSource instanceof Closeable) {
+                    try {
+                        ((Closeable) flowSource).close();
+                    } catch (IOException e) {
+                        System.out.println("Cannot close flow source: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Report how long each router's routing table took to converge and how stable it was afterwards.
+        for (Router router : routers) {
+            Integer convergenceTime = router.getConvergenceTime();
+            System.out.println(name + " router " + router.getAddress() + " converged at " +
+                    (convergenceTime == null ? "never" : convergenceTime + " ms") + ", " +
+                    router.getRouteChangeCount() + " route changes, " +
+                    router.getFlowMoveCount() + " flow moves");
+        }
+
+        // Report what every link event did, and how the network recovered from each failure.
+        if (timeline != null)
+            timeline.report(name);
+
+        // Report flow completion times by flow size.
+        flowCompletions.report(name, network.getFlows().size() + startedFlows);
+        try {
+            flowCompletions.close();
+        } catch (IOException e) {
+            System.out.println("Cannot write flow completions: " + e.getMessage());
+        }
+
+        // Report the spread of each flow's packet delays over the whole run.
+        for (Flow flow : network.getFlows()) {
+            LatencyHistogram delays = flow.flowAnalyticsCollector.getDelayHistogram();
+            if (delays == null)
+                continue;
+            System.out.println(name + " flow " + flow.getID() + " packet delay p50 " +
+                    delays.getValueAtPercentile(50) + " ms, p99 " + delays.getValueAtPercentile(99) + " ms, p99.9 " +
+                    delays.getValueAtPercentile(99.9) + " ms, max " + delays.getMax() + " ms over " +
+                    delays.getCount() + " packets");
+        }
+
+        // Report per link utilization, so the spread of load over equal-cost paths can be checked, and with ECN
+        // on, how many packets each link dropped and marked.
+        for (Link l : links) {
+            System.out.println(name + " link " + l.getID() + " utilization " +
+                    String.format("%.3f", l.getUtilization(Main.currentTime)) +
+                    (l.getECNThreshold() == null ? "" : ", " + l.getPacketDrops() + " drops, " + l.getECNMarks() +
+                            " ECN marks"));
+        }
+
+        // Report where each lossy or marking link's buffers sat over time, and which flows lost packets there and
+        // which caused the losses by filling the buffer.
+        for (Link l : links) {
+            if (l.getPacketDrops() == 0 && l.getECNMarks() == 0)
+                continue;
+            for (Node end : new Node[] {l.getLeftNode(), l.getRightNode()}) {
+                System.out.println(name + " link " + l.getID() + " buffer at " + end.getAddress() + " occupancy " +
+                        l.getBufferOccupancy(end).summary());
+            }
+            if (l.getPacketDrops() > 0)
+                System.out.println(name + " link " + l.getID() + " " + l.getDropAttribution().summary(5));
+        }
+    }
+}
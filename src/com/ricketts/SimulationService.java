@@ -0,0 +1,628 @@
+package com.ricketts;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs simulations for clients over HTTP on the loopback interface, in one long lived JVM, so a short scenario
+ * doesn't pay for JVM startup, class loading and JIT warm-up every time. Jobs wait in a bounded queue for a pool of
+ * workers. Main.currentTime is static, so each worker loads the simulator with its own class loader, and keeps it
+ * from job to job so the code stays compiled. Each worker warms up on a small scenario before taking jobs.
+ *
+ * Every job reserves the memory it says it needs out of a budget of most of the heap before it starts, so the jobs
+ * running at once don't expect more than the heap between them. The reservation is only bookkeeping: a JVM can't
+ * cap or even measure the heap held by one thread, so a job that needs more than it reserved only fails once the
+ * whole heap runs out; its worker then starts again with a new class loader.
+ * A job still running at its timeout is cancelled.
+ *
+ * API, all JSON except the output:
+ *  POST   /jobs             submit {"scenario": "t0.json", "protocol": "reno", "memoryReservation": 256,
+ *                           "timeout": 3600}, where everything but the scenario is optional. The scenario is as
+ *                           given to Main, and the reservation is in MB.
+ *                           Answers 202 with the job, or 503 if the queue is full.
+ *  GET    /jobs             every job
+ *  GET    /jobs/ID          one job and its progress
+ *  GET    /jobs/ID/output   the job's reports, streamed as they are printed until it finishes
+ *  DELETE /jobs/ID          cancel the job
+ *  GET    /status           the workers, queue and memory budget
+ * e.g. curl -d '{"scenario": "t1.json"}' localhost:8080/jobs; curl localhost:8080/jobs/1/output
+ */
+public class SimulationService {
+    public static final int DefaultQueueCapacity = 64;
+    /**
+     * Memory reserved for a job that doesn't give a reservation, in MB
+     */
+    public static final int DefaultMemoryReservation = 256;
+    /**
+     * Timeout of a job that doesn't give one, in s
+     */
+    public static final int DefaultTimeout = 3600;
+    /**
+     * Scenario every worker runs before taking jobs, to compile the code every scenario goes through
+     */
+    public static final String DefaultWarmup = "dumbbell:n=2,runtime=5000";
+    /**
+     * Fraction of the maximum heap the memory reservations of running jobs can add up to
+     */
+    private static final double HeapBudgetFraction = .8;
+    /**
+     * Finished jobs kept for clients to look at
+     */
+    private static final int MaxKeptJobs = 1000;
+    /**
+     * How often the output of a running job is checked when it is being streamed, in ms
+     */
+    private static final int OutputPollInterval = 100;
+    /**
+     * Simulator classes loaded once for all workers rather than by each one, since the service uses them too
+     */
+    private static final List<String> SharedClasses = Arrays.asList(SimulationTelemetryMBean.class.getName());
+
+    /**
+     * What a job is doing.
+     */
+    public static class Status {
+        public static final String QUEUED = "queued";
+        public static final String RUNNING = "running";
+        public static final String DONE = "done";
+        public static final String FAILED = "failed";
+        public static final String CANCELLED = "cancelled";
+        public static final String TIMED_OUT = "timed out";
+    }
+
+    /**
+     * One submitted scenario.
+     */
+    private static class Job {
+        public final int id;
+        public final String scenario;
+        public final int protocol;
+        /**
+         * Memory taken out of the budget while the job runs, in MB
+         */
+        public final int memoryReservation;
+        /**
+         * In s
+         */
+        public final int timeout;
+        public final long submitTime = System.currentTimeMillis();
+        public volatile long startTime;
+        public volatile long endTime;
+        public volatile String status = Status.QUEUED;
+        public volatile String error;
+        public volatile boolean timedOut;
+        /**
+         * Everything the job has printed. Locked while read or written.
+         */
+        public final StringBuilder output = new StringBuilder();
+        public final AtomicBoolean cancelled = new AtomicBoolean();
+        public final AtomicReference<SimulationTelemetryMBean> telemetry = new AtomicReference<>();
+        public final AtomicReference<Runnable> canceller = new AtomicReference<>();
+
+        public Job(int id, String scenario, int protocol, int memoryReservation, int timeout) {
+            this.id = id;
+            this.scenario = scenario;
+            this.protocol = protocol;
+            this.memoryReservation = memoryReservation;
+            this.timeout = timeout;
+        }
+
+        public boolean isFinished() {
+            return endTime != 0;
+        }
+
+        /**
+         * Stop the job, whether it has started or not.
+         */
+        public void cancel() {
+            cancelled.set(true);
+            Runnable canceller = this.canceller.get();
+            if (canceller != null)
+                canceller.run();
+        }
+
+        public void finish(String status, String error) {
+            this.error = error;
+            this.status = status;
+            this.endTime = System.currentTimeMillis();
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("scenario", scenario);
+            json.put("protocol", protocol == Main.Protocol.FAST ? "fast" : "reno");
+            json.put("memoryReservation", memoryReservation);
+            json.put("timeout", timeout);
+            json.put("status", status);
+            if (error != null)
+                json.put("error", error);
+            if (startTime != 0) {
+                json.put("queuedMs", startTime - submitTime);
+                json.put("wallMs", (isFinished() ? endTime : System.currentTimeMillis()) - startTime);
+            }
+            SimulationTelemetryMBean telemetry = this.telemetry.get();
+            if (telemetry != null) {
+                json.put("simulatedTime", telemetry.getSimulatedTime());
+                json.put("runtime", telemetry.getRuntime());
+                json.put("ticksPerSecond", telemetry.getTicksPerSecond());
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Loads the simulator's classes itself rather than asking its parent first, so each worker has its own copy of
+     * them and their static fields. Everything else, including the libraries, comes from the parent.
+     */
+    private static class WorkerClassLoader extends URLClassLoader {
+        public WorkerClassLoader(URL[] classPath, ClassLoader parent) {
+            super(classPath, parent);
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(Main.class.getPackage().getName() + ".") || SharedClasses.contains(name))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null)
+                    loaded = findClass(name);
+                if (resolve)
+                    resolveClass(loaded);
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * Stands in for System.out, sending what a worker prints to the output of its job and everything else to the
+     * real System.out.
+     */
+    private static class JobOutputStream extends OutputStream {
+        /**
+         * Where one worker's output goes, and the bytes of a character split between two writes
+         */
+        private static class Target {
+            public final StringBuilder output;
+            public final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            public ByteBuffer pending = ByteBuffer.allocate(0);
+
+            public Target(StringBuilder output) {
+                this.output = output;
+            }
+        }
+
+        private final OutputStream fallback;
+        private final ThreadLocal<Target> target = new ThreadLocal<>();
+
+        public JobOutputStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            Target target = this.target.get();
+            if (target == null) {
+                fallback.write(b, off, len);
+                return;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(target.pending.remaining() + len);
+            bytes.put(target.pending).put(b, off, len).flip();
+            CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+            // Bytes at the end that don't make a whole character yet are kept for the next write
+            target.decoder.decode(bytes, chars, false);
+            target.pending = bytes;
+            chars.flip();
+            synchronized (target.output) {
+                target.output.append(chars);
+            }
+        }
+
+        public void flush() throws IOException {
+            if (target.get() == null)
+                fallback.flush();
+        }
+    }
+
+    /**
+     * Runs jobs from the queue one after another.
+     */
+    private class Worker extends Thread {
+        /**
+         * SimulationServiceRunner.run in this worker's class loader, or null until there is one
+         */
+        private Method runner;
+        private volatile boolean busy;
+
+        public Worker(int number) {
+            super("simulation worker " + number);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    String prepareError = null;
+                    try {
+                        prepare();
+                    } catch (IllegalStateException e) {
+                        prepareError = e.getMessage();
+                    }
+                    job = queue.take();
+                    // Without a simulator the job can't run; the next one tries to load it again
+                    if (prepareError != null) {
+                        job.finish(Status.FAILED, prepareError);
+                        continue;
+                    }
+                    memory.acquire(job.memoryReservation);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                busy = true;
+                try {
+                    runJob(job);
+                } finally {
+                    busy = false;
+                    memory.release(job.memoryReservation);
+                }
+            }
+        }
+
+        /**
+         * Make a new class loader if there isn't one, and warm it up.
+         */
+        private void prepare() {
+            if (runner != null)
+                return;
+            try {
+                ClassLoader loader = new WorkerClassLoader(classPath, SimulationService.class.getClassLoader());
+                runner = loader.loadClass(SimulationServiceRunner.class.getName()).getMethod("run", String.class,
+                        int.class, AtomicBoolean.class, AtomicReference.class, AtomicReference.class);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot load the simulator for " + getName(), e);
+            }
+            if (warmup == null)
+                return;
+            output.target.set(new JobOutputStream.Target(new StringBuilder()));
+            try {
+                runner.invoke(null, warmup, Main.Protocol.RENO, new AtomicBoolean(),
+                        new AtomicReference<SimulationTelemetryMBean>(), new AtomicReference<Runnable>());
+            } catch (ReflectiveOperationException e) {
+                Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                System.out.println(getName() + " cannot warm up on " + warmup + ": " + cause);
+            } finally {
+                output.target.remove();
+            }
+        }
+
+        private void runJob(final Job job) {
+            if (job.cancelled.get()) {
+                job.finish(Status.CANCELLED, null);
+                return;
+            }
+            job.startTime = System.currentTimeMillis();
+            job.status = Status.RUNNING;
+            TimerTask timeout = new TimerTask() {
+                public void run() {
+                    job.timedOut = true;
+                    job.cancel();
+                }
+            };
+            timer.schedule(timeout, job.timeout * 1000L);
+            output.target.set(new JobOutputStream.Target(job.output));
+            try {
+                runner.invoke(null, job.scenario, job.protocol, job.cancelled, job.telemetry, job.canceller);
+                job.finish(job.timedOut ? Status.TIMED_OUT : job.cancelled.get() ? Status.CANCELLED : Status.DONE,
+                        null);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // After an Error, such as running out of memory, the simulator's static state can't be trusted
+                if (cause instanceof Error)
+                    runner = null;
+                job.finish(Status.FAILED, cause.getMessage() != null ? cause.getMessage() : cause.toString());
+            } catch (IllegalAccessException e) {
+                job.finish(Status.FAILED, e.toString());
+            } finally {
+                output.target.remove();
+                timeout.cancel();
+            }
+        }
+    }
+
+    private final HttpServer server;
+    private final URL[] classPath;
+    private final String warmup;
+    private final ArrayBlockingQueue<Job> queue;
+    private final ArrayList<Worker> workers = new ArrayList<>();
+    /**
+     * MB of the heap budget not reserved by running jobs
+     */
+    private final Semaphore memory;
+    private final int memoryBudget;
+    private final JobOutputStream output;
+    private final Timer timer = new Timer("simulation job timeouts", true);
+    private final AtomicInteger nextID = new AtomicInteger();
+    /**
+     * Every job by ID, oldest first. Locked while iterated.
+     */
+    private final Map<Integer, Job> jobs = Collections.synchronizedMap(new LinkedHashMap<Integer, Job>() {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Integer, Job> eldest) {
+            return size() > MaxKeptJobs && eldest.getValue().isFinished();
+        }
+    });
+
+    /**
+     * Start the workers and serve.
+     * @param port port to listen on, on the loopback interface
+     * @param workerCount number of jobs run at once
+     * @param queueCapacity number of jobs that can wait for a worker
+     * @param warmup scenario each worker runs before taking jobs, or null
+     * @throws IOException if the port can't be bound
+     */
+    public SimulationService(int port, int workerCount, int queueCapacity, String warmup) throws IOException {
+        this.classPath = classPath();
+        this.warmup = warmup;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.memoryBudget = (int) (Runtime.getRuntime().maxMemory() / (1 << 20) * HeapBudgetFraction);
+        this.memory = new Semaphore(memoryBudget, true);
+        this.output = new JobOutputStream(System.out);
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+
+        for (int i = 0; i < workerCount; ++i) {
+            Worker worker = new Worker(i + 1);
+            workers.add(worker);
+            worker.start();
+        }
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // Streaming a job's output holds a thread until the job finishes, so every request gets its own
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "simulation service request");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.createContext("/jobs", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleJobs(exchange);
+                } catch (JSONException e) {
+                    respond(exchange, 400, error(e.getMessage()));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, 200, status());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        System.out.println("Serving simulations at http://" + server.getAddress().getHostString() + ":" +
+                server.getAddress().getPort() + "/jobs with " + workerCount + " workers and " + memoryBudget +
+                " MB for jobs");
+    }
+
+    /**
+     * Where this JVM loads classes from, for the workers' class loaders.
+     */
+    private static URL[] classPath() throws MalformedURLException {
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; ++i) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return urls;
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException, JSONException {
+        String method = exchange.getRequestMethod();
+        // "jobs", then the ID, then "output"
+        String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+        if (path.length == 1) {
+            if (method.equals("POST"))
+                submit(exchange);
+            else if (method.equals("GET"))
+                respond(exchange, 200, list());
+            else
+                respond(exchange, 405, error("use GET or POST"));
+            return;
+        }
+
+        Job job = null;
+        try {
+            job = jobs.get(Integer.parseInt(path[1]));
+        } catch (NumberFormatException e) {
+        }
+        if (job == null || path.length > 3 || (path.length == 3 && !path[2].equals("output"))) {
+            respond(exchange, 404, error("no such job"));
+        } else if (path.length == 3) {
+            streamOutput(exchange, job);
+        } else if (method.equals("GET")) {
+            respond(exchange, 200, job.toJSON());
+        } else if (method.equals("DELETE")) {
+            // A queued job is finished straight away; a running one when its simulation stops
+            if (queue.remove(job))
+                job.finish(Status.CANCELLED, null);
+            job.cancel();
+            respond(exchange, 200, job.toJSON());
+        } else {
+            respond(exchange, 405, error("use GET or DELETE"));
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException, JSONException {
+        JSONObject request = new JSONObject(new JSONTokener(new InputStreamReader(exchange.getRequestBody(),
+                StandardCharsets.UTF_8)));
+        String scenario = request.getString("scenario");
+        String protocolName = request.optString("protocol", "reno").toLowerCase();
+        int protocol;
+        if (protocolName.equals("reno"))
+            protocol = Main.Protocol.RENO;
+        else if (protocolName.equals("fast"))
+            protocol = Main.Protocol.FAST;
+        else {
+            respond(exchange, 400, error("protocol must be reno or fast"));
+            return;
+        }
+        int memoryReservation = request.optInt("memoryReservation", Math.min(DefaultMemoryReservation, memoryBudget));
+        if (memoryReservation < 1 || memoryReservation > memoryBudget) {
+            respond(exchange, 400, error("memoryReservation must be between 1 and " + memoryBudget + " MB"));
+            return;
+        }
+        int timeout = request.optInt("timeout", DefaultTimeout);
+        if (timeout < 1) {
+            respond(exchange, 400, error("timeout must be at least 1 s"));
+            return;
+        }
+
+        Job job = new Job(nextID.incrementAndGet(), scenario, protocol, memoryReservation, timeout);
+        jobs.put(job.id, job);
+        if (!queue.offer(job)) {
+            jobs.remove(job.id);
+            respond(exchange, 503, error("the queue is full"));
+            return;
+        }
+        respond(exchange, 202, job.toJSON());
+    }
+
+    private JSONObject list() throws JSONException {
+        JSONArray list = new JSONArray();
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                list.put(job.toJSON());
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("jobs", list);
+        return json;
+    }
+
+    private JSONObject status() {
+        JSONObject json = new JSONObject();
+        try {
+            int busy = 0;
+            for (Worker worker : workers) {
+                if (worker.busy)
+                    ++busy;
+            }
+            json.put("workers", workers.size());
+            json.put("busyWorkers", busy);
+            json.put("queued", queue.size());
+            json.put("queueCapacity", queue.size() + queue.remainingCapacity());
+            json.put("memoryBudget", memoryBudget);
+            json.put("memoryReserved", memoryBudget - memory.availablePermits());
+            json.put("heapUsed", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    /**
+     * Send a job's output as it is printed, until the job finishes.
+     */
+    private void streamOutput(HttpExchange exchange, Job job) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        // A length of 0 sends the body in chunks, as it comes
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            int sent = 0;
+            while (true) {
+                // Checked before the output is read, so nothing printed before the job finished is missed
+                boolean finished = job.isFinished();
+                String chunk;
+                synchronized (job.output) {
+                    chunk = job.output.substring(sent);
+                }
+                sent += chunk.length();
+                if (!chunk.isEmpty()) {
+                    out.write(chunk.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                if (finished)
+                    return;
+                try {
+                    Thread.sleep(OutputPollInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("error", message);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    private static void respond(HttpExchange exchange, int code, JSONObject json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Stop serving and cancel every job.
+     */
+    public void stop() {
+        server.stop(0);
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                job.cancel();
+            }
+        }
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        timer.cancel();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ricketts;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs one job of a SimulationService. Each worker of the service loads this class, and the rest of the simulator,
+ * with its own class loader, so every worker has its own Main.currentTime. It is called with JDK types only, and
+ * hands back SimulationTelemetryMBean, the one class the worker's class loader shares with the service.
+ */
+public class SimulationServiceRunner {
+    /**
+     * Build a scenario and run it to the end, printing its reports to System.out.
+     * @param scenario a JSON network definition or a topology generator spec, optionally followed by "@" and a
+     *                 workload or trace spec, as given to Main
+     * @param protocol the tcp protocol
+     * @param cancelled set by the service to stop the job
+     * @param telemetry set to the simulation's progress once it is built
+     * @param canceller set to something that stops the simulation once it is built
+     * @throws TopologyParseException if the scenario can't be built
+     */
+    public static void run(String scenario, int protocol, AtomicBoolean cancelled,
+                           AtomicReference<SimulationTelemetryMBean> telemetry,
+                           AtomicReference<Runnable> canceller) throws TopologyParseException {
+        String workloadSpec = null;
+        int at = scenario.indexOf('@');
+        if (at >= 0) {
+            workloadSpec = scenario.substring(at + 1);
+            scenario = scenario.substring(0, at);
+        }
+        // JSON is parsed directly rather than through a compiled image, which another worker could be writing
+        Network network;
+        String name;
+        if (scenario.endsWith(".json")) {
+            network = new InputParser().parse(scenario, protocol);
+            name = scenario.substring(0, scenario.length() - ".json".length());
+        } else {
+            network = TopologyGenerator.fromSpec(scenario, protocol);
+            name = scenario.replace(':', '_').replace(',', '_');
+        }
+        final Simulation simulation = new Simulation(name, network);
+        if (workloadSpec != null && workloadSpec.startsWith("trace:"))
+            simulation.addFlowSource(TraceReplay.fromSpec(workloadSpec, network));
+        else if (workloadSpec != null)
+            simulation.addFlowSource(Workload.fromSpec(workloadSpec, network));
+
+        SimulationTelemetry simulationTelemetry = new SimulationTelemetry();
+        simulation.setTelemetry(simulationTelemetry);
+        telemetry.set(simulationTelemetry);
+        canceller.set(new Runnable() {
+            public void run() {
+                simulation.cancel();
+            }
+        });
+        // The service may have cancelled the job before the canceller was set
+        if (cancelled.get())
+            simulation.cancel();
+        simulation.run();
+    }
+}
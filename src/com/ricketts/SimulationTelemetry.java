@@ -0,0 +1,189 @@
+package com.ricketts;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * Live progress of the running simulation, for JMX clients such as jconsole and for TelemetryServer.
+ *
+ * The simulation thread publishes an immutable Snapshot every PublishInterval simulated ms through a volatile
+ * field, and readers only ever look at the latest Snapshot, so neither side takes a lock and the simulation does a
+ * few hundred ns of work per interval.
+ */
+public class SimulationTelemetry implements SimulationTelemetryMBean {
+    /**
+     * Simulated time between snapshots, in ms
+     */
+    public static final int PublishInterval = 100;
+    /**
+     * Name the MBean is registered under
+     */
+    public static final String MBeanName = "com.ricketts:type=SimulationTelemetry";
+
+    /**
+     * What the simulation thread last published.
+     */
+    private static class Snapshot {
+        public final String scenario;
+        public final long simulatedTime;
+        public final long runtime;
+        public final long wallStartTime;
+        public final double ticksPerSecond;
+        public final double allocationRate;
+        public final long packetsInFlight;
+        public final int[] linkIDs;
+        public final long[] queueDepths;
+
+        public Snapshot(String scenario, long simulatedTime, long runtime, long wallStartTime, double ticksPerSecond,
+                        double allocationRate, long packetsInFlight, int[] linkIDs, long[] queueDepths) {
+            this.scenario = scenario;
+            this.simulatedTime = simulatedTime;
+            this.runtime = runtime;
+            this.wallStartTime = wallStartTime;
+            this.ticksPerSecond = ticksPerSecond;
+            this.allocationRate = allocationRate;
+            this.packetsInFlight = packetsInFlight;
+            this.linkIDs = linkIDs;
+            this.queueDepths = queueDepths;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(null, 0, 0, System.nanoTime(), 0, -1, 0, new int[0],
+            new long[0]);
+
+    /**
+     * State kept by the simulation thread between snapshots
+     */
+    private String scenario;
+    private long runtime;
+    private long wallStartTime;
+    private long lastPublishTime;
+    private long lastSimulatedTime;
+    private long lastAllocatedBytes;
+    private int[] linkIDs;
+
+    /**
+     * Allocation counter of the simulation thread, if the JVM has one
+     */
+    private final com.sun.management.ThreadMXBean allocationCounter;
+
+    /**
+     * Construct telemetry with nothing running.
+     */
+    public SimulationTelemetry() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+            this.allocationCounter = (com.sun.management.ThreadMXBean) threads;
+        else
+            this.allocationCounter = null;
+    }
+
+    /**
+     * Register with the platform MBean server, so JMX clients can see it.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBeanName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Cannot register telemetry with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called by the simulation thread when a scenario starts.
+     * @param scenario name of the scenario
+     * @param network its Network
+     */
+    public void start(String scenario, Network network) {
+        this.scenario = scenario;
+        this.runtime = network.getRuntime();
+        this.wallStartTime = System.nanoTime();
+        this.lastPublishTime = wallStartTime;
+        this.lastSimulatedTime = 0;
+        this.lastAllocatedBytes = allocatedBytes();
+        ArrayList<Link> links = network.getLinks();
+        this.linkIDs = new int[links.size()];
+        for (int i = 0; i < links.size(); ++i) {
+            linkIDs[i] = links.get(i).getID();
+        }
+        publish(0, links);
+    }
+
+    /**
+     * Bytes the calling thread has allocated so far.
+     * @return the count, or -1 if the JVM doesn't keep one
+     */
+    private long allocatedBytes() {
+        if (allocationCounter == null)
+            return -1;
+        return allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Called by the simulation thread to publish a new snapshot.
+     * @param simulatedTime current simulated time in ms
+     * @param links the Network's links, in the order given to start
+     */
+    public void publish(long simulatedTime, ArrayList<Link> links) {
+        long now = System.nanoTime();
+        long packetsInFlight = 0;
+        long[] queueDepths = new long[links.size()];
+        for (int i = 0; i < queueDepths.length; ++i) {
+            Link link = links.get(i);
+            queueDepths[i] = link.getQueuedBits();
+            packetsInFlight += link.getPacketsInFlight();
+        }
+        long allocatedBytes = allocatedBytes();
+        double elapsedSeconds = (now - lastPublishTime) / 1e9;
+        double ticksPerSecond = 0;
+        double allocationRate = -1;
+        if (elapsedSeconds > 0) {
+            ticksPerSecond = (simulatedTime - lastSimulatedTime) / (double) Main.intervalTime / elapsedSeconds;
+            if (allocatedBytes >= 0)
+                allocationRate = (allocatedBytes - lastAllocatedBytes) / elapsedSeconds;
+        }
+        lastPublishTime = now;
+        lastSimulatedTime = simulatedTime;
+        lastAllocatedBytes = allocatedBytes;
+        snapshot = new Snapshot(scenario, simulatedTime, runtime, wallStartTime, ticksPerSecond, allocationRate,
+                packetsInFlight, linkIDs, queueDepths);
+    }
+
+    public String getScenario() { return snapshot.scenario; }
+    public long getSimulatedTime() { return snapshot.simulatedTime; }
+    public long getRuntime() { return snapshot.runtime; }
+    public double getTicksPerSecond() { return snapshot.ticksPerSecond; }
+    public double getAllocationRate() { return snapshot.allocationRate; }
+    public long getPacketsInFlight() { return snapshot.packetsInFlight; }
+    public int[] getLinkIDs() { return snapshot.linkIDs.clone(); }
+    public long[] getQueueDepths() { return snapshot.queueDepths.clone(); }
+
+    public long getWallTime() {
+        return (System.nanoTime() - snapshot.wallStartTime) / 1000000;
+    }
+
+    public double getSimulatedToWallRatio() {
+        return getTicksPerSecond() * Main.intervalTime / 1000;
+    }
+
+    public long getMaxQueueDepth() {
+        long max = 0;
+        for (long depth : snapshot.queueDepths) {
+            max = Math.max(max, depth);
+        }
+        return max;
+    }
+
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,66 @@
+package com.ricketts;
+
+/**
+ * Live state of the running simulation, as seen through JMX (see SimulationTelemetry).
+ */
+public interface SimulationTelemetryMBean {
+    /**
+     * @return name of the scenario running, or null before the first one starts
+     */
+    String getScenario();
+
+    /**
+     * @return simulated time in ms
+     */
+    long getSimulatedTime();
+
+    /**
+     * @return simulated time the scenario runs to, in ms
+     */
+    long getRuntime();
+
+    /**
+     * @return wall clock time since the scenario started, in ms
+     */
+    long getWallTime();
+
+    /**
+     * @return simulated time per wall clock time over the last interval published
+     */
+    double getSimulatedToWallRatio();
+
+    /**
+     * @return intervals simulated per wall clock second over the last interval published
+     */
+    double getTicksPerSecond();
+
+    /**
+     * @return packets in link buffers or on the wire
+     */
+    long getPacketsInFlight();
+
+    /**
+     * @return IDs of the links, in the order of getQueueDepths
+     */
+    int[] getLinkIDs();
+
+    /**
+     * @return bits waiting in each link's buffers
+     */
+    long[] getQueueDepths();
+
+    /**
+     * @return the largest queue depth, in bits
+     */
+    long getMaxQueueDepth();
+
+    /**
+     * @return heap in use, in bytes
+     */
+    long getHeapUsed();
+
+    /**
+     * @return bytes allocated per wall clock second by the simulation thread, or -1 if the JVM doesn't say
+     */
+    double getAllocationRate();
+}
@@ -0,0 +1,378 @@
+package com.ricketts;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes every Router's forwarding table before the simulation starts, so traffic can flow from time 0 without
+ * waiting for a routing protocol to converge.
+ *
+ * The network is copied into a compact adjacency array graph and Dijkstra's algorithm is run from every Router in
+ * parallel on a fork-join pool. Link costs are the static link delays. Only Hosts are installed as destinations,
+ * since they are the only Nodes data is addressed to; every equal-cost first hop is kept so that the tables support
+ * multipath forwarding.
+ */
+public class StaticRoutes {
+    /**
+     * Number of sources a single fork-join task computes before it stops splitting
+     */
+    private static final int SourcesPerTask = 16;
+
+    /**
+     * Two paths whose costs differ by at most this much are considered equal
+     */
+    private static final double EqualCostTolerance = 1e-6;
+
+    /**
+     * All nodes; a node's index in this array is its vertex number
+     */
+    private final Node[] vertices;
+    /**
+     * Edges leaving vertex v are edges edgeOffsets[v] to edgeOffsets[v + 1] - 1
+     */
+    private final int[] edgeOffsets;
+    /**
+     * Head vertex of every edge
+     */
+    private final int[] edgeTargets;
+    /**
+     * Cost of every edge
+     */
+    private final double[] edgeCosts;
+    /**
+     * Link of every edge
+     */
+    private final Link[] edgeLinks;
+    /**
+     * Vertex numbers of the Routers, i.e. the sources
+     */
+    private final int[] routerVertices;
+    /**
+     * Whether a vertex is a Host. Hosts are destinations and are never used for transit.
+     */
+    private final boolean[] isHost;
+    /**
+     * Whether to also choose a backup Link for every destination, for fast reroute
+     */
+    private final boolean computeBackups;
+
+    /**
+     * Build the array graph for a set of Nodes whose Links are already attached on both ends.
+     * @param nodes all Nodes in the network
+     * @param computeBackups whether to also choose backup Links
+     */
+    private StaticRoutes(List<Node> nodes, boolean computeBackups) {
+        this.computeBackups = computeBackups;
+        vertices = nodes.toArray(new Node[nodes.size()]);
+        IdentityHashMap<Node, Integer> vertexNumbers = new IdentityHashMap<>();
+        for (int i = 0; i < vertices.length; ++i) {
+            vertexNumbers.put(vertices[i], i);
+        }
+
+        isHost = new boolean[vertices.length];
+        int routerCount = 0;
+        int edgeCount = 0;
+        for (int i = 0; i < vertices.length; ++i) {
+            if (vertices[i] instanceof Router) {
+                routerCount++;
+                edgeCount += ((Router) vertices[i]).getLinks().size();
+            } else {
+                isHost[i] = true;
+                edgeCount++;
+            }
+        }
+
+        routerVertices = new int[routerCount];
+        edgeOffsets = new int[vertices.length + 1];
+        edgeTargets = new int[edgeCount];
+        edgeCosts = new double[edgeCount];
+        edgeLinks = new Link[edgeCount];
+        int edge = 0;
+        int router = 0;
+        for (int i = 0; i < vertices.length; ++i) {
+            edgeOffsets[i] = edge;
+            List<Link> links;
+            if (vertices[i] instanceof Router) {
+                routerVertices[router++] = i;
+                links = ((Router) vertices[i]).getLinks();
+            } else {
+                links = Collections.singletonList(((Host) vertices[i]).getLink());
+            }
+            for (Link link : links) {
+                Integer target = vertexNumbers.get(link.getOtherEnd(vertices[i]));
+                if (target == null)
+                    continue;
+                edgeTargets[edge] = target;
+                edgeCosts[edge] = link.getLinkDelay();
+                edgeLinks[edge] = link;
+                edge++;
+            }
+        }
+        edgeOffsets[vertices.length] = edge;
+    }
+
+    /**
+     * Compute and install the forwarding table of every Router in the network.
+     * @param nodes all Nodes in the network, with Links already attached to them
+     */
+    public static void install(List<Node> nodes) {
+        install(nodes, false);
+    }
+
+    /**
+     * Compute and install the forwarding table of every Router in the network, optionally with a backup Link for
+     * every destination. A backup is a loop-free alternate: a Link outside the destination's group whose neighbor's
+     * own shortest path to the destination does not come back through the Router. Finding them takes a run of
+     * Dijkstra from every neighbor of every Router as well, so they are only computed when asked for.
+     * @param nodes all Nodes in the network, with Links already attached to them
+     * @param computeBackups whether to also compute backup Links, for fast reroute
+     */
+    public static void install(List<Node> nodes, boolean computeBackups) {
+        long startTime = System.currentTimeMillis();
+        StaticRoutes routes = new StaticRoutes(nodes, computeBackups);
+        ForkJoinPool.commonPool().invoke(routes.new SourceTask(0, routes.routerVertices.length));
+        System.out.println("Computed static routes for " + routes.routerVertices.length + " routers in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Fork-join task computing the tables of a range of Routers. Splits in half until the range is small enough,
+     * then runs Dijkstra from each Router in turn, reusing its working arrays.
+     */
+    private class SourceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        public SourceTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SourcesPerTask) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SourceTask(from, middle), new SourceTask(middle, to));
+                return;
+            }
+            ShortestPaths shortestPaths = new ShortestPaths();
+            ShortestPaths neighborPaths = computeBackups ? new ShortestPaths() : null;
+            for (int i = from; i < to; ++i) {
+                shortestPaths.computeFrom(routerVertices[i], neighborPaths);
+            }
+        }
+    }
+
+    /**
+     * Working state for Dijkstra from a single source. Not thread safe; each task has its own.
+     */
+    private class ShortestPaths {
+        private final double[] distances = new double[vertices.length];
+        /**
+         * Vertices in the order they were settled
+         */
+        private final int[] settleOrder = new int[vertices.length];
+        /**
+         * First hops of every vertex, as sorted indices into the source Router's list of Links
+         */
+        private final int[][] firstHops = new int[vertices.length][];
+        /**
+         * Lazy binary heap of (distance, vertex) entries; stale entries are skipped when popped
+         */
+        private double[] heapDistances = new double[64];
+        private int[] heapVertices = new int[64];
+        private int heapSize;
+
+        /**
+         * Run Dijkstra from a Router and install its forwarding table.
+         * @param source vertex number of the Router
+         * @param neighborPaths working state for finding backup Links, or null not to find them
+         */
+        public void computeFrom(int source, ShortestPaths neighborPaths) {
+            Router router = (Router) vertices[source];
+            int settled = computeDistances(source);
+
+            // Collect equal-cost first hops in settle order, so every predecessor is done before its successors
+            List<Link> routerLinks = router.getLinks();
+            HashMap<Node, NextHopGroup> forwardingTable = new HashMap<>();
+            HashMap<String, NextHopGroup> sharedGroups = new HashMap<>();
+            for (int i = 1; i < settled; ++i) {
+                int vertex = settleOrder[i];
+                int[] hops = null;
+                for (int edge = edgeOffsets[vertex]; edge < edgeOffsets[vertex + 1]; ++edge) {
+                    int predecessor = edgeTargets[edge];
+                    if ((isHost[predecessor] && predecessor != source) ||
+                            distances[predecessor] + edgeCosts[edge] > distances[vertex] + EqualCostTolerance)
+                        continue;
+                    if (predecessor == source)
+                        hops = union(hops, new int[] {routerLinks.indexOf(edgeLinks[edge])});
+                    else
+                        hops = union(hops, firstHops[predecessor]);
+                }
+                firstHops[vertex] = hops;
+
+                if (isHost[vertex] && hops != null) {
+                    // Many destinations share the same set of first hops; share the group object too
+                    String key = Arrays.toString(hops);
+                    NextHopGroup group = sharedGroups.get(key);
+                    if (group == null) {
+                        ArrayList<Link> groupLinks = new ArrayList<>(hops.length);
+                        for (int hop : hops) {
+                            groupLinks.add(routerLinks.get(hop));
+                        }
+                        group = new NextHopGroup(groupLinks);
+                        sharedGroups.put(key, group);
+                    }
+                    forwardingTable.put(vertices[vertex], group);
+                }
+            }
+            if (neighborPaths == null)
+                router.installForwardingTable(forwardingTable);
+            else
+                router.installForwardingTable(forwardingTable, computeBackupLinks(source, neighborPaths));
+        }
+
+        /**
+         * Choose the backup Link of every Host reachable from a Router whose forwarding table has just been computed
+         * by this object, by running Dijkstra from each neighboring Router in turn.
+         * @param source vertex number of the Router
+         * @param neighborPaths working state for the neighbors' shortest paths
+         * @return Host maps to its backup Link
+         */
+        private HashMap<Node, Link> computeBackupLinks(int source, ShortestPaths neighborPaths) {
+            List<Link> routerLinks = ((Router) vertices[source]).getLinks();
+            Link[] backups = new Link[vertices.length];
+            double[] backupCosts = new double[vertices.length];
+            Arrays.fill(backupCosts, Double.POSITIVE_INFINITY);
+            for (int edge = edgeOffsets[source]; edge < edgeOffsets[source + 1]; ++edge) {
+                int neighbor = edgeTargets[edge];
+                if (isHost[neighbor])
+                    continue;
+                neighborPaths.computeDistances(neighbor);
+                double[] neighborDistances = neighborPaths.distances;
+                int linkIndex = routerLinks.indexOf(edgeLinks[edge]);
+                for (int vertex = 0; vertex < vertices.length; ++vertex) {
+                    if (!isHost[vertex] || firstHops[vertex] == null ||
+                            Arrays.binarySearch(firstHops[vertex], linkIndex) >= 0)
+                        continue;
+                    // Loop-free: the neighbor's own path to the Host does not come back through the source
+                    if (neighborDistances[vertex] + EqualCostTolerance >= neighborDistances[source] + distances[vertex])
+                        continue;
+                    double cost = edgeCosts[edge] + neighborDistances[vertex];
+                    if (cost < backupCosts[vertex]) {
+                        backupCosts[vertex] = cost;
+                        backups[vertex] = edgeLinks[edge];
+                    }
+                }
+            }
+            HashMap<Node, Link> backupLinks = new HashMap<>();
+            for (int vertex = 0; vertex < vertices.length; ++vertex) {
+                if (backups[vertex] != null)
+                    backupLinks.put(vertices[vertex], backups[vertex]);
+            }
+            return backupLinks;
+        }
+
+        /**
+         * Run Dijkstra from a Router, filling in the distances and settle order.
+         * @param source vertex number of the Router
+         * @return the number of vertices settled
+         */
+        public int computeDistances(int source) {
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            Arrays.fill(firstHops, null);
+            distances[source] = 0.0;
+            heapSize = 0;
+            push(0.0, source);
+
+            int settled = 0;
+            while (heapSize > 0) {
+                double distance = heapDistances[0];
+                int vertex = pop();
+                if (distance > distances[vertex])
+                    continue;
+                settleOrder[settled++] = vertex;
+                // Hosts only terminate paths
+                if (isHost[vertex] && vertex != source)
+                    continue;
+                for (int edge = edgeOffsets[vertex]; edge < edgeOffsets[vertex + 1]; ++edge) {
+                    double candidate = distance + edgeCosts[edge];
+                    int target = edgeTargets[edge];
+                    if (candidate < distances[target]) {
+                        distances[target] = candidate;
+                        push(candidate, target);
+                    }
+                }
+            }
+            return settled;
+        }
+
+        private void push(double distance, int vertex) {
+            if (heapSize == heapDistances.length) {
+                heapDistances = Arrays.copyOf(heapDistances, heapSize * 2);
+                heapVertices = Arrays.copyOf(heapVertices, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapDistances[parent] <= distance)
+                    break;
+                heapDistances[i] = heapDistances[parent];
+                heapVertices[i] = heapVertices[parent];
+                i = parent;
+            }
+            heapDistances[i] = distance;
+            heapVertices[i] = vertex;
+        }
+
+        private int pop() {
+            int top = heapVertices[0];
+            double lastDistance = heapDistances[--heapSize];
+            int lastVertex = heapVertices[heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize)
+                    break;
+                if (child + 1 < heapSize && heapDistances[child + 1] < heapDistances[child])
+                    child++;
+                if (heapDistances[child] >= lastDistance)
+                    break;
+                heapDistances[i] = heapDistances[child];
+                heapVertices[i] = heapVertices[child];
+                i = child;
+            }
+            heapDistances[i] = lastDistance;
+            heapVertices[i] = lastVertex;
+            return top;
+        }
+    }
+
+    /**
+     * Union of two sorted arrays of distinct ints.
+     * @param a first array, may be null
+     * @param b second array, may be null
+     * @return sorted union, null if both are null
+     */
+    private static int[] union(int[] a, int[] b) {
+        if (a == null)
+            return b;
+        if (b == null || Arrays.equals(a, b))
+            return a;
+        int[] output = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j]))
+                output[k++] = a[i++];
+            else if (i == a.length || b[j] < a[i])
+                output[k++] = b[j++];
+            else {
+                output[k++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(output, k);
+    }
+}
@@ -0,0 +1,80 @@
+package com.ricketts;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves SimulationTelemetry over HTTP on the loopback interface, as plain text in the Prometheus exposition format
+ * at "/metrics", so a long run can be watched with curl or scraped while it is still going.
+ */
+public class TelemetryServer {
+    private final HttpServer server;
+    private final SimulationTelemetry telemetry;
+
+    /**
+     * Start serving.
+     * @param port port to listen on, on the loopback interface
+     * @param telemetry what to serve
+     * @throws IOException if the port can't be bound
+     */
+    public TelemetryServer(int port, SimulationTelemetry telemetry) throws IOException {
+        this.telemetry = telemetry;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        System.out.println("Serving telemetry at http://" + server.getAddress().getHostString() + ":" +
+                server.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Format the latest telemetry.
+     * @return the text served
+     */
+    private String render() {
+        StringBuilder out = new StringBuilder();
+        String scenario = telemetry.getScenario();
+        String label = "{scenario=\"" + (scenario == null ? "" : scenario.replace("\"", "\\\"")) + "\"}";
+        out.append("simulation_time_ms").append(label).append(' ').append(telemetry.getSimulatedTime()).append('\n');
+        out.append("simulation_runtime_ms").append(label).append(' ').append(telemetry.getRuntime()).append('\n');
+        out.append("simulation_wall_time_ms").append(label).append(' ').append(telemetry.getWallTime()).append('\n');
+        out.append("simulation_simulated_to_wall_ratio").append(label).append(' ')
+                .append(telemetry.getSimulatedToWallRatio()).append('\n');
+        out.append("simulation_ticks_per_second").append(label).append(' ')
+                .append(telemetry.getTicksPerSecond()).append('\n');
+        out.append("simulation_packets_in_flight").append(label).append(' ')
+                .append(telemetry.getPacketsInFlight()).append('\n');
+        out.append("jvm_heap_used_bytes ").append(telemetry.getHeapUsed()).append('\n');
+        out.append("simulation_allocation_bytes_per_second").append(label).append(' ')
+                .append(telemetry.getAllocationRate()).append('\n');
+        int[] linkIDs = telemetry.getLinkIDs();
+        long[] queueDepths = telemetry.getQueueDepths();
+        for (int i = 0; i < linkIDs.length && i < queueDepths.length; ++i) {
+            out.append("link_queue_depth_bits{link=\"").append(linkIDs[i]).append("\"} ")
+                    .append(queueDepths[i]).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
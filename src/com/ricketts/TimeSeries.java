@@ -0,0 +1,198 @@
+package com.ricketts;
+
+import org.jfree.data.xy.XYSeries;
+
+import java.util.Arrays;
+
+/**
+ * A series of (time, value) samples kept in primitive columns rather than as one object per sample.
+ * Samples that fall in the same sample interval are combined into one point by taking their minimum, maximum or mean.
+ * When the series reaches its maximum number of points the interval doubles and neighbouring points are combined,
+ * so however long the run, the series never holds more than that many points.
+ * Samples are expected in time order, which is how the simulation produces them.
+ */
+public class TimeSeries {
+    /**
+     * How samples in the same interval are combined.
+     */
+    public enum Decimation {MIN, MAX, MEAN}
+
+    /**
+     * Points the columns start with room for
+     */
+    private static final int InitialCapacity = 64;
+
+    private final String name;
+    private final Decimation decimation;
+    private final int maxPoints;
+    /**
+     * Width of the interval every point covers, in ms
+     */
+    private long sampleInterval;
+    /**
+     * Start time of every point's interval
+     */
+    private long[] times;
+    /**
+     * Value of every point; the sum of its samples for MEAN
+     */
+    private double[] values;
+    /**
+     * Number of samples in every point, kept for MEAN only
+     */
+    private int[] counts;
+    private int size;
+    /**
+     * Where every raw sample is also written, if the series is being exported
+     */
+    private MetricsExporter.Channel exportChannel;
+
+    /**
+     * Construct an empty series.
+     * @param name name shown in plot legends
+     * @param sampleInterval width of the interval every point covers, in ms, at least 1
+     * @param decimation how samples in the same interval are combined
+     * @param maxPoints most points kept, at least 2
+     */
+    public TimeSeries(String name, int sampleInterval, Decimation decimation, int maxPoints) {
+        if (sampleInterval < 1 || maxPoints < 2)
+            throw new IllegalArgumentException("a time series needs an interval of at least 1 and room for 2 points");
+        this.name = name;
+        this.sampleInterval = sampleInterval;
+        this.decimation = decimation;
+        this.maxPoints = maxPoints;
+        // The columns are made when the first sample arrives, so a series that is never used costs almost nothing
+        this.times = new long[0];
+        this.values = new double[0];
+        this.counts = decimation == Decimation.MEAN ? new int[0] : null;
+    }
+
+    public String getName() { return name; }
+    public int size() { return size; }
+    public long getSampleInterval() { return sampleInterval; }
+
+    /**
+     * Also write every raw sample, before it is combined, to a metrics file.
+     * @param channel the exporter's Channel for this series
+     */
+    public void exportTo(MetricsExporter.Channel channel) {
+        this.exportChannel = channel;
+    }
+
+    /**
+     * Stop writing samples to the metrics file, handing it the ones not written yet.
+     */
+    public void closeExport() {
+        if (exportChannel != null) {
+            exportChannel.close();
+            exportChannel = null;
+        }
+    }
+
+    /**
+     * Add a sample.
+     * @param time time of the sample in ms, not before the previous sample
+     * @param value the value
+     */
+    public void add(long time, double value) {
+        if (exportChannel != null)
+            exportChannel.add(time, value);
+        long start = time - time % sampleInterval;
+        if (size > 0 && start <= times[size - 1]) {
+            combine(size - 1, value, 1);
+            return;
+        }
+        if (size == maxPoints) {
+            // Samples further apart than the interval need several doublings before any points share one
+            while (size == maxPoints) {
+                coarsen();
+            }
+            start = time - time % sampleInterval;
+            if (start <= times[size - 1]) {
+                combine(size - 1, value, 1);
+                return;
+            }
+        }
+        if (size == times.length) {
+            int capacity = Math.min(maxPoints, size == 0 ? InitialCapacity : 2 * size);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (counts != null)
+                counts = Arrays.copyOf(counts, capacity);
+        }
+        times[size] = start;
+        values[size] = value;
+        if (counts != null)
+            counts[size] = 1;
+        ++size;
+    }
+
+    /**
+     * Fold a value, or a point standing for several samples, into a point.
+     * @param index the point
+     * @param value the value, or the other point's sum for MEAN
+     * @param count how many samples the value stands for
+     */
+    private void combine(int index, double value, int count) {
+        if (decimation == Decimation.MIN)
+            values[index] = Math.min(values[index], value);
+        else if (decimation == Decimation.MAX)
+            values[index] = Math.max(values[index], value);
+        else {
+            values[index] += value;
+            counts[index] += count;
+        }
+    }
+
+    /**
+     * Double the sample interval and combine the points that now share an interval.
+     */
+    private void coarsen() {
+        sampleInterval *= 2;
+        int newSize = 0;
+        for (int i = 0; i < size; ++i) {
+            long start = times[i] - times[i] % sampleInterval;
+            if (newSize > 0 && times[newSize - 1] == start) {
+                combine(newSize - 1, values[i], counts == null ? 1 : counts[i]);
+            } else {
+                times[newSize] = start;
+                values[newSize] = values[i];
+                if (counts != null)
+                    counts[newSize] = counts[i];
+                ++newSize;
+            }
+        }
+        size = newSize;
+    }
+
+    /**
+     * Time of a point.
+     * @param index the point
+     * @return start of its interval in ms
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Value of a point.
+     * @param index the point
+     * @return its minimum, maximum or mean
+     */
+    public double getValue(int index) {
+        return counts == null ? values[index] : values[index] / counts[index];
+    }
+
+    /**
+     * Copy the points into a JFreeChart series for plotting.
+     * @return the XYSeries
+     */
+    public XYSeries toXYSeries() {
+        // The points are already sorted and distinct, so skip JFreeChart's sorting and duplicate checks
+        XYSeries series = new XYSeries(name, false, true);
+        for (int i = 0; i < size; ++i) {
+            series.add(times[i], getValue(i), false);
+        }
+        return series;
+    }
+}
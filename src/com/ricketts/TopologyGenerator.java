@@ -0,0 +1,640 @@
+package com.ricketts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds Networks of a given shape directly in memory, without a JSON definition: dumbbells, fat-trees, leaf-spines
+ * and Waxman and Barabasi-Albert random graphs. Everything is built in time linear in the size of the network, so
+ * topologies with 100k nodes take seconds.
+ *
+ * Units match the JSON definitions: capacities in Mbps, delays in ms, buffer sizes in KB and flow sizes in MB.
+ */
+public class TopologyGenerator {
+    /**
+     * Settings shared by every generator. Fields are public so they can be set one by one, like a struct.
+     */
+    public static class Parameters {
+        /**
+         * Capacity of every link, in Mbps, unless the generator says otherwise
+         */
+        public double capacity = 10;
+        /**
+         * Propagation delay of every link, in ms
+         */
+        public int delay = 10;
+        /**
+         * Buffer size at each end of every link, in KB
+         */
+        public int bufferSize = 64;
+        /**
+         * Simulation runtime, in ms
+         */
+        public int runtime = 20000;
+        /**
+         * Routing protocol used by the Routers. Static routes need no convergence time, which suits large networks.
+         */
+        public int routingProtocol = Main.RoutingProtocol.STATIC;
+        /**
+         * Number of flows to start, or -1 for the generator's default
+         */
+        public int flows = -1;
+        /**
+         * Size of every flow, in MB
+         */
+        public int dataAmount = 1;
+        /**
+         * Start time of the first flow, in ms
+         */
+        public int startTime = 1000;
+        /**
+         * Time between the start of one flow and the next, in ms
+         */
+        public int stagger = 0;
+        /**
+         * Seed for every random choice, so a generated network can be built again exactly
+         */
+        public long seed = 1;
+        /**
+         * Link failures, recoveries and capacity changes during the run. Written in a spec as for
+         * NetworkEvent.parseList, e.g. "events=5000:down:3+8000:up:3"; links are numbered from 1 as they are built.
+         */
+        public ArrayList<NetworkEvent> events = new ArrayList<>();
+    }
+
+    /**
+     * Links of a random graph are never made between routers so far apart that the Waxman probability of linking them
+     * is below this. This is what lets the generator skip most pairs of routers.
+     */
+    private static final double MinWaxmanProbability = 1e-6;
+
+    /**
+     * Build a Network from a spec of the form "name:key=value,key=value", e.g. "fattree:k=4,capacity=100".
+     * Keys are the Parameters fields plus the generator's own, which are:
+     *  dumbbell:    n (sender/receiver pairs), bottleneck (Mbps)
+     *  fattree:     k (even)
+     *  leafspine:   leaves, spines, hosts (per leaf), oversubscription
+     *  waxman:      n (routers), hosts (per router), alpha, beta, degree (mean degree used to pick alpha)
+     *  ba:          n (routers), hosts (per router), m (links per new router)
+     * "routing" takes the same values as in a JSON definition, and "events" schedules link failures and capacity
+     * changes (see NetworkEvent.parseList).
+     * @param text the spec
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     * @throws TopologyParseException if the spec names an unknown generator or has a bad value
+     */
+    public static Network fromSpec(String text, int protocol) throws TopologyParseException {
+        ScenarioSpec spec = new ScenarioSpec(text);
+        try {
+            Parameters parameters = new Parameters();
+            parameters.capacity = spec.getDouble("capacity", parameters.capacity);
+            parameters.delay = spec.getInt("delay", parameters.delay);
+            parameters.bufferSize = spec.getInt("bufferSize", parameters.bufferSize);
+            parameters.runtime = spec.getInt("runtime", parameters.runtime);
+            parameters.flows = spec.getInt("flows", parameters.flows);
+            parameters.dataAmount = spec.getInt("dataAmount", parameters.dataAmount);
+            parameters.startTime = spec.getInt("startTime", parameters.startTime);
+            parameters.stagger = spec.getInt("stagger", parameters.stagger);
+            parameters.seed = (long) spec.getDouble("seed", parameters.seed);
+            String events = spec.getString("events", null);
+            if (events != null)
+                parameters.events = NetworkEvent.parseList(events);
+            String routing = spec.getString("routing", null);
+            if (routing != null) {
+                Integer routingProtocol = InputParser.lookupRoutingProtocol(routing);
+                if (routingProtocol == null)
+                    throw new IllegalArgumentException("unknown routing protocol \"" + routing + "\"");
+                parameters.routingProtocol = routingProtocol;
+            }
+
+            // Every parameter is read before anything is built, so a typo fails fast even for a huge network
+            String name = spec.getName();
+            if (name.equals("dumbbell")) {
+                int n = spec.getInt("n", 2);
+                double bottleneck = spec.getDouble("bottleneck", parameters.capacity);
+                spec.checkAllUsed();
+                return dumbbell(n, bottleneck, parameters, protocol);
+            } else if (name.equals("fattree")) {
+                int k = spec.getInt("k", 4);
+                spec.checkAllUsed();
+                return fatTree(k, parameters, protocol);
+            } else if (name.equals("leafspine")) {
+                int leaves = spec.getInt("leaves", 4);
+                int spines = spec.getInt("spines", 2);
+                int hosts = spec.getInt("hosts", 4);
+                double oversubscription = spec.getDouble("oversubscription", 1);
+                spec.checkAllUsed();
+                return leafSpine(leaves, spines, hosts, oversubscription, parameters, protocol);
+            } else if (name.equals("waxman")) {
+                int n = spec.getInt("n", 100);
+                int hosts = spec.getInt("hosts", 1);
+                double beta = spec.getDouble("beta", .5);
+                double degree = spec.getDouble("degree", 4);
+                double alpha = spec.getDouble("alpha", waxmanAlpha(n, beta, degree));
+                spec.checkAllUsed();
+                return waxman(n, hosts, alpha, beta, parameters, protocol);
+            } else if (name.equals("ba")) {
+                int n = spec.getInt("n", 100);
+                int hosts = spec.getInt("hosts", 1);
+                int m = spec.getInt("m", 2);
+                spec.checkAllUsed();
+                return barabasiAlbert(n, hosts, m, parameters, protocol);
+            }
+            throw new TopologyParseException(text, 0, "unknown topology generator \"" + name + "\"");
+        } catch (IllegalArgumentException e) {
+            throw new TopologyParseException(text, 0, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Build a dumbbell: n senders on one router, n receivers on another and a single bottleneck link between the two
+     * routers. Sender i sends to receiver i. The bottleneck is the only graphed link.
+     * @param n number of sender/receiver pairs
+     * @param bottleneckCapacity capacity of the bottleneck, in Mbps
+     * @param parameters shared settings; flows defaults to n
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    public static Network dumbbell(int n, double bottleneckCapacity, Parameters parameters, int protocol) {
+        if (n < 1)
+            throw new IllegalArgumentException("a dumbbell needs at least one pair of hosts");
+        Builder builder = new Builder(parameters, protocol);
+        int left = builder.addRouter("left");
+        int right = builder.addRouter("right");
+        builder.connect(left, right, bottleneckCapacity).graph = true;
+
+        Host[] senders = new Host[n];
+        Host[] receivers = new Host[n];
+        for (int i = 0; i < n; ++i) {
+            senders[i] = builder.addHost("s" + i, left, parameters.capacity);
+            receivers[i] = builder.addHost("d" + i, right, parameters.capacity);
+        }
+
+        int flowCount = parameters.flows < 0 ? n : Math.min(parameters.flows, n);
+        for (int i = 0; i < flowCount; ++i) {
+            builder.addFlow(senders[i], receivers[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build a k-ary fat-tree: k pods of k/2 edge and k/2 aggregation switches, (k/2)^2 core switches and k^3/4 hosts.
+     * Every edge switch links to every aggregation switch in its pod, and aggregation switch i of every pod links to
+     * core switches i*k/2 to (i+1)*k/2 - 1.
+     * @param k switch port count, even
+     * @param parameters shared settings; flows defaults to none
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    public static Network fatTree(int k, Parameters parameters, int protocol) {
+        if (k < 2 || k % 2 != 0)
+            throw new IllegalArgumentException("a fat-tree needs an even k of at least 2, got " + k);
+        int half = k / 2;
+        Builder builder = new Builder(parameters, protocol);
+        int[] cores = new int[half * half];
+        for (int i = 0; i < cores.length; ++i) {
+            cores[i] = builder.addRouter("core" + i);
+        }
+
+        ArrayList<Host> hosts = new ArrayList<>(k * k * k / 4);
+        for (int pod = 0; pod < k; ++pod) {
+            int[] aggregations = new int[half];
+            for (int i = 0; i < half; ++i) {
+                aggregations[i] = builder.addRouter("agg" + pod + "_" + i);
+                for (int j = 0; j < half; ++j) {
+                    builder.connect(aggregations[i], cores[i * half + j], parameters.capacity);
+                }
+            }
+            for (int i = 0; i < half; ++i) {
+                int edge = builder.addRouter("edge" + pod + "_" + i);
+                for (int aggregation : aggregations) {
+                    builder.connect(edge, aggregation, parameters.capacity);
+                }
+                for (int j = 0; j < half; ++j) {
+                    hosts.add(builder.addHost("h" + pod + "_" + i + "_" + j, edge, parameters.capacity));
+                }
+            }
+        }
+
+        builder.addPermutationFlows(hosts);
+        return builder.build();
+    }
+
+    /**
+     * Build a leaf-spine: every leaf switch links to every spine switch and has its own hosts. The uplinks are sized
+     * so that the hosts of a leaf can offer oversubscription times as much traffic as the leaf can send up.
+     * @param leaves number of leaf switches
+     * @param spines number of spine switches
+     * @param hostsPerLeaf number of hosts on each leaf
+     * @param oversubscription ratio of host capacity to uplink capacity on each leaf, 1 for none
+     * @param parameters shared settings; capacity is the host link capacity and flows defaults to none
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    public static Network leafSpine(int leaves, int spines, int hostsPerLeaf, double oversubscription,
+                                    Parameters parameters, int protocol) {
+        if (leaves < 1 || spines < 1 || hostsPerLeaf < 1)
+            throw new IllegalArgumentException("a leaf-spine needs at least one leaf, spine and host per leaf");
+        if (oversubscription <= 0)
+            throw new IllegalArgumentException("oversubscription must be positive, got " + oversubscription);
+        double uplinkCapacity = hostsPerLeaf * parameters.capacity / (spines * oversubscription);
+        Builder builder = new Builder(parameters, protocol);
+        int[] spineRouters = new int[spines];
+        for (int i = 0; i < spines; ++i) {
+            spineRouters[i] = builder.addRouter("spine" + i);
+        }
+
+        ArrayList<Host> hosts = new ArrayList<>(leaves * hostsPerLeaf);
+        for (int i = 0; i < leaves; ++i) {
+            int leaf = builder.addRouter("leaf" + i);
+            for (int spine : spineRouters) {
+                builder.connect(leaf, spine, uplinkCapacity);
+            }
+            for (int j = 0; j < hostsPerLeaf; ++j) {
+                hosts.add(builder.addHost("h" + i + "_" + j, leaf, parameters.capacity));
+            }
+        }
+
+        builder.addPermutationFlows(hosts);
+        return builder.build();
+    }
+
+    /**
+     * Pick the Waxman alpha that gives a mean router degree close to a target.
+     * For small alpha the expected degree is about n * beta * 2 pi (alpha L)^2, with L the diagonal of the unit square.
+     * @param n number of routers
+     * @param beta Waxman beta
+     * @param degree target mean degree
+     * @return alpha, at most 1
+     */
+    private static double waxmanAlpha(int n, double beta, double degree) {
+        return Math.min(1, Math.sqrt(degree / (2 * Math.PI * Math.max(n, 1) * beta)) / Math.sqrt(2));
+    }
+
+    /**
+     * Build a Waxman random graph: routers are placed at random in the unit square and two routers at distance d are
+     * linked with probability beta * exp(-d / (alpha L)), L being the diagonal of the square. Routers are bucketed
+     * into a grid so only pairs close enough to have a real chance of a link are tried. Components left unconnected
+     * are then chained together so every host can reach every other.
+     * @param n number of routers
+     * @param hostsPerRouter number of hosts on each router
+     * @param alpha Waxman alpha, larger means longer links
+     * @param beta Waxman beta, larger means more links
+     * @param parameters shared settings; flows defaults to none
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    public static Network waxman(int n, int hostsPerRouter, double alpha, double beta, Parameters parameters,
+                                 int protocol) {
+        if (n < 1)
+            throw new IllegalArgumentException("a random graph needs at least one router");
+        if (alpha <= 0 || beta <= 0 || beta > 1)
+            throw new IllegalArgumentException("Waxman needs alpha > 0 and 0 < beta <= 1");
+        Random random = new Random(parameters.seed);
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; ++i) {
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+        }
+
+        // Beyond this distance the link probability is negligible, so the grid cells are this wide
+        double scale = alpha * Math.sqrt(2);
+        double cutoff = scale * Math.log(beta / MinWaxmanProbability);
+        int cellsPerSide = (int) Math.max(1, Math.min(Math.sqrt(n), 1 / cutoff));
+        int[] cellStart = new int[cellsPerSide * cellsPerSide + 1];
+        int[] cellOf = new int[n];
+        for (int i = 0; i < n; ++i) {
+            int cx = Math.min(cellsPerSide - 1, (int) (x[i] * cellsPerSide));
+            int cy = Math.min(cellsPerSide - 1, (int) (y[i] * cellsPerSide));
+            cellOf[i] = cy * cellsPerSide + cx;
+            ++cellStart[cellOf[i] + 1];
+        }
+        for (int i = 0; i < cellsPerSide * cellsPerSide; ++i) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        int[] cellMembers = new int[n];
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length);
+        for (int i = 0; i < n; ++i) {
+            cellMembers[fill[cellOf[i]]++] = i;
+        }
+
+        EdgeList edges = new EdgeList(n);
+        for (int i = 0; i < n; ++i) {
+            int cx = cellOf[i] % cellsPerSide;
+            int cy = cellOf[i] / cellsPerSide;
+            for (int ny = Math.max(0, cy - 1); ny <= Math.min(cellsPerSide - 1, cy + 1); ++ny) {
+                for (int nx = Math.max(0, cx - 1); nx <= Math.min(cellsPerSide - 1, cx + 1); ++nx) {
+                    int cell = ny * cellsPerSide + nx;
+                    for (int m = cellStart[cell]; m < cellStart[cell + 1]; ++m) {
+                        int j = cellMembers[m];
+                        if (j <= i)
+                            continue;
+                        double dx = x[i] - x[j];
+                        double dy = y[i] - y[j];
+                        if (dx * dx + dy * dy > cutoff * cutoff)
+                            continue;
+                        if (random.nextDouble() < beta * Math.exp(-Math.sqrt(dx * dx + dy * dy) / scale))
+                            edges.add(i, j);
+                    }
+                }
+            }
+        }
+        edges.connectComponents();
+        return buildRandomGraph(n, hostsPerRouter, edges, parameters, protocol);
+    }
+
+    /**
+     * Build a Barabasi-Albert random graph: starting from m + 1 fully linked routers, every new router links to m
+     * distinct existing routers chosen with probability proportional to their degree. The result is connected and its
+     * degrees follow a power law.
+     * @param n number of routers
+     * @param hostsPerRouter number of hosts on each router
+     * @param m links made by each new router
+     * @param parameters shared settings; flows defaults to none
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    public static Network barabasiAlbert(int n, int hostsPerRouter, int m, Parameters parameters, int protocol) {
+        if (m < 1 || n < m + 1)
+            throw new IllegalArgumentException("Barabasi-Albert needs m >= 1 and at least m + 1 routers");
+        Random random = new Random(parameters.seed);
+        EdgeList edges = new EdgeList(n);
+        // Every router appears here once per link it has, so a uniform pick from it is a pick by degree
+        int[] endpoints = new int[m * (m + 1) + 2 * m * (n - m - 1)];
+        int endpointCount = 0;
+        for (int i = 0; i <= m; ++i) {
+            for (int j = i + 1; j <= m; ++j) {
+                edges.add(i, j);
+                endpoints[endpointCount++] = i;
+                endpoints[endpointCount++] = j;
+            }
+        }
+
+        int[] targets = new int[m];
+        for (int router = m + 1; router < n; ++router) {
+            int targetCount = 0;
+            while (targetCount < m) {
+                int target = endpoints[random.nextInt(endpointCount)];
+                boolean chosen = false;
+                for (int t = 0; t < targetCount; ++t) {
+                    chosen |= targets[t] == target;
+                }
+                if (!chosen)
+                    targets[targetCount++] = target;
+            }
+            for (int target : targets) {
+                edges.add(router, target);
+                endpoints[endpointCount++] = router;
+                endpoints[endpointCount++] = target;
+            }
+        }
+        return buildRandomGraph(n, hostsPerRouter, edges, parameters, protocol);
+    }
+
+    /**
+     * Turn a random router graph into a Network, hanging hosts off every router.
+     * @param n number of routers
+     * @param hostsPerRouter number of hosts on each router
+     * @param edges links between routers, by router index
+     * @param parameters shared settings
+     * @param protocol the tcp protocol given to the Hosts
+     * @return the Network
+     */
+    private static Network buildRandomGraph(int n, int hostsPerRouter, EdgeList edges, Parameters parameters,
+                                            int protocol) {
+        if (hostsPerRouter < 0)
+            throw new IllegalArgumentException("hosts per router can't be negative");
+        Builder builder = new Builder(parameters, protocol);
+        for (int i = 0; i < n; ++i) {
+            builder.addRouter("r" + i);
+        }
+        for (int e = 0; e < edges.size; ++e) {
+            builder.connect(edges.from[e], edges.to[e], parameters.capacity);
+        }
+        ArrayList<Host> hosts = new ArrayList<>(n * hostsPerRouter);
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < hostsPerRouter; ++j) {
+                hosts.add(builder.addHost("h" + i + "_" + j, i, parameters.capacity));
+            }
+        }
+        builder.addPermutationFlows(hosts);
+        return builder.build();
+    }
+
+    /**
+     * Growable list of undirected links between routers, by router index.
+     */
+    private static class EdgeList {
+        /**
+         * Number of routers
+         */
+        private final int n;
+        private int[] from;
+        private int[] to;
+        private int size;
+
+        public EdgeList(int n) {
+            this.n = n;
+            this.from = new int[Math.max(16, 2 * n)];
+            this.to = new int[from.length];
+        }
+
+        public void add(int a, int b) {
+            if (size == from.length) {
+                from = Arrays.copyOf(from, 2 * size);
+                to = Arrays.copyOf(to, 2 * size);
+            }
+            from[size] = a;
+            to[size] = b;
+            ++size;
+        }
+
+        /**
+         * Link the connected components into a chain, so the graph is connected.
+         * Each component is linked to the next through their lowest numbered routers.
+         */
+        public void connectComponents() {
+            int[] parent = new int[n];
+            for (int i = 0; i < n; ++i) {
+                parent[i] = i;
+            }
+            for (int e = 0; e < size; ++e) {
+                int a = find(parent, from[e]);
+                int b = find(parent, to[e]);
+                if (a != b)
+                    parent[Math.max(a, b)] = Math.min(a, b);
+            }
+            int previousRoot = -1;
+            for (int i = 0; i < n; ++i) {
+                // The lowest numbered router of every component is its root
+                if (find(parent, i) != i)
+                    continue;
+                if (previousRoot >= 0)
+                    add(previousRoot, i);
+                previousRoot = i;
+            }
+        }
+
+        /**
+         * Find the root of a router's component, halving the path on the way.
+         * @param parent parent of every router
+         * @param i the router
+         * @return the root
+         */
+        private static int find(int[] parent, int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Accumulates the parts of a Network. Routers are created last, since a Router needs all its Links up front.
+     */
+    private static class Builder {
+        private final Parameters parameters;
+        private final int protocol;
+        private final Random random;
+        private final ArrayList<Link> links = new ArrayList<>();
+        private final ArrayList<Host> hosts = new ArrayList<>();
+        private final ArrayList<String> routerAddresses = new ArrayList<>();
+        private final ArrayList<ArrayList<Link>> routerLinks = new ArrayList<>();
+        private final ArrayList<Flow> flows = new ArrayList<>();
+
+        public Builder(Parameters parameters, int protocol) {
+            this.parameters = parameters;
+            this.protocol = protocol;
+            this.random = new Random(parameters.seed);
+        }
+
+        /**
+         * Add a Router.
+         * @param address its address
+         * @return its index, used to connect it
+         */
+        public int addRouter(String address) {
+            routerAddresses.add(address);
+            routerLinks.add(new ArrayList<Link>());
+            return routerAddresses.size() - 1;
+        }
+
+        /**
+         * Make a Link with the shared delay and buffer size.
+         * @param capacity capacity in Mbps
+         * @return the Link
+         */
+        private Link addLink(double capacity) {
+            Link link = new Link(links.size() + 1, (int) (capacity * 1048.576), parameters.delay,
+                    parameters.bufferSize * 8192, false);
+            links.add(link);
+            return link;
+        }
+
+        /**
+         * Link two Routers.
+         * @param a index of one Router
+         * @param b index of the other
+         * @param capacity capacity in Mbps
+         * @return the Link
+         */
+        public Link connect(int a, int b, double capacity) {
+            Link link = addLink(capacity);
+            routerLinks.get(a).add(link);
+            routerLinks.get(b).add(link);
+            return link;
+        }
+
+        /**
+         * Add a Host linked to a Router.
+         * @param address its address
+         * @param router index of the Router
+         * @param capacity capacity of its Link in Mbps
+         * @return the Host
+         */
+        public Host addHost(String address, int router, double capacity) {
+            Link link = addLink(capacity);
+            routerLinks.get(router).add(link);
+            Host host = new Host(address, link, protocol);
+            hosts.add(host);
+            return host;
+        }
+
+        /**
+         * Add a Flow, starting after the ones already added.
+         * @param source sending Host
+         * @param destination receiving Host
+         */
+        public void addFlow(Host source, Host destination) {
+            int startTime = parameters.startTime + flows.size() * parameters.stagger;
+            flows.add(new Flow(flows.size() + 1, source, destination, parameters.dataAmount * 8388608L, startTime));
+        }
+
+        /**
+         * Add parameters.flows Flows along a random cycle through the Hosts, so no Host sends or receives more
+         * than one Flow.
+         * @param candidates the Hosts to pick from
+         */
+        public void addPermutationFlows(ArrayList<Host> candidates) {
+            int flowCount = Math.max(parameters.flows, 0);
+            if (flowCount == 0)
+                return;
+            if (candidates.size() < 2 || flowCount > candidates.size())
+                throw new IllegalArgumentException("can't place " + flowCount + " flows on " + candidates.size() +
+                        " hosts");
+            Host[] order = candidates.toArray(new Host[candidates.size()]);
+            for (int i = order.length - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                Host swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int i = 0; i < flowCount; ++i) {
+                addFlow(order[i], order[(i + 1) % order.length]);
+            }
+        }
+
+        /**
+         * Create the Routers and assemble the Network.
+         * @return the Network
+         */
+        public Network build() {
+            ArrayList<Router> routers = new ArrayList<>(routerAddresses.size());
+            for (int i = 0; i < routerAddresses.size(); ++i) {
+                routers.add(new Router(routerAddresses.get(i), routerLinks.get(i), parameters.routingProtocol));
+            }
+            for (NetworkEvent event : parameters.events) {
+                if (event.getLinkID() < 1 || event.getLinkID() > links.size())
+                    throw new IllegalArgumentException("event at " + event.getTime() + " ms refers to " +
+                            "undefined link " + event.getLinkID());
+            }
+            return new Network(links, hosts, routers, flows, parameters.runtime, parameters.routingProtocol, null,
+                    parameters.events);
+        }
+    }
+
+    /**
+     * Generate topologies and report how long each took and how big it is.
+     * @param args generator specs
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: TopologyGenerator <spec> [...], e.g. fattree:k=16 waxman:n=100000");
+            return;
+        }
+        for (String spec : args) {
+            try {
+                long startTime = System.currentTimeMillis();
+                Network network = fromSpec(spec, Main.Protocol.RENO);
+                System.out.println(spec + ": " + network.getHosts().size() + " hosts, " +
+                        network.getRouters().size() + " routers, " + network.getLinks().size() + " links, " +
+                        network.getFlows().size() + " flows in " + (System.currentTimeMillis() - startTime) + " ms");
+            } catch (TopologyParseException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
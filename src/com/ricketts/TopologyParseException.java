@@ -0,0 +1,38 @@
+package com.ricketts;
+
+/**
+ * Thrown when a network definition cannot be read, with the file and line the problem was found on.
+ */
+public class TopologyParseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Line the problem was found on, or 0 if it is not tied to a line
+     */
+    private final int line;
+
+    /**
+     * Construct an exception for a problem on a given line.
+     * @param filename the network definition being read
+     * @param line line the problem was found on, or 0 if it is not tied to a line
+     * @param message description of the problem
+     */
+    public TopologyParseException(String filename, int line, String message) {
+        super(filename + (line > 0 ? " line " + line : "") + ": " + message);
+        this.line = line;
+    }
+
+    /**
+     * Construct an exception caused by another exception.
+     * @param filename the network definition being read
+     * @param line line the problem was found on, or 0 if it is not tied to a line
+     * @param message description of the problem
+     * @param cause underlying exception
+     */
+    public TopologyParseException(String filename, int line, String message, Throwable cause) {
+        this(filename, line, message);
+        initCause(cause);
+    }
+
+    public int getLine() { return line; }
+}
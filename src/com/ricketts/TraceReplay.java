@@ -0,0 +1,419 @@
+package com.ricketts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Replays recorded flows from a trace file. Each record is a start time, a source and destination address and a size.
+ * The file is read through a fixed size buffer and only a bounded batch of records is parsed ahead of the simulation,
+ * so a trace of any length replays in constant memory.
+ *
+ * Two formats are read:
+ *  CSV:    one record per line, "startTime,source,destination,bytes", start time in ms; a header line is skipped
+ *  binary: magic, format version, then per record start time (long, ms), source and destination keys (int) and
+ *          bytes (long), all big endian. Written from a CSV trace by main.
+ * Trace times are shifted so the first record starts at the given simulation time.
+ *
+ * Trace addresses are mapped onto Hosts by their key, which is the Java hash code of the address text: an address
+ * equal to a Host's address goes to that Host, any other is spread over the Hosts by hashing.
+ */
+public class TraceReplay implements FlowSource, Closeable {
+    /**
+     * "NTRC"
+     */
+    private static final int Magic = 0x4E545243;
+    private static final int FormatVersion = 1;
+    /**
+     * Bytes per binary record
+     */
+    private static final int RecordSize = 24;
+    /**
+     * Size of the read buffer in bytes
+     */
+    private static final int BufferSize = 1 << 20;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean binary;
+    private final ArrayList<Host> hosts;
+    /**
+     * Hosts by the key of their address
+     */
+    private final HashMap<Integer, Host> hostsByKey;
+    /**
+     * Added to every trace time to get the simulation time; set from the first record
+     */
+    private Long timeOffset;
+    /**
+     * Simulation time of the first replayed flow, in ms
+     */
+    private final int startTime;
+
+    /**
+     * Parsed records waiting to be replayed, in parallel arrays
+     */
+    private final int[] startTimes, sources, destinations;
+    private final long[] sizes;
+    private int batchSize, batchPosition;
+    private boolean endOfFile;
+    /**
+     * Trace time of the record just read, in ms
+     */
+    private long recordTime;
+    /**
+     * Where the fields of the CSV line being parsed start and end in the buffer
+     */
+    private final int[] fieldStarts = new int[4], fieldEnds = new int[4];
+
+    /**
+     * Current line, for error messages
+     */
+    private long lineNumber;
+    private int nextFlowID;
+    private long flowCount, skippedCount, lateCount;
+    private int lastStartTime;
+
+    /**
+     * Open a trace for replay on a Network.
+     * @param filename the trace file; read as CSV if it ends in ".csv", otherwise as binary
+     * @param network the Network; flow IDs continue after its own Flows
+     * @param startTime simulation time, in ms, that the first record of the trace is replayed at
+     * @param readAhead how many records to parse ahead of the simulation
+     * @throws TopologyParseException if the file can't be opened or isn't a trace
+     */
+    public TraceReplay(String filename, Network network, int startTime, int readAhead) throws TopologyParseException {
+        if (network.getHosts().size() < 2)
+            throw new TopologyParseException(filename, 0, "replaying a trace needs at least two hosts");
+        this.filename = filename;
+        this.hosts = network.getHosts();
+        this.hostsByKey = new HashMap<>();
+        for (Host host : hosts) {
+            hostsByKey.put(host.getAddress().hashCode(), host);
+        }
+        this.startTime = startTime;
+        this.startTimes = new int[readAhead];
+        this.sources = new int[readAhead];
+        this.destinations = new int[readAhead];
+        this.sizes = new long[readAhead];
+        int lastFlowID = 0;
+        for (Flow flow : network.getFlows()) {
+            lastFlowID = Math.max(lastFlowID, flow.getID());
+        }
+        this.nextFlowID = lastFlowID + 1;
+
+        this.binary = !filename.endsWith(".csv");
+        this.buffer = ByteBuffer.allocateDirect(BufferSize);
+        try {
+            this.channel = new FileInputStream(filename).getChannel();
+            buffer.flip();
+            if (binary && (!fill(8) || buffer.getInt() != Magic || buffer.getInt() != FormatVersion)) {
+                channel.close();
+                throw new TopologyParseException(filename, 0, "not a binary trace of format version " +
+                        FormatVersion);
+            }
+        } catch (IOException e) {
+            throw new TopologyParseException(filename, 0, "cannot read trace: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Open a trace from a spec such as "trace:file=flows.csv,start=1000,readahead=4096".
+     * @param text the spec
+     * @param network the Network the trace is replayed on
+     * @return the TraceReplay
+     * @throws TopologyParseException if the spec has an unknown or bad value, or the file can't be opened
+     */
+    public static TraceReplay fromSpec(String text, Network network) throws TopologyParseException {
+        ScenarioSpec spec = new ScenarioSpec(text);
+        try {
+            String file = spec.getString("file", null);
+            if (file == null)
+                throw new IllegalArgumentException("a trace needs a file");
+            int startTime = spec.getInt("start", 1000);
+            int readAhead = spec.getInt("readahead", 4096);
+            if (readAhead < 1)
+                throw new IllegalArgumentException("readahead must be at least 1");
+            spec.checkAllUsed();
+            return new TraceReplay(file, network, startTime, readAhead);
+        } catch (IllegalArgumentException e) {
+            throw new TopologyParseException(text, 0, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * How many flows have been replayed so far.
+     * @return the count
+     */
+    public long getFlowCount() { return flowCount; }
+
+    public int getNextStartTime() {
+        if (batchPosition == batchSize && !readBatch())
+            return Integer.MAX_VALUE;
+        return startTimes[batchPosition];
+    }
+
+    public Flow nextFlow() {
+        if (batchPosition == batchSize && !readBatch())
+            throw new IllegalStateException("trace " + filename + " has no more flows");
+        Host source = hostFor(sources[batchPosition]);
+        Host destination = hostFor(destinations[batchPosition]);
+        long bits = Math.max(DataPacket.DataPacketSize, sizes[batchPosition] * 8);
+        Flow flow = new Flow(nextFlowID++, source, destination, bits, startTimes[batchPosition]);
+        ++batchPosition;
+        ++flowCount;
+        return flow;
+    }
+
+    /**
+     * Map an address key onto a Host.
+     * @param key the address key
+     * @return the Host
+     */
+    private Host hostFor(int key) {
+        Host host = hostsByKey.get(key);
+        if (host != null)
+            return host;
+        // Spread the other addresses evenly, whatever their keys look like
+        int mixed = key * 0x9E3779B9;
+        return hosts.get(Math.floorMod(mixed ^ (mixed >>> 16), hosts.size()));
+    }
+
+    /**
+     * Parse the next batch of records, dropping those that can't be replayed.
+     * @return true if there is at least one record to replay
+     */
+    private boolean readBatch() {
+        batchSize = 0;
+        batchPosition = 0;
+        try {
+            while (batchSize < startTimes.length && !endOfFile) {
+                if (binary ? !readBinaryRecord() : !readCsvRecord())
+                    continue;
+                if (timeOffset == null)
+                    timeOffset = startTime - recordTime;
+                long time = recordTime + timeOffset;
+                if (time >= Integer.MAX_VALUE) {
+                    // Past the longest possible run, so there is nothing more to replay
+                    endOfFile = true;
+                    break;
+                }
+                // A record from before one already replayed is replayed at once rather than in the past
+                if (time < lastStartTime) {
+                    time = lastStartTime;
+                    ++lateCount;
+                }
+                if (hostFor(sources[batchSize]) == hostFor(destinations[batchSize])) {
+                    ++skippedCount;
+                    continue;
+                }
+                startTimes[batchSize++] = (int) time;
+                lastStartTime = (int) time;
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read trace " + filename + ": " + e.getMessage());
+            endOfFile = true;
+        }
+        if (endOfFile && batchSize == 0)
+            close();
+        return batchSize > 0;
+    }
+
+    /**
+     * Make sure the buffer holds at least some bytes, reading more from the file if needed.
+     * @param bytes how many bytes are needed
+     * @return false if the file ends first
+     */
+    private boolean fill(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read one binary record into the batch.
+     * @return true if a record was read
+     */
+    private boolean readBinaryRecord() throws IOException {
+        if (!fill(RecordSize)) {
+            if (buffer.hasRemaining())
+                System.out.println("Trace " + filename + " ends in a partial record");
+            endOfFile = true;
+            return false;
+        }
+        ++lineNumber;
+        recordTime = buffer.getLong();
+        sources[batchSize] = buffer.getInt();
+        destinations[batchSize] = buffer.getInt();
+        sizes[batchSize] = buffer.getLong();
+        return true;
+    }
+
+    /**
+     * Read one CSV line into the batch. Fields are parsed straight from the buffer, without making Strings.
+     * @return true if a record was read, false at the end of the file or for a line that isn't a record
+     */
+    private boolean readCsvRecord() throws IOException {
+        // Find the end of the line, reading more of the file until it is in the buffer
+        int lineStart = buffer.position();
+        int lineEnd = lineStart;
+        while (true) {
+            if (lineEnd == buffer.limit()) {
+                if (lineEnd - lineStart == buffer.capacity())
+                    throw new IOException("line " + (lineNumber + 1) + " is longer than " + BufferSize + " bytes");
+                buffer.position(lineStart);
+                buffer.compact();
+                int read = channel.read(buffer);
+                buffer.flip();
+                lineEnd -= lineStart;
+                lineStart = 0;
+                if (read < 0) {
+                    endOfFile = true;
+                    if (lineEnd == lineStart)
+                        return false;
+                    break;
+                }
+                continue;
+            }
+            if (buffer.get(lineEnd) == '\n')
+                break;
+            ++lineEnd;
+        }
+        buffer.position(Math.min(buffer.limit(), lineEnd + 1));
+        ++lineNumber;
+
+        // Split the line on commas
+        int fields = 0;
+        int fieldStart = lineStart;
+        for (int i = lineStart; i <= lineEnd && fields < 4; ++i) {
+            if (i == lineEnd || buffer.get(i) == ',') {
+                fieldStarts[fields] = fieldStart;
+                fieldEnds[fields] = i;
+                ++fields;
+                fieldStart = i + 1;
+            }
+        }
+        if (fields < 4 || fieldEnds[3] != lineEnd) {
+            // The header, blank lines and anything else that isn't four fields long is skipped
+            if (lineNumber > 1 && lineEnd > lineStart + 1)
+                ++skippedCount;
+            return false;
+        }
+        long time = parseNumber(fieldStarts[0], fieldEnds[0]);
+        long bytes = parseNumber(fieldStarts[3], fieldEnds[3]);
+        if (time < 0 || bytes < 0) {
+            if (lineNumber > 1)
+                ++skippedCount;
+            return false;
+        }
+        recordTime = time;
+        sources[batchSize] = hashAddress(fieldStarts[1], fieldEnds[1]);
+        destinations[batchSize] = hashAddress(fieldStarts[2], fieldEnds[2]);
+        sizes[batchSize] = bytes;
+        return true;
+    }
+
+    /**
+     * Parse a non-negative decimal number from the buffer. A fractional part is dropped.
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the number, or -1 if the text isn't a number
+     */
+    private long parseNumber(int start, int end) {
+        while (start < end && buffer.get(start) == ' ') ++start;
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\r')) --end;
+        if (start == end)
+            return -1;
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            byte c = buffer.get(i);
+            if (c == '.')
+                break;
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Hash an address in the buffer the same way String.hashCode hashes its text, so it matches Host addresses.
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the address key
+     */
+    private int hashAddress(int start, int end) {
+        while (start < end && buffer.get(start) == ' ') ++start;
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\r')) --end;
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + (buffer.get(i) & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * Close the trace file and report what was replayed.
+     */
+    public void close() {
+        if (!channel.isOpen())
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Cannot close trace " + filename + ": " + e.getMessage());
+        }
+        System.out.println("Trace " + filename + ": " + flowCount + " flows replayed, " + skippedCount +
+                " records skipped, " + lateCount + " out of order");
+    }
+
+    /**
+     * Convert CSV traces to the binary format, which replays faster and is smaller.
+     * @param args pairs of CSV trace and binary trace file names
+     */
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Usage: TraceReplay <trace.csv> <trace.bin> [...]");
+            return;
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            long startTime = System.currentTimeMillis();
+            long records = 0;
+            try (BufferedReader in = new BufferedReader(new FileReader(args[i]), BufferSize);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(args[i + 1]), BufferSize))) {
+                out.writeInt(Magic);
+                out.writeInt(FormatVersion);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    if (fields.length != 4)
+                        continue;
+                    try {
+                        long time = (long) Double.parseDouble(fields[0].trim());
+                        long bytes = (long) Double.parseDouble(fields[3].trim());
+                        out.writeLong(time);
+                        out.writeInt(fields[1].trim().hashCode());
+                        out.writeInt(fields[2].trim().hashCode());
+                        out.writeLong(bytes);
+                        ++records;
+                    } catch (NumberFormatException e) {
+                        // The header, or a malformed line
+                    }
+                }
+                System.out.println("Converted " + records + " records from " + args[i] + " to " + args[i + 1] +
+                        " in " + (System.currentTimeMillis() - startTime) + " ms");
+            } catch (IOException e) {
+                System.out.println("Cannot convert " + args[i] + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.ricketts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic traffic: Flows with random sizes arriving at random times, at a rate set to offer a target load.
+ * Flows are made one at a time as their start time comes up, so a workload of millions of flows never holds more
+ * than the next one.
+ *
+ * The load is a fraction of the Hosts' link capacity: with load 0.5 every Host link carries, on average, half its
+ * capacity in new flow data (sent for uniform and permutation traffic, received for incast).
+ */
+public class Workload implements FlowSource {
+    /**
+     * How Flow start times are drawn.
+     */
+    public enum Arrivals {
+        /**
+         * Exponential gaps between flows
+         */
+        POISSON,
+        /**
+         * Poisson arrivals during exponentially long ON periods, separated by exponentially long OFF periods with no
+         * arrivals. The rate while ON is raised so the average load is the same.
+         */
+        ON_OFF
+    }
+
+    /**
+     * Which Hosts talk to which.
+     */
+    public enum Pattern {
+        /**
+         * Every flow goes between two Hosts picked at random
+         */
+        UNIFORM,
+        /**
+         * Every Host always sends to the same partner, along a random cycle through the Hosts
+         */
+        PERMUTATION,
+        /**
+         * Every arrival is a query: fanIn random Hosts each send a flow to one random Host at the same time
+         */
+        INCAST
+    }
+
+    private final ArrayList<Host> hosts;
+    private final FlowSizeDistribution sizes;
+    private final Pattern pattern;
+    /**
+     * Senders per incast query
+     */
+    private final int fanIn;
+    /**
+     * Mean ON and OFF period lengths for on/off arrivals, in ms
+     */
+    private final double onTime, offTime;
+    /**
+     * No flows start at or after this time, in ms
+     */
+    private final int stopTime;
+    /**
+     * No more than this many flows are made
+     */
+    private final long maxFlows;
+    private final Random random;
+
+    /**
+     * Arrivals per millisecond (while ON, for on/off arrivals)
+     */
+    private final double arrivalRate;
+    /**
+     * Partner of every Host, by index, for permutation traffic
+     */
+    private int[] partners;
+    /**
+     * Host indices in the order left by the last partial shuffle, for incast traffic
+     */
+    private int[] hostOrder;
+    /**
+     * Time of the next arrival, in ms
+     */
+    private double nextArrival;
+    /**
+     * End of the current ON period, for on/off arrivals
+     */
+    private double onUntil;
+    /**
+     * Flows of the current incast query not handed out yet
+     */
+    private final ArrayDeque<Flow> queuedFlows;
+    private int nextFlowID;
+    private long flowCount;
+
+    /**
+     * Construct a workload over the Hosts of a Network.
+     * @param network the Network; flow IDs continue after its own Flows
+     * @param sizes flow size distribution
+     * @param load offered load as a fraction of Host link capacity
+     * @param arrivals how start times are drawn
+     * @param onTime mean ON period in ms, for on/off arrivals
+     * @param offTime mean OFF period in ms, for on/off arrivals
+     * @param pattern which Hosts talk to which
+     * @param fanIn senders per incast query
+     * @param startTime time of the first possible arrival, in ms
+     * @param stopTime no flows start at or after this time, in ms
+     * @param maxFlows no more than this many flows are made
+     * @param seed seed for every random choice
+     */
+    public Workload(Network network, FlowSizeDistribution sizes, double load, Arrivals arrivals, double onTime,
+                    double offTime, Pattern pattern, int fanIn, int startTime, int stopTime, long maxFlows,
+                    long seed) {
+        if (network.getHosts().size() < 2)
+            throw new IllegalArgumentException("a workload needs at least two hosts");
+        if (load <= 0)
+            throw new IllegalArgumentException("load must be positive, got " + load);
+        if (pattern == Pattern.INCAST && (fanIn < 1 || fanIn >= network.getHosts().size()))
+            throw new IllegalArgumentException("incast fan-in must be between 1 and the number of hosts - 1");
+        if (arrivals == Arrivals.ON_OFF && (onTime <= 0 || offTime < 0))
+            throw new IllegalArgumentException("on/off arrivals need a positive ON time");
+        this.hosts = network.getHosts();
+        this.sizes = sizes;
+        this.pattern = pattern;
+        this.fanIn = fanIn;
+        this.onTime = onTime;
+        this.offTime = offTime;
+        this.stopTime = stopTime;
+        this.maxFlows = maxFlows;
+        this.random = new Random(seed);
+        this.queuedFlows = new ArrayDeque<>();
+
+        int lastFlowID = 0;
+        for (Flow flow : network.getFlows()) {
+            lastFlowID = Math.max(lastFlowID, flow.getID());
+        }
+        this.nextFlowID = lastFlowID + 1;
+
+        // Offered bits per ms over all Host links, divided by the bits each arrival brings
+        double capacity = 0;
+        for (Host host : hosts) {
+            capacity += host.getLink().getLinkRate();
+        }
+        double bitsPerArrival = sizes.getMean() * (pattern == Pattern.INCAST ? fanIn : 1);
+        double rate = load * capacity / bitsPerArrival;
+        if (arrivals == Arrivals.ON_OFF)
+            rate *= (onTime + offTime) / onTime;
+        this.arrivalRate = rate;
+
+        int[] order = new int[hosts.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        if (pattern == Pattern.PERMUTATION) {
+            for (int i = order.length - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            partners = new int[order.length];
+            for (int i = 0; i < order.length; ++i) {
+                partners[order[i]] = order[(i + 1) % order.length];
+            }
+        } else if (pattern == Pattern.INCAST) {
+            hostOrder = order;
+        }
+
+        this.onUntil = startTime + (arrivals == Arrivals.ON_OFF ? exponential(onTime) : Double.MAX_VALUE);
+        this.nextArrival = startTime;
+        advanceArrival();
+    }
+
+    /**
+     * Build a workload from a spec such as "websearch:load=0.5,pattern=incast,fanin=16".
+     * The name is the flow size distribution ("websearch", "datamining" or "fixed" with size in MB). The other keys
+     * are load, arrivals ("poisson" or "onoff" with on and off in ms), pattern ("uniform", "permutation" or
+     * "incast" with fanin), start and stop (ms), flows (the most to make) and seed.
+     * @param text the spec
+     * @param network the Network the workload runs on
+     * @return the Workload
+     * @throws TopologyParseException if the spec has an unknown or bad value
+     */
+    public static Workload fromSpec(String text, Network network) throws TopologyParseException {
+        ScenarioSpec spec = new ScenarioSpec(text);
+        try {
+            FlowSizeDistribution sizes = FlowSizeDistribution.named(spec.getName(), spec.getDouble("size", 1));
+            double load = spec.getDouble("load", .5);
+            String arrivalsName = spec.getString("arrivals", "poisson");
+            Arrivals arrivals;
+            if (arrivalsName.equals("poisson"))
+                arrivals = Arrivals.POISSON;
+            else if (arrivalsName.equals("onoff"))
+                arrivals = Arrivals.ON_OFF;
+            else
+                throw new IllegalArgumentException("unknown arrivals \"" + arrivalsName + "\"");
+            double onTime = spec.getDouble("on", 100);
+            double offTime = spec.getDouble("off", 100);
+            Pattern pattern;
+            try {
+                pattern = Pattern.valueOf(spec.getString("pattern", "uniform").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown traffic pattern");
+            }
+            int fanIn = spec.getInt("fanin", 8);
+            int startTime = spec.getInt("start", 1000);
+            int stopTime = spec.getInt("stop", network.getRuntime());
+            long maxFlows = (long) spec.getDouble("flows", Long.MAX_VALUE);
+            long seed = (long) spec.getDouble("seed", 1);
+            spec.checkAllUsed();
+            return new Workload(network, sizes, load, arrivals, onTime, offTime, pattern, fanIn, startTime, stopTime,
+                    maxFlows, seed);
+        } catch (IllegalArgumentException e) {
+            throw new TopologyParseException(text, 0, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * How many flows have been made so far.
+     * @return the count
+     */
+    public long getFlowCount() { return flowCount; }
+
+    public int getNextStartTime() {
+        if (!queuedFlows.isEmpty())
+            return queuedFlows.peek().getStartTime();
+        if (flowCount >= maxFlows || nextArrival >= stopTime)
+            return Integer.MAX_VALUE;
+        return (int) nextArrival;
+    }
+
+    public Flow nextFlow() {
+        if (queuedFlows.isEmpty()) {
+            int startTime = (int) nextArrival;
+            if (pattern == Pattern.INCAST) {
+                Host destination = hosts.get(random.nextInt(hosts.size()));
+                // Pick fanIn distinct senders other than the destination, by a partial shuffle
+                for (int i = 0, picked = 0; picked < fanIn && flowCount + picked < maxFlows; ++i) {
+                    int j = i + random.nextInt(hostOrder.length - i);
+                    int swap = hostOrder[i];
+                    hostOrder[i] = hostOrder[j];
+                    hostOrder[j] = swap;
+                    Host source = hosts.get(hostOrder[i]);
+                    if (source == destination)
+                        continue;
+                    queuedFlows.add(makeFlow(source, destination, startTime));
+                    ++picked;
+                }
+            } else if (pattern == Pattern.PERMUTATION) {
+                int source = random.nextInt(hosts.size());
+                queuedFlows.add(makeFlow(hosts.get(source), hosts.get(partners[source]), startTime));
+            } else {
+                int source = random.nextInt(hosts.size());
+                int destination = random.nextInt(hosts.size() - 1);
+                if (destination >= source)
+                    ++destination;
+                queuedFlows.add(makeFlow(hosts.get(source), hosts.get(destination), startTime));
+            }
+            advanceArrival();
+        }
+        ++flowCount;
+        return queuedFlows.remove();
+    }
+
+    /**
+     * Make a Flow with a random size.
+     * @param source sending Host
+     * @param destination receiving Host
+     * @param startTime start time in ms
+     * @return the Flow
+     */
+    private Flow makeFlow(Host source, Host destination, int startTime) {
+        return new Flow(nextFlowID++, source, destination, sizes.sample(random), startTime);
+    }
+
+    /**
+     * Move nextArrival to the time of the following arrival, skipping OFF periods.
+     */
+    private void advanceArrival() {
+        nextArrival += exponential(1 / arrivalRate);
+        // Gaps are memoryless, so time that falls in an OFF period just carries over into the next ON period
+        while (nextArrival > onUntil) {
+            double onStart = onUntil + exponential(offTime);
+            nextArrival = onStart + (nextArrival - onUntil);
+            onUntil = onStart + exponential(onTime);
+        }
+    }
+
+    /**
+     * Draw from an exponential distribution.
+     * @param mean the mean
+     * @return the draw
+     */
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+}